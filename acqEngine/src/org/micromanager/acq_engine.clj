@@ -195,10 +195,26 @@
       (swap! pending-devices disj dev)
       (catch Exception e (log "wait for device" dev "failed.")))))
 
+(defn cached-device-command
+  "Write-through device state cache. Runs command only if value differs
+   from the value last written to cache-path in state, then records value.
+   Suppressed and issued commands are counted as hits and misses."
+  [cache-path value command]
+  (if (= value (get-in @state cache-path))
+    (swap! state update-in [:device-cache-stats :hits] (fnil inc 0))
+    (do
+      (swap! state update-in [:device-cache-stats :misses] (fnil inc 0))
+      (command)
+      (swap! state assoc-in cache-path value)))
+  nil)
+
+(defn log-device-cache-stats []
+  (let [{:keys [hits misses] :or {hits 0 misses 0}} (@state :device-cache-stats)]
+    (log "device state cache:" hits "commands suppressed," misses "commands issued")))
+
 (defn set-exposure [camera exp]
-  (when (not= exp (get-in @state [:cameras camera :exposure]))
-    (device-best-effort camera (core setExposure exp))
-    (swap! state assoc-in [:cameras camera :exposure] exp)))
+  (cached-device-command [:cameras camera :exposure] exp
+    #(device-best-effort camera (core setExposure exp))))
 
 (defn wait-for-pending-devices []
   (log "pending devices: " @pending-devices)
@@ -220,10 +236,8 @@
 
 (defn set-shutter-open [open?]
   (let [shutter (core getShutterDevice)]
-    (device-best-effort shutter
-      (when (not= open? (get-in @state [:shutter-states shutter]))
-        (core setShutterOpen open?)
-        (swap! state assoc-in [:shutter-states shutter] open?)))))
+    (cached-device-command [:shutter-states shutter] open?
+      #(device-best-effort shutter (core setShutterOpen open?)))))
 
 (defn is-continuous-focus-drive [stage]
   (when-not (empty? stage)
@@ -238,33 +252,100 @@
 
 (defn set-stage-position
   ([stage-dev z]
-    (when (and (not (empty? stage-dev))
-               (not= z (get-in @state [:last-stage-positions stage-dev])))
-      (set-z-stage-position stage-dev z)
-      (swap! state assoc-in [:last-stage-positions stage-dev] z)))
+    (when-not (empty? stage-dev)
+      (cached-device-command [:last-stage-positions stage-dev] z
+        #(set-z-stage-position stage-dev z))))
   ([stage-dev x y]
-    (when (and x y
-               (not= [x y] (get-in @state [:last-stage-positions stage-dev])))
-      (device-best-effort stage-dev (core setXYPosition stage-dev x y))
-      (swap! state assoc-in [:last-stage-positions stage-dev] [x y]))))
+    (when (and x y)
+      (cached-device-command [:last-stage-positions stage-dev] [x y]
+        #(device-best-effort stage-dev (core setXYPosition stage-dev x y))))))
 
 (defn set-property
   [prop]
   (let [[[d p] v] prop]
-    (when (not= v (get-in @state [:last-property-settings d p]))
-      (device-best-effort d (core setProperty d p v))
-      (swap! state assoc-in [:last-property-settings d p] v))))
-
-(defn run-autofocus []
+    (cached-device-command [:last-property-settings d p] v
+      #(device-best-effort d (core setProperty d p v)))))
+
+;; focus model
+
+(def focus-prediction-skip-tolerance-um
+  "When non-nil, autofocus at a position is skipped (every other time at
+   most) if the last two focus predictions there were within this
+   distance of the measured focus."
+  (atom nil))
+
+(defn predict-focus
+  "Predicts best focus at frame by linear extrapolation of the last two
+   autofocus results in a position's focus model (newest first)."
+  [{:keys [history]} frame]
+  (let [[{f1 :frame z1 :z} {f0 :frame z0 :z}] history]
+    (cond
+      (and z0 frame (not= f0 f1)) (+ z1 (* (- frame f1) (/ (- z1 z0) (- f1 f0))))
+      z1 z1)))
+
+(defn focus-prediction-confident? [{:keys [errors skipped]}]
+  (when-let [tolerance @focus-prediction-skip-tolerance-um]
+    (and (not skipped)
+         (<= 2 (count errors))
+         (every? #(<= % tolerance) (take 2 errors)))))
+
+(defn record-focus [model frame predicted z]
+  (-> model
+      (update-in [:history] #(vec (take 2 (cons {:frame frame :z z} %))))
+      (update-in [:errors] #(if predicted
+                              (vec (take 2 (cons (Math/abs (- z predicted)) %)))
+                              %))
+      (assoc :skipped false)))
+
+(defn update-focus-stats [stats predicted z]
+  (-> stats
+      (update-in [:searches] inc)
+      (#(if predicted
+          (-> %
+              (update-in [:predictions] inc)
+              (update-in [:error-sum-um] + (Math/abs (- z predicted))))
+          %))))
+
+(defn log-focus-stats []
+  (when-let [{:keys [searches skipped predictions error-sum-um]} (@state :focus-stats)]
+    (when (pos? (+ searches skipped))
+      (log "focus model:" searches "autofocus searches," skipped "skipped,"
+           "mean prediction error"
+           (if (pos? predictions) (/ error-sum-um predictions) "n/a") "um"))))
+
+(defn run-autofocus [event]
   (let [z-drive (@state :default-z-drive)
-        z0 (get-z-stage-position z-drive)]
-  (try
-    (log "running autofocus" (-> @state :autofocus-device .getDeviceName))
-    (let [z (-> @state :autofocus-device .fullFocus)]
-      (swap! state assoc-in [:last-stage-positions (@state :default-z-drive)] z))
-    (catch Exception e
-           (ReportingUtils/logError e "Autofocus failed.")
-           (set-stage-position z-drive (+ 1.0e-6 z0))))))
+        z0 (get-z-stage-position z-drive)
+        position (:position event)
+        frame (:frame-index event)
+        model (get-in @state [:focus-models position])
+        predicted (when (and (not (empty? z-drive))
+                             (not (and (@state :init-continuous-focus)
+                                       (core isContinuousFocusEnabled))))
+                    (predict-focus model frame))]
+  (if (and predicted (focus-prediction-confident? model))
+    (do
+      (log "skipping autofocus, using predicted focus" predicted)
+      (set-stage-position z-drive predicted)
+      (wait-for-device z-drive)
+      (swap! state #(-> %
+                        (assoc-in [:focus-models position :skipped] true)
+                        (update-in [:focus-stats :skipped] inc))))
+    (try
+      (when predicted
+        ; start the search from the predicted focus
+        (set-stage-position z-drive predicted)
+        (wait-for-device z-drive))
+      (log "running autofocus" (-> @state :autofocus-device .getDeviceName))
+      (let [z (-> @state :autofocus-device .fullFocus)]
+        (swap! state #(-> %
+                          (assoc-in [:last-stage-positions z-drive] z)
+                          (update-in [:focus-models position]
+                                     record-focus frame predicted z)
+                          (update-in [:focus-stats] update-focus-stats predicted z))))
+      (catch Exception e
+             (ReportingUtils/logError e "Autofocus failed.")
+             (set-stage-position z-drive (+ 1.0e-6 z0)))))))
 
 (defn snap-image [open-before close-after]
   (with-core-setting [getAutoShutter setAutoShutter false]
@@ -512,13 +593,13 @@
           camera-channel-names (get-camera-channel-names)]
       (produce-burst-images burst-events camera-channel-names pop-timeout-ms out-queue))))
 
-(defn collect-snap-image [event out-queue]
+(defn collect-snap-image [event out-queue acq-state]
   (let [image (unwrap-tagged-image (core getTaggedImage (event :camera-channel-index)))]
     (select-keys event [:position-index :frame-index
                         :slice-index :channel-index])
     (when out-queue
       (send-tagged-image out-queue
-            (make-TaggedImage (annotate-image image event @state (elapsed-time @state)))))
+            (make-TaggedImage (annotate-image image event acq-state (elapsed-time acq-state)))))
     image))
 
 (defn return-config []
@@ -581,12 +662,12 @@
                          (:relative-z event))
       nil)))
 
-(defn collect [event out-queue settings]
+(defn collect [event out-queue settings acq-state]
   (log "collecting image(s)")
   (try
     (condp = (:task event)
       :snap (doseq [sub-event (make-multicamera-events event)]
-              (collect-snap-image sub-event out-queue))
+              (collect-snap-image sub-event out-queue acq-state))
       :burst (collect-burst-images event out-queue settings))
     (catch EOFException eat
       (log "halted image collection and output due to engine stop"))))
@@ -636,6 +717,71 @@
         (let [z (get-z-stage-position z-drive)]
           (swap! state assoc :reference-z z))))))
 
+;; lookahead
+
+(def device-lookahead
+  "When true, device commands for the next event are issued while the
+   current image is being read out from the camera."
+  (atom true))
+
+(defn lookahead-safe-device?
+  "Devices that may be commanded while the camera is reading out. The camera
+   and shutter are busy with the current image, the autofocus device may be
+   used by the next event, and Core properties can change device roles."
+  [dev]
+  (not (or (empty? dev)
+           (contains? #{"Core"
+                        (core getCameraDevice)
+                        (core getShutterDevice)
+                        (core getAutoFocusDevice)}
+                      dev))))
+
+(defn lookahead-allowed?
+  "Device commands for next-event can be issued early only if the current
+   event is a snap with the shutter closed after exposure, and the next
+   event is a snap that does not wait, autofocus or run attached tasks
+   (all of which expect the hardware in its pre-event state)."
+  [event next-event]
+  (and @device-lookahead
+       next-event
+       (= :snap (:task event) (:task next-event))
+       (core getAutoShutter)
+       (:close-shutter event)
+       (not (:autofocus next-event))
+       (empty? (:runnables next-event))
+       (not (when-let [t (:wait-time-ms next-event)] (pos? t)))))
+
+(defn lookahead-commands [next-event]
+  (let [z-drive (@state :default-z-drive)]
+    (concat
+      (when (:new-position next-event)
+        (for [[axis pos]
+              (:axes (MultiStagePosition-to-map
+                       (get-msp (@state :position-list) (:position next-event))))
+              :when (and pos (lookahead-safe-device? axis))]
+          #(apply set-stage-position axis pos)))
+      (for [prop (get-in next-event [:channel :properties])
+            :let [[[d _] _] prop]
+            :when (lookahead-safe-device? d)]
+        #(set-property prop))
+      (when (lookahead-safe-device? z-drive)
+        [#(set-stage-position z-drive (compute-z-position next-event))]))))
+
+(defn run-lookahead
+  "Issues the next event's stage and property commands without waiting for
+   the devices. The settings are recorded in state, so the same commands
+   become no-ops when the next event runs, and the devices are waited for
+   as pending devices before its exposure. A failure here is only logged;
+   the command is retried by the next event."
+  [next-event]
+  (log "BEGIN lookahead device commands")
+  (try
+    (doseq [command (lookahead-commands next-event)]
+      (command))
+    (catch Exception e
+      (ReportingUtils/logError e "Lookahead device command failed.")))
+  (log "END lookahead device commands"))
+
 ;; startup and shutdown
 
 (defn prepare-state [state position-list autofocus-device]
@@ -649,6 +795,9 @@
            :stop false
            :finished false
            :last-wake-time (jvm-time-ms)
+           :device-cache-stats {:hits 0 :misses 0}
+           :focus-models {}
+           :focus-stats {:searches 0 :skipped 0 :predictions 0 :error-sum-um 0.0}
            :last-stage-positions (into {} [[default-z-drive z]
                                            [default-xy-stage xy]])
            :reference-z z
@@ -697,7 +846,7 @@
 
 ;; running events
 
-(defn make-event-fns [event out-queue settings]
+(defn make-event-fns [event next-event out-queue settings]
   (let [current-position (:position event)
         z-drive (@state :default-z-drive)
         check-z-ref (and z-drive
@@ -734,7 +883,7 @@
                    (acq-sleep wait-time-ms))
                 #(when (get event :autofocus)
                    (wait-for-pending-devices)
-                   (run-autofocus))
+                   (run-autofocus event))
                 #(when check-z-ref
                    (log "BEGIN store/update z reference")
                    (store-z-reference current-position)
@@ -754,7 +903,11 @@
                    (wait-for-pending-devices)
                    (log "BEGIN acquire")
                    (expose event)
-                   (collect event out-queue settings)
+                   ; metadata must describe the hardware state at exposure
+                   (let [acq-state @state]
+                     (when (lookahead-allowed? event next-event)
+                       (run-lookahead next-event))
+                     (collect event out-queue settings acq-state))
                    (stop-triggering)
                    (log "END acquire"))
                 #(log "#####" "END acquisition event"))))))
@@ -764,6 +917,14 @@
     (event-fn)
     (await-resume)))
 
+(defn execute-acq-sequence
+  "Runs a lazy sequence of events. The sequence is only referenced as
+   an argument here, so executed events can be garbage collected."
+  [acq-seq out-queue settings]
+  (execute (mapcat (fn [[event next-event]]
+                     (make-event-fns event next-event out-queue settings))
+                   (partition-all 2 1 acq-seq))))
+
 (defn run-acquisition [settings out-queue cleanup? position-list autofocus-device]
     (try
       (def acq-settings settings) ; for debugging
@@ -774,9 +935,9 @@
           (.enableRoiButtons false)))
       (prepare-state state (when (:use-position-list settings) position-list) autofocus-device)
       (def last-state state) ; for debugging
-      (let [acq-seq (generate-acq-sequence settings @attached-runnables)]
-        (def acq-sequence acq-seq) ; for debugging
-        (execute (mapcat #(make-event-fns % out-queue settings) acq-seq)))
+      (execute-acq-sequence
+        (generate-acq-sequence settings @attached-runnables)
+        out-queue settings)
       (catch Throwable t
              (def acq-error t) ; for debugging
              ; XXX There ought to be a way to get errors programmatically...
@@ -784,6 +945,8 @@
       (finally
         (when cleanup?
           (cleanup))
+        (log-device-cache-stats)
+        (log-focus-stats)
         (if (:stop @state)
           ; In the case where we canceled the acquisition via stop, it is
           ; possible that the out-queue is full. But we have already given up
@@ -92,20 +92,26 @@
     (concat a b)))
         
 (defn nest-loop
-  "Create a loop for a given dimension, as generated by make-dimensions."
-  [events dim-vals dim dim-index-kw]
+  "Create a loop for a given dimension, as generated by make-dimensions.
+   Takes and returns zero-arg functions that generate the event sequence,
+   so that the inner loops are regenerated for each outer index instead
+   of being realized and held for the whole acquisition."
+  [make-events dim-vals dim dim-index-kw]
   (if (and dim-vals (pos? (count dim-vals)))
-    (for [i (range (count dim-vals)) event events]
-      (assoc event
-        dim-index-kw i
-        dim (if (= dim-index-kw :frame-index) i (get dim-vals i))))
-    (map #(assoc % dim-index-kw 0) events)))
+    (let [n (count dim-vals)]
+      (fn []
+        (for [i (range n) event (make-events)]
+          (assoc event
+            dim-index-kw i
+            dim (if (= dim-index-kw :frame-index) i (get dim-vals i))))))
+    (fn []
+      (map #(assoc % dim-index-kw 0) (make-events)))))
 
 (defn create-loops
   "Generate loops of events from a set of dimensions parameters as
    generated by make-dimensinos."
   [dimensions]
-  (reduce #(apply (partial nest-loop %1) %2) [{}] dimensions))
+  ((reduce #(apply (partial nest-loop %1) %2) (constantly [{}]) dimensions)))
 
 (defn make-main-loops
   "Make the sequence of multi-d acq. events using the acquisition settings."
@@ -32,6 +32,14 @@ import ij.gui.OvalRoi;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.SwingUtilities;
 
@@ -87,6 +95,13 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double startZUm_;
    private boolean liveModeOn_;
    private boolean settingsLoaded_ = false;
+   // work space of the score functions
+   private int[] pixelBuffer_;
+   // images with fewer pixels are scored on the calling thread
+   private static final int MIN_PIXELS_PER_THREAD = 128 * 1024;
+   private static final int NR_SCORE_THREADS = 
+           Runtime.getRuntime().availableProcessors();
+   private static ExecutorService scoreExecutor_;
 
    public OughtaFocus() {
       super();
@@ -357,18 +372,176 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       return meanEdge / meanIntensity;
    }
 
+   /**
+    * Returns the pixel values of the image in an int array, which is
+    * re-used between calls.  Float values are truncated, and RGB pixels are
+    * converted to their luminance, as ImageStatistics does.
+    */
+   private int[] getIntPixels(ImageProcessor proc) {
+      final int n = proc.getWidth() * proc.getHeight();
+      if (pixelBuffer_ == null || pixelBuffer_.length < n) {
+         pixelBuffer_ = new int[n];
+      }
+      final int[] result = pixelBuffer_;
+      Object pixels = proc.getPixels();
+      if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         for (int i = 0; i < n; i++) {
+            result[i] = bytes[i] & 0xff;
+         }
+      } else if (pixels instanceof short[]) {
+         short[] shorts = (short[]) pixels;
+         for (int i = 0; i < n; i++) {
+            result[i] = shorts[i] & 0xffff;
+         }
+      } else if (pixels instanceof float[]) {
+         float[] floats = (float[]) pixels;
+         for (int i = 0; i < n; i++) {
+            result[i] = (int) floats[i];
+         }
+      } else {
+         final int w = proc.getWidth();
+         for (int i = 0; i < n; i++) {
+            result[i] = (int) proc.getPixelValue(i % w, i / w);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Largest value an ImageJ filter can produce for this image type, filtered
+    * values are clipped to this range by ImageProcessor.convolve3x3.
+    */
+   private static int maxFilterValue(ImageProcessor proc) {
+      if (proc instanceof ByteProcessor) {
+         return 255;
+      } else if (proc instanceof ShortProcessor) {
+         return 65535;
+      }
+      return Integer.MAX_VALUE;
+   }
+
+   /**
+    * Sum of a function over a range of rows of an image.
+    */
+   private static abstract class RowSum {
+      abstract double sum(int startRow, int endRow);
+   }
+
+   private static synchronized ExecutorService getScoreExecutor() {
+      if (scoreExecutor_ == null) {
+         scoreExecutor_ = Executors.newFixedThreadPool(NR_SCORE_THREADS, 
+                 new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "OughtaFocus score");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return scoreExecutor_;
+   }
+
+   /**
+    * Evaluates rowSum for rows startRow (inclusive) to endRow (exclusive).
+    * Large images are split into bands of rows that are summed on
+    * multiple threads.
+    */
+   private static double sumRows(final RowSum rowSum, int startRow, int endRow,
+           int width) {
+      final int nrRows = endRow - startRow;
+      long nrPixels = (long) nrRows * width;
+      int nrThreads = (int) Math.min(NR_SCORE_THREADS, 
+              nrPixels / MIN_PIXELS_PER_THREAD);
+      if (nrThreads <= 1) {
+         return rowSum.sum(startRow, endRow);
+      }
+      ExecutorService executor = getScoreExecutor();
+      List<Future<Double>> parts = new ArrayList<Future<Double>>(nrThreads);
+      int band = (nrRows + nrThreads - 1) / nrThreads;
+      for (int row = startRow; row < endRow; row += band) {
+         final int bandStart = row;
+         final int bandEnd = Math.min(endRow, row + band);
+         parts.add(executor.submit(new Callable<Double>() {
+            @Override
+            public Double call() {
+               return rowSum.sum(bandStart, bandEnd);
+            }
+         }));
+      }
+      double sum = 0.0;
+      try {
+         for (Future<Double> part : parts) {
+            sum += part.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ie);
+      } catch (ExecutionException ee) {
+         throw new RuntimeException(ee.getCause());
+      }
+      return sum;
+   }
+
+   /**
+    * @return sum and sum of squares of the pixel values
+    */
+   private static double[] computeSums(final int[] pix, final int w, int h) {
+      double sum = sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            double s = 0.0;
+            for (int i = startRow * w; i < endRow * w; i++) {
+               s += pix[i];
+            }
+            return s;
+         }
+      }, 0, h, w);
+      double sumSquares = sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            double s = 0.0;
+            for (int i = startRow * w; i < endRow * w; i++) {
+               double p = pix[i];
+               s += p * p;
+            }
+            return s;
+         }
+      }, 0, h, w);
+      return new double[] {sum, sumSquares};
+   }
+
    private double computeMean(ImageProcessor proc) {
-      return proc.getStatistics().mean;
+      int n = proc.getWidth() * proc.getHeight();
+      return computeSums(getIntPixels(proc), proc.getWidth(), 
+              proc.getHeight())[0] / n;
+   }
+
+   /**
+    * Standard deviation as calculated by ImageStatistics
+    */
+   private double computeStdDev(double[] sums, int n) {
+      if (n < 2) {
+         return 0.0;
+      }
+      double variance = (n * sums[1] - sums[0] * sums[0]) / n / (n - 1.0);
+      return variance > 0 ? Math.sqrt(variance) : 0.0;
    }
 
    private double computeNormalizedStdDev(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return stats.stdDev / stats.mean;
+      int n = proc.getWidth() * proc.getHeight();
+      double[] sums = computeSums(getIntPixels(proc), proc.getWidth(), 
+              proc.getHeight());
+      return computeStdDev(sums, n) / (sums[0] / n);
    }
 
    private double computeNormalizedVariance(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return (stats.stdDev * stats.stdDev) / stats.mean;
+      int n = proc.getWidth() * proc.getHeight();
+      double[] sums = computeSums(getIntPixels(proc), proc.getWidth(), 
+              proc.getHeight());
+      double stdDev = computeStdDev(sums, n);
+      return (stdDev * stdDev) / (sums[0] / n);
    }
 
    
@@ -386,22 +559,28 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    // tuberculosis microscopy". Proc 29th International Conference of the
    // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
    private double computeRedondo(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
+      final int h = proc.getHeight();
+      final int w = proc.getWidth();
+      final int[] pix = getIntPixels(proc);
 
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 1; j < h - 1; ++j) {
-            double p = proc.getPixel(i - 1, j)
-                    + proc.getPixel(i + 1, j)
-                    + proc.getPixel(i, j - 1)
-                    + proc.getPixel(i, j + 1)
-                    - 4 * (proc.getPixel(i - 1, j));
-            sum += (p * p);
+      return sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            double sum = 0.0;
+            for (int j = startRow; j < endRow; ++j) {
+               int row = j * w;
+               for (int i = 1; i < w - 1; ++i) {
+                  double p = pix[row + i - 1]
+                          + pix[row + i + 1]
+                          + pix[row - w + i]
+                          + pix[row + w + i]
+                          - 4 * (pix[row + i - 1]);
+                  sum += (p * p);
+               }
+            }
+            return sum;
          }
-      }
-
-      return sum;
+      }, 1, h - 1, w);
    }
 
    // Volath's 1D autocorrelation
@@ -409,24 +588,27 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    // the behavior of automatic focusing algorithms,"
    // J. Microsc. 151, (2), 133 –146 (1988).
    private double computeVolath(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum1 = 0.0;
-      double sum2 = 0.0;
+      final int h = proc.getHeight();
+      final int w = proc.getWidth();
+      final int[] pix = getIntPixels(proc);
 
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      for (int i = 0; i < w - 2; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
+      return sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            double sum1 = 0.0;
+            double sum2 = 0.0;
+            for (int j = startRow; j < endRow; ++j) {
+               int row = j * w;
+               for (int i = 1; i < w - 1; ++i) {
+                  sum1 += (double) pix[row + i] * pix[row + i + 1];
+               }
+               for (int i = 0; i < w - 2; ++i) {
+                  sum2 += (double) pix[row + i] * pix[row + i + 2];
+               }
+            }
+            return (sum1 - sum2);
          }
-      }
-
-      return (sum1 - sum2);
+      }, 0, h, w);
    }
 
    // Volath 5 - smoothes out high-frequency (suppresses noise)
@@ -434,22 +616,91 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    // the behavior of automatic focusing algorithms,"
    // J. Microsc. 151, (2), 133 –146 (1988).
    private double computeVolath5(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
+      final int h = proc.getHeight();
+      final int w = proc.getWidth();
+      final int[] pix = getIntPixels(proc);
 
-      for (int i = 0; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
+      double sum = sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            double sum = 0.0;
+            for (int j = startRow; j < endRow; ++j) {
+               int row = j * w;
+               for (int i = 0; i < w - 1; ++i) {
+                  sum += (double) pix[row + i] * pix[row + i + 1];
+               }
+            }
+            return sum;
          }
-      }
+      }, 0, h, w);
 
-      ImageStatistics stats = proc.getStatistics();
+      double mean = computeSums(pix, w, h)[0] / (w * h);
 
-      sum -= ((w - 1) * h * stats.mean * stats.mean);
+      sum -= ((w - 1) * h * mean * mean);
       return sum;
    }
 
+   /**
+    * Calculates the sum of a function of two 3x3 convolutions over the
+    * whole image.  Like ImageProcessor.convolve3x3, edge pixels are
+    * replicated, kernels sum to zero, and the convolution results are 
+    * clipped to the range of the image type.
+    */
+   private static double sumConvolutions(final int[] pix, final int w, 
+           final int h, final int[] k1, final int[] k2, final int max, 
+           final boolean magnitude) {
+      return sumRows(new RowSum() {
+         @Override
+         double sum(int startRow, int endRow) {
+            final int k11 = k1[0], k12 = k1[1], k13 = k1[2], k14 = k1[3], 
+                    k15 = k1[4], k16 = k1[5], k17 = k1[6], k18 = k1[7], 
+                    k19 = k1[8];
+            final int k21 = k2[0], k22 = k2[1], k23 = k2[2], k24 = k2[3], 
+                    k25 = k2[4], k26 = k2[5], k27 = k2[6], k28 = k2[7], 
+                    k29 = k2[8];
+            double sum = 0.0;
+            for (int j = startRow; j < endRow; j++) {
+               int above = Math.max(j - 1, 0) * w;
+               int row = j * w;
+               int below = Math.min(j + 1, h - 1) * w;
+               // 3x3 neighborhood, shifted one column to the right per pixel
+               int p1 = pix[above];
+               int p2 = p1;
+               int p3;
+               int p4 = pix[row];
+               int p5 = p4;
+               int p6;
+               int p7 = pix[below];
+               int p8 = p7;
+               int p9;
+               for (int i = 0; i < w; i++) {
+                  int right = Math.min(i + 1, w - 1);
+                  p3 = pix[above + right];
+                  p6 = pix[row + right];
+                  p9 = pix[below + right];
+                  long c1 = k11 * p1 + k12 * p2 + k13 * p3
+                          + k14 * p4 + k15 * p5 + k16 * p6
+                          + k17 * p7 + k18 * p8 + k19 * p9;
+                  long c2 = k21 * p1 + k22 * p2 + k23 * p3
+                          + k24 * p4 + k25 * p5 + k26 * p6
+                          + k27 * p7 + k28 * p8 + k29 * p9;
+                  c1 = c1 < 0 ? 0 : (c1 > max ? max : c1);
+                  c2 = c2 < 0 ? 0 : (c2 > max ? max : c2);
+                  double s = c1 * c1 + c2 * c2;
+                  sum += magnitude ? Math.sqrt(s) : s;
+                  p1 = p2;
+                  p2 = p3;
+                  p4 = p5;
+                  p5 = p6;
+                  p7 = p8;
+                  p8 = p9;
+               }
+            }
+            return sum;
+         }
+      }, 0, h, w);
+   }
+
    /**
     * Modified version of the algorithm used by the AutoFocus JAF(H&P) code
     * in Micro-Manager's Autofocus.java by Pakpoom Subsoontorn & Hernan Garcia.
@@ -462,21 +713,13 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double computeMedianEdges(ImageProcessor proc) {
       int h = proc.getHeight();
       int w = proc.getWidth();
-      double sum = 0.0;
       int[] ken1 = {2, 1, 0, 1, 0, -1, 0, -1, -2};
       int[] ken2 = {0, 1, 2, -1, 0, 1, -2, -1, 0};
 
       ImageProcessor proc1 = proc.duplicate();
       proc1.medianFilter();    // 3x3 median filter
-      ImageProcessor proc2 = proc1.duplicate();
-      proc1.convolve3x3(ken1);
-      proc2.convolve3x3(ken2);
-      for (int i=0; i<w; i++){
-         for (int j=0; j<h; j++){
-            sum += Math.sqrt(Math.pow(proc1.getPixel(i,j),2) + Math.pow(proc2.getPixel(i, j), 2));
-         }
-      }
-      return sum;
+      return sumConvolutions(getIntPixels(proc1), w, h, ken1, ken2, 
+              maxFilterValue(proc), true);
    }
 
    
@@ -489,20 +732,11 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double computeTenengrad(ImageProcessor proc) {
       int h = proc.getHeight();
       int w = proc.getWidth();
-      double sum = 0.0;
       int[] ken1 = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
       int[] ken2 = {1, 2, 1, 0, 0, 0, -1, -2, -1};
 
-      ImageProcessor proc1 = proc.duplicate();
-      ImageProcessor proc2 = proc.duplicate();
-      proc1.convolve3x3(ken1);
-      proc2.convolve3x3(ken2);
-      for (int i=0; i<w; i++){
-         for (int j=0; j<h; j++){
-            sum += Math.pow(proc1.getPixel(i,j),2) + Math.pow(proc2.getPixel(i, j), 2);
-         }
-      }
-      return sum;
+      return sumConvolutions(getIntPixels(proc), w, h, ken1, ken2, 
+              maxFilterValue(proc), false);
    }
 
    /**
@@ -539,27 +773,35 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
 
    @Override
    public double computeScore(final ImageProcessor proc) {
-      if (scoringMethod.contentEquals("Mean")) {
+      return computeScore(scoringMethod, proc);
+   }
+
+   /**
+    * Scores the image with the given scoring method.  Also used by
+    * SweepFocus, so that both plugins give the same score for a method.
+    */
+   synchronized double computeScore(String method, final ImageProcessor proc) {
+      if (method.contentEquals("Mean")) {
          return computeMean(proc);
-      } else if (scoringMethod.contentEquals("StdDev")) {
+      } else if (method.contentEquals("StdDev")) {
          return computeNormalizedStdDev(proc);
-      } else if (scoringMethod.contentEquals("NormalizedVariance")) {
+      } else if (method.contentEquals("NormalizedVariance")) {
          return computeNormalizedVariance(proc);
-      } else if (scoringMethod.contentEquals("Edges")) {
+      } else if (method.contentEquals("Edges")) {
          return computeEdges(proc);
-      } else if (scoringMethod.contentEquals("SharpEdges")) {
+      } else if (method.contentEquals("SharpEdges")) {
          return computeSharpEdges(proc);
-      } else if (scoringMethod.contentEquals("Redondo")) {
+      } else if (method.contentEquals("Redondo")) {
          return computeRedondo(proc);
-      } else if (scoringMethod.contentEquals("Volath")) {
+      } else if (method.contentEquals("Volath")) {
          return computeVolath(proc);
-      } else if (scoringMethod.contentEquals("Volath5")) {
+      } else if (method.contentEquals("Volath5")) {
          return computeVolath5(proc);
-      } else if (scoringMethod.contentEquals("MedianEdges")) {
+      } else if (method.contentEquals("MedianEdges")) {
          return computeMedianEdges(proc);
-      } else if (scoringMethod.contentEquals("Tenengrad")) {
+      } else if (method.contentEquals("Tenengrad")) {
          return computeTenengrad(proc);
-      } else if (scoringMethod.contentEquals("FFTBandpass")) {
+      } else if (method.contentEquals("FFTBandpass")) {
          return computeFFTBandpass(proc);
       } else {
          return 0;
@@ -0,0 +1,432 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           SweepFocus.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      Autofocusing plug-in for micro-manager and ImageJ
+//-----------------------------------------------------------------------------
+//
+//                Based on OughtaFocus and the ZippyFocus prototype
+//
+//COPYRIGHT:      University of California San Francisco
+//
+//LICENSE:        This file is distributed under the BSD license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.DoubleVector;
+import mmcorej.TaggedImage;
+
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.MathFunctions;
+import org.micromanager.utils.NumberUtils;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TextUtils;
+
+/**
+ * Autofocus that images the whole search range in one sweep.
+ *
+ * When the focus drive can be sequenced, the z positions are loaded into the
+ * drive and a sequence acquisition is started, so that all planes are
+ * acquired at the frame rate of the camera rather than with one move,
+ * settle and snap per plane.  Otherwise the planes are visited one by one.
+ * In both cases planes are scored on another thread while the remaining
+ * planes are being acquired.  The position of the best score is refined by
+ * fitting a parabola through it and its neighbors, and optionally by a
+ * second, finer sweep around this position.
+ */
+public class SweepFocus extends AutofocusBase implements org.micromanager.api.Autofocus {
+
+   private ScriptInterface app_;
+   private static final String AF_DEVICE_NAME = "SweepFocus";
+   private static final String SEARCH_RANGE = "SearchRange_um";
+   private static final String STEP_SIZE = "StepSize_um";
+   private static final String FINE_STEP_SIZE = "FineStepSize_um";
+   private static final String CROP_FACTOR = "CropFactor";
+   private static final String CHANNEL = "Channel";
+   private static final String EXPOSURE = "Exposure";
+   private static final String SCORING_METHOD = "Maximize";
+   private final static String[] SCORINGMETHODS = {"Tenengrad", "Volath",
+      "StdDev", "NormalizedVariance", "Mean"};
+   // time to wait for an image in addition to the exposure time
+   private static final long IMAGE_TIMEOUT_MS = 5000;
+   private double searchRange = 10;
+   private double stepSize = 0.5;
+   private double fineStepSize = 0.1;
+   private double cropFactor = 1;
+   private String channel = "";
+   private double exposure = 10;
+   private String scoringMethod = "Tenengrad";
+   private int imageCount_;
+   private boolean settingsLoaded_ = false;
+   // images are scored by OughtaFocus, so that a scoring method gives the
+   // same score in both plugins
+   private final OughtaFocus scorer_ = new OughtaFocus();
+   private static ExecutorService scoreExecutor_;
+
+   public SweepFocus() {
+      super();
+      super.createProperty(SEARCH_RANGE, NumberUtils.doubleToDisplayString(searchRange));
+      super.createProperty(STEP_SIZE, NumberUtils.doubleToDisplayString(stepSize));
+      super.createProperty(FINE_STEP_SIZE, NumberUtils.doubleToDisplayString(fineStepSize));
+      super.createProperty(CROP_FACTOR, NumberUtils.doubleToDisplayString(cropFactor));
+      super.createProperty(EXPOSURE, NumberUtils.doubleToDisplayString(exposure));
+      super.createProperty(SCORING_METHOD, scoringMethod, SCORINGMETHODS);
+      imageCount_ = 0;
+   }
+
+   @Override
+   public void applySettings() {
+      try {
+         searchRange = NumberUtils.displayStringToDouble(getPropertyValue(SEARCH_RANGE));
+         stepSize = NumberUtils.displayStringToDouble(getPropertyValue(STEP_SIZE));
+         fineStepSize = NumberUtils.displayStringToDouble(getPropertyValue(FINE_STEP_SIZE));
+         cropFactor = NumberUtils.displayStringToDouble(getPropertyValue(CROP_FACTOR));
+         cropFactor = MathFunctions.clip(0.01, cropFactor, 1.0);
+         channel = getPropertyValue(CHANNEL);
+         exposure = NumberUtils.displayStringToDouble(getPropertyValue(EXPOSURE));
+         scoringMethod = getPropertyValue(SCORING_METHOD);
+      } catch (MMException ex) {
+         ReportingUtils.logError(ex);
+      } catch (ParseException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   @Override
+   public String getDeviceName() {
+      return AF_DEVICE_NAME;
+   }
+
+   @Override
+   public double fullFocus() throws MMException {
+      applySettings();
+      if (stepSize <= 0 || searchRange <= 0) {
+         throw new MMException("SweepFocus: search range and step size should be positive");
+      }
+      return runFocus(searchRange / 2, stepSize, stepSize, fineStepSize);
+   }
+
+   /**
+    * Sweeps around the current position with a single coarse step on either
+    * side, followed by the fine sweep.
+    */
+   @Override
+   public double incrementalFocus() throws MMException {
+      applySettings();
+      if (stepSize <= 0) {
+         throw new MMException("SweepFocus: step size should be positive");
+      }
+      return runFocus(stepSize, stepSize, stepSize, fineStepSize);
+   }
+
+   @Override
+   public void focus(double coarseStep, int numCoarse, double fineStep, int numFine) throws MMException {
+      applySettings();
+      if (coarseStep <= 0 || numCoarse < 0 || numFine < 0) {
+         throw new MMException("SweepFocus: step sizes and numbers of steps should be positive");
+      }
+      runFocus(numCoarse * coarseStep, coarseStep, numFine * fineStep, fineStep);
+   }
+
+   /**
+    * Sweeps from z - coarseHalfRange to z + coarseHalfRange, and then around
+    * the best position found from - fineHalfRange to + fineHalfRange, if the
+    * fine step is smaller than the coarse one. Leaves the focus drive at the
+    * best position.
+    */
+   private double runFocus(double coarseHalfRange, double coarseStep,
+           double fineHalfRange, double fineStep) throws MMException {
+      long startTimeMs = System.currentTimeMillis();
+      CMMCore core = app_.getMMCore();
+      double startZ = 0.0;
+      // live mode would compete with the sweep for the camera
+      boolean liveModeOn = app_.isLiveModeOn();
+      try {
+         if (liveModeOn) {
+            app_.enableLiveMode(false);
+         }
+         String focusDevice = core.getFocusDevice();
+         startZ = core.getPosition(focusDevice);
+         Rectangle oldROI = app_.getROI();
+         int w = (int) (oldROI.width * cropFactor);
+         int h = (int) (oldROI.height * cropFactor);
+         int x = oldROI.x + (oldROI.width - w) / 2;
+         int y = oldROI.y + (oldROI.height - h) / 2;
+         Configuration oldState = null;
+         if (channel.length() > 0) {
+            String chanGroup = core.getChannelGroup();
+            oldState = core.getConfigGroupState(chanGroup);
+            core.setConfig(chanGroup, channel);
+         }
+         if (cropFactor < 1.0) {
+            app_.setROI(new Rectangle(x, y, w, h));
+            core.waitForDevice(core.getCameraDevice());
+         }
+         double oldExposure = core.getExposure();
+         core.setExposure(exposure);
+         imageCount_ = 0;
+
+         double z;
+         try {
+            z = sweep(core, focusDevice, startZ, coarseHalfRange, coarseStep);
+            if (fineHalfRange > 0 && fineStep > 0 && fineStep < coarseStep) {
+               z = sweep(core, focusDevice, z, fineHalfRange, fineStep);
+            }
+         } finally {
+            if (cropFactor < 1.0) {
+               app_.setROI(oldROI);
+               core.waitForDevice(core.getCameraDevice());
+            }
+            if (oldState != null) {
+               core.setSystemState(oldState);
+            }
+            core.setExposure(oldExposure);
+         }
+
+         setZPosition(core, z);
+         ReportingUtils.logMessage("SweepFocus: images=" + imageCount_
+                 + ", z=" + TextUtils.FMT2.format(z)
+                 + ", dz=" + TextUtils.FMT2.format(z - startZ)
+                 + ", t=" + (System.currentTimeMillis() - startTimeMs));
+         return z;
+      } catch (Exception ex) {
+         try {
+            setZPosition(core, startZ);
+         } catch (Exception ex2) {
+            ReportingUtils.logError(ex2);
+         }
+         throw new MMException(ex.getMessage());
+      } finally {
+         if (liveModeOn) {
+            app_.enableLiveMode(true);
+         }
+      }
+   }
+
+   /**
+    * Images and scores planes from center - halfRange to center + halfRange,
+    * and returns the position of the best score, interpolated between
+    * neighboring planes.
+    */
+   private double sweep(CMMCore core, String focusDevice, double center,
+           double halfRange, double step) throws Exception {
+      int nrSteps = (int) Math.round(halfRange / step);
+      double[] positions = new double[2 * nrSteps + 1];
+      for (int i = 0; i < positions.length; i++) {
+         positions[i] = center + (i - nrSteps) * step;
+      }
+
+      List<Future<Double>> scores;
+      if (core.isStageSequenceable(focusDevice)
+              && positions.length <= core.getStageSequenceMaxLength(focusDevice)) {
+         scores = acquireSequence(core, focusDevice, positions);
+      } else {
+         scores = acquireSteps(core, focusDevice, positions);
+      }
+
+      double[] values = new double[positions.length];
+      int best = 0;
+      for (int i = 0; i < positions.length; i++) {
+         try {
+            values[i] = scores.get(i).get();
+         } catch (ExecutionException ee) {
+            throw new MMException("SweepFocus: failed to score image: "
+                    + ee.getCause().getMessage());
+         }
+         if (values[i] > values[best]) {
+            best = i;
+         }
+      }
+      imageCount_ += positions.length;
+      return positions[best] + step * parabolicOffset(values, best);
+   }
+
+   /**
+    * Vertex of the parabola through the best score and its neighbors, in
+    * units of the step size.
+    */
+   private static double parabolicOffset(double[] values, int best) {
+      if (best == 0 || best == values.length - 1) {
+         return 0.0;
+      }
+      double left = values[best - 1];
+      double right = values[best + 1];
+      double curvature = left - 2 * values[best] + right;
+      if (curvature >= 0) {
+         return 0.0;
+      }
+      return MathFunctions.clip(-0.5, 0.5 * (left - right) / curvature, 0.5);
+   }
+
+   /**
+    * Acquires one image per position with a sequenced focus drive, and
+    * submits each image for scoring as soon as it arrives.
+    */
+   private List<Future<Double>> acquireSequence(CMMCore core,
+           String focusDevice, double[] positions) throws Exception {
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(positions.length);
+      DoubleVector sequence = new DoubleVector();
+      for (double position : positions) {
+         sequence.add(position);
+      }
+      setZPosition(core, positions[0]);
+      core.loadStageSequence(focusDevice, sequence);
+      core.startStageSequence(focusDevice);
+      try {
+         core.startSequenceAcquisition(positions.length, 0, true);
+         try {
+            long timeoutMs = (long) core.getExposure() + IMAGE_TIMEOUT_MS;
+            for (int i = 0; i < positions.length; i++) {
+               long start = System.currentTimeMillis();
+               while (core.getRemainingImageCount() == 0) {
+                  if (!core.isSequenceRunning()
+                          && core.getRemainingImageCount() == 0) {
+                     throw new MMException("SweepFocus: sequence ended after "
+                             + i + " of " + positions.length + " images");
+                  }
+                  if (System.currentTimeMillis() - start > timeoutMs) {
+                     throw new MMException("SweepFocus: timed out waiting for image");
+                  }
+                  Thread.sleep(1);
+               }
+               scores.add(submitScore(core, core.popNextTaggedImage()));
+            }
+         } finally {
+            core.stopSequenceAcquisition();
+         }
+      } finally {
+         core.stopStageSequence(focusDevice);
+      }
+      return scores;
+   }
+
+   /**
+    * Moves to each position and snaps an image.  Images are scored while
+    * the stage moves to the next position.
+    */
+   private List<Future<Double>> acquireSteps(CMMCore core, String focusDevice,
+           double[] positions) throws Exception {
+      List<Future<Double>> scores = new ArrayList<Future<Double>>(positions.length);
+      for (double position : positions) {
+         setZPosition(core, position);
+         core.waitForDevice(core.getCameraDevice());
+         core.snapImage();
+         scores.add(submitScore(core, core.getTaggedImage()));
+      }
+      return scores;
+   }
+
+   /**
+    * Converts RGB images to gray in the same way as OughtaFocus, and scores
+    * the image on the score thread.
+    */
+   private Future<Double> submitScore(final CMMCore core, final TaggedImage image) {
+      return getScoreExecutor().submit(new Callable<Double>() {
+         @Override
+         public Double call() throws Exception {
+            ImageProcessor proc = OughtaFocus.makeMonochromeProcessor(core,
+                    OughtaFocus.getMonochromePixels(image));
+            if (proc == null) {
+               throw new IllegalArgumentException("Unsupported pixel type");
+            }
+            return computeScore(proc);
+         }
+      });
+   }
+
+   /**
+    * A single thread is enough, since OughtaFocus spreads the scoring of
+    * large images over multiple threads.
+    */
+   private static synchronized ExecutorService getScoreExecutor() {
+      if (scoreExecutor_ == null) {
+         scoreExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "SweepFocus score");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return scoreExecutor_;
+   }
+
+   private static void setZPosition(CMMCore core, double z) throws Exception {
+      String focusDevice = core.getFocusDevice();
+      core.setPosition(focusDevice, z);
+      core.waitForDevice(focusDevice);
+   }
+
+   @Override
+   public int getNumberOfImages() {
+      return imageCount_;
+   }
+
+   @Override
+   public String getVerboseStatus() {
+      return "SweepFocus acquired " + imageCount_ + " images";
+   }
+
+   @Override
+   public double getCurrentFocusScore() {
+      CMMCore core = app_.getMMCore();
+      try {
+         core.waitForDevice(core.getCameraDevice());
+         core.snapImage();
+         return submitScore(core, core.getTaggedImage()).get();
+      } catch (Exception e) {
+         ReportingUtils.logError(e);
+         return 0.0;
+      }
+   }
+
+   @Override
+   public double computeScore(final ImageProcessor proc) {
+      return scorer_.computeScore(scoringMethod, proc);
+   }
+
+   @Override
+   public void setApp(ScriptInterface app) {
+      app_ = app;
+      CMMCore core = app_.getMMCore();
+      String chanGroup = core.getChannelGroup();
+      String curChan;
+      try {
+         curChan = core.getCurrentConfig(chanGroup);
+         createProperty(CHANNEL, curChan,
+                 core.getAvailableConfigs(core.getChannelGroup()).toArray());
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+      }
+
+      if (!settingsLoaded_) {
+         super.loadSettings();
+         settingsLoaded_ = true;
+      }
+   }
+
+}
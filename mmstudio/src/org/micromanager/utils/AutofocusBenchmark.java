@@ -0,0 +1,487 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AutofocusBenchmark.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.DecimalFormat;
+
+import mmcorej.CMMCore;
+import mmcorej.StrVector;
+import mmcorej.TaggedImage;
+
+import org.json.JSONObject;
+import org.micromanager.api.Autofocus;
+import org.micromanager.api.ScriptInterface;
+
+/**
+ * Compares autofocus plugins offline, using a recorded z-stack.
+ *
+ * The plugins are given a copy of the application whose core replays the
+ * z-stack: the focus drive only stores the requested position, and the
+ * camera returns the stack plane at that position (interpolated between
+ * the two nearest planes).  For every start position the number of
+ * images, the time spent computing, the estimated time spent on the
+ * microscope and the distance from the in-focus plane are recorded.
+ *
+ * Can be run from the script panel, e.g.:
+ * <pre>
+ * import org.micromanager.utils.AutofocusBenchmark;
+ * path = AutofocusBenchmark.record(gui, "/data/stack.tif", 20, 0.25);
+ * AutofocusBenchmark.run(gui, path, 40, new double[] {-5, -2, 2, 5},
+ *       new String[] {"OughtaFocus", "SweepFocus"});
+ * AutofocusBenchmark.runScores(gui, path, 40, 10,
+ *       new String[] {"OughtaFocus"});
+ * </pre>
+ */
+public class AutofocusBenchmark {
+   // used to estimate the time the real microscope would have needed
+   private static final double MOVE_SETTLE_MS = 20.0;
+   private static final double READOUT_MS = 20.0;
+
+   /**
+    * Acquires a z-stack centered on the current focus position and saves it
+    * as a tiff file.  The step size is stored in the calibration of the
+    * stack.  Focus should be set by hand before recording; the middle plane
+    * of the stack is then the in-focus plane.
+    *
+    * @param app - application
+    * @param path - file to write
+    * @param nrPlanesEachSide - number of planes above and below focus
+    * @param stepUm - distance between planes in microns
+    * @return path of the saved stack
+    * @throws Exception
+    */
+   public static String record(ScriptInterface app, String path,
+           int nrPlanesEachSide, double stepUm) throws Exception {
+      CMMCore core = app.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      double focusZ = core.getPosition(focusDevice);
+      ImageStack stack = new ImageStack((int) core.getImageWidth(),
+              (int) core.getImageHeight());
+      try {
+         for (int i = -nrPlanesEachSide; i <= nrPlanesEachSide; i++) {
+            core.setPosition(focusDevice, focusZ + i * stepUm);
+            core.waitForDevice(focusDevice);
+            core.snapImage();
+            stack.addSlice(ImageUtils.makeProcessor(core, core.getImage()));
+         }
+      } finally {
+         core.setPosition(focusDevice, focusZ);
+         core.waitForDevice(focusDevice);
+      }
+      ImagePlus imp = new ImagePlus("z-stack", stack);
+      Calibration cal = imp.getCalibration();
+      cal.pixelDepth = stepUm;
+      cal.setUnit("micron");
+      IJ.saveAsTiff(imp, path);
+      return path;
+   }
+
+   /**
+    * Runs every autofocus plugin from every start position and logs the
+    * mean and maximum focus error, the mean number of images, the mean
+    * computation time and the mean estimated time on the microscope.
+    *
+    * @param app - application
+    * @param path - z-stack, as written by record
+    * @param focusPlane - (0-based) index of the in-focus plane
+    * @param startOffsetsUm - start positions relative to focus
+    * @param classNames - class names of the autofocus plugins
+    * @return report
+    * @throws Exception
+    */
+   public static String run(ScriptInterface app, String path, int focusPlane,
+           double[] startOffsetsUm, String[] classNames) throws Exception {
+      ReplayCore core = openStack(path);
+      ScriptInterface replayApp = replayApp(app, core, classNames);
+      AutofocusManager afMgr = replayApp.getAutofocusManager();
+      double focusZ = focusPlane * core.stepUm_;
+
+      StringBuilder report = new StringBuilder();
+      DecimalFormat df0 = new DecimalFormat("#");
+      DecimalFormat df2 = new DecimalFormat("#.##");
+      for (String name : afMgr.getAfDevices()) {
+         afMgr.selectDevice(name);
+         Autofocus af = afMgr.getDevice();
+         af.applySettings();
+         int failed = 0;
+         double sumError = 0.0;
+         double maxError = 0.0;
+         long images = 0;
+         double wallMs = 0.0;
+         double microscopeMs = 0.0;
+         for (double offset : startOffsetsUm) {
+            core.reset(focusZ + offset);
+            long start = System.nanoTime();
+            try {
+               af.fullFocus();
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex, name + " failed");
+               failed++;
+               continue;
+            }
+            wallMs += (System.nanoTime() - start) / 1E6;
+            double error = Math.abs(core.z_ - focusZ);
+            sumError += error;
+            maxError = Math.max(maxError, error);
+            images += core.snaps_;
+            microscopeMs += core.snaps_ * (core.exposureMs_ + READOUT_MS)
+                    + core.moves_ * MOVE_SETTLE_MS;
+         }
+         int succeeded = startOffsetsUm.length - failed;
+         String line = name + ": " + failed + " failed";
+         if (succeeded > 0) {
+            line += ", error " + df2.format(sumError / succeeded)
+                    + " (max " + df2.format(maxError) + ") micron, "
+                    + df0.format((double) images / succeeded) + " images, "
+                    + df0.format(wallMs / succeeded) + " ms computing, "
+                    + df0.format(microscopeMs / succeeded) + " ms on the microscope";
+         }
+         ReportingUtils.logMessage("AutofocusBenchmark: " + line);
+         report.append(line).append("\n");
+      }
+      return report.toString();
+   }
+
+   /**
+    * Scores every plane of the z-stack with each scoring method of the
+    * given plugins (the allowed values of their "Maximize" property, if
+    * they have one), and logs the time per image and the distance between
+    * the best scoring plane and the in-focus plane.
+    *
+    * @param app - application
+    * @param path - z-stack, as written by record
+    * @param focusPlane - (0-based) index of the in-focus plane
+    * @param iterations - number of timed passes through the stack
+    * @param classNames - class names of the autofocus plugins
+    * @return report
+    * @throws Exception
+    */
+   public static String runScores(ScriptInterface app, String path,
+           int focusPlane, int iterations, String[] classNames) throws Exception {
+      ReplayCore core = openStack(path);
+      ScriptInterface replayApp = replayApp(app, core, classNames);
+      AutofocusManager afMgr = replayApp.getAutofocusManager();
+      ImageStack stack = core.stack_;
+      int nrPlanes = stack.getSize();
+
+      StringBuilder report = new StringBuilder();
+      DecimalFormat df1 = new DecimalFormat("#.#");
+      DecimalFormat df2 = new DecimalFormat("#.##");
+      for (String name : afMgr.getAfDevices()) {
+         afMgr.selectDevice(name);
+         Autofocus af = afMgr.getDevice();
+         String[] methods = {null};
+         try {
+            PropertyItem item = af.getProperty("Maximize");
+            if (item.allowed != null && item.allowed.length > 0) {
+               methods = item.allowed;
+            }
+         } catch (MMException ex) {
+            // no choice of scoring methods
+         }
+         for (String method : methods) {
+            if (method != null) {
+               af.setPropertyValue("Maximize", method);
+            }
+            af.applySettings();
+            // warm up, and find the best plane
+            int best = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < nrPlanes; i++) {
+               double score = af.computeScore(stack.getProcessor(i + 1));
+               if (score > bestScore) {
+                  bestScore = score;
+                  best = i;
+               }
+            }
+            long start = System.nanoTime();
+            for (int k = 0; k < iterations; k++) {
+               for (int i = 0; i < nrPlanes; i++) {
+                  af.computeScore(stack.getProcessor(i + 1));
+               }
+            }
+            double usPerImage = (System.nanoTime() - start) / 1E3
+                    / Math.max(1, iterations * nrPlanes);
+            String line = name + (method != null ? "-" + method : "") + ": "
+                    + df1.format(usPerImage) + " microsec/image, best plane "
+                    + best + " (" + df2.format((best - focusPlane) * core.stepUm_)
+                    + " micron from focus)";
+            ReportingUtils.logMessage("AutofocusBenchmark: " + line);
+            report.append(line).append("\n");
+         }
+      }
+      return report.toString();
+   }
+
+   private static ReplayCore openStack(String path) throws MMException {
+      ImagePlus imp = IJ.openImage(path);
+      if (imp == null) {
+         throw new MMException("Failed to open z-stack " + path);
+      }
+      if (imp.getBitDepth() != 8 && imp.getBitDepth() != 16) {
+         throw new MMException("Only 8 and 16 bit z-stacks are supported");
+      }
+      double stepUm = imp.getCalibration().pixelDepth;
+      return new ReplayCore(imp.getStack(), stepUm > 0 ? stepUm : 1.0);
+   }
+
+   /**
+    * Returns an application that hands out the replaying core, and an
+    * AutofocusManager with fresh instances of the given plugins.  All
+    * other calls are passed to the real application.
+    */
+   private static ScriptInterface replayApp(final ScriptInterface app,
+           final ReplayCore core, String[] classNames) throws MMException {
+      final AutofocusManager[] afMgr = new AutofocusManager[1];
+      ScriptInterface replayApp = (ScriptInterface) Proxy.newProxyInstance(
+              ScriptInterface.class.getClassLoader(),
+              new Class<?>[] {ScriptInterface.class}, new InvocationHandler() {
+         @Override
+         public Object invoke(Object proxy, Method method, Object[] args)
+                 throws Throwable {
+            String name = method.getName();
+            if (name.equals("getMMCore")) {
+               return core;
+            } else if (name.equals("getAutofocusManager")) {
+               return afMgr[0];
+            } else if (name.equals("getROI")) {
+               return core.getROI();
+            } else if (name.equals("setROI")) {
+               Rectangle r = (Rectangle) args[0];
+               core.setROI(r.x, r.y, r.width, r.height);
+               return null;
+            } else if (name.equals("isLiveModeOn")) {
+               return false;
+            } else if (name.equals("displayImage")) {
+               return true;
+            }
+            try {
+               return method.invoke(app, args);
+            } catch (InvocationTargetException ex) {
+               throw ex.getCause();
+            }
+         }
+      });
+      afMgr[0] = new AutofocusManager(replayApp);
+      for (String className : classNames) {
+         afMgr[0].setAFPluginClassName(className);
+      }
+      afMgr[0].refresh();
+      return replayApp;
+   }
+
+   /**
+    * Core with a simulated focus drive and camera.  All other calls go to
+    * an otherwise empty core.
+    */
+   private static class ReplayCore extends CMMCore {
+      private static final String FOCUS = "ReplayFocus";
+      private static final String CAMERA = "ReplayCamera";
+      private final ImageStack stack_;
+      private final double stepUm_;
+      private final int bytesPerPixel_;
+      private double z_;
+      private double exposureMs_ = 10.0;
+      private Rectangle roi_;
+      private Object image_;
+      private int snaps_;
+      private int moves_;
+
+      ReplayCore(ImageStack stack, double stepUm) {
+         stack_ = stack;
+         stepUm_ = stepUm;
+         bytesPerPixel_ = stack.getProcessor(1).getBitDepth() / 8;
+         roi_ = new Rectangle(0, 0, stack.getWidth(), stack.getHeight());
+      }
+
+      void reset(double z) {
+         z_ = z;
+         roi_ = new Rectangle(0, 0, stack_.getWidth(), stack_.getHeight());
+         snaps_ = 0;
+         moves_ = 0;
+      }
+
+      @Override
+      public String getFocusDevice() {
+         return FOCUS;
+      }
+
+      @Override
+      public String getCameraDevice() {
+         return CAMERA;
+      }
+
+      @Override
+      public String getChannelGroup() {
+         return "";
+      }
+
+      @Override
+      public String getCurrentConfig(String groupName) {
+         return "";
+      }
+
+      @Override
+      public StrVector getAvailableConfigs(String groupName) {
+         return new StrVector();
+      }
+
+      @Override
+      public double getPosition(String stageLabel) {
+         return z_;
+      }
+
+      @Override
+      public void setPosition(String stageLabel, double position) {
+         z_ = position;
+         moves_++;
+      }
+
+      @Override
+      public boolean isStageSequenceable(String stageLabel) {
+         return false;
+      }
+
+      @Override
+      public void waitForDevice(String label) {
+      }
+
+      @Override
+      public void waitForSystem() {
+      }
+
+      @Override
+      public double getExposure() {
+         return exposureMs_;
+      }
+
+      @Override
+      public void setExposure(double exp) {
+         exposureMs_ = exp;
+      }
+
+      @Override
+      public void setROI(int x, int y, int xSize, int ySize) {
+         roi_ = new Rectangle(x, y, xSize, ySize).intersection(
+                 new Rectangle(0, 0, stack_.getWidth(), stack_.getHeight()));
+      }
+
+      @Override
+      public Rectangle getROI() {
+         return new Rectangle(roi_);
+      }
+
+      @Override
+      public long getImageWidth() {
+         return roi_.width;
+      }
+
+      @Override
+      public long getImageHeight() {
+         return roi_.height;
+      }
+
+      @Override
+      public long getBytesPerPixel() {
+         return bytesPerPixel_;
+      }
+
+      @Override
+      public long getImageBitDepth() {
+         return 8 * bytesPerPixel_;
+      }
+
+      @Override
+      public long getNumberOfComponents() {
+         return 1;
+      }
+
+      /**
+       * Interpolates linearly between the two planes nearest to the focus
+       * position.  Positions outside the stack give the first or last plane.
+       */
+      @Override
+      public void snapImage() {
+         snaps_++;
+         double plane = MathFunctions.clip(0.0, z_ / stepUm_,
+                 (double) (stack_.getSize() - 1));
+         int lower = (int) Math.floor(plane);
+         int upper = Math.min(lower + 1, stack_.getSize() - 1);
+         double f = plane - lower;
+         ImageProcessor p0 = stack_.getProcessor(lower + 1);
+         ImageProcessor p1 = stack_.getProcessor(upper + 1);
+         int w = roi_.width;
+         int h = roi_.height;
+         int[] pixels = new int[w * h];
+         for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+               int v0 = p0.get(roi_.x + x, roi_.y + y);
+               int v1 = p1.get(roi_.x + x, roi_.y + y);
+               pixels[y * w + x] = (int) Math.round(v0 + f * (v1 - v0));
+            }
+         }
+         if (bytesPerPixel_ == 1) {
+            byte[] bytes = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+               bytes[i] = (byte) pixels[i];
+            }
+            image_ = bytes;
+         } else {
+            short[] shorts = new short[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+               shorts[i] = (short) pixels[i];
+            }
+            image_ = shorts;
+         }
+      }
+
+      @Override
+      public Object getImage() {
+         return image_;
+      }
+
+      @Override
+      public TaggedImage getTaggedImage() throws Exception {
+         JSONObject tags = new JSONObject();
+         tags.put("Width", roi_.width);
+         tags.put("Height", roi_.height);
+         tags.put("PixelType", bytesPerPixel_ == 1 ? "GRAY8" : "GRAY16");
+         tags.put("ZPositionUm", z_);
+         return new TaggedImage(image_, tags);
+      }
+
+      @Override
+      public TaggedImage getLastTaggedImage() throws Exception {
+         return getTaggedImage();
+      }
+   }
+
+}
@@ -27,6 +27,7 @@ import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.utils.GaussianUtils;
 import edu.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.valelab.gaussianfit.data.LoadAndSave;
+import edu.valelab.gaussianfit.data.IndexedSpotFile;
 import edu.valelab.gaussianfit.spotoperations.SpotLinker;
 import edu.valelab.gaussianfit.data.RowData;
 import edu.valelab.gaussianfit.datasetdisplay.ParticlePairLister;
@@ -97,6 +98,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    private static final String INTMAX = "DCIntMax";
    private static final String LOADTSFDIR = "TSFDir";
    private static final String RENDERMAG = "VisualizationMagnification";
+   private static final String LINKMODE = "LinkMode";
    private static final String PAIRSMAXDISTANCE = "PairsMaxDistance";
    private static final String METHOD2C = "MethodFor2CCorrection";
    private static final String COL0Width = "Col0Width";  
@@ -115,7 +117,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    private static final FileType TSF_FILE = new FileType("TSF File",
            "Tagged Spot Format file",
            "./data.tsf",
-           false, new String[]{"txt", "tsf"});
+           false, new String[]{"txt", "tsf", "isf"});
  
    private static CoordinateMapper c2t_;
    private static String loadTSFDir_ = "";   
@@ -273,6 +275,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
        intensityMax_.setText(prefs_.get(INTMAX, "20000"));
        loadTSFDir_ = prefs_.get(LOADTSFDIR, "");
        visualizationMagnification_.setSelectedIndex(prefs_.getInt(RENDERMAG, 0));
+       linkModeComboBox_.setSelectedIndex(prefs_.getInt(LINKMODE, 0));
        pairsMaxDistanceField_.setText(prefs_.get(PAIRSMAXDISTANCE, "500"));
        method2CBox_.setSelectedItem(prefs_.get(METHOD2C, "LWM"));
        
@@ -436,6 +439,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       zCalibrationLabel_ = new javax.swing.JLabel();
       unjitterButton_ = new javax.swing.JButton();
       linkButton_ = new javax.swing.JButton();
+      linkModeComboBox_ = new javax.swing.JComboBox();
       jSeparator4 = new javax.swing.JSeparator();
       centerTrackButton_ = new javax.swing.JButton();
       straightenTrackButton_ = new javax.swing.JButton();
@@ -568,6 +572,10 @@ public class DataCollectionForm extends javax.swing.JFrame {
          }
       });
 
+      linkModeComboBox_.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
+      linkModeComboBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Greedy", "Global", "Gap 1", "Gap 2", "Gap 3" }));
+      linkModeComboBox_.setToolTipText("<html>Greedy: link nearest spots in consecutive frames<br>Global: link with the globally optimal assignment<br>Gap n: global, tracks may skip up to n frames</html>");
+
       jSeparator4.setOrientation(javax.swing.SwingConstants.VERTICAL);
 
       centerTrackButton_.setFont(new java.awt.Font("Lucida Grande", 0, 11)); // NOI18N
@@ -697,7 +705,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       });
 
       saveFormatBox_.setFont(new java.awt.Font("Lucida Grande", 0, 11)); // NOI18N
-      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text" }));
+      saveFormatBox_.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Binary", "Text", "Indexed" }));
 
       saveButton.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
       saveButton.setText("Save");
@@ -838,7 +846,10 @@ public class DataCollectionForm extends javax.swing.JFrame {
                   .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                      .addComponent(zCalibrateButton_)
                      .addComponent(unjitterButton_, javax.swing.GroupLayout.PREFERRED_SIZE, 107, javax.swing.GroupLayout.PREFERRED_SIZE)
-                     .addComponent(linkButton_, javax.swing.GroupLayout.PREFERRED_SIZE, 107, javax.swing.GroupLayout.PREFERRED_SIZE)
+                     .addGroup(jPanel1Layout.createSequentialGroup()
+                        .addComponent(linkButton_, javax.swing.GroupLayout.PREFERRED_SIZE, 45, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(2, 2, 2)
+                        .addComponent(linkModeComboBox_, javax.swing.GroupLayout.PREFERRED_SIZE, 60, javax.swing.GroupLayout.PREFERRED_SIZE))
                      .addGroup(jPanel1Layout.createSequentialGroup()
                         .addGap(20, 20, 20)
                         .addComponent(zCalibrationLabel_, javax.swing.GroupLayout.PREFERRED_SIZE, 75, javax.swing.GroupLayout.PREFERRED_SIZE)))
@@ -973,7 +984,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
                         .addGap(0, 0, 0)
                         .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                            .addComponent(filterIntensityCheckBox_)
-                           .addComponent(linkButton_, javax.swing.GroupLayout.PREFERRED_SIZE, 20, javax.swing.GroupLayout.PREFERRED_SIZE)))
+                           .addComponent(linkButton_, javax.swing.GroupLayout.PREFERRED_SIZE, 20, javax.swing.GroupLayout.PREFERRED_SIZE)
+                           .addComponent(linkModeComboBox_, javax.swing.GroupLayout.PREFERRED_SIZE, 20, javax.swing.GroupLayout.PREFERRED_SIZE)))
                      .addGroup(jPanel1Layout.createSequentialGroup()
                         .addComponent(sigmaMin_, javax.swing.GroupLayout.PREFERRED_SIZE, 20, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addGap(0, 0, 0)
@@ -1085,6 +1097,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
             LoadAndSave.loadTSF(selectedFile, this);
          } else if (selectedFile.getName().endsWith(".bin")) {
             LoadAndSave.loadBin(selectedFile, this);
+         } else if (selectedFile.getName().endsWith(IndexedSpotFile.EXTENSION)) {
+            LoadAndSave.loadIndexed(selectedFile, this);
          } else {
             JOptionPane.showMessageDialog(getInstance(), "Unrecognized file extension");
          }
@@ -1103,6 +1117,9 @@ public class DataCollectionForm extends javax.swing.JFrame {
                 else
                    dir_ = LoadAndSave.saveData(rowData_.get(rows[i]), true, 
                            dir_, this);
+             } else if (saveFormatBox_.getSelectedIndex() == 2) {
+                dir_ = LoadAndSave.saveIndexed(rowData_.get(rows[i]), i > 0, 
+                        dir_, this);
              } else {
                 LoadAndSave.saveDataAsText(rowData_.get(rows[i]), this);
              }
@@ -1354,6 +1371,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
        prefs_.put(INTMAX, intensityMax_.getText());
        prefs_.put(LOADTSFDIR, loadTSFDir_);
        prefs_.putInt(RENDERMAG, visualizationMagnification_.getSelectedIndex());
+       prefs_.putInt(LINKMODE, linkModeComboBox_.getSelectedIndex());
        prefs_.put(PAIRSMAXDISTANCE, pairsMaxDistanceField_.getText());
        
        TableColumnModel cm = jTable1_.getColumnModel();
@@ -1694,7 +1712,9 @@ public class DataCollectionForm extends javax.swing.JFrame {
     * Once a frame has been found in which it is not present, calculate the average spot position
     * and add this averaged spot to the list with linked spots
     * The Frame number of the linked spot list will be 0
-    * @param evt - ignored...
+    * The combo box next to the button selects greedy linking, or globally
+    * optimal assignment that may let tracks skip frames
+    * @param evt
     */
    private void linkButton_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_linkButton_ActionPerformed
       final int rows[] = jTable1_.getSelectedRows();
@@ -1706,6 +1726,12 @@ public class DataCollectionForm extends javax.swing.JFrame {
          ReportingUtils.logError("Error parsing pairs max distance field");
          return;
       }
+      
+      // Greedy, Global, then Gap 1, Gap 2, ...
+      int modeIndex = linkModeComboBox_.getSelectedIndex();
+      final SpotLinker.Mode linkMode = modeIndex == 0
+              ? SpotLinker.Mode.GREEDY : SpotLinker.Mode.GLOBAL;
+      final int maxGap = Math.max(0, modeIndex - 1);
 
       Runnable doWorkRunnable;
       doWorkRunnable = new Runnable() {
@@ -1717,7 +1743,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
                if (rowData.frameIndexSpotList_ == null) {
                   rowData.index();
                }
-               SpotLinker.link(rowData, maxDistance);
+               SpotLinker.link(rowData, maxDistance, linkMode, maxGap);
             }
          }
       };
@@ -1923,6 +1949,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    private javax.swing.JSeparator jSeparator4;
    private javax.swing.JTable jTable1_;
    private javax.swing.JButton linkButton_;
+   private javax.swing.JComboBox linkModeComboBox_;
    private javax.swing.JButton listButton_1;
    private javax.swing.JButton loadButton;
    private javax.swing.JCheckBox logLogCheckBox_;
@@ -55,7 +55,6 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
    @Override
    public void run() {
       GaussianFit gs_ = new GaussianFit(shape_, fitMode_);
-      double cPCF = photonConversionFactor_ / gain_;
       ZCalibrator zc = DataCollectionForm.zc_;
 
       while (!stopNow_) {
@@ -77,56 +76,9 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
          try {
             // Note: the implementation will try to return a cached version of the ImageProcessor
             ImageProcessor ip = spot.getSpotProcessor(siPlus_, halfSize_);
-            double[] paramsOut = gs_.dogaussianfit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
-            SpotData spotData = new SpotData(spot);
-            double sx = 0;
-            double sy = 0;
-            double a = 1;
-            double theta = 0;
-            if (paramsOut.length >= 5) {
-               double N = cPCF * paramsOut[GaussianFit.INT]
-                       * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
-               double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + spot.getX()) * pixelSize_;
-               double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + spot.getY()) * pixelSize_;
-               double s = paramsOut[GaussianFit.S] * pixelSize_;
-               // express background in photons after base level correction
-               double bgr = cPCF * (paramsOut[GaussianFit.BGR] - baseLevel_);
-               // calculate error using formular from Thompson et al (2002)
-               // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
-               double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
-                       + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
-               sigma = Math.sqrt(sigma);
-
-               if (paramsOut.length >= 6) {
-                  sx = paramsOut[GaussianFit.S1] * pixelSize_;
-                  sy = paramsOut[GaussianFit.S2] * pixelSize_;
-                  a = sx / sy;
-                  
-                  double z = 0.0;              
-               
-                  if (zc.hasFitFunctions()) {
-                     z = zc.getZ(2 * sx, 2 * sy);
-                     spotData.setZCenter(z);
-                  }
-                  
-               }
-
-               if (paramsOut.length >= 7) {
-                  theta = paramsOut[GaussianFit.S3];
-               }
-
-               double width = 2 * s;
-               
-               
-               
-               spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, sigma);
-
-               if ((!useWidthFilter_ || (width > widthMin_ && width < widthMax_))
-                       && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_))) {
-                  resultList_.add(spotData);
-               }
-
+            SpotData spotData = fitSpot(gs_, spot, ip, zc);
+            if (spotData != null) {
+               resultList_.add(spotData);
             }
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
@@ -0,0 +1,177 @@
+/**
+ * DataProcessor that localizes spots while images are acquired
+ *
+ * Images are handed to a StreamingFitter that finds and fits spots using
+ * the settings of the Localization Microscopy window.  The resulting data
+ * set is added to the data collection window as soon as the acquisition
+ * ends.  Optionally, images are dropped from the pipeline once spots have
+ * been extracted, so that they are neither displayed nor saved.
+ *
+ * Part of Micro-Manager's Localization Plugin
+ */
+
+package edu.valelab.gaussianfit;
+
+import edu.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.valelab.gaussianfit.data.RowData;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.prefs.Preferences;
+import javax.swing.JCheckBox;
+import javax.swing.JOptionPane;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.api.DataProcessor;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.ReportingUtils;
+
+public class LocalizationProcessor extends DataProcessor<TaggedImage> {
+   private static final String DISCARDIMAGES = "DiscardImages";
+   // how often (in images) the status line is updated
+   private static final int STATUS_INTERVAL = 100;
+
+   private final Preferences prefs_ =
+           Preferences.userNodeForPackage(LocalizationProcessor.class);
+   private StreamingFitter fitter_;
+   private String name_;
+   private boolean discardImages_ = prefs_.getBoolean(DISCARDIMAGES, false);
+   private boolean unsupportedLogged_ = false;
+
+   @Override
+   public void makeConfigurationGUI() {
+      MainForm form = MainForm.getInstance();
+      if (form == null) {
+         form = new MainForm();
+      }
+      form.setVisible(true);
+      form.formWindowOpened();
+      form.toFront();
+
+      JCheckBox discardBox = new JCheckBox("Discard images once spots are extracted",
+              discardImages_);
+      JOptionPane.showMessageDialog(null, new Object[] {
+         "Spots will be found and fitted during acquisition using the\n"
+                 + "settings in the Localization Microscopy window.",
+         discardBox}, "Localization during acquisition",
+              JOptionPane.INFORMATION_MESSAGE);
+      discardImages_ = discardBox.isSelected();
+      prefs_.putBoolean(DISCARDIMAGES, discardImages_);
+   }
+
+   @Override
+   public void process() {
+      TaggedImage taggedImage = poll();
+      if (TaggedImageQueue.isPoison(taggedImage)) {
+         finishDataSet();
+         produce(taggedImage);
+         return;
+      }
+      if (taggedImage == null || taggedImage.tags == null) {
+         produce(taggedImage);
+         return;
+      }
+
+      try {
+         if (fitter_ == null) {
+            startDataSet();
+         }
+         ImageProcessor ip = makeProcessor(taggedImage);
+         if (ip == null) {
+            if (!unsupportedLogged_) {
+               ReportingUtils.logMessage("Localization during acquisition only "
+                       + "supports 8 and 16 bit grayscale images, images of type "
+                       + MDUtils.getPixelType(taggedImage.tags) + " were not analyzed");
+               unsupportedLogged_ = true;
+            }
+            produce(taggedImage);
+            return;
+         }
+         double elapsedTimeMs = taggedImage.tags.has("ElapsedTime-ms")
+                 ? MDUtils.getElapsedTimeMs(taggedImage.tags) : 0.0;
+         fitter_.addImage(ip,
+                 MDUtils.getChannelIndex(taggedImage.tags) + 1,
+                 MDUtils.getSliceIndex(taggedImage.tags) + 1,
+                 MDUtils.getFrameIndex(taggedImage.tags) + 1,
+                 MDUtils.getPositionIndex(taggedImage.tags) + 1,
+                 elapsedTimeMs);
+         if (fitter_.getNrImages() % STATUS_INTERVAL == 0) {
+            ij.IJ.showStatus("Localized " + fitter_.getNrSpots() + " spots in "
+                    + fitter_.getNrImages() + " images");
+         }
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      } catch (MMScriptException ex) {
+         ReportingUtils.logError(ex);
+      }
+
+      if (!discardImages_) {
+         produce(taggedImage);
+      }
+   }
+
+   /**
+    * The fitters only work on 16 bit pixels, so 8 bit images are converted
+    *
+    * @param taggedImage image from the acquisition pipeline
+    * @return 16 bit processor with the image's pixels, or null if the pixel
+    * type is not supported
+    * @throws JSONException
+    * @throws MMScriptException
+    */
+   static ImageProcessor makeProcessor(TaggedImage taggedImage)
+           throws JSONException, MMScriptException {
+      int width = MDUtils.getWidth(taggedImage.tags);
+      int height = MDUtils.getHeight(taggedImage.tags);
+      int depth = MDUtils.getDepth(taggedImage.tags);
+      if (depth == 1) {
+         return new ByteProcessor(width, height, (byte[]) taggedImage.pix,
+                 null).convertToShort(false);
+      } else if (depth == 2) {
+         return new ShortProcessor(width, height, (short[]) taggedImage.pix,
+                 null);
+      }
+      return null;
+   }
+
+   private void startDataSet() {
+      MainForm form = MainForm.getInstance();
+      FindLocalMaxima.FilterType preFilterType = FindLocalMaxima.FilterType.NONE;
+      if (form != null) {
+         preFilterType = form.getPreFilterType();
+      } else {
+         ReportingUtils.logMessage("Localization Microscopy window is closed, "
+                 + "localizing spots with default settings");
+      }
+      fitter_ = new StreamingFitter(preFilterType);
+      if (form != null) {
+         form.updateValues(fitter_);
+      }
+      fitter_.start();
+      name_ = "Live_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+   }
+
+   private void finishDataSet() {
+      if (fitter_ == null) {
+         return;
+      }
+      try {
+         ij.IJ.showStatus("Finishing localization...");
+         RowData rowData = fitter_.finish(name_);
+         if (rowData != null) {
+            ij.IJ.showStatus("Localized " + rowData.spotList_.size()
+                    + " spots in " + fitter_.getNrImages() + " images");
+            DataCollectionForm.getInstance().setVisible(true);
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } finally {
+         fitter_ = null;
+      }
+   }
+
+}
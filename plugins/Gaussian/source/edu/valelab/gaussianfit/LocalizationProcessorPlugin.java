@@ -0,0 +1,40 @@
+/**
+ * Registers the LocalizationProcessor with the acquisition engine, so that
+ * it can be added to the image processor pipeline
+ *
+ * Part of Micro-Manager's Localization Plugin
+ */
+
+package edu.valelab.gaussianfit;
+
+import org.micromanager.api.MMProcessorPlugin;
+
+public class LocalizationProcessorPlugin implements MMProcessorPlugin {
+   public static final String menuName = "Localization During Acquisition";
+   public static final String tooltipDescription =
+      "Find and fit spots while images are acquired";
+
+   public static Class<?> getProcessorClass() {
+      return LocalizationProcessor.class;
+   }
+
+   @Override
+   public String getInfo() {
+      return "Localization during acquisition";
+   }
+
+   @Override
+   public String getDescription() {
+      return tooltipDescription;
+   }
+
+   @Override
+   public String getVersion() {
+      return "0.1";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "University of California, 2015";
+   }
+}
@@ -69,6 +69,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
 
    // we are a singleton with only one window
    public static boolean WINDOWOPEN = false;
+   private static volatile MainForm instance_ = null;
 
    Preferences prefs_;
 
@@ -92,6 +93,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
      */
     public MainForm() {
        initComponents();
+       instance_ = this;
 
        if (prefs_ == null)
             prefs_ = Preferences.userNodeForPackage(this.getClass());
@@ -580,7 +582,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
       jLabel20.setBounds(90, 220, 76, 20);
 
       fitMethodComboBox1.setFont(new java.awt.Font("Lucida Grande", 0, 10)); // NOI18N
-      fitMethodComboBox1.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Simplex", "Levenberg-Marq", "Simplex-MLE", "Levenberg-Marq-Weighted" }));
+      fitMethodComboBox1.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Simplex", "Levenberg-Marq", "Simplex-MLE", "Levenberg-Marq-Weighted", "Levenberg-Marq-Fast", "MLE-Fast" }));
       fitMethodComboBox1.addActionListener(new java.awt.event.ActionListener() {
          public void actionPerformed(java.awt.event.ActionEvent evt) {
             fitMethodComboBox1ActionPerformed(evt);
@@ -679,6 +681,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
 
     private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosed
        WINDOWOPEN = false;
+       clearInstance();
     }//GEN-LAST:event_formWindowClosed
 
     private void fitAllButton_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_fitAllButton_ActionPerformed
@@ -723,6 +726,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
        }
        
        WINDOWOPEN = false;
+       clearInstance();
        
        this.setVisible(false);
     }//GEN-LAST:event_formWindowClosing
@@ -731,6 +735,24 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
        WINDOWOPEN = true;
     }
     
+    /**
+     * @return the most recently created window, or null if it was closed
+     */
+    public static MainForm getInstance() {
+       return instance_;
+    }
+    
+    // a closed window is not reused, so it should not be kept or read
+    private void clearInstance() {
+       if (instance_ == this) {
+          instance_ = null;
+       }
+    }
+    
+    public FindLocalMaxima.FilterType getPreFilterType() {
+       return preFilterType_;
+    }
+    
    @Override
     public void dispose() {
        formWindowClosing(null);
@@ -0,0 +1,214 @@
+/**
+ * Localizes spots in images as they are handed in, for instance by the
+ * acquisition pipeline.  Maxima are found on the calling thread, the
+ * Gaussian fits of all spots in an image are executed on a pool of
+ * worker threads.  Results are appended to the store that becomes the
+ * spot list of the final data set, so nothing needs to be copied or
+ * analyzed once the last image has been added.
+ *
+ * Part of Micro-Manager's Localization Plugin
+ */
+
+package edu.valelab.gaussianfit;
+
+import edu.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.valelab.gaussianfit.data.GaussianInfo;
+import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.data.SpotData;
+import edu.valelab.gaussianfit.data.SpotStore;
+import edu.valelab.gaussianfit.fitting.ZCalibrator;
+import edu.valelab.gaussianfit.utils.ReportingUtils;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class StreamingFitter extends GaussianInfo {
+   // images waiting to be fitted, the caller does the fitting when full
+   private static final int MAX_QUEUED_IMAGES = 64;
+
+   private final FindLocalMaxima.FilterType preFilterType_;
+   private final SpotStore results_ = new SpotStore();
+   private ThreadPoolExecutor fitters_;
+   // fitters keep their work space, so every thread re-uses its own
+   private final ThreadLocal<GaussianFit> gaussianFits_ = new ThreadLocal<GaussianFit>() {
+      @Override
+      protected GaussianFit initialValue() {
+         return new GaussianFit(shape_, fitMode_);
+      }
+   };
+   private volatile boolean failed_ = false;
+   private int nrImages_ = 0;
+   private int width_ = 0;
+   private int height_ = 0;
+   private int nrChannels_ = 1;
+   private int nrSlices_ = 1;
+   private int nrFrames_ = 1;
+   private int nrPositions_ = 1;
+   private int maxNrSpots_ = 0;
+   private double maxTimeMs_ = 0.0;
+
+   public StreamingFitter(FindLocalMaxima.FilterType preFilterType) {
+      preFilterType_ = preFilterType;
+   }
+
+   /**
+    * Starts the worker threads.  Settings should be set before calling this.
+    */
+   public synchronized void start() {
+      int nrThreads = ij.Prefs.getThreads();
+      if (nrThreads > 8) {
+         nrThreads = 8;
+      }
+      fitters_ = new ThreadPoolExecutor(nrThreads, nrThreads, 0L,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<Runnable>(MAX_QUEUED_IMAGES),
+              new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+   /**
+    * Finds spots in the image and queues them for fitting.  Indices are
+    * 1-based, like everywhere else in this plugin.  The image is not
+    * modified and not referenced once this function returns.
+    *
+    * @param ip - image to be analyzed
+    * @param channel
+    * @param slice
+    * @param frame
+    * @param position
+    * @param elapsedTimeMs - time since the start of the acquisition
+    */
+   public synchronized void addImage(ImageProcessor ip, int channel, int slice,
+           int frame, int position, double elapsedTimeMs) {
+      width_ = ip.getWidth();
+      height_ = ip.getHeight();
+      nrChannels_ = Math.max(nrChannels_, channel);
+      nrSlices_ = Math.max(nrSlices_, slice);
+      nrFrames_ = Math.max(nrFrames_, frame);
+      nrPositions_ = Math.max(nrPositions_, position);
+      maxTimeMs_ = Math.max(maxTimeMs_, elapsedTimeMs);
+      nrImages_++;
+
+      Polygon p = FindLocalMaxima.FindMax(new ImagePlus("", ip), halfSize_,
+              noiseTolerance_, preFilterType_);
+      if (p.npoints > maxNrSpots_) {
+         maxNrSpots_ = p.npoints;
+      }
+      final List<SpotData> spots = new ArrayList<SpotData>(p.npoints);
+      for (int j = 0; j < p.npoints; j++) {
+         int x = p.xpoints[j];
+         int y = p.ypoints[j];
+         // filter out spots too close to the edge
+         if (x > halfSize_ && x < width_ - halfSize_
+                 && y > halfSize_ && y < height_ - halfSize_) {
+            ImageProcessor sp = SpotData.getSpotProcessor(ip, halfSize_, x, y);
+            if (sp != null) {
+               spots.add(new SpotData(sp, channel, slice, frame, position,
+                       j, x, y));
+            }
+         }
+      }
+      if (!spots.isEmpty()) {
+         fitters_.execute(new Runnable() {
+            @Override
+            public void run() {
+               fit(spots);
+            }
+         });
+      }
+   }
+
+   private void fit(List<SpotData> spots) {
+      if (failed_) {
+         return;
+      }
+      GaussianFit gs = gaussianFits_.get();
+      ZCalibrator zc = DataCollectionForm.zc_;
+      List<SpotData> fitted = new ArrayList<SpotData>(spots.size());
+      try {
+         for (SpotData spot : spots) {
+            SpotData spotData = fitSpot(gs, spot, spot.getImageProcessor(), zc);
+            if (spotData != null) {
+               fitted.add(spotData);
+            }
+         }
+      } catch (Exception ex) {
+         failed_ = true;
+         ReportingUtils.logError(ex, "Fitting during acquisition failed");
+         return;
+      }
+      synchronized (results_) {
+         results_.addAll(fitted);
+      }
+   }
+
+   /**
+    * @return number of spots localized so far
+    */
+   public int getNrSpots() {
+      synchronized (results_) {
+         return results_.size();
+      }
+   }
+
+   public synchronized int getNrImages() {
+      return nrImages_;
+   }
+
+   /**
+    * Waits for all fits to finish, and adds the results to the data
+    * collection window.
+    *
+    * @param name - name of the new data set
+    * @return the new data set, or null if no spots were found
+    * @throws InterruptedException
+    */
+   public synchronized RowData finish(String name) throws InterruptedException {
+      fitters_.shutdown();
+      fitters_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      if (failed_) {
+         ReportingUtils.showError("Fitting during acquisition failed, see log");
+      }
+      if (results_.isEmpty()) {
+         return null;
+      }
+      results_.trimToSize();
+
+      ZCalibrator zc = DataCollectionForm.zc_;
+      double zMin = 0.0;
+      double zMax = 0.0;
+      if (zc.hasFitFunctions()) {
+         zMin = Double.MAX_VALUE;
+         for (int i = 0; i < results_.size(); i++) {
+            double z = results_.getZCenter(i);
+            zMax = Math.max(zMax, z);
+            if (z > 0.0) {
+               zMin = Math.min(zMin, z);
+            }
+         }
+         zMin = Math.min(zMin, zMax);
+      }
+
+      ArrayList<Double> timePoints = new ArrayList<Double>();
+      // ugly code to deal with 1-based frame numbers and their relation to timePoints
+      timePoints.add(0.0);
+      double interval = nrFrames_ > 1 ? maxTimeMs_ / (nrFrames_ - 1) : timeIntervalMs_;
+      for (int i = 1; i <= nrFrames_; i++) {
+         timePoints.add((i - 1) * interval);
+      }
+
+      RowData rowData = new RowData(name, name, "", width_, height_,
+              pixelSize_, zStackStepSize_, shape_, halfSize_,
+              nrChannels_, nrFrames_, nrSlices_, nrPositions_, maxNrSpots_,
+              results_, timePoints, false, DataCollectionForm.Coordinates.NM,
+              zc.hasFitFunctions(), zMin, zMax);
+      DataCollectionForm.getInstance().addSpotData(rowData);
+      return rowData;
+   }
+
+}
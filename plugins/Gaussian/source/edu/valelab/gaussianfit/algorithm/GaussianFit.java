@@ -7,6 +7,7 @@
 package edu.valelab.gaussianfit.algorithm;
 
 import edu.valelab.gaussianfit.utils.GaussianUtils;
+import edu.valelab.gaussianfit.fitting.GaussianLMFitter;
 import edu.valelab.gaussianfit.fitting.MultiVariateGaussianFunction;
 import edu.valelab.gaussianfit.fitting.MultiVariateGaussianMLE;
 import edu.valelab.gaussianfit.fitting.ParametricGaussianFunction;
@@ -58,6 +59,7 @@ public class GaussianFit {
    MultiVariateGaussianMLE mGFMLE_;
    NonLinearConjugateGradientOptimizer nlcgo_;
    LevenbergMarquardtOptimizer lMO_;
+   GaussianLMFitter lmFitter_;
 
    /**
     * Gaussian fit can be run by estimating parameter c (width of Gaussian)
@@ -65,7 +67,9 @@ public class GaussianFit {
     * 
     * @param mode - fit circle (1) ellipse(2), or ellipse with varying angle (3)
     * @param fitMode - algorithm use: NelderMead (1), Levenberg Marquard (2), 
-    *                   NelderMean MLE (3), LevenberMarquard MLE(4)
+    *                   NelderMean MLE (3), LevenberMarquard MLE(4),
+    *                   analytic Levenberg Marquard (5), 
+    *                   analytic Levenberg Marquard MLE (6)
     */
    public GaussianFit(int mode, int fitMode) {
       super();
@@ -101,6 +105,10 @@ public class GaussianFit {
          convergedChecker_ = new SimpleScalarValueChecker(1e-6,-1);
          mGFMLE_ = new MultiVariateGaussianMLE(mode_);
       }
+      // Levenberg-Marquardt with closed form derivatives, least squares or MLE
+      if (fitMode_ == 5 || fitMode_ == 6) {
+         lmFitter_ = new GaussianLMFitter(mode_, fitMode_ == 6);
+      }
       /*
        * Gradient MLE, not working very well
        *
@@ -207,6 +215,14 @@ public class GaussianFit {
          }
       }
       
+      if (fitMode_ == 5 || fitMode_ == 6) {
+         double[] result = lmFitter_.fit((short[]) siProc.getPixels(), 
+                 siProc.getWidth(), siProc.getHeight(), params0_, maxIterations);
+         if (result != null) {
+            paramsOut = result;
+         }
+      }
+      
       /*
        * not working very well....
       // gradient-MLE
@@ -0,0 +1,107 @@
+package edu.valelab.gaussianfit.algorithm;
+
+import edu.valelab.gaussianfit.utils.GaussianUtils;
+import ij.process.ShortProcessor;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Compares speed and precision of the fit methods of GaussianFit on
+ * simulated spots with Poisson noise.
+ *
+ * Can be run from a script, e.g.:
+ * edu.valelab.gaussianfit.algorithm.GaussianFitBenchmark.run(100000, 1, 250);
+ */
+public class GaussianFitBenchmark {
+   private static final String[] FIT_MODES = {"Simplex", "Levenberg-Marq",
+      "Simplex-MLE", "Levenberg-Marq-Weighted", "Levenberg-Marq-Fast",
+      "MLE-Fast"};
+   private static final int HALF_SIZE = 8;
+   private static final double BACKGROUND = 100.0;
+
+   /**
+    * Fits the same simulated spots with every fit method and logs the
+    * number of spots fitted per second, the number of failed fits and the
+    * root mean square error of the x and y positions (in pixels).
+    *
+    * @param nrSpots - number of simulated spots
+    * @param shape - 1: symmetric, 2: sigma x and y, 3: ellipse
+    * @param maxIterations - passed to GaussianFit
+    * @return report
+    */
+   public static String run(int nrSpots, int shape, int maxIterations) {
+      Random random = new Random(1);
+      ShortProcessor[] spots = new ShortProcessor[nrSpots];
+      double[][] truth = new double[nrSpots][2];
+      int size = 2 * HALF_SIZE;
+      for (int i = 0; i < nrSpots; i++) {
+         double[] params = new double[6];
+         params[GaussianUtils.INT] = 200 + 800 * random.nextDouble();
+         params[GaussianUtils.BGR] = BACKGROUND;
+         params[GaussianUtils.XC] = HALF_SIZE - 1 + 2 * random.nextDouble();
+         params[GaussianUtils.YC] = HALF_SIZE - 1 + 2 * random.nextDouble();
+         params[GaussianUtils.S1] = 1.2;
+         params[GaussianUtils.S2] = shape == 1 ? 1.2 : 1.5;
+         short[] pixels = new short[size * size];
+         for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+               pixels[y * size + x] = (short) poisson(random,
+                       GaussianUtils.gaussian2DXY(params, x, y));
+            }
+         }
+         spots[i] = new ShortProcessor(size, size, pixels, null);
+         truth[i][0] = params[GaussianUtils.XC];
+         truth[i][1] = params[GaussianUtils.YC];
+      }
+
+      StringBuilder report = new StringBuilder();
+      DecimalFormat df0 = new DecimalFormat("#");
+      DecimalFormat df3 = new DecimalFormat("#.###");
+      for (int fitMode = 1; fitMode <= FIT_MODES.length; fitMode++) {
+         GaussianFit gs = new GaussianFit(shape, fitMode);
+         // warm up
+         for (int i = 0; i < Math.min(nrSpots, 1000); i++) {
+            gs.dogaussianfit(spots[i], maxIterations);
+         }
+         int failed = 0;
+         double sumSquares = 0.0;
+         long start = System.nanoTime();
+         for (int i = 0; i < nrSpots; i++) {
+            double[] paramsOut = gs.dogaussianfit(spots[i], maxIterations);
+            if (paramsOut.length < 5) {
+               failed++;
+            } else {
+               double dx = paramsOut[GaussianFit.XC] - truth[i][0];
+               double dy = paramsOut[GaussianFit.YC] - truth[i][1];
+               sumSquares += dx * dx + dy * dy;
+            }
+         }
+         double seconds = (System.nanoTime() - start) / 1E9;
+         int fitted = nrSpots - failed;
+         String line = FIT_MODES[fitMode - 1] + ": "
+                 + df0.format(nrSpots / seconds) + " spots/sec., "
+                 + failed + " failed, rms error "
+                 + (fitted > 0 ? df3.format(Math.sqrt(sumSquares / fitted)) : "-")
+                 + " pixel";
+         ij.IJ.log(line);
+         report.append(line).append("\n");
+      }
+      return report.toString();
+   }
+
+   private static int poisson(Random random, double mean) {
+      if (mean > 30) {
+         return (int) Math.max(0, Math.round(mean
+                 + Math.sqrt(mean) * random.nextGaussian()));
+      }
+      double limit = Math.exp(-mean);
+      double product = random.nextDouble();
+      int count = 0;
+      while (product > limit) {
+         product *= random.nextDouble();
+         count++;
+      }
+      return count;
+   }
+
+}
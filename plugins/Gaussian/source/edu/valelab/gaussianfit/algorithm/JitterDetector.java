@@ -22,6 +22,13 @@ public class JitterDetector {
      ref_.resetMinAndMax();
    }
    
+   /**
+    * Finds the position of the cross-correlation peak between the reference
+    * and the test image.  The reference is only read, so this method can be 
+    * called from multiple threads at the same time.
+    * @param test - image to be compared with the reference
+    * @param com - returns the sub-pixel position of the peak
+    */
    public void getJitter(ImageProcessor test, Point2D.Double com) {
       FHT t = new FHT(test);
       t.transform();
@@ -6,6 +6,8 @@
 
 package edu.valelab.gaussianfit.data;
 
+import edu.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.valelab.gaussianfit.fitting.ZCalibrator;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import java.util.List;
@@ -63,6 +65,69 @@ public class GaussianInfo {
    protected void print(String myText) {
       ij.IJ.log(myText);
    }
+   
+   /**
+    * Fits a Gaussian to the image of a spot and expresses the result in 
+    * photons and nm
+    * 
+    * @param gs - fitter, can not be shared between threads
+    * @param spot - spot found by the maximum finder
+    * @param ip - image of the spot
+    * @param zc - used to calculate z from the widths of astigmatic spots
+    * @return new spot with the fit results, or null if the fit failed or 
+    *          the spot was rejected by the width or photon filters
+    */
+   protected SpotData fitSpot(GaussianFit gs, SpotData spot, ImageProcessor ip,
+           ZCalibrator zc) {
+      double[] paramsOut = gs.dogaussianfit(ip, maxIterations_);
+      if (paramsOut.length < 5) {
+         return null;
+      }
+      double cPCF = photonConversionFactor_ / gain_;
+      // Note that the copy constructor will not copy pixel data, so we loose those when spot goes out of scope
+      SpotData spotData = new SpotData(spot);
+      double sx;
+      double sy;
+      double a = 1;
+      double theta = 0;
+      double N = cPCF * paramsOut[GaussianFit.INT]
+              * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
+      double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + spot.getX()) * pixelSize_;
+      double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + spot.getY()) * pixelSize_;
+      double s = paramsOut[GaussianFit.S] * pixelSize_;
+      // express background in photons after base level correction
+      double bgr = cPCF * (paramsOut[GaussianFit.BGR] - baseLevel_);
+      // calculate error using formular from Thompson et al (2002)
+      // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
+      double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
+              + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
+      sigma = Math.sqrt(sigma);
+
+      if (paramsOut.length >= 6) {
+         sx = paramsOut[GaussianFit.S1] * pixelSize_;
+         sy = paramsOut[GaussianFit.S2] * pixelSize_;
+         a = sx / sy;
+
+         if (zc.hasFitFunctions()) {
+            double z = zc.getZ(2 * sx, 2 * sy);
+            spotData.setZCenter(z);
+         }
+      }
+
+      if (paramsOut.length >= 7) {
+         theta = paramsOut[GaussianFit.S3];
+      }
+
+      double width = 2 * s;
+
+      spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, sigma);
+
+      if ((!useWidthFilter_ || (width > widthMin_ && width < widthMax_))
+              && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_))) {
+         return spotData;
+      }
+      return null;
+   }
 
 
    public void setNoiseTolerance(int n) {
@@ -0,0 +1,556 @@
+/*
+ * Indexed binary file format for localization data
+ *
+ * Copyright UCSF, 2016
+ *
+ * Licensed under BSD license version 2.0
+ *
+ */
+package edu.valelab.gaussianfit.data;
+
+import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes spot data in the indexed spot file (.isf) format.
+ *
+ * Spots are stored in chunks of at most CHUNK_SIZE spots.  Within a chunk
+ * every field of SpotData is stored as a contiguous column, in the same
+ * layout as SpotStore, so that chunks can be copied in and out of a
+ * SpotStore in bulk.  The fixed columns are followed by the key/value
+ * columns (see SpotData.addKeyValue), each stored with its key.
+ *
+ * The file ends with an index holding the file offset, the number of spots,
+ * and the range of frames and positions of each chunk, followed by the
+ * metadata of the dataset.  Since the index is written last, spots can be
+ * appended while they are being generated (see Writer), and ranges of
+ * frames can be read without touching the chunks that do not contain them.
+ *
+ * Layout (all values big endian):
+ *    int magic, int version
+ *    chunks: 9 int columns, 12 double columns, int number of key/value
+ *            columns, each as UTF key followed by a double column
+ *    index and metadata
+ *    long offset of the index, int magic
+ */
+public class IndexedSpotFile {
+   public static final String EXTENSION = ".isf";
+   public static final int CHUNK_SIZE = 65536;
+
+   private static final int MAGIC = 0x49534631; // "ISF1"
+   // version 1 files have no key/value columns
+   private static final int VERSION = 2;
+   private static final int NR_INT_COLUMNS = 9;
+   private static final int NR_DOUBLE_COLUMNS = 12;
+   private static final int BYTES_PER_SPOT =
+           4 * NR_INT_COLUMNS + 8 * NR_DOUBLE_COLUMNS;
+   // long offset to the index + int magic
+   private static final int TRAILER_SIZE = 12;
+
+   /**
+    * Location and content of one chunk of spots
+    */
+   public static class Chunk {
+      public final long offset_;
+      public final long length_;
+      public final int nrSpots_;
+      public final int minFrame_;
+      public final int maxFrame_;
+      public final int minPosition_;
+      public final int maxPosition_;
+
+      Chunk(long offset, long length, int nrSpots, int minFrame,
+              int maxFrame, int minPosition, int maxPosition) {
+         offset_ = offset;
+         length_ = length;
+         nrSpots_ = nrSpots;
+         minFrame_ = minFrame;
+         maxFrame_ = maxFrame;
+         minPosition_ = minPosition;
+         maxPosition_ = maxPosition;
+      }
+
+      boolean overlaps(int firstFrame, int lastFrame) {
+         return maxFrame_ >= firstFrame && minFrame_ <= lastFrame;
+      }
+   }
+
+   private static int[][] intColumns(SpotStore s) {
+      return new int[][] {s.frame_, s.channel_, s.slice_, s.position_, s.nr_,
+         s.x_, s.y_, s.nrLinks_, s.originalFrame_};
+   }
+
+   private static double[][] doubleColumns(SpotStore s) {
+      return new double[][] {s.intensity_, s.background_, s.xCenter_,
+         s.yCenter_, s.zCenter_, s.xOri_, s.yOri_, s.zOri_, s.width_, s.a_,
+         s.theta_, s.sigma_};
+   }
+
+   /**
+    * Writes spots to an indexed spot file.  Spots can be appended in
+    * batches of any size, full chunks are written to disk immediately.
+    * The file is only valid after close has been called.
+    * Not thread safe.
+    */
+   public static class Writer {
+      private final RandomAccessFile file_;
+      private final FileChannel channel_;
+      private final List<Chunk> chunks_ = new ArrayList<Chunk>();
+      private final SpotStore pending_ = new SpotStore(CHUNK_SIZE);
+      private ByteBuffer buffer_;
+      private long nrSpots_ = 0;
+
+      public Writer(File file) throws IOException {
+         file_ = new RandomAccessFile(file, "rw");
+         file_.setLength(0);
+         channel_ = file_.getChannel();
+         ByteBuffer header = ByteBuffer.allocate(8);
+         header.putInt(MAGIC).putInt(VERSION);
+         header.flip();
+         write(header);
+      }
+
+      /**
+       * Appends spots start (inclusive) to end (exclusive) of the given store
+       */
+      public void append(SpotStore spots, int start, int end) throws IOException {
+         while (start < end) {
+            if (pending_.isEmpty() && end - start >= CHUNK_SIZE) {
+               writeChunk(spots, start, CHUNK_SIZE);
+               start += CHUNK_SIZE;
+            } else {
+               int n = Math.min(end - start, CHUNK_SIZE - pending_.size());
+               pending_.addAll(spots.subList(start, start + n));
+               start += n;
+               if (pending_.size() == CHUNK_SIZE) {
+                  flush();
+               }
+            }
+         }
+      }
+
+      public void append(SpotData spot) throws IOException {
+         pending_.add(spot);
+         if (pending_.size() == CHUNK_SIZE) {
+            flush();
+         }
+      }
+
+      public long getNrSpots() {
+         return nrSpots_ + pending_.size();
+      }
+
+      private void flush() throws IOException {
+         if (!pending_.isEmpty()) {
+            writeChunk(pending_, 0, pending_.size());
+            pending_.clear();
+         }
+      }
+
+      private void writeChunk(SpotStore spots, int start, int n) throws IOException {
+         byte[] extras = extraColumns(spots, start, n);
+         int size = n * BYTES_PER_SPOT + extras.length;
+         if (buffer_ == null || buffer_.capacity() < size) {
+            buffer_ = ByteBuffer.allocateDirect(size);
+         }
+         buffer_.clear();
+         int minFrame = Integer.MAX_VALUE;
+         int maxFrame = Integer.MIN_VALUE;
+         int minPosition = Integer.MAX_VALUE;
+         int maxPosition = Integer.MIN_VALUE;
+         for (int i = start; i < start + n; i++) {
+            minFrame = Math.min(minFrame, spots.frame_[i]);
+            maxFrame = Math.max(maxFrame, spots.frame_[i]);
+            minPosition = Math.min(minPosition, spots.position_[i]);
+            maxPosition = Math.max(maxPosition, spots.position_[i]);
+         }
+         for (int[] column : intColumns(spots)) {
+            buffer_.asIntBuffer().put(column, start, n);
+            buffer_.position(buffer_.position() + 4 * n);
+         }
+         for (double[] column : doubleColumns(spots)) {
+            buffer_.asDoubleBuffer().put(column, start, n);
+            buffer_.position(buffer_.position() + 8 * n);
+         }
+         buffer_.put(extras);
+         buffer_.flip();
+         long offset = channel_.position();
+         write(buffer_);
+         chunks_.add(new Chunk(offset, size, n, minFrame, maxFrame,
+                 minPosition, maxPosition));
+         nrSpots_ += n;
+      }
+
+      /**
+       * Key/value columns that have at least one value in the given range
+       */
+      private byte[] extraColumns(SpotStore spots, int start, int n)
+              throws IOException {
+         List<String> keys = new ArrayList<String>();
+         for (String key : spots.extraKeys()) {
+            double[] column = spots.extraColumn(key);
+            for (int i = start; i < start + n; i++) {
+               if (!Double.isNaN(column[i])) {
+                  keys.add(key);
+                  break;
+               }
+            }
+         }
+         ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                 4 + keys.size() * (32 + 8 * n));
+         DataOutputStream dos = new DataOutputStream(bos);
+         dos.writeInt(keys.size());
+         for (String key : keys) {
+            double[] column = spots.extraColumn(key);
+            dos.writeUTF(key);
+            for (int i = start; i < start + n; i++) {
+               dos.writeDouble(column[i]);
+            }
+         }
+         dos.close();
+         return bos.toByteArray();
+      }
+
+      private void write(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            channel_.write(buffer);
+         }
+      }
+
+      /**
+       * Writes the remaining spots, the index, and the metadata of the
+       * given dataset, and closes the file.  Only the metadata of rowData
+       * are used, its spots are not written.
+       */
+      public void close(RowData rowData) throws IOException {
+         try {
+            flush();
+            long indexOffset = channel_.position();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(chunks_.size());
+            for (Chunk chunk : chunks_) {
+               dos.writeLong(chunk.offset_);
+               dos.writeLong(chunk.length_);
+               dos.writeInt(chunk.nrSpots_);
+               dos.writeInt(chunk.minFrame_);
+               dos.writeInt(chunk.maxFrame_);
+               dos.writeInt(chunk.minPosition_);
+               dos.writeInt(chunk.maxPosition_);
+            }
+            dos.writeUTF(rowData.name_);
+            dos.writeUTF(rowData.title_);
+            dos.writeUTF(rowData.colCorrRef_ == null ? "" : rowData.colCorrRef_);
+            dos.writeInt(rowData.width_);
+            dos.writeInt(rowData.height_);
+            dos.writeFloat(rowData.pixelSizeNm_);
+            dos.writeFloat(rowData.zStackStepSizeNm_);
+            dos.writeInt(rowData.shape_);
+            dos.writeInt(rowData.halfSize_);
+            dos.writeInt(rowData.nrChannels_);
+            dos.writeInt(rowData.nrFrames_);
+            dos.writeInt(rowData.nrSlices_);
+            dos.writeInt(rowData.nrPositions_);
+            dos.writeInt(rowData.maxNrSpots_);
+            dos.writeBoolean(rowData.isTrack_);
+            dos.writeUTF(rowData.coordinate_ == null ?
+                    Coordinates.NM.name() : rowData.coordinate_.name());
+            dos.writeBoolean(rowData.hasZ_);
+            dos.writeDouble(rowData.minZ_);
+            dos.writeDouble(rowData.maxZ_);
+            if (rowData.timePoints_ == null) {
+               dos.writeInt(-1);
+            } else {
+               dos.writeInt(rowData.timePoints_.size());
+               for (Double timePoint : rowData.timePoints_) {
+                  dos.writeDouble(timePoint);
+               }
+            }
+            dos.writeLong(indexOffset);
+            dos.writeInt(MAGIC);
+            dos.close();
+            write(ByteBuffer.wrap(bos.toByteArray()));
+         } finally {
+            file_.close();
+         }
+      }
+   }
+
+   /**
+    * Reads the index and metadata of an indexed spot file.  Spots are only
+    * read when requested, so opening even very large files is fast.
+    * Not thread safe.
+    */
+   public static class Reader {
+      private final RandomAccessFile file_;
+      private final FileChannel channel_;
+      private final int version_;
+      private final List<Chunk> chunks_ = new ArrayList<Chunk>();
+      private ByteBuffer buffer_;
+      private final long nrSpots_;
+      private final String name_;
+      private final String title_;
+      private final String colCorrRef_;
+      private final int width_;
+      private final int height_;
+      private final float pixelSizeNm_;
+      private final float zStackStepSizeNm_;
+      private final int shape_;
+      private final int halfSize_;
+      private final int nrChannels_;
+      private final int nrFrames_;
+      private final int nrSlices_;
+      private final int nrPositions_;
+      private final int maxNrSpots_;
+      private final boolean isTrack_;
+      private final Coordinates coordinate_;
+      private final boolean hasZ_;
+      private final double minZ_;
+      private final double maxZ_;
+      private final ArrayList<Double> timePoints_;
+
+      public Reader(File file) throws IOException {
+         file_ = new RandomAccessFile(file, "r");
+         channel_ = file_.getChannel();
+         try {
+            long size = channel_.size();
+            if (size < 8 + TRAILER_SIZE) {
+               throw new IOException("Not an indexed spot file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(8);
+            channel_.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+               throw new IOException("Not an indexed spot file");
+            }
+            version_ = header.getInt();
+            if (version_ > VERSION) {
+               throw new IOException("Indexed spot file was written by a "
+                       + "newer version of this plugin");
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            channel_.read(trailer, size - TRAILER_SIZE);
+            trailer.flip();
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC || indexOffset < 8 || indexOffset > size) {
+               throw new IOException("Indexed spot file is incomplete");
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (size - indexOffset));
+            channel_.read(index, indexOffset);
+            DataInputStream dis = new DataInputStream(
+                    new ByteArrayInputStream(index.array()));
+            int nrChunks = dis.readInt();
+            long nrSpots = 0;
+            for (int i = 0; i < nrChunks; i++) {
+               long offset = dis.readLong();
+               long length = version_ < 2 ? -1 : dis.readLong();
+               int n = dis.readInt();
+               if (length < 0) {
+                  length = (long) n * BYTES_PER_SPOT;
+               }
+               Chunk chunk = new Chunk(offset, length, n, dis.readInt(),
+                       dis.readInt(), dis.readInt(), dis.readInt());
+               chunks_.add(chunk);
+               nrSpots += chunk.nrSpots_;
+            }
+            nrSpots_ = nrSpots;
+            name_ = dis.readUTF();
+            title_ = dis.readUTF();
+            colCorrRef_ = dis.readUTF();
+            width_ = dis.readInt();
+            height_ = dis.readInt();
+            pixelSizeNm_ = dis.readFloat();
+            zStackStepSizeNm_ = dis.readFloat();
+            shape_ = dis.readInt();
+            halfSize_ = dis.readInt();
+            nrChannels_ = dis.readInt();
+            nrFrames_ = dis.readInt();
+            nrSlices_ = dis.readInt();
+            nrPositions_ = dis.readInt();
+            maxNrSpots_ = dis.readInt();
+            isTrack_ = dis.readBoolean();
+            coordinate_ = Coordinates.valueOf(dis.readUTF());
+            hasZ_ = dis.readBoolean();
+            minZ_ = dis.readDouble();
+            maxZ_ = dis.readDouble();
+            int nrTimePoints = dis.readInt();
+            if (nrTimePoints < 0) {
+               timePoints_ = null;
+            } else {
+               timePoints_ = new ArrayList<Double>(nrTimePoints);
+               for (int i = 0; i < nrTimePoints; i++) {
+                  timePoints_.add(dis.readDouble());
+               }
+            }
+         } catch (IOException ex) {
+            file_.close();
+            throw ex;
+         } catch (IllegalArgumentException ex) {
+            file_.close();
+            throw new IOException("Indexed spot file is corrupt");
+         }
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      public long getNrSpots() {
+         return nrSpots_;
+      }
+
+      public int getNrFrames() {
+         return nrFrames_;
+      }
+
+      public List<Chunk> getChunks() {
+         return chunks_;
+      }
+
+      /**
+       * Reads all spots into a new dataset
+       */
+      public RowData read() throws IOException {
+         return read(Integer.MIN_VALUE, Integer.MAX_VALUE);
+      }
+
+      /**
+       * Reads the spots in the given (1-based, inclusive) range of frames
+       * into a new dataset.  Chunks without spots in this range are skipped.
+       */
+      public RowData read(int firstFrame, int lastFrame) throws IOException {
+         long nrSpots = 0;
+         for (Chunk chunk : chunks_) {
+            if (chunk.overlaps(firstFrame, lastFrame)) {
+               nrSpots += chunk.nrSpots_;
+            }
+         }
+         if (nrSpots > Integer.MAX_VALUE) {
+            throw new IOException("Too many spots to load at once, "
+                    + "select a range of frames");
+         }
+         SpotStore spots = new SpotStore((int) nrSpots);
+         SpotStore scratch = null;
+         int counter = 0;
+         for (Chunk chunk : chunks_) {
+            counter++;
+            if (!chunk.overlaps(firstFrame, lastFrame)) {
+               continue;
+            }
+            if (chunk.minFrame_ >= firstFrame && chunk.maxFrame_ <= lastFrame) {
+               readChunk(chunk, spots);
+            } else {
+               if (scratch == null) {
+                  scratch = new SpotStore(CHUNK_SIZE);
+               }
+               scratch.clear();
+               readChunk(chunk, scratch);
+               for (int i = 0; i < scratch.size(); i++) {
+                  int frame = scratch.getFrame(i);
+                  if (frame >= firstFrame && frame <= lastFrame) {
+                     spots.add(scratch.get(i));
+                  }
+               }
+            }
+            ij.IJ.showProgress(counter, chunks_.size());
+         }
+         return new RowData(name_, title_, colCorrRef_, width_, height_,
+                 pixelSizeNm_, zStackStepSizeNm_, shape_, halfSize_,
+                 nrChannels_, nrFrames_, nrSlices_, nrPositions_,
+                 Math.max(maxNrSpots_, spots.size()), spots, timePoints_,
+                 isTrack_, coordinate_, hasZ_, minZ_, maxZ_);
+      }
+
+      /**
+       * Reads the chunk into a heap buffer, which is re-used for all chunks.
+       * Memory mapped buffers would keep the file locked on Windows until
+       * they are garbage collected.
+       */
+      private void readChunk(Chunk chunk, SpotStore spots) throws IOException {
+         int n = chunk.nrSpots_;
+         if (chunk.length_ > Integer.MAX_VALUE) {
+            throw new IOException("Indexed spot file is corrupt");
+         }
+         int size = (int) chunk.length_;
+         if (buffer_ == null || buffer_.capacity() < size) {
+            buffer_ = ByteBuffer.allocate(size);
+         }
+         buffer_.clear();
+         buffer_.limit(size);
+         long position = chunk.offset_;
+         while (buffer_.hasRemaining()) {
+            int read = channel_.read(buffer_, position);
+            if (read < 0) {
+               throw new IOException("Indexed spot file is incomplete");
+            }
+            position += read;
+         }
+         buffer_.flip();
+         int start = spots.extend(n);
+         for (int[] column : intColumns(spots)) {
+            buffer_.asIntBuffer().get(column, start, n);
+            buffer_.position(buffer_.position() + 4 * n);
+         }
+         for (double[] column : doubleColumns(spots)) {
+            buffer_.asDoubleBuffer().get(column, start, n);
+            buffer_.position(buffer_.position() + 8 * n);
+         }
+         if (version_ < 2) {
+            return;
+         }
+         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                 buffer_.array(), buffer_.position(), buffer_.remaining()));
+         int nrExtras = dis.readInt();
+         for (int e = 0; e < nrExtras; e++) {
+            double[] column = spots.extraColumn(dis.readUTF());
+            for (int i = start; i < start + n; i++) {
+               column[i] = dis.readDouble();
+            }
+         }
+      }
+
+      public void close() throws IOException {
+         file_.close();
+      }
+   }
+
+   /**
+    * Writes the complete dataset to the given file
+    */
+   public static void write(RowData rowData, File file) throws IOException {
+      Writer writer = new Writer(file);
+      try {
+         int size = rowData.spotList_.size();
+         for (int start = 0; start < size; start += CHUNK_SIZE) {
+            writer.append(rowData.spotList_, start, 
+                    Math.min(size, start + CHUNK_SIZE));
+            ij.IJ.showProgress(start, size);
+         }
+      } finally {
+         writer.close(rowData);
+      }
+   }
+
+   /**
+    * Reads the complete dataset from the given file
+    */
+   public static RowData read(File file) throws IOException {
+      Reader reader = new Reader(file);
+      try {
+         return reader.read();
+      } finally {
+         reader.close();
+      }
+   }
+
+}
@@ -375,6 +375,54 @@ public class LoadAndSave {
       }
    }
 
+
+   /**
+    * Load an indexed spot file (.isf)
+    *
+    * @param selectedFile - File to be loaded
+    * @param caller - Calling GUI element, used to set WaitCursor
+    */
+   public static void loadIndexed(File selectedFile, JFrame caller) {
+      loadIndexed(selectedFile, Integer.MIN_VALUE, Integer.MAX_VALUE, caller);
+   }
+
+   /**
+    * Load the spots in the given range of frames from an indexed spot file.
+    * Only the parts of the file containing these frames are read.
+    *
+    * @param selectedFile - File to be loaded
+    * @param firstFrame - first frame to be loaded (1-based, inclusive)
+    * @param lastFrame - last frame to be loaded (inclusive)
+    * @param caller - Calling GUI element, used to set WaitCursor
+    */
+   public static void loadIndexed(File selectedFile, int firstFrame, 
+           int lastFrame, JFrame caller) {
+      try {
+         ij.IJ.showStatus("Loading data..");
+         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+         long startTime = System.currentTimeMillis();
+         IndexedSpotFile.Reader reader = new IndexedSpotFile.Reader(selectedFile);
+         RowData rowData;
+         try {
+            rowData = reader.read(firstFrame, lastFrame);
+         } finally {
+            reader.close();
+         }
+         DataCollectionForm.getInstance().addSpotData(rowData);
+         ij.IJ.showStatus("Loaded " + rowData.spotList_.size() + " spots in "
+                 + (System.currentTimeMillis() - startTime) + " ms");
+      } catch (FileNotFoundException ex) {
+         JOptionPane.showMessageDialog(getInstance(), "File not found");
+      } catch (IOException ex) {
+         JOptionPane.showMessageDialog(getInstance(), 
+                 "Error while reading file: " + ex.getMessage());
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
+      } finally {
+         caller.setCursor(Cursor.getDefaultCursor());
+         ij.IJ.showProgress(1.0);
+      }
+   }
    
    /**
     * Save data set in TSF (Tagged Spot File) format
@@ -531,6 +579,71 @@ public class LoadAndSave {
       return dir;
    }
    
+   /**
+    * Save data set in the indexed spot file format
+    *
+    * @param rowData - row with spot data to be saved
+    * @param bypassFileDialog - save in dir without asking the user
+    * @param dir - directory to save to when the file dialog is bypassed
+    * @param caller - JFrame of calling code to provide visual feedback
+    * @return directory the data were saved to
+    */
+   public static String saveIndexed(final RowData rowData, boolean bypassFileDialog,
+           String dir, final JFrame caller) {
+      String fn = rowData.name_ + IndexedSpotFile.EXTENSION;
+      if (!bypassFileDialog) {
+         FileDialog fd = new FileDialog(caller, "Save Spot Data", FileDialog.SAVE);
+         fd.setFile(fn);
+         fd.setVisible(true);
+         String selectedItem = fd.getFile();
+         if (selectedItem == null) {
+            return "";
+         }
+         fn = fd.getFile();
+         if (!fn.contains(".")) {
+            fn = fn + IndexedSpotFile.EXTENSION;
+         }
+         dir = fd.getDirectory();
+      }
+      final File selectedFile = new File(dir + File.separator + fn);
+      if (selectedFile.exists()) {
+         YesNoCancelDialog y = new YesNoCancelDialog(caller, 
+                 "File " + fn + "Exists...", "File exists.  Overwrite?");
+         if (y.cancelPressed()) {
+            return dir;
+         }
+         if (!y.yesPressed()) {
+            saveIndexed(rowData, false, dir, caller);
+            return dir;
+         }
+      }
+
+      Runnable doWorkRunnable = new Runnable() {
+
+         @Override
+         public void run() {
+            try {
+               caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+               ij.IJ.showStatus("Saving spotData...");
+               long startTime = System.currentTimeMillis();
+               IndexedSpotFile.write(rowData, selectedFile);
+               ij.IJ.showProgress(1);
+               ij.IJ.showStatus("Saved " + rowData.spotList_.size() + " spots in "
+                       + (System.currentTimeMillis() - startTime) + " ms");
+            } catch (IOException ex) {
+               JOptionPane.showMessageDialog(getInstance(), 
+                       "Error while saving data: " + ex.getMessage());
+            } finally {
+               caller.setCursor(Cursor.getDefaultCursor());
+            }
+         }
+      };
+
+      (new Thread(doWorkRunnable)).start();
+
+      return dir;
+   }
+
    /**
     * Save data set as a text file
     *
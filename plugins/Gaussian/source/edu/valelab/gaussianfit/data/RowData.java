@@ -13,7 +13,9 @@ package edu.valelab.gaussianfit.data;
 import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
 import edu.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.Point2D;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,7 +26,7 @@ import java.util.Map;
    public class RowData {
      
       
-      public final List<SpotData> spotList_;
+      public final SpotStore spotList_;
       public Map<Integer, List<SpotData>> frameIndexSpotList_;
       private Map<ImageIndex, List<SpotData>> indexedSpotList_;
       public final ArrayList<Double> timePoints_;
@@ -71,7 +73,7 @@ import java.util.Map;
          nrSlices_ = oldRow.nrSlices_;
          nrPositions_ = oldRow.nrPositions_;
          maxNrSpots_ = oldRow.maxNrSpots_;
-         spotList_ = new ArrayList<SpotData> (oldRow.spotList_);
+         spotList_ = new SpotStore(oldRow.spotList_);
          if (oldRow.timePoints_ != null)
             timePoints_ = new ArrayList<Double> (oldRow.timePoints_);
          else
@@ -131,7 +133,7 @@ import java.util.Map;
          height_ = height;
          pixelSizeNm_ = pixelSizeUm;
          zStackStepSizeNm_ = zStackStepSizeNm;
-         spotList_ = spotList;
+         spotList_ = SpotStore.asSpotStore(spotList);
          shape_ = shape;
          halfSize_ = halfSize;
          nrChannels_ = nrChannels;
@@ -167,6 +169,35 @@ import java.util.Map;
       
       
       
+      /**
+       * Read-only list of selected spots in spotList_.  Only the indices
+       * are stored, spots are handed out as views of spotList_.
+       */
+      private class IndexList extends AbstractList<SpotData> {
+         private int[] indices_ = new int[16];
+         private int size_ = 0;
+         
+         void addIndex(int index) {
+            if (size_ == indices_.length) {
+               indices_ = Arrays.copyOf(indices_, 2 * size_);
+            }
+            indices_[size_++] = index;
+         }
+         
+         @Override
+         public SpotData get(int i) {
+            if (i >= size_) {
+               throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size_);
+            }
+            return spotList_.get(indices_[i]);
+         }
+
+         @Override
+         public int size() {
+            return size_;
+         }
+      }
+      
       /**
        * Populates the list frameIndexSpotList which gives access to spots by frame
        */
@@ -179,20 +210,21 @@ import java.util.Map;
          frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
          indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
          
-         for (SpotData spot : spotList_) {
-            int frameIndex = spot.getSlice();
+         for (int i = 0; i < spotList_.size(); i++) {
+            int frameIndex = spotList_.getSlice(i);
             if (useFrames)
-               frameIndex = spot.getFrame();
+               frameIndex = spotList_.getFrame(i);
             if (frameIndexSpotList_.get(frameIndex) == null)
-               frameIndexSpotList_.put(frameIndex, new ArrayList<SpotData>());
-            frameIndexSpotList_.get(frameIndex).add(spot);  
+               frameIndexSpotList_.put(frameIndex, new IndexList());
+            ((IndexList) frameIndexSpotList_.get(frameIndex)).addIndex(i);  
             
-            ImageIndex ii = new ImageIndex (spot.getFrame(), spot.getSlice(), 
-                    spot.getChannel(), spot.getPosition() );
+            ImageIndex ii = new ImageIndex (spotList_.getFrame(i), 
+                    spotList_.getSlice(i), spotList_.getChannel(i), 
+                    spotList_.getPosition(i) );
             if (indexedSpotList_.get(ii) == null) {
-               indexedSpotList_.put(ii, new ArrayList<SpotData>());
+               indexedSpotList_.put(ii, new IndexList());
             }
-            indexedSpotList_.get(ii).add(spot);           
+            ((IndexList) indexedSpotList_.get(ii)).addIndex(i);           
          }  
       }
       
@@ -212,10 +244,10 @@ import java.util.Map;
        * @return desired spot or null if not found
        */
       public SpotData get(int frame, int channel, double xPos, double yPos) {
-         for (SpotData spot : spotList_) {
-            if (spot.getFrame() == frame && spot.getChannel() == channel &&
-                    spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
-               return spot;
+         for (int i = 0; i < spotList_.size(); i++) {
+            if (spotList_.getFrame(i) == frame && spotList_.getChannel(i) == channel &&
+                    spotList_.getXCenter(i) == xPos && spotList_.getYCenter(i) == yPos) {
+               return spotList_.get(i);
             }
          }
  
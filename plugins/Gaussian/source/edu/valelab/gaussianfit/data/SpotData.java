@@ -4,6 +4,7 @@ package edu.valelab.gaussianfit.data;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ImageProcessor;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -14,6 +15,13 @@ import java.util.Set;
  * Also contains utility functions to generate an ImageJ ImageProcessor
  * containing the spot in the image
  * 
+ * A SpotData is either a standalone object, or a view of an element in a 
+ * SpotStore (as returned by SpotStore.get()).  Getters of a view read from,
+ * and setters write through to the SpotStore.  Views do not keep an
+ * ImageProcessor.  Once spots are inserted into or removed from the 
+ * SpotStore other than at its end, existing views no longer refer to the same
+ * spot, and using them throws a ConcurrentModificationException.
+ * 
  * @author Nico Stuurman
  */
 
@@ -45,9 +53,12 @@ public class SpotData {
    private double theta_;     // shape factor for spot (rotation of assymetric peak)
    private double sigma_;     // Estimate of error in localization based on Web et al. formula
                               // that uses # of photons, background and width of gaussian
-   public int nrLinks_;       // number of frames/slices in which this spot was found
-   public int originalFrame_; // original first frame/slice in which this spot was found
+   private int nrLinks_;      // number of frames/slices in which this spot was found
+   private int originalFrame_;// original first frame/slice in which this spot was found
    private final Map<String, Double> keyValue_; // Map of keys/values taht can be used to extend what we store in the SpotData
+   private final SpotStore store_;   // list this spot is a view of, or null
+   private final int index_;        // index of this spot in store_
+   private final int version_;      // structural version of store_ when this view was made
 
    public SpotData(ImageProcessor ip, int channel, int slice, int frame, 
            int position, int nr, int x, int y) {
@@ -60,6 +71,20 @@ public class SpotData {
       x_ = x;
       y_ = y;
       keyValue_ = new HashMap<String, Double>();
+      store_ = null;
+      index_ = -1;
+      version_ = 0;
+   }
+   
+   /**
+    * View of an element of a SpotStore
+    */
+   SpotData(SpotStore store, int index) {
+      store_ = store;
+      index_ = index;
+      version_ = store.structuralVersion();
+      frame_ = channel_ = slice_ = position_ = nr_ = x_ = y_ = 0;
+      keyValue_ = null;
    }
    
    
@@ -69,26 +94,72 @@ public class SpotData {
     * @param spot
     */
    public SpotData(SpotData spot) {
-      frame_ = spot.frame_;
-      slice_ = spot.slice_;
-      channel_ = spot.channel_;
-      position_ = spot.position_;
-      nr_ = spot.nr_;
-      x_ = spot.x_;
-      y_ = spot.y_;
-      intensity_ = spot.intensity_;
-      background_ = spot.background_;
-      xCenter_ = spot.xCenter_;
-      yCenter_ = spot.yCenter_;
-      zCenter_ = spot.zCenter_;
-      xOri_ = spot.xOri_;
-      yOri_ = spot.yOri_;
-      zOri_ = spot.zOri_;
-      width_ = spot.width_;
-      a_ = spot.a_;
-      theta_ = spot.theta_;
-      sigma_ = spot.sigma_;  
-      keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      frame_ = spot.getFrame();
+      slice_ = spot.getSlice();
+      channel_ = spot.getChannel();
+      position_ = spot.getPosition();
+      nr_ = spot.getNr();
+      x_ = spot.getX();
+      y_ = spot.getY();
+      intensity_ = spot.getIntensity();
+      background_ = spot.getBackground();
+      xCenter_ = spot.getXCenter();
+      yCenter_ = spot.getYCenter();
+      zCenter_ = spot.getZCenter();
+      xOri_ = spot.getXOri();
+      yOri_ = spot.geYOri();
+      zOri_ = spot.getZOri();
+      width_ = spot.getWidth();
+      a_ = spot.getA();
+      theta_ = spot.getTheta();
+      sigma_ = spot.getSigma();  
+      keyValue_ = new HashMap<String, Double>();
+      for (String key : spot.getKeys()) {
+         keyValue_.put(key, spot.getValue(key));
+      }
+      store_ = null;
+      index_ = -1;
+      version_ = 0;
+   }
+   
+   boolean isViewOf(SpotStore store) {
+      return store_ != null && store_ == store;
+   }
+   
+   /**
+    * Index of this view in store_, checking that it still refers to the
+    * spot it was made for
+    */
+   private int index() {
+      if (store_.structuralVersion() != version_) {
+         throw new ConcurrentModificationException(
+                 "Spot used after spots were inserted into or removed from its list");
+      }
+      return index_;
+   }
+   
+   /**
+    * Views of the same element of a SpotStore are equal, other spots are
+    * only equal to themselves.
+    */
+   @Override
+   public boolean equals(Object o) {
+      if (this == o) {
+         return true;
+      }
+      if (store_ == null || !(o instanceof SpotData)) {
+         return false;
+      }
+      SpotData other = (SpotData) o;
+      return other.store_ == store_ && other.index_ == index_;
+   }
+
+   @Override
+   public int hashCode() {
+      if (store_ == null) {
+         return super.hashCode();
+      }
+      return 31 * System.identityHashCode(store_) + index_;
    }
 
    public void setData(double intensity, 
@@ -100,6 +171,17 @@ public class SpotData {
            double a, 
            double theta, 
            double sigma) {
+      if (store_ != null) {
+         store_.intensity_[index()] = intensity;
+         store_.background_[index()] = background;
+         store_.xCenter_[index()] = xCenter;
+         store_.yCenter_[index()] = yCenter;
+         store_.width_[index()] = width;
+         store_.a_[index()] = a;
+         store_.theta_[index()] = theta;
+         store_.sigma_[index()] = sigma;
+         return;
+      }
       intensity_ = intensity;
       background_ = background;
       xCenter_ = xCenter;
@@ -111,23 +193,42 @@ public class SpotData {
    }
    
    public void addKeyValue(String key, double value) {
+      if (store_ != null) {
+         store_.setValue(index(), key, value);
+         return;
+      }
       keyValue_.put(key, value);
    }
    
    public Double getValue(String key) {
+      if (store_ != null) {
+         return store_.getValue(index(), key);
+      }
       return keyValue_.get(key);
    }
    
    public String[] getKeys() {
+      if (store_ != null) {
+         return store_.getKeys(index());
+      }
       Set<String> keys = keyValue_.keySet();
       return  keys.toArray(new String[keys.size()]);
    }
    
    public boolean hasKey(String key) {
+      if (store_ != null) {
+         return store_.getValue(index(), key) != null;
+      }
       return keyValue_.containsKey(key);
    }
    
    public void setOriginalPosition(double xPos, double yPos, double zPos) {
+      if (store_ != null) {
+         store_.xOri_[index()] = xPos;
+         store_.yOri_[index()] = yPos;
+         store_.zOri_[index()] = zPos;
+         return;
+      }
       xOri_ = xPos;
       yOri_ = yPos;
       zOri_ = zPos;
@@ -140,70 +241,102 @@ public class SpotData {
       ip_ = ip;
    }
    public int getFrame() {
-      return frame_;
+      return store_ != null ? store_.frame_[index()] : frame_;
    }
    public int getSlice() {
-      return slice_;
+      return store_ != null ? store_.slice_[index()] : slice_;
    }
    public int getChannel() {
-      return channel_;
+      return store_ != null ? store_.channel_[index()] : channel_;
    }
    public int getPosition() {
-      return position_;
+      return store_ != null ? store_.position_[index()] : position_;
    }
    public int getNr() {
-      return nr_;
+      return store_ != null ? store_.nr_[index()] : nr_;
    }
    public int getX() {
-      return x_;
+      return store_ != null ? store_.x_[index()] : x_;
    }
    public int getY() {
-      return y_;
+      return store_ != null ? store_.y_[index()] : y_;
+   }
+   public int getNrLinks() {
+      return store_ != null ? store_.nrLinks_[index()] : nrLinks_;
+   }
+   public void setNrLinks(int nrLinks) {
+      if (store_ != null) {
+         store_.nrLinks_[index()] = nrLinks;
+      } else {
+         nrLinks_ = nrLinks;
+      }
+   }
+   public int getOriginalFrame() {
+      return store_ != null ? store_.originalFrame_[index()] : originalFrame_;
+   }
+   public void setOriginalFrame(int originalFrame) {
+      if (store_ != null) {
+         store_.originalFrame_[index()] = originalFrame;
+      } else {
+         originalFrame_ = originalFrame;
+      }
    }
    public double getIntensity() {
-      return intensity_;
+      return store_ != null ? store_.intensity_[index()] : intensity_;
    }
    public double getBackground() {
-      return background_;
+      return store_ != null ? store_.background_[index()] : background_;
    }
    public double getXCenter() {
-      return xCenter_;
+      return store_ != null ? store_.xCenter_[index()] : xCenter_;
    }
    public void setXCenter(double x) {
-      xCenter_ = x;
+      if (store_ != null) {
+         store_.xCenter_[index()] = x;
+      } else {
+         xCenter_ = x;
+      }
    }
    public double getYCenter() {
-      return yCenter_;
+      return store_ != null ? store_.yCenter_[index()] : yCenter_;
    }
    public void setYCenter(double y) {
-      yCenter_ = y;
+      if (store_ != null) {
+         store_.yCenter_[index()] = y;
+      } else {
+         yCenter_ = y;
+      }
    }
    public double getZCenter() {
-      return zCenter_;
+      return store_ != null ? store_.zCenter_[index()] : zCenter_;
    }
    public void setZCenter(double z) {
-      zCenter_ = z;
+      if (store_ != null) {
+         store_.zCenter_[index()] = z;
+      } else {
+         zCenter_ = z;
+      }
    }
    public double getXOri() {
-      return xOri_;
+      return store_ != null ? store_.xOri_[index()] : xOri_;
    }
    public double geYOri() {
-      return yOri_;
+      return store_ != null ? store_.yOri_[index()] : yOri_;
    }
    public double getZOri() {
-      return zOri_;
+      return store_ != null ? store_.zOri_[index()] : zOri_;
    }
    public double getWidth() {
-      return width_;
+      return store_ != null ? store_.width_[index()] : width_;
    }
    public double getA() {
-      return a_;
+      return store_ != null ? store_.a_[index()] : a_;
    }
    public double getTheta() {
-      return theta_;
+      return store_ != null ? store_.theta_[index()] : theta_;
    }
    public double getSigma() {
-      return sigma_;
+      return store_ != null ? store_.sigma_[index()] : sigma_;
    }
 
    // For performance reasons, it is much better to use the cached version of the processor
@@ -211,8 +344,8 @@ public class SpotData {
       if (ip_ != null)
          return ip_;
       synchronized(lockIP) {
-         Roi spotRoi = new Roi(x_ - halfSize, y_ - halfSize, 2 * halfSize, 2 * halfSize);
-         siPlus.setPositionWithoutUpdate(channel_, slice_, frame_);
+         Roi spotRoi = new Roi(getX() - halfSize, getY() - halfSize, 2 * halfSize, 2 * halfSize);
+         siPlus.setPositionWithoutUpdate(getChannel(), getSlice(), getFrame());
          siPlus.setRoi(spotRoi, false);
          return siPlus.getProcessor().crop();
       }
@@ -222,7 +355,7 @@ public class SpotData {
       if (ip_ != null)
          return ip_;
       synchronized(lockIP) {
-         Roi spotRoi = new Roi(x_ - halfSize, y_ - halfSize, 2 * halfSize, 2 * halfSize);
+         Roi spotRoi = new Roi(getX() - halfSize, getY() - halfSize, 2 * halfSize, 2 * halfSize);
          //siProc.setSliceWithoutUpdate(frame_);
          siProc.setRoi(spotRoi);
          return siProc.crop();
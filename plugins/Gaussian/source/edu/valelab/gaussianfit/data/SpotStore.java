@@ -0,0 +1,432 @@
+/*
+ * Columnar storage for localization data
+ *
+ * Copyright UCSF, 2016
+ *
+ * Licensed under BSD license version 2.0
+ *
+ */
+package edu.valelab.gaussianfit.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * List of spots that stores each field of SpotData in its own primitive
+ * array rather than keeping one object per spot.  Spots added to the list
+ * are copied into the arrays (cached ImageProcessors are not kept), and
+ * get() returns a lightweight SpotData view whose setters write through
+ * to the list.  Inserting or removing spots other than at the end of the
+ * list invalidates the views handed out before.
+ *
+ * Code that scans large datasets should use the indexed accessors
+ * (getXCenter(i) etc.), which do not create any objects.
+ *
+ * Not thread safe, wrap in Collections.synchronizedList when needed.
+ */
+public class SpotStore extends AbstractList<SpotData> implements RandomAccess {
+   private static final int DEFAULT_CAPACITY = 16;
+
+   private int size_ = 0;
+   // changes whenever spots move to another index, which invalidates views
+   private int structuralVersion_ = 0;
+
+   int[] frame_;
+   int[] channel_;
+   int[] slice_;
+   int[] position_;
+   int[] nr_;
+   int[] x_;
+   int[] y_;
+   int[] nrLinks_;
+   int[] originalFrame_;
+   double[] intensity_;
+   double[] background_;
+   double[] xCenter_;
+   double[] yCenter_;
+   double[] zCenter_;
+   double[] xOri_;
+   double[] yOri_;
+   double[] zOri_;
+   double[] width_;
+   double[] a_;
+   double[] theta_;
+   double[] sigma_;
+   // key/value extensions of SpotData, missing values are stored as NaN
+   private final Map<String, double[]> extras_ =
+           new LinkedHashMap<String, double[]>();
+
+   public SpotStore() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   public SpotStore(int capacity) {
+      allocate(Math.max(capacity, 1));
+   }
+
+   public SpotStore(Collection<? extends SpotData> spots) {
+      this(spots.size());
+      addAll(spots);
+   }
+
+   /**
+    * Returns the given list if it already is a SpotStore, otherwise copies
+    * the spots into a new SpotStore.
+    * @param spots
+    * @return SpotStore with the given spots
+    */
+   public static SpotStore asSpotStore(List<SpotData> spots) {
+      if (spots instanceof SpotStore) {
+         return (SpotStore) spots;
+      }
+      if (spots == null) {
+         return new SpotStore();
+      }
+      synchronized (spots) {
+         return new SpotStore(spots);
+      }
+   }
+
+   private void allocate(int capacity) {
+      frame_ = new int[capacity];
+      channel_ = new int[capacity];
+      slice_ = new int[capacity];
+      position_ = new int[capacity];
+      nr_ = new int[capacity];
+      x_ = new int[capacity];
+      y_ = new int[capacity];
+      nrLinks_ = new int[capacity];
+      originalFrame_ = new int[capacity];
+      intensity_ = new double[capacity];
+      background_ = new double[capacity];
+      xCenter_ = new double[capacity];
+      yCenter_ = new double[capacity];
+      zCenter_ = new double[capacity];
+      xOri_ = new double[capacity];
+      yOri_ = new double[capacity];
+      zOri_ = new double[capacity];
+      width_ = new double[capacity];
+      a_ = new double[capacity];
+      theta_ = new double[capacity];
+      sigma_ = new double[capacity];
+   }
+
+   private void ensureCapacity(int capacity) {
+      if (capacity <= frame_.length) {
+         return;
+      }
+      int n = Math.max(capacity, frame_.length + (frame_.length >> 1) + 1);
+      frame_ = Arrays.copyOf(frame_, n);
+      channel_ = Arrays.copyOf(channel_, n);
+      slice_ = Arrays.copyOf(slice_, n);
+      position_ = Arrays.copyOf(position_, n);
+      nr_ = Arrays.copyOf(nr_, n);
+      x_ = Arrays.copyOf(x_, n);
+      y_ = Arrays.copyOf(y_, n);
+      nrLinks_ = Arrays.copyOf(nrLinks_, n);
+      originalFrame_ = Arrays.copyOf(originalFrame_, n);
+      intensity_ = Arrays.copyOf(intensity_, n);
+      background_ = Arrays.copyOf(background_, n);
+      xCenter_ = Arrays.copyOf(xCenter_, n);
+      yCenter_ = Arrays.copyOf(yCenter_, n);
+      zCenter_ = Arrays.copyOf(zCenter_, n);
+      xOri_ = Arrays.copyOf(xOri_, n);
+      yOri_ = Arrays.copyOf(yOri_, n);
+      zOri_ = Arrays.copyOf(zOri_, n);
+      width_ = Arrays.copyOf(width_, n);
+      a_ = Arrays.copyOf(a_, n);
+      theta_ = Arrays.copyOf(theta_, n);
+      sigma_ = Arrays.copyOf(sigma_, n);
+      for (Map.Entry<String, double[]> entry : extras_.entrySet()) {
+         double[] values = Arrays.copyOf(entry.getValue(), n);
+         Arrays.fill(values, entry.getValue().length, n, Double.NaN);
+         entry.setValue(values);
+      }
+   }
+
+   /**
+    * Moves elements from index "from" onwards to index "to"
+    */
+   private void shift(int from, int to) {
+      int length = size_ - from;
+      System.arraycopy(frame_, from, frame_, to, length);
+      System.arraycopy(channel_, from, channel_, to, length);
+      System.arraycopy(slice_, from, slice_, to, length);
+      System.arraycopy(position_, from, position_, to, length);
+      System.arraycopy(nr_, from, nr_, to, length);
+      System.arraycopy(x_, from, x_, to, length);
+      System.arraycopy(y_, from, y_, to, length);
+      System.arraycopy(nrLinks_, from, nrLinks_, to, length);
+      System.arraycopy(originalFrame_, from, originalFrame_, to, length);
+      System.arraycopy(intensity_, from, intensity_, to, length);
+      System.arraycopy(background_, from, background_, to, length);
+      System.arraycopy(xCenter_, from, xCenter_, to, length);
+      System.arraycopy(yCenter_, from, yCenter_, to, length);
+      System.arraycopy(zCenter_, from, zCenter_, to, length);
+      System.arraycopy(xOri_, from, xOri_, to, length);
+      System.arraycopy(yOri_, from, yOri_, to, length);
+      System.arraycopy(zOri_, from, zOri_, to, length);
+      System.arraycopy(width_, from, width_, to, length);
+      System.arraycopy(a_, from, a_, to, length);
+      System.arraycopy(theta_, from, theta_, to, length);
+      System.arraycopy(sigma_, from, sigma_, to, length);
+      for (double[] values : extras_.values()) {
+         System.arraycopy(values, from, values, to, length);
+      }
+   }
+
+   /**
+    * Views of this list are copied before elements are moved or overwritten
+    */
+   private SpotData detach(SpotData spot) {
+      if (spot.isViewOf(this)) {
+         return new SpotData(spot);
+      }
+      return spot;
+   }
+
+   private void write(int index, SpotData spot) {
+      frame_[index] = spot.getFrame();
+      channel_[index] = spot.getChannel();
+      slice_[index] = spot.getSlice();
+      position_[index] = spot.getPosition();
+      nr_[index] = spot.getNr();
+      x_[index] = spot.getX();
+      y_[index] = spot.getY();
+      nrLinks_[index] = spot.getNrLinks();
+      originalFrame_[index] = spot.getOriginalFrame();
+      intensity_[index] = spot.getIntensity();
+      background_[index] = spot.getBackground();
+      xCenter_[index] = spot.getXCenter();
+      yCenter_[index] = spot.getYCenter();
+      zCenter_[index] = spot.getZCenter();
+      xOri_[index] = spot.getXOri();
+      yOri_[index] = spot.geYOri();
+      zOri_[index] = spot.getZOri();
+      width_[index] = spot.getWidth();
+      a_[index] = spot.getA();
+      theta_[index] = spot.getTheta();
+      sigma_[index] = spot.getSigma();
+      for (double[] values : extras_.values()) {
+         values[index] = Double.NaN;
+      }
+      for (String key : spot.getKeys()) {
+         setValue(index, key, spot.getValue(key));
+      }
+   }
+
+   @Override
+   public int size() {
+      return size_;
+   }
+
+   @Override
+   public SpotData get(int index) {
+      rangeCheck(index);
+      return new SpotData(this, index);
+   }
+
+   @Override
+   public boolean add(SpotData spot) {
+      ensureCapacity(size_ + 1);
+      write(size_, spot);
+      size_++;
+      modCount++;
+      return true;
+   }
+
+   @Override
+   public void add(int index, SpotData spot) {
+      spot = detach(spot);
+      if (index < 0 || index > size_) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size_);
+      }
+      ensureCapacity(size_ + 1);
+      shift(index, index + 1);
+      write(index, spot);
+      size_++;
+      modCount++;
+      structuralVersion_++;
+   }
+
+   @Override
+   public SpotData set(int index, SpotData spot) {
+      rangeCheck(index);
+      spot = detach(spot);
+      SpotData old = new SpotData(get(index));
+      write(index, spot);
+      return old;
+   }
+
+   @Override
+   public SpotData remove(int index) {
+      rangeCheck(index);
+      SpotData old = new SpotData(get(index));
+      shift(index + 1, index);
+      size_--;
+      modCount++;
+      structuralVersion_++;
+      return old;
+   }
+
+   @Override
+   public void clear() {
+      size_ = 0;
+      modCount++;
+      structuralVersion_++;
+   }
+   
+   int structuralVersion() {
+      return structuralVersion_;
+   }
+
+   /**
+    * Grows the list by n elements, the values of which are to be filled in 
+    * by the caller through the column arrays.
+    * @return index of the first new element
+    */
+   int extend(int n) {
+      ensureCapacity(size_ + n);
+      int start = size_;
+      for (double[] values : extras_.values()) {
+         Arrays.fill(values, start, start + n, Double.NaN);
+      }
+      size_ += n;
+      modCount++;
+      return start;
+   }
+
+   /**
+    * Releases unused capacity
+    */
+   public void trimToSize() {
+      if (frame_.length > size_) {
+         SpotStore trimmed = new SpotStore(size_);
+         trimmed.addAll(this);
+         copyArraysFrom(trimmed);
+      }
+   }
+
+   private void copyArraysFrom(SpotStore other) {
+      frame_ = other.frame_;
+      channel_ = other.channel_;
+      slice_ = other.slice_;
+      position_ = other.position_;
+      nr_ = other.nr_;
+      x_ = other.x_;
+      y_ = other.y_;
+      nrLinks_ = other.nrLinks_;
+      originalFrame_ = other.originalFrame_;
+      intensity_ = other.intensity_;
+      background_ = other.background_;
+      xCenter_ = other.xCenter_;
+      yCenter_ = other.yCenter_;
+      zCenter_ = other.zCenter_;
+      xOri_ = other.xOri_;
+      yOri_ = other.yOri_;
+      zOri_ = other.zOri_;
+      width_ = other.width_;
+      a_ = other.a_;
+      theta_ = other.theta_;
+      sigma_ = other.sigma_;
+      extras_.clear();
+      extras_.putAll(other.extras_);
+   }
+
+   private void rangeCheck(int index) {
+      if (index < 0 || index >= size_) {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size_);
+      }
+   }
+
+   // key/value extensions
+
+   void setValue(int index, String key, double value) {
+      extraColumn(key)[index] = value;
+   }
+
+   /**
+    * Column holding the values of the given key, NaN where a spot has no
+    * value.  The column is created when it does not exist yet.
+    */
+   double[] extraColumn(String key) {
+      double[] values = extras_.get(key);
+      if (values == null) {
+         values = new double[frame_.length];
+         Arrays.fill(values, Double.NaN);
+         extras_.put(key, values);
+      }
+      return values;
+   }
+
+   Set<String> extraKeys() {
+      return extras_.keySet();
+   }
+
+   Double getValue(int index, String key) {
+      double[] values = extras_.get(key);
+      if (values == null || Double.isNaN(values[index])) {
+         return null;
+      }
+      return values[index];
+   }
+
+   String[] getKeys(int index) {
+      List<String> keys = new ArrayList<String>();
+      for (Map.Entry<String, double[]> entry : extras_.entrySet()) {
+         if (!Double.isNaN(entry.getValue()[index])) {
+            keys.add(entry.getKey());
+         }
+      }
+      return keys.toArray(new String[keys.size()]);
+   }
+
+   // indexed accessors that do not create SpotData views
+
+   public int getFrame(int index) {
+      return frame_[index];
+   }
+   public int getSlice(int index) {
+      return slice_[index];
+   }
+   public int getChannel(int index) {
+      return channel_[index];
+   }
+   public int getPosition(int index) {
+      return position_[index];
+   }
+   public double getIntensity(int index) {
+      return intensity_[index];
+   }
+   public double getBackground(int index) {
+      return background_[index];
+   }
+   public double getXCenter(int index) {
+      return xCenter_[index];
+   }
+   public void setXCenter(int index, double x) {
+      xCenter_[index] = x;
+   }
+   public double getYCenter(int index) {
+      return yCenter_[index];
+   }
+   public void setYCenter(int index, double y) {
+      yCenter_[index] = y;
+   }
+   public double getZCenter(int index) {
+      return zCenter_[index];
+   }
+   public double getWidth(int index) {
+      return width_[index];
+   }
+   public double getSigma(int index) {
+      return sigma_[index];
+   }
+}
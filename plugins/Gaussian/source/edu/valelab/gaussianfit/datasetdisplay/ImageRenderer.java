@@ -5,8 +5,8 @@ package edu.valelab.gaussianfit.datasetdisplay;
 
 import edu.valelab.gaussianfit.datasettransformations.SpotDataFilter;
 import edu.valelab.gaussianfit.data.SpotData;
-import edu.valelab.gaussianfit.utils.GaussianUtils;
 import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.data.SpotStore;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
@@ -17,6 +17,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -29,6 +36,12 @@ public class ImageRenderer {
    /**
     * Renders spotdata using various renderModes
     * 
+    * The spot list is split into contiguous ranges that are rendered on
+    * separate threads into their own accumulation buffers.  The buffers
+    * are summed once all threads are done.  Only spots that fall within
+    * rect are rendered, so rect can be used to render the visible part of 
+    * a highly magnified image.
+    * 
     * @param rowData - MyRowData structure to be rendered
     * @param method - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
     * @param magnification  - factor x original size
@@ -54,70 +67,47 @@ public class ImageRenderer {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
-      final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
-      final int fullWidth = (int) (rowData.width_ * magnification);
-      final int fullHeight = (int) (rowData.height_ * magnification);
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
+      final int nrSpots = rowData.spotList_.size();
 
 
       try {
          if (method == 0) {
             if (!rowData.hasZ_) {
-               ip = new ShortProcessor(width, height);
+               int nrThreads = nrRenderThreads(4L * size, nrSpots);
+               SpotAccumulator[] accumulators = new SpotAccumulator[nrThreads];
+               for (int i = 0; i < nrThreads; i++) {
+                  accumulators[i] = new CountAccumulator(rowData, magnification, 
+                          rect, sf);
+               }
+               renderParallel(accumulators, nrSpots);
+               int[] counts = ((CountAccumulator) accumulators[0]).counts_;
                short pixels[] = new short[size];
-               ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
-                           }
-                        }
-                     }
-                  }
+               for (int p = 0; p < size; p++) {
+                  pixels[p] = (short) Math.min(counts[p], 65535);
                }
+               ip = new ShortProcessor(width, height);
+               ip.setPixels(pixels);
             } else if (rowData.hasZ_) {
+               int nrThreads = nrRenderThreads(12L * size, nrSpots);
+               SpotAccumulator[] accumulators = new SpotAccumulator[nrThreads];
+               for (int i = 0; i < nrThreads; i++) {
+                  accumulators[i] = new ColorAccumulator(rowData, magnification, 
+                          rect, sf);
+               }
+               renderParallel(accumulators, nrSpots);
+               int[][] sums = ((ColorAccumulator) accumulators[0]).sums_;
                ShortProcessor[] sp = new ShortProcessor[3];
                short[][] pixels = new short[3][size];
                for (int i = 0; i < 3; i++) {
+                  for (int p = 0; p < size; p++) {
+                     pixels[i][p] = (short) sums[i][p];
+                  }
                   sp[i] = new ShortProcessor(width, height);
                   sp[i].setPixels(pixels[i]);
                }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
-                           }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
-                           }
-                        }
-                     }
-                  }
-               }
                // we have 3 ShortProcessors.  Combine into a color image:
                ColorProcessor cp = new ColorProcessor(width, height);
                byte[][] colorPixels = new byte[3][];
@@ -143,107 +133,22 @@ public class ImageRenderer {
 
          } else if (method == 1 || method == 2) {  // Gaussian and normalized Gaussian
 
-
             // determines whether gaussians should be normalized by their total intensity
             boolean normalize = false;
             if (method == 2) {
                normalize = true;
             }
 
-            ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
-            ip.setPixels(pixels);
-
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
-               }
-
-
-               if (sf.filter(spot)) {
-
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
-                  }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
-                        }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
-                        }
-
-                     }
-                  }
-               }
+            int nrThreads = nrRenderThreads(4L * size, nrSpots);
+            SpotAccumulator[] accumulators = new SpotAccumulator[nrThreads];
+            for (int i = 0; i < nrThreads; i++) {
+               accumulators[i] = new GaussianAccumulator(rowData, magnification, 
+                       rect, sf, normalize);
             }
-
+            int spotsUsed = renderParallel(accumulators, nrSpots);
+            ip = new FloatProcessor(width, height);
+            ip.setPixels(((GaussianAccumulator) accumulators[0]).pixels_);
 
             ij.IJ.showProgress(1);
             ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
@@ -270,6 +175,302 @@ public class ImageRenderer {
       return ip;    
    }
    
+   /**
+    * Number of threads used for rendering.  Every thread needs its own 
+    * accumulation buffer, so fewer threads are used when the buffers would
+    * not fit in the available memory.  Small datasets are rendered on the
+    * calling thread.
+    */
+   private static int nrRenderThreads(long bufferBytes, int nrSpots) {
+      Runtime rt = Runtime.getRuntime();
+      long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      long fit = available / (2 * Math.max(bufferBytes, 1));
+      long nrThreads = Math.min(ij.Prefs.getThreads(), fit);
+      nrThreads = Math.min(nrThreads, 1 + nrSpots / 10000);
+      return (int) Math.max(1, nrThreads);
+   }
+   
+   /**
+    * Renders the spots in parallel, one contiguous range of the spot list
+    * per accumulator, then sums all accumulators into the first one.
+    * @return number of spots rendered
+    */
+   private static int renderParallel(final SpotAccumulator[] accumulators, 
+           final int nrSpots) {
+      if (accumulators.length == 1) {
+         return accumulators[0].accumulate(0, nrSpots);
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(accumulators.length);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      int chunk = (nrSpots + accumulators.length - 1) / accumulators.length;
+      for (int i = 0; i < accumulators.length; i++) {
+         final SpotAccumulator accumulator = accumulators[i];
+         final int start = Math.min(nrSpots, i * chunk);
+         final int end = Math.min(nrSpots, start + chunk);
+         results.add(pool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+               return accumulator.accumulate(start, end);
+            }
+         }));
+      }
+      int spotsUsed = 0;
+      try {
+         for (Future<Integer> result : results) {
+            spotsUsed += result.get();
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            throw (OutOfMemoryError) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         pool.shutdown();
+      }
+      for (int i = 1; i < accumulators.length; i++) {
+         accumulators[i].addTo(accumulators[0]);
+         accumulators[i] = null;
+      }
+      return spotsUsed;
+   }
+   
+   /**
+    * Renders a range of spots into its own buffer
+    */
+   private static abstract class SpotAccumulator {
+      protected final SpotStore spots_;
+      protected final SpotDataFilter sf_;
+      protected final Rectangle rect_;
+      protected final double factor_;
+      protected final int width_;
+      protected final int size_;
+      protected final int endx_;
+      protected final int endy_;
+      
+      SpotAccumulator(RowData rowData, double magnification, Rectangle rect,
+              SpotDataFilter sf) {
+         spots_ = rowData.spotList_;
+         sf_ = sf;
+         rect_ = rect;
+         factor_ = magnification / rowData.pixelSizeNm_;
+         width_ = rect.width;
+         size_ = rect.width * rect.height;
+         endx_ = rect.x + rect.width;
+         endy_ = rect.y + rect.height;
+      }
+      
+      /**
+       * Index in the buffer of the pixel containing the spot, or -1 if the
+       * spot is not within rect
+       */
+      protected int pixelIndex(int i) {
+         int x = (int) (factor_ * spots_.getXCenter(i));
+         int y = (int) (factor_ * spots_.getYCenter(i));
+         if (x > rect_.x && x < endx_ && y > rect_.y && y < endy_) {
+            x -= rect_.x;
+            y -= rect_.y;
+            int index = (y * width_) + x;
+            if (index < size_ && index > 0) {
+               return index;
+            }
+         }
+         return -1;
+      }
+      
+      abstract int accumulate(int start, int end);
+      
+      abstract void addTo(SpotAccumulator target);
+   }
+   
+   private static class CountAccumulator extends SpotAccumulator {
+      final int[] counts_;
+      
+      CountAccumulator(RowData rowData, double magnification, Rectangle rect,
+              SpotDataFilter sf) {
+         super(rowData, magnification, rect, sf);
+         counts_ = new int[size_];
+      }
+
+      @Override
+      int accumulate(int start, int end) {
+         int spotsUsed = 0;
+         for (int i = start; i < end; i++) {
+            int index = pixelIndex(i);
+            if (index >= 0 && sf_.filter(spots_.get(i))) {
+               counts_[index]++;
+               spotsUsed++;
+            }
+         }
+         return spotsUsed;
+      }
+
+      @Override
+      void addTo(SpotAccumulator target) {
+         int[] targetCounts = ((CountAccumulator) target).counts_;
+         for (int p = 0; p < size_; p++) {
+            targetCounts[p] += counts_[p];
+         }
+      }
+   }
+   
+   private static class ColorAccumulator extends SpotAccumulator {
+      final int[][] sums_;
+      private final double minZ_;
+      private final double spread_;
+      
+      ColorAccumulator(RowData rowData, double magnification, Rectangle rect,
+              SpotDataFilter sf) {
+         super(rowData, magnification, rect, sf);
+         sums_ = new int[3][size_];
+         minZ_ = rowData.minZ_;
+         spread_ = rowData.maxZ_ - rowData.minZ_;
+      }
+
+      @Override
+      int accumulate(int start, int end) {
+         int spotsUsed = 0;
+         for (int i = start; i < end; i++) {
+            int index = pixelIndex(i);
+            if (index >= 0 && sf_.filter(spots_.get(i))) {
+               int zIndex = (int) (256 * (spots_.getZCenter(i) - minZ_) / spread_);
+               if (zIndex < 0) {
+                  zIndex = 0;
+               }
+               if (zIndex > 255) {
+                  zIndex = 255;
+               }
+               for (int c = 0; c < 3; c++) {
+                  sums_[c][index] += zLut_[zIndex][c];
+               }
+               spotsUsed++;
+            }
+         }
+         return spotsUsed;
+      }
+
+      @Override
+      void addTo(SpotAccumulator target) {
+         int[][] targetSums = ((ColorAccumulator) target).sums_;
+         for (int c = 0; c < 3; c++) {
+            for (int p = 0; p < size_; p++) {
+               targetSums[c][p] += sums_[c][p];
+            }
+         }
+      }
+   }
+   
+   /**
+    * Splats a Gaussian with the localization precision as width for each
+    * spot.  The Gaussian is separable, so it is computed as the product of
+    * two one dimensional profiles rather than by evaluating exp() for every 
+    * pixel.
+    */
+   private static class GaussianAccumulator extends SpotAccumulator {
+      final float[] pixels_;
+      private final boolean normalize_;
+      private final double renderedPixelInNm_;
+      private final int fullWidth_;
+      private final int fullHeight_;
+      
+      GaussianAccumulator(RowData rowData, double magnification, Rectangle rect,
+              SpotDataFilter sf, boolean normalize) {
+         super(rowData, magnification, rect, sf);
+         pixels_ = new float[size_];
+         normalize_ = normalize;
+         renderedPixelInNm_ = rowData.pixelSizeNm_ / magnification;
+         fullWidth_ = (int) (rowData.width_ * magnification);
+         fullHeight_ = (int) (rowData.height_ * magnification);
+      }
+
+      @Override
+      int accumulate(int start, int end) {
+         int spotsUsed = 0;
+         int nrSpots = spots_.size();
+         int updateQuantum = Math.max(1, nrSpots / 100);
+         double[] gx = new double[0];
+         double[] gy = new double[0];
+         for (int i = start; i < end; i++) {
+            if (start == 0 && i % updateQuantum == 0) {
+               ij.IJ.showProgress(i, end);
+            }
+            // cover 3 * precision
+            double sigma = spots_.getSigma(i);
+            int halfWidth = (int) (2 * sigma / renderedPixelInNm_);
+            if (halfWidth == 0) {
+               halfWidth = 2;
+            }
+            int xc = (int) (factor_ * spots_.getXCenter(i));
+            int yc = (int) (factor_ * spots_.getYCenter(i));
+            if (!(xc > rect_.x + halfWidth && xc < endx_ - halfWidth
+                    && yc > rect_.y + halfWidth && yc < endy_ - halfWidth)) {
+               continue;
+            }
+            if (!(xc > halfWidth && xc < (fullWidth_ - halfWidth)
+                    && yc > halfWidth && yc < (fullHeight_ - halfWidth))) {
+               continue;
+            }
+            if (!sf_.filter(spots_.get(i))) {
+               continue;
+            }
+            spotsUsed++;
+            
+            /*
+             * exp(-((x-xc)^2+(y-yc)^2)/(2 sig^2)) =
+             *    exp(-(x-xc)^2/(2 sig^2)) * exp(-(y-yc)^2/(2 sig^2))
+             */
+            int n = 2 * halfWidth;
+            if (gx.length < n) {
+               gx = new double[n];
+               gy = new double[n];
+            }
+            double cx = spots_.getXCenter(i) / renderedPixelInNm_;
+            double cy = spots_.getYCenter(i) / renderedPixelInNm_;
+            double s = sigma / renderedPixelInNm_;
+            double twoSSquared = 2 * s * s;
+            int xStart = xc - halfWidth;
+            int yStart = yc - halfWidth;
+            double sumX = 0.0;
+            double sumY = 0.0;
+            for (int j = 0; j < n; j++) {
+               double dx = xStart + j - cx;
+               double dy = yStart + j - cy;
+               gx[j] = Math.exp(-dx * dx / twoSSquared);
+               gy[j] = Math.exp(-dy * dy / twoSSquared);
+               sumX += gx[j];
+               sumY += gy[j];
+            }
+            double scale = 1.0;
+            // normalize if requested
+            if (normalize_) {
+               double totalInt = sumX * sumY;
+               if (!(totalInt > 0)) {
+                  continue;
+               }
+               scale = 1.0 / totalInt;
+            }
+            // now add to the image
+            for (int k = 0; k < n; k++) {
+               int offset = (yStart + k - rect_.y) * width_ + xStart - rect_.x;
+               double yScale = scale * gy[k];
+               for (int j = 0; j < n; j++) {
+                  pixels_[offset + j] += (float) (yScale * gx[j]);
+               }
+            }
+         }
+         return spotsUsed;
+      }
+
+      @Override
+      void addTo(SpotAccumulator target) {
+         float[] targetPixels = ((GaussianAccumulator) target).pixels_;
+         for (int p = 0; p < size_; p++) {
+            targetPixels[p] += pixels_[p];
+         }
+      }
+   }
+   
    
    /**
     * Renders spotdata using various renderModes
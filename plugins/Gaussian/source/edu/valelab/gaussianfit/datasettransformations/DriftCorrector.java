@@ -4,17 +4,22 @@ package edu.valelab.gaussianfit.datasettransformations;
 import edu.valelab.gaussianfit.DataCollectionForm;
 import edu.valelab.gaussianfit.data.SpotData;
 import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
+import edu.valelab.gaussianfit.algorithm.FFTUtils;
 import edu.valelab.gaussianfit.algorithm.JitterDetector;
-import static edu.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.data.SpotStore;
+import edu.valelab.gaussianfit.utils.ReportingUtils;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import javax.swing.JOptionPane;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -40,6 +45,11 @@ public class DriftCorrector {
     * 2D scattergram and using cross-correlation between them to find
     * the displacement
     * 
+    * Frames (or slices) are combined into bins of 200, and the drift of 
+    * each bin is smoothed with a moving average over 5 bins.  Bins are
+    * correlated in parallel and the drift is interpolated for every frame, 
+    * as in unJitter2.
+    * 
     * @param rowData 
     */
    public static void unJitter(final RowData rowData) {
@@ -47,318 +57,18 @@ public class DriftCorrector {
       // TODO: instead of a fixed number of frames, go for a certain number of spots
       // Number of frames could be limited as well
       final int framesToCombine = 200;
+      final int windowSize = 5;
       
       if (rowData.spotList_.size() <= 1) {
          return;
       }
       
-           
-      ij.IJ.showStatus("Executing jitter correction");
-      
       Runnable doWorkRunnable = new Runnable() {
          
          @Override
          public void run() {
-            
-            int mag = (int) (rowData.pixelSizeNm_ / 40.0);
-            while (mag % 2 != 0)
-               mag += 1;
-                        
-            int width = mag * rowData.width_;
-            int height = mag * rowData.height_;                        
-            
-            int size = width * height;
-            
-            
-             // TODO: add 0 padding to deal with aberrant image sizes
-            if ( (width != height) || ( (width & (width - 1)) != 0) ) {
-               JOptionPane.showMessageDialog(getInstance(), 
-                 "Magnified image is not a square with a size that is a power of 2");
-               ij.IJ.showStatus(" ");
-               return;
-            }
-
-            // TODO: what if we should go through nrSlices instead of nrFrames?
-            boolean useSlices = false;
-            int nrOfTests = rowData.nrFrames_ / framesToCombine;
-            if (nrOfTests == 0) {
-               useSlices = true;
-               nrOfTests = rowData.nrSlices_ / framesToCombine;
-               if (rowData.nrSlices_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
-            } else {
-               if (rowData.nrFrames_ % framesToCombine > 0) {
-                  nrOfTests++;
-               }
-            }
-
-            // storage of stage movement data
-            class StageMovementData {
-               
-               Point2D.Double pos_;
-               Point frameRange_;
-               
-               StageMovementData(Point2D.Double pos, Point frameRange) {
-                  pos_ = pos;
-                  frameRange_ = frameRange;
-               }
-            }
-            ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-            
-            try {
-               // make imageprocessors for all the images that we will generate
-               ImageProcessor[] ip = new ImageProcessor[nrOfTests];
-               byte[][] pixels = new byte[nrOfTests][width * height];
-               
-               for (int i = 0; i < nrOfTests; i++) {
-                  ip[i] = new ByteProcessor(width, height);
-                  ip[i].setPixels(pixels[i]);
-               }
-               
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixels[j][index] != -1) {
-                        pixels[j][index] += 1;
-                     }
-                  }
-                  
-               }
-               
-               JitterDetector jd = new JitterDetector(ip[0]);
-               
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               
-               jd.getJitter(ip[0], fp);
-               
-               for (int i = 1; i < ip.length; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, ip.length);
-                  int spotCount = 0;
-                  for (int j=0; j < ip[i].getPixelCount(); j++) 
-                     spotCount += ip[i].get(j);
-                  
-                  jd.getJitter(ip[i], com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                          new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("i: " + i + " nSpots: " + spotCount + " X: " + x + " Y: " + y);
-               }
-               
-            } catch (OutOfMemoryError ex) {
-               // not enough memory to allocate all images in one go
-               // we need to cycle through all gaussian spots cycle by cycle
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-               
-               ImageProcessor ipRef = new ByteProcessor(width, height);
-               byte[] pixelsRef = new byte[width * height];
-               ipRef.setPixels(pixelsRef);
-
-
-               // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
-                     }
-                  }
-               }
-               
-               JitterDetector jd = new JitterDetector(ipRef);
-               
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               jd.getJitter(ipRef, fp);
-               
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               ImageProcessor ipTest = new ByteProcessor(width, height);
-               byte[] pixelsTest = new byte[width * height];
-               ipTest.setPixels(pixelsTest);
-               
-               for (int i = 1; i < nrOfTests; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, nrOfTests);
-                  for (int p = 0; p < size; p++) {
-                     ipTest.set(p, 0);
-                  }
-                  
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
-                        }
-                     }
-                  }
-                  
-                  jd.getJitter(ipTest, com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  double timePoint = i;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                          new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("X: " + x + " Y: " + y);
-               }
-               
-            }
-            
-            try {
-               // Assemble stage movement data into a track
-               List<SpotData> stageMovementData = new ArrayList<SpotData>();
-               SpotData sm = new SpotData(null, 1, 1, 1, 1, 1, 1, 1);
-               sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
-               stageMovementData.add(sm);
-               
-               // calculate moving average for stageposition
-               ArrayList<StageMovementData> stagePosMA = new ArrayList<StageMovementData>();
-               int windowSize = 5;
-               for (int i = 0; i < stagePos.size() - windowSize; i++) {
-                  Point2D.Double avg = new Point2D.Double(0.0, 0.0);
-                  for (int j = 0; j < windowSize; j++) {
-                     avg.x += stagePos.get(i + j).pos_.x;
-                     avg.y += stagePos.get(i + j).pos_.y;
-                  }
-                  avg.x /= windowSize;
-                  avg.y /= windowSize;
-                  
-                  stagePosMA.add(new StageMovementData(avg, stagePos.get(i).frameRange_));
-               }
-               
-               
-               for (int i = 0; i < stagePosMA.size(); i++) {
-                  StageMovementData smd = stagePosMA.get(i);
-                  SpotData s =
-                          new SpotData(null, 1, 1, i + 2, 1, 1, 1, 1);
-                  s.setData(0, 0, smd.pos_.x, smd.pos_.y, 0.0, 0, 0, 0, 0);                  
-                  stageMovementData.add(s);
-               }
-
-               // Add stage movement data to overview window
-               // First try to copy the time points
-               ArrayList<Double> timePoints = null;
-               if (rowData.timePoints_ != null) {
-                  timePoints = new ArrayList<Double>();
-                  int tp = framesToCombine;
-                  while (tp < rowData.timePoints_.size()) {
-                     timePoints.add(rowData.timePoints_.get(tp));
-                     tp += framesToCombine;
-                  }
-               }
-               
-               RowData newRow = new RowData(rowData.name_ + "-Jitter", 
-                       rowData.title_, "", rowData.width_,rowData.height_, 
-                       rowData.pixelSizeNm_, rowData.zStackStepSizeNm_, 
-                       rowData.shape_, rowData.halfSize_, rowData.nrChannels_, 
-                       stageMovementData.size(),1, 1, stageMovementData.size(), 
-                       stageMovementData, timePoints, true, Coordinates.NM, 
-                       false, 0.0, 0.0);
-               
-               DataCollectionForm.getInstance().getRowData().add(newRow);
-               
-               DataCollectionForm.getInstance().fireRowAdded();
-                                           
-               ij.IJ.showStatus("Assembling jitter corrected dataset...");
-               ij.IJ.showProgress(1);
-               
-               List<SpotData> correctedData = new ArrayList<SpotData>();
-               Iterator it = rowData.spotList_.iterator();
-               
-               int testNr = 0;
-               StageMovementData smd = stagePosMA.get(0);
-               int counter = 0;
-               while (it.hasNext()) {
-                  counter++;
-                  SpotData gs = (SpotData) it.next();
-                  int test;
-                  if (useSlices) {
-                     test = gs.getSlice();
-                  } else {
-                     test = gs.getFrame();
-                  }
-                  if (test != testNr) {
-                     testNr = test - 1;
-                  }
-                  boolean found = false;
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-                  if (!found) {
-                     for (int i = 0; i < stagePosMA.size() && !found; i++) {
-                        smd = stagePosMA.get(i);
-                        if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                           found = true;
-                        }
-                     }
-                  }
-                  if (found) {
-                     Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                             gs.getYCenter() - smd.pos_.y);
-                     SpotData gsn = new SpotData(gs);
-                     gsn.setXCenter(point.x);
-                     gsn.setYCenter(point.y);
-                     correctedData.add(gsn);
-                  } else {
-                     correctedData.add(gs);
-                  }
-                  
-                  
-               }
-
-               // Add transformed data to data overview window
-               DataCollectionForm.getInstance().addSpotData(
-                       rowData.name_ + "-Jitter-Correct", rowData.title_, "", 
-                       rowData.width_, rowData.height_, rowData.pixelSizeNm_, 
-                       rowData.zStackStepSizeNm_, rowData.shape_, 
-                       rowData.halfSize_, rowData.nrChannels_, rowData.nrFrames_,
-                       rowData.nrSlices_, 1, rowData.maxNrSpots_, correctedData,
-                       null, false, Coordinates.NM, false, 0.0, 0.0);
-               
-               ij.IJ.showStatus("Finished jitter correction");
-            } catch (OutOfMemoryError oom) {
-              System.gc();
-              ij.IJ.error("Out of Memory");
-            }
+            correctDrift(rowData, framesToCombine, Integer.MAX_VALUE, 
+                    windowSize);
          }
       };
 
@@ -368,140 +78,164 @@ public class DriftCorrector {
 
    
    /**
-    * I do not remember what the difference is with the other unjitter method...
-    * @param rowData
-    * @param maxFrames
-    * @param maxSpots 
+    * Creates a new data set that is corrected for drift.
+    * 
+    * Frames (or slices when there is only a single frame) are combined into 
+    * time bins holding at most maxFrames frames and maxSpots spots.  Every 
+    * bin is rendered into a 2D scattergram and cross-correlated with the 
+    * first bin (using FFTs), the position of the correlation peak is 
+    * determined with sub-pixel precision by a Gaussian fit.  Bins are 
+    * processed in parallel.  The drift of each frame is linearly 
+    * interpolated between the centers of the bins, and subtracted from the 
+    * spot positions in a single pass over a copy of the spot store.
+    * 
+    * @param rowData - dataset to be corrected
+    * @param maxFrames - maximum number of frames combined into one bin
+    * @param maxSpots - maximum number of spots combined into one bin
     */
    public void unJitter2(final RowData rowData, int maxFrames, int maxSpots) {
-
-      // TODO: instead of a fixed number of frames, go for a certain number of spots
-      // Number of frames could be limited as well
-      final int maxNrFrames = maxFrames;
-      final int maxNrSpots = maxSpots;
+      correctDrift(rowData, maxFrames, maxSpots, 1);
+   }
+   
+   /**
+    * Drift correction shared by unJitter and unJitter2.  When windowSize is
+    * larger than 1, the drift of the bins is smoothed with a centered moving
+    * average over that many bins before it is interpolated.
+    */
+   private static void correctDrift(final RowData rowData, int maxFrames, 
+           int maxSpots, int windowSize) {
 
       if (rowData.spotList_.size() <= 1) {
          return;
       }
       
       ij.IJ.showStatus("Executing jitter correction");
+      long startTime = System.currentTimeMillis();
 
       int mag = (int) (rowData.pixelSizeNm_ / 40.0);
       while (mag % 2 != 0) {
          mag += 1;
       }
 
-      int width = mag * rowData.width_;
-      int height = mag * rowData.height_;
+      final int width = mag * rowData.width_;
+      final int height = mag * rowData.height_;
+      // The FHT needs a square image with a size that is a power of 2,
+      // pad with zeroes when needed
+      final int fhtSize = FFTUtils.nextPowerOf2(Math.max(width, height));
+      final double factor = (double) mag / rowData.pixelSizeNm_;
+
+      final SpotStore spots = rowData.spotList_;
+      final int nrSpots = spots.size();
+      final boolean useSlices = rowData.nrFrames_ <= 1;
+      int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
+      for (int i = 0; i < nrSpots; i++) {
+         nrImages = Math.max(nrImages, 
+                 useSlices ? spots.getSlice(i) : spots.getFrame(i));
+      }
 
-      int size = width * height;
+      // number of spots in each (0-based) frame
+      int[] spotsPerFrame = new int[nrImages];
+      for (int i = 0; i < nrSpots; i++) {
+         int frame = frameOf(spots, i, useSlices);
+         if (frame >= 0) {
+            spotsPerFrame[frame]++;
+         }
+      }
 
-      // TODO: add 0 padding to deal with aberrant image sizes
-      if ((width != height) || ((width & (width - 1)) != 0)) {
-         JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
-                 "Magnified image is not a square with a size that is a power of 2");
-         ij.IJ.showStatus(" ");
+      // divide the frames into bins
+      List<Point> binRanges = new ArrayList<Point>();
+      int[] binOfFrame = new int[nrImages];
+      int frameNr = 0;
+      while (frameNr < nrImages) {
+         int firstFrame = frameNr;
+         int spotNr = 0;
+         while (spotNr < maxSpots && frameNr - firstFrame < maxFrames 
+                 && frameNr < nrImages) {
+            binOfFrame[frameNr] = binRanges.size();
+            spotNr += spotsPerFrame[frameNr];
+            frameNr++;
+         }
+         binRanges.add(new Point(firstFrame, frameNr - 1));
+      }
+      final int nrBins = binRanges.size();
+      if (nrBins < 2) {
+         ij.IJ.showStatus("Not enough frames for jitter correction");
          return;
       }
 
-      // TODO: what if we should go through nrSlices instead of nrFrames?
-      boolean useSlices = false;
-      //int nrOfTests = rowData.nrFrames_ / framesToCombine;
-      if (rowData.nrFrames_ <= 1) {
-         useSlices = true;
+      // sort the spot indices by bin, so that each bin can be rendered 
+      // without going through the whole dataset
+      final int[] binStart = new int[nrBins + 1];
+      for (int frame = 0; frame < nrImages; frame++) {
+         binStart[binOfFrame[frame] + 1] += spotsPerFrame[frame];
       }
-      final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
-
-      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-
-      double factor = (double) mag / rowData.pixelSizeNm_;
-           
-      // Assemble the reference image (the first one)
-      ImageProcessor ipRef = new ByteProcessor(width, height);
-      byte[] pixelsRef = new byte[width * height];
-      ipRef.setPixels(pixelsRef);
-
-      if (rowData.frameIndexSpotList_ == null) {
-         rowData.index();
+      for (int bin = 0; bin < nrBins; bin++) {
+         binStart[bin + 1] += binStart[bin];
       }
-      int spotNr = 0;
-      int frameNr = 0;
-      while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<SpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
-         if (frameSpots != null) {
-            for (SpotData spot: frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
-               }
-               spotNr++;
-            }
+      final int[] spotIndices = new int[binStart[nrBins]];
+      int[] next = new int[nrBins];
+      System.arraycopy(binStart, 0, next, 0, nrBins);
+      for (int i = 0; i < nrSpots; i++) {
+         int frame = frameOf(spots, i, useSlices);
+         if (frame >= 0) {
+            spotIndices[next[binOfFrame[frame]]++] = i;
          }
-         frameNr++;
       }
 
-      JitterDetector jd = new JitterDetector(ipRef);
-
-      Point2D.Double fp = new Point2D.Double(0.0, 0.0);
+      // the first bin is the reference
+      ImageProcessor ipRef = renderBin(spots, spotIndices, binStart[0], 
+              binStart[1], factor, width, height, fhtSize);
+      final JitterDetector jd = new JitterDetector(ipRef);
+      final Point2D.Double fp = new Point2D.Double(0.0, 0.0);
       jd.getJitter(ipRef, fp);
-
-      
-      // Assemble images for all subsequent frames and calculate cross-correlation with the first image
-      Point2D.Double com = new Point2D.Double(0.0, 0.0);
-      ImageProcessor ipTest = new ByteProcessor(width, height);
-      byte[] pixelsTest = new byte[width * height];
-      ipTest.setPixels(pixelsTest);
-
-      int estimatedNrTests;
-      int testNr = 1;
-
-      while (frameNr < nrImages) {
-         estimatedNrTests = nrImages / (frameNr / testNr) + 1;
-         ij.IJ.showStatus("Executing jitter correction..." + testNr
-                 + "/" + estimatedNrTests);
-         ij.IJ.showProgress(testNr, estimatedNrTests);
-         for (int p = 0; p < size; p++) {
-            ipTest.set(p, 0);
-         }
-
-         int tmpFrameNr = 0;
-         spotNr = 0;
-
-         while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
-            List<SpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr); 
-            if (frameSpots != null) {
-               for (SpotData spot : frameSpots) {
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixelsTest[index] != -1) {
-                        pixelsTest[index] += 1;
-                     }
-                  }
-                  spotNr++;
-               }
+      ipRef = null;
+
+      // cross-correlate all other bins with the reference
+      Point2D.Double[] drift = new Point2D.Double[nrBins];
+      drift[0] = new Point2D.Double(0.0, 0.0);
+      int nrThreads = nrCorrelationThreads(fhtSize, nrBins - 1);
+      ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+      List<Future<Point2D.Double>> results = 
+              new ArrayList<Future<Point2D.Double>>();
+      for (int bin = 1; bin < nrBins; bin++) {
+         final int start = binStart[bin];
+         final int end = binStart[bin + 1];
+         results.add(pool.submit(new Callable<Point2D.Double>() {
+            @Override
+            public Point2D.Double call() {
+               ImageProcessor ipTest = renderBin(spots, spotIndices, start, 
+                       end, factor, width, height, fhtSize);
+               Point2D.Double com = new Point2D.Double(0.0, 0.0);
+               jd.getJitter(ipTest, com);
+               return new Point2D.Double((fp.x - com.x) / factor, 
+                       (fp.y - com.y) / factor);
             }
-            tmpFrameNr++;
-            frameNr++;
+         }));
+      }
+      try {
+         for (int bin = 1; bin < nrBins; bin++) {
+            drift[bin] = results.get(bin - 1).get();
+            ij.IJ.showStatus("Executing jitter correction..." + bin + "/" 
+                    + (nrBins - 1));
+            ij.IJ.showProgress(bin, nrBins - 1);
          }
-
-         jd.getJitter(ipTest, com);
-         double x = (fp.x - com.x) / factor;
-         double y = (fp.y - com.y) / factor;
-         if (rowData.timePoints_ != null) {
-            rowData.timePoints_.get(frameNr);
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return;
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof OutOfMemoryError) {
+            System.gc();
+            ij.IJ.error("Out of Memory");
+            return;
          }
-         stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                 new Point(frameNr - tmpFrameNr, frameNr - 1)));
-         System.out.println("X: " + x + " Y: " + y);
-         testNr++;
+         ReportingUtils.showError(ee.getCause(), "Error during jitter correction");
+         return;
+      } finally {
+         pool.shutdownNow();
+      }
+      if (windowSize > 1) {
+         drift = movingAverage(drift, windowSize);
       }
-
 
       // Assemble stage movement data into a track
       try {
@@ -510,20 +244,22 @@ public class DriftCorrector {
          sm.setData(0, 0, 0, 0, 0.0, 0, 0, 0, 0);
          stageMovementData.add(sm);
 
-         //stagePos = movingAverage(stagePos, 5);
-
-         for (int i = 0; i < stagePos.size(); i++) {
-            StageMovementData smd = stagePos.get(i);
+         for (int i = 1; i < nrBins; i++) {
             SpotData s =
-                    new SpotData(null, 1, 1, i + 2, 1, 1, 1, 1);
-            s.setData(0, 0, smd.pos_.x, smd.pos_.y, 0.0, 0, 0, 0, 0);
+                    new SpotData(null, 1, 1, i + 1, 1, 1, 1, 1);
+            s.setData(0, 0, drift[i].x, drift[i].y, 0.0, 0, 0, 0, 0);
             stageMovementData.add(s);
          }
 
-
-         // Add stage movement data to overview window
-         // First try to copy the time points
+         // time point of the first frame of each bin
          ArrayList<Double> timePoints = null;
+         if (rowData.timePoints_ != null 
+                 && rowData.timePoints_.size() >= nrImages) {
+            timePoints = new ArrayList<Double>();
+            for (Point range : binRanges) {
+               timePoints.add(rowData.timePoints_.get(range.x));
+            }
+         }
 
          RowData newRow = new RowData(
                  rowData.name_ + "-Jitter", rowData.title_, "", rowData.width_,
@@ -538,43 +274,34 @@ public class DriftCorrector {
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
          ij.IJ.showProgress(1);
 
-         List<SpotData> correctedData = new ArrayList<SpotData>();
-         Iterator it = rowData.spotList_.iterator();
-
-         testNr = 0;
-         StageMovementData smd = stagePos.get(0);
-         while (it.hasNext()) {
-            SpotData gs = (SpotData) it.next();
-            int test;
-            if (useSlices) {
-               test = gs.getSlice();
-            } else {
-               test = gs.getFrame();
-            }
-            if (test != testNr) {
-               testNr = test - 1;
-            }
-            boolean found = false;
-            if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-               found = true;
-            }
-            if (!found) {
-               for (int i = 0; i < stagePos.size() && !found; i++) {
-                  smd = stagePos.get(i);
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-               }
+         // drift for every frame, interpolated between the bin centers
+         double[] binCenters = new double[nrBins];
+         for (int bin = 0; bin < nrBins; bin++) {
+            Point range = binRanges.get(bin);
+            binCenters[bin] = (range.x + range.y) / 2.0;
+         }
+         double[] xDrift = new double[nrImages];
+         double[] yDrift = new double[nrImages];
+         int bin = 0;
+         for (int frame = 0; frame < nrImages; frame++) {
+            while (bin < nrBins - 2 && frame > binCenters[bin + 1]) {
+               bin++;
             }
-            if (found) {
-               Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                       gs.getYCenter() - smd.pos_.y);
-               SpotData gsn = new SpotData(gs);
-               gsn.setXCenter(point.x);
-               gsn.setYCenter(point.y);
-               correctedData.add(gsn);
-            } else {
-               correctedData.add(gs);
+            double fraction = (frame - binCenters[bin]) 
+                    / (binCenters[bin + 1] - binCenters[bin]);
+            fraction = Math.max(0.0, Math.min(1.0, fraction));
+            xDrift[frame] = drift[bin].x 
+                    + fraction * (drift[bin + 1].x - drift[bin].x);
+            yDrift[frame] = drift[bin].y 
+                    + fraction * (drift[bin + 1].y - drift[bin].y);
+         }
+
+         SpotStore correctedData = new SpotStore(spots);
+         for (int i = 0; i < nrSpots; i++) {
+            int frame = frameOf(correctedData, i, useSlices);
+            if (frame >= 0) {
+               correctedData.setXCenter(i, correctedData.getXCenter(i) - xDrift[frame]);
+               correctedData.setYCenter(i, correctedData.getYCenter(i) - yDrift[frame]);
             }
          }
 
@@ -586,13 +313,86 @@ public class DriftCorrector {
                  rowData.nrFrames_, rowData.nrSlices_, 1, rowData.maxNrSpots_, 
                  correctedData, null, false, Coordinates.NM, rowData.hasZ_, 
                  rowData.minZ_, rowData.maxZ_);
-         ij.IJ.showStatus("Finished jitter correction");
+         ij.IJ.showStatus("Finished jitter correction of " + nrBins + " bins in " 
+                 + (System.currentTimeMillis() - startTime) + " ms");
       } catch (OutOfMemoryError oom) {
          System.gc();
          ij.IJ.error("Out of Memory");
       }
    }
 
-   
+   /**
+    * Centered moving average of the drift of the bins, the window is 
+    * truncated at the first and last bin.  The result is relative to the 
+    * first bin, which stays the reference.
+    */
+   private static Point2D.Double[] movingAverage(Point2D.Double[] drift, 
+           int windowSize) {
+      Point2D.Double[] smoothed = new Point2D.Double[drift.length];
+      int half = windowSize / 2;
+      for (int i = 0; i < drift.length; i++) {
+         int first = Math.max(0, i - half);
+         int last = Math.min(drift.length - 1, i + half);
+         smoothed[i] = new Point2D.Double(0.0, 0.0);
+         for (int j = first; j <= last; j++) {
+            smoothed[i].x += drift[j].x;
+            smoothed[i].y += drift[j].y;
+         }
+         smoothed[i].x /= (last - first + 1);
+         smoothed[i].y /= (last - first + 1);
+      }
+      for (int i = drift.length - 1; i >= 0; i--) {
+         smoothed[i].x -= smoothed[0].x;
+         smoothed[i].y -= smoothed[0].y;
+      }
+      return smoothed;
+   }
+
+   /**
+    * @return 0-based frame (or slice) of the spot at the given index, 
+    * or -1 when the spot has no valid frame
+    */
+   private static int frameOf(SpotStore spots, int index, boolean useSlices) {
+      return (useSlices ? spots.getSlice(index) : spots.getFrame(index)) - 1;
+   }
+
+   /**
+    * Renders the spots spotIndices[start] to spotIndices[end - 1] into a 
+    * square 2D scattergram of fhtSize by fhtSize pixels.  Only the top left
+    * width by height pixels are used, the remainder is zero padding.
+    */
+   private static ImageProcessor renderBin(SpotStore spots, int[] spotIndices,
+           int start, int end, double factor, int width, int height, 
+           int fhtSize) {
+      byte[] pixels = new byte[fhtSize * fhtSize];
+      for (int i = start; i < end; i++) {
+         int spot = spotIndices[i];
+         int x = (int) (factor * spots.getXCenter(spot));
+         int y = (int) (factor * spots.getYCenter(spot));
+         if (x >= 0 && x < width && y >= 0 && y < height) {
+            int index = (y * fhtSize) + x;
+            if (pixels[index] != -1) {
+               pixels[index] += 1;
+            }
+         }
+      }
+      ImageProcessor ip = new ByteProcessor(fhtSize, fhtSize);
+      ip.setPixels(pixels);
+      return ip;
+   }
+
+   /**
+    * Every correlation needs a scattergram and several float images of 
+    * fhtSize by fhtSize pixels, so fewer threads are used when these would 
+    * not fit in the available memory.
+    */
+   private static int nrCorrelationThreads(int fhtSize, int nrBins) {
+      Runtime rt = Runtime.getRuntime();
+      long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      long bytesPerThread = 16L * fhtSize * fhtSize;
+      long nrThreads = Math.min(ij.Prefs.getThreads(), available / bytesPerThread);
+      nrThreads = Math.min(nrThreads, nrBins);
+      return (int) Math.max(1, nrThreads);
+   }
 
 }
@@ -0,0 +1,353 @@
+package edu.valelab.gaussianfit.fitting;
+
+import edu.valelab.gaussianfit.utils.GaussianUtils;
+
+/**
+ * Levenberg-Marquardt fitter specialized for the 2D Gaussian models in
+ * GaussianUtils (gaussian, gaussian2DXY and gaussian2DEllips).
+ *
+ * Derivatives are calculated in closed form, and the normal equations are
+ * accumulated pixel by pixel, so the Jacobian is never stored.  For the
+ * symmetric and astigmatic models the exponential is separable and is
+ * evaluated once per row and once per column instead of once per pixel.
+ * All work arrays are allocated once (or grown when a larger box is
+ * encountered), so an instance should be re-used for many spots, but can
+ * not be shared between threads.
+ *
+ * Two estimators are available: least squares, and maximum likelihood
+ * for Poisson distributed pixel values (Laurence and Chromy, Nature
+ * Methods 7, 2010).
+ */
+public class GaussianLMFitter {
+   private static final int INT = GaussianUtils.INT;
+   private static final int BGR = GaussianUtils.BGR;
+   private static final int XC = GaussianUtils.XC;
+   private static final int YC = GaussianUtils.YC;
+   private static final int S = GaussianUtils.S;
+   private static final int S1 = GaussianUtils.S1;
+   private static final int S2 = GaussianUtils.S2;
+   private static final int S3 = GaussianUtils.S3;
+
+   private static final double RELATIVE_TOLERANCE = 1e-7;
+   // in pixels
+   private static final double POSITION_TOLERANCE = 1e-3;
+   private static final double INITIAL_LAMBDA = 1e-3;
+   private static final double MAX_LAMBDA = 1e10;
+
+   private final int mode_;
+   private final boolean mle_;
+   private final int nParams_;
+
+   // work space
+   private final double[] params_;
+   private final double[] trial_;
+   private double[] gradient_;
+   private double[] hessian_;
+   private double[] trialGradient_;
+   private double[] trialHessian_;
+   private final double[] system_;
+   private final double[] delta_;
+   private final double[] jacobian_;
+   private double[] data_ = new double[0];
+   private double[] gx_ = new double[0];
+   private double[] gy_ = new double[0];
+
+   /**
+    * @param mode - 1: symmetric Gaussian, 2: sigma x and sigma y,
+    *               3: ellipse with varying angle
+    * @param mle - use maximum likelihood (Poisson) rather than least squares
+    */
+   public GaussianLMFitter(int mode, boolean mle) {
+      mode_ = mode;
+      mle_ = mle;
+      nParams_ = mode + 4;
+      params_ = new double[nParams_];
+      trial_ = new double[nParams_];
+      gradient_ = new double[nParams_];
+      hessian_ = new double[nParams_ * nParams_];
+      trialGradient_ = new double[nParams_];
+      trialHessian_ = new double[nParams_ * nParams_];
+      system_ = new double[nParams_ * nParams_];
+      delta_ = new double[nParams_];
+      jacobian_ = new double[nParams_];
+   }
+
+   /**
+    * Fits the model to the image.
+    *
+    * @param pixels - image data, interpreted as unsigned
+    * @param width - image width
+    * @param height - image height
+    * @param start - initial estimate of the parameters, not modified
+    * @param maxIterations - maximum number of Levenberg-Marquardt iterations
+    * @return fitted parameters (in the order used by GaussianUtils), or
+    *         null if the fit did not produce a valid result
+    */
+   public double[] fit(short[] pixels, int width, int height, double[] start,
+           int maxIterations) {
+      int n = width * height;
+      if (data_.length < n) {
+         data_ = new double[n];
+      }
+      if (gx_.length < width) {
+         gx_ = new double[width];
+      }
+      if (gy_.length < height) {
+         gy_ = new double[height];
+      }
+      for (int i = 0; i < n; i++) {
+         data_[i] = pixels[i] & 0xffff;
+      }
+      System.arraycopy(start, 0, params_, 0, nParams_);
+      if (mle_ && params_[BGR] <= 0) {
+         params_[BGR] = 1.0;
+      }
+
+      double cost = accumulate(params_, width, height, gradient_, hessian_);
+      if (Double.isNaN(cost) || Double.isInfinite(cost)) {
+         return null;
+      }
+      double lambda = INITIAL_LAMBDA;
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         boolean improved = false;
+         while (!improved && lambda < MAX_LAMBDA) {
+            for (int k = 0; k < nParams_ * nParams_; k++) {
+               system_[k] = hessian_[k];
+            }
+            for (int k = 0; k < nParams_; k++) {
+               system_[k * nParams_ + k] *= (1.0 + lambda);
+            }
+            if (!solve()) {
+               lambda *= 10;
+               continue;
+            }
+            for (int k = 0; k < nParams_; k++) {
+               trial_[k] = params_[k] + delta_[k];
+            }
+            double trialCost = valid(trial_, width, height)
+                    ? accumulate(trial_, width, height, trialGradient_, trialHessian_)
+                    : Double.POSITIVE_INFINITY;
+            if (trialCost < cost) {
+               improved = true;
+               double change = (cost - trialCost) / Math.max(Math.abs(cost), 1e-30);
+               System.arraycopy(trial_, 0, params_, 0, nParams_);
+               cost = trialCost;
+               double[] tmp = gradient_;
+               gradient_ = trialGradient_;
+               trialGradient_ = tmp;
+               tmp = hessian_;
+               hessian_ = trialHessian_;
+               trialHessian_ = tmp;
+               lambda = Math.max(lambda / 10, 1e-12);
+               if (change < RELATIVE_TOLERANCE
+                       || (Math.abs(delta_[XC]) < POSITION_TOLERANCE
+                       && Math.abs(delta_[YC]) < POSITION_TOLERANCE)) {
+                  return result();
+               }
+            } else {
+               lambda *= 10;
+            }
+         }
+         if (!improved) {
+            // no step reduces the cost any further: converged
+            return result();
+         }
+      }
+      return result();
+   }
+
+   private double[] result() {
+      for (int k = 0; k < nParams_; k++) {
+         if (Double.isNaN(params_[k]) || Double.isInfinite(params_[k])) {
+            return null;
+         }
+      }
+      double[] result = new double[nParams_];
+      System.arraycopy(params_, 0, result, 0, nParams_);
+      return result;
+   }
+
+   /**
+    * Steps that move the center out of the box, make the spot wider than 
+    * the box or make the amplitude negative are rejected, which keeps the 
+    * fit from running away on noisy data.
+    */
+   private boolean valid(double[] p, int width, int height) {
+      if (p[INT] <= 0) {
+         return false;
+      }
+      if (p[XC] < 0 || p[XC] > width - 1 || p[YC] < 0 || p[YC] > height - 1) {
+         return false;
+      }
+      double maxSigma = Math.max(width, height);
+      if (mode_ == 1) {
+         return p[S] != 0 && Math.abs(p[S]) < maxSigma;
+      }
+      if (mode_ == 2) {
+         return p[S1] != 0 && p[S2] != 0 
+                 && Math.abs(p[S1]) < maxSigma && Math.abs(p[S2]) < maxSigma;
+      }
+      // the ellipse needs to be positive definite
+      return p[S1] > 0 && p[S3] > 0 && p[S1] * p[S3] - p[S2] * p[S2] > 0;
+   }
+
+   /**
+    * Calculates the cost, the gradient and the (approximate) Hessian for the 
+    * given parameters.  Returns infinity when the model is not positive 
+    * while using MLE.
+    */
+   private double accumulate(double[] p, int width, int height,
+           double[] gradient, double[] hessian) {
+      final int np = nParams_;
+      for (int k = 0; k < np; k++) {
+         gradient[k] = 0.0;
+      }
+      for (int k = 0; k < np * np; k++) {
+         hessian[k] = 0.0;
+      }
+      final double amplitude = p[INT];
+      final double background = p[BGR];
+      final double xc = p[XC];
+      final double yc = p[YC];
+      double sx = 0.0;
+      double sy = 0.0;
+      if (mode_ == 1) {
+         sx = p[S];
+         sy = p[S];
+      } else if (mode_ == 2) {
+         sx = p[S1];
+         sy = p[S2];
+      }
+      if (mode_ < 3) {
+         double twoSx2 = 2 * sx * sx;
+         double twoSy2 = 2 * sy * sy;
+         for (int x = 0; x < width; x++) {
+            double dx = x - xc;
+            gx_[x] = Math.exp(-dx * dx / twoSx2);
+         }
+         for (int y = 0; y < height; y++) {
+            double dy = y - yc;
+            gy_[y] = Math.exp(-dy * dy / twoSy2);
+         }
+      }
+      final double sx2 = sx * sx;
+      final double sy2 = sy * sy;
+      final double sx3 = sx2 * sx;
+      final double sy3 = sy2 * sy;
+
+      double cost = 0.0;
+      int i = 0;
+      for (int y = 0; y < height; y++) {
+         final double dy = y - yc;
+         for (int x = 0; x < width; x++, i++) {
+            final double dx = x - xc;
+            double e;
+            if (mode_ < 3) {
+               e = gx_[x] * gy_[y];
+            } else {
+               e = Math.exp(-(p[S1] * dx * dx + p[S3] * dy * dy
+                       + 2.0 * p[S2] * dx * dy) / 2.0);
+            }
+            final double q = amplitude * e;
+            final double f = q + background;
+            final double d = data_[i];
+            double weight;
+            double residual;
+            if (mle_) {
+               if (f <= 0) {
+                  return Double.POSITIVE_INFINITY;
+               }
+               // twice the negative log likelihood ratio
+               cost += 2 * (f - d);
+               if (d > 0) {
+                  cost += 2 * d * Math.log(d / f);
+               }
+               residual = d / f - 1.0;
+               weight = d / (f * f);
+            } else {
+               residual = d - f;
+               cost += residual * residual;
+               weight = 1.0;
+            }
+            final double[] j = jacobian_;
+            j[INT] = e;
+            j[BGR] = 1.0;
+            if (mode_ == 1) {
+               j[XC] = dx * q / sx2;
+               j[YC] = dy * q / sx2;
+               j[S] = (dx * dx + dy * dy) * q / sx3;
+            } else if (mode_ == 2) {
+               j[XC] = dx * q / sx2;
+               j[YC] = dy * q / sy2;
+               j[S1] = dx * dx * q / sx3;
+               j[S2] = dy * dy * q / sy3;
+            } else {
+               j[XC] = (p[S1] * dx + p[S2] * dy) * q;
+               j[YC] = (p[S2] * dx + p[S3] * dy) * q;
+               j[S1] = -0.5 * dx * dx * q;
+               j[S2] = -dx * dy * q;
+               j[S3] = -0.5 * dy * dy * q;
+            }
+            for (int k = 0; k < np; k++) {
+               final double jk = j[k];
+               gradient[k] += residual * jk;
+               final double wjk = weight * jk;
+               final int row = k * np;
+               for (int l = 0; l <= k; l++) {
+                  hessian[row + l] += wjk * j[l];
+               }
+            }
+         }
+      }
+      for (int k = 0; k < np; k++) {
+         for (int l = k + 1; l < np; l++) {
+            hessian[k * np + l] = hessian[l * np + k];
+         }
+      }
+      return cost;
+   }
+
+   /**
+    * Solves system_ * delta_ = gradient_ by Cholesky decomposition.
+    * system_ is overwritten.
+    * @return false if system_ is not positive definite
+    */
+   private boolean solve() {
+      final int np = nParams_;
+      final double[] a = system_;
+      for (int k = 0; k < np; k++) {
+         for (int l = 0; l <= k; l++) {
+            double sum = a[k * np + l];
+            for (int m = 0; m < l; m++) {
+               sum -= a[k * np + m] * a[l * np + m];
+            }
+            if (k == l) {
+               if (!(sum > 0)) {
+                  return false;
+               }
+               a[k * np + k] = Math.sqrt(sum);
+            } else {
+               a[k * np + l] = sum / a[l * np + l];
+            }
+         }
+      }
+      // forward substitution
+      for (int k = 0; k < np; k++) {
+         double sum = gradient_[k];
+         for (int m = 0; m < k; m++) {
+            sum -= a[k * np + m] * delta_[m];
+         }
+         delta_[k] = sum / a[k * np + k];
+      }
+      // back substitution
+      for (int k = np - 1; k >= 0; k--) {
+         double sum = delta_[k];
+         for (int m = k + 1; m < np; m++) {
+            sum -= a[m * np + k] * delta_[m];
+         }
+         delta_[k] = sum / a[k * np + k];
+      }
+      return true;
+   }
+
+}
@@ -0,0 +1,87 @@
+package edu.valelab.gaussianfit.spotoperations;
+
+import java.util.Arrays;
+
+/**
+ * Solves the linear assignment problem (minimal total cost matching of rows
+ * to columns) using the Hungarian algorithm with potentials, which runs in
+ * O(rows^2 * columns).
+ *
+ * The cost matrix may be rectangular, but needs at least as many columns
+ * as rows.  Every row is assigned to a different column.
+ */
+public class LinearAssignment {
+
+   /**
+    * @param cost - cost[row][column], all rows of equal length and
+    *               cost.length <= cost[0].length
+    * @return for every row the index of the column it is assigned to
+    */
+   public static int[] solve(double[][] cost) {
+      final int n = cost.length;
+      if (n == 0) {
+         return new int[0];
+      }
+      final int m = cost[0].length;
+      if (m < n) {
+         throw new IllegalArgumentException(
+                 "Cost matrix needs at least as many columns as rows");
+      }
+      // arrays are 1-based, index 0 is used as a sentinel
+      double[] u = new double[n + 1];
+      double[] v = new double[m + 1];
+      int[] p = new int[m + 1];      // row assigned to each column
+      int[] way = new int[m + 1];
+      double[] minv = new double[m + 1];
+      boolean[] used = new boolean[m + 1];
+
+      for (int i = 1; i <= n; i++) {
+         p[0] = i;
+         int j0 = 0;
+         Arrays.fill(minv, Double.POSITIVE_INFINITY);
+         Arrays.fill(used, false);
+         do {
+            used[j0] = true;
+            int i0 = p[j0];
+            double delta = Double.POSITIVE_INFINITY;
+            int j1 = 0;
+            for (int j = 1; j <= m; j++) {
+               if (!used[j]) {
+                  double cur = cost[i0 - 1][j - 1] - u[i0] - v[j];
+                  if (cur < minv[j]) {
+                     minv[j] = cur;
+                     way[j] = j0;
+                  }
+                  if (minv[j] < delta) {
+                     delta = minv[j];
+                     j1 = j;
+                  }
+               }
+            }
+            for (int j = 0; j <= m; j++) {
+               if (used[j]) {
+                  u[p[j]] += delta;
+                  v[j] -= delta;
+               } else {
+                  minv[j] -= delta;
+               }
+            }
+            j0 = j1;
+         } while (p[j0] != 0);
+         do {
+            int j1 = way[j0];
+            p[j0] = p[j1];
+            j0 = j1;
+         } while (j0 != 0);
+      }
+
+      int[] assignment = new int[n];
+      for (int j = 1; j <= m; j++) {
+         if (p[j] != 0) {
+            assignment[p[j] - 1] = j - 1;
+         }
+      }
+      return assignment;
+   }
+
+}
@@ -0,0 +1,168 @@
+package edu.valelab.gaussianfit.spotoperations;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid used to look up points within a fixed distance.
+ *
+ * The grid is meant to be re-used: build() can be called for every frame
+ * and only allocates when a frame has more points or covers more cells than
+ * any frame before it.  Points are stored by index, so no objects are
+ * created per point.
+ */
+public class SpotGrid {
+   private final double maxDistance_;
+   private final double maxDistanceSquared_;
+   private double cellSize_;
+   private double minX_;
+   private double minY_;
+   private int nrCols_;
+   private int nrRows_;
+   private int searchRange_;
+   private double[] x_;
+   private double[] y_;
+   private int[] head_ = new int[0];   // first point in each cell, or -1
+   private int[] next_ = new int[0];   // next point in the same cell, or -1
+   private int[] hits_ = new int[16];
+   private int nrHits_;
+
+   /**
+    * @param maxDistance - points farther away than this are never returned
+    */
+   public SpotGrid(double maxDistance) {
+      maxDistance_ = maxDistance;
+      maxDistanceSquared_ = maxDistance * maxDistance;
+   }
+
+   /**
+    * Indexes the first n points given by x and y.  The arrays are not copied
+    * and should not be changed while the grid is in use.
+    * @param x
+    * @param y
+    * @param n
+    */
+   public void build(double[] x, double[] y, int n) {
+      x_ = x;
+      y_ = y;
+      if (n == 0) {
+         nrCols_ = 0;
+         nrRows_ = 0;
+         return;
+      }
+      double minX = x[0];
+      double maxX = x[0];
+      double minY = y[0];
+      double maxY = y[0];
+      for (int i = 1; i < n; i++) {
+         minX = Math.min(minX, x[i]);
+         maxX = Math.max(maxX, x[i]);
+         minY = Math.min(minY, y[i]);
+         maxY = Math.max(maxY, y[i]);
+      }
+      // use cells of maxDistance, but never more than about 4 cells per point
+      double cellSize = maxDistance_ > 0 ? maxDistance_ : 1.0;
+      double area = Math.max(maxX - minX, cellSize) * Math.max(maxY - minY, cellSize);
+      if (area / (cellSize * cellSize) > 4.0 * n) {
+         cellSize = Math.sqrt(area / (4.0 * n));
+      }
+      cellSize_ = cellSize;
+      minX_ = minX;
+      minY_ = minY;
+      nrCols_ = (int) ((maxX - minX) / cellSize) + 1;
+      nrRows_ = (int) ((maxY - minY) / cellSize) + 1;
+      searchRange_ = (int) Math.ceil(maxDistance_ / cellSize);
+
+      int nrCells = nrCols_ * nrRows_;
+      if (head_.length < nrCells) {
+         head_ = new int[nrCells];
+      }
+      Arrays.fill(head_, 0, nrCells, -1);
+      if (next_.length < n) {
+         next_ = new int[n];
+      }
+      // insert in reverse so that each cell lists its points in order
+      for (int i = n - 1; i >= 0; i--) {
+         int cell = cellRow(y[i]) * nrCols_ + cellCol(x[i]);
+         next_[i] = head_[cell];
+         head_[cell] = i;
+      }
+   }
+
+   /**
+    * Finds the point closest to (px, py)
+    * @param px
+    * @param py
+    * @return index of the closest point, or -1 if none lies within
+    *         maxDistance
+    */
+   public int nearest(double px, double py) {
+      int best = -1;
+      double bestDistance = maxDistanceSquared_;
+      int nr = within(px, py);
+      for (int h = 0; h < nr; h++) {
+         int i = hits_[h];
+         double d = distanceSquared(i, px, py);
+         if (d < bestDistance) {
+            bestDistance = d;
+            best = i;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Finds all points closer than maxDistance to (px, py).  The indices of
+    * the points found can be retrieved with hit().
+    * @param px
+    * @param py
+    * @return number of points found
+    */
+   public int within(double px, double py) {
+      nrHits_ = 0;
+      if (nrCols_ == 0) {
+         return 0;
+      }
+      int col = (int) Math.floor((px - minX_) / cellSize_);
+      int row = (int) Math.floor((py - minY_) / cellSize_);
+      int colStart = Math.max(0, col - searchRange_);
+      int colEnd = Math.min(nrCols_ - 1, col + searchRange_);
+      int rowStart = Math.max(0, row - searchRange_);
+      int rowEnd = Math.min(nrRows_ - 1, row + searchRange_);
+      for (int r = rowStart; r <= rowEnd; r++) {
+         for (int c = colStart; c <= colEnd; c++) {
+            for (int i = head_[r * nrCols_ + c]; i >= 0; i = next_[i]) {
+               if (distanceSquared(i, px, py) < maxDistanceSquared_) {
+                  if (nrHits_ == hits_.length) {
+                     hits_ = Arrays.copyOf(hits_, 2 * nrHits_);
+                  }
+                  hits_[nrHits_++] = i;
+               }
+            }
+         }
+      }
+      return nrHits_;
+   }
+
+   /**
+    * @param h - number between 0 and the value returned by within()
+    * @return index of the point
+    */
+   public int hit(int h) {
+      return hits_[h];
+   }
+
+   public double distanceSquared(int i, double px, double py) {
+      double dx = x_[i] - px;
+      double dy = y_[i] - py;
+      return dx * dx + dy * dy;
+   }
+
+   private int cellCol(double x) {
+      return Math.min(nrCols_ - 1, (int) ((x - minX_) / cellSize_));
+   }
+
+   private int cellRow(double y) {
+      return Math.min(nrRows_ - 1, (int) ((y - minY_) / cellSize_));
+   }
+
+}
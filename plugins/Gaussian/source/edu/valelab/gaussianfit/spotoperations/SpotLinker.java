@@ -3,11 +3,22 @@ package edu.valelab.gaussianfit.spotoperations;
 import edu.valelab.gaussianfit.DataCollectionForm;
 import static edu.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.valelab.gaussianfit.data.SpotData;
-import edu.valelab.gaussianfit.data.GsSpotPair;
 import edu.valelab.gaussianfit.data.RowData;
-import java.awt.geom.Point2D;
+import edu.valelab.gaussianfit.utils.ReportingUtils;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.swing.JOptionPane;
 
 /**
@@ -19,6 +30,14 @@ import javax.swing.JOptionPane;
  * @author nico
  */
 public class SpotLinker {
+   
+   /**
+    * GREEDY extends every track with the closest spot in the next frame,
+    * tracks end as soon as no spot is found.
+    * GLOBAL assigns spots to tracks such that the sum of squared distances
+    * is minimal, and allows tracks to skip frames.
+    */
+   public enum Mode {GREEDY, GLOBAL}
 
    public SpotLinker() {
    }
@@ -34,79 +53,40 @@ public class SpotLinker {
     * @param maxDistance 
     */
    public static void link(RowData rowData, double maxDistance) {
+      link(rowData, maxDistance, Mode.GREEDY, 0);
+   }
+   
+   /**
+    * Links spots using the given mode.  Every position/channel combination
+    * is linked on its own thread.
+    * 
+    * @param rowData
+    * @param maxDistance - maximum distance between spots in consecutive frames
+    * @param mode - GREEDY or GLOBAL
+    * @param maxGap - number of frames a track may miss in GLOBAL mode
+    */
+   public static void link(final RowData rowData, final double maxDistance,
+           final Mode mode, final int maxGap) {
       try {
          ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
-
-         // linked spots go here:
-         List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List< List<SpotData>> tracks = 
-                 new ArrayList<List<SpotData>>();
-         for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot,
-                                      new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                      new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointGsSpotPair nsp = new NearestPointGsSpotPair(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks = 
-                                   new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              GsSpotPair newSpot = nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getGSD());
-                                 markedSpots.add(newSpot.getGSD());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
-                     }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
-               }
+         long startTime = System.currentTimeMillis();
+         List<SpotData> destList;
+         try {
+            destList = linkAll(rowData, maxDistance, mode, maxGap);
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+         } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof OutOfMemoryError) {
+               throw (OutOfMemoryError) ee.getCause();
             }
+            ReportingUtils.showError(ee.getCause(), "Error while linking spots");
+            return;
          }
-
+         
+         ij.IJ.showStatus("Linked " + rowData.spotList_.size() + " spots into "
+                 + destList.size() + " (" + mode + ") in " 
+                 + (System.currentTimeMillis() - startTime) + " ms");
       
          // Add destList to rowData
          DataCollectionForm.getInstance().addSpotData(rowData.name_ + " Linked", rowData.title_, "", rowData.width_,
@@ -118,6 +98,339 @@ public class SpotLinker {
          JOptionPane.showMessageDialog(getInstance(), "Out of memory");
       }
    }
+   
+   /**
+    * Links the spots of all positions and channels, without adding the
+    * result to the DataCollectionForm.  rowData needs to be indexed.
+    * 
+    * @param rowData
+    * @param maxDistance - maximum distance between spots in consecutive frames
+    * @param mode - GREEDY or GLOBAL
+    * @param maxGap - number of frames a track may miss in GLOBAL mode
+    * @return linked spots
+    * @throws InterruptedException
+    * @throws ExecutionException 
+    */
+   static List<SpotData> linkAll(final RowData rowData, 
+           final double maxDistance, final Mode mode, final int maxGap) 
+           throws InterruptedException, ExecutionException {
+      final boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
+      int nrGroups = rowData.nrPositions_ * rowData.nrChannels_;
+      int nrThreads = Math.max(1, Math.min(ij.Prefs.getThreads(), nrGroups));
+      ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+      List<Future<List<SpotData>>> results = 
+              new ArrayList<Future<List<SpotData>>>();
+      for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
+         for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
+            final int position = pos;
+            final int channel = ch;
+            results.add(pool.submit(new Callable<List<SpotData>>() {
+               @Override
+               public List<SpotData> call() {
+                  return new TrackBuilder(rowData, maxDistance, mode, 
+                          maxGap, useFrames).link(position, channel);
+               }
+            }));
+         }
+      }
+
+      // linked spots go here:
+      List<SpotData> destList = new ArrayList<SpotData>();
+      try {
+         for (int i = 0; i < results.size(); i++) {
+            destList.addAll(results.get(i).get());
+            ij.IJ.showProgress(i + 1, results.size());
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+      return destList;
+   }
+   
+   /**
+    * Spots linked so far, and the frame in which the last one was found
+    */
+   private static class Track {
+      final List<SpotData> spots_ = new ArrayList<SpotData>();
+      double x_;
+      double y_;
+      int lastFrame_;
+      
+      Track(SpotData spot, int frame) {
+         add(spot, frame);
+      }
+      
+      final void add(SpotData spot, int frame) {
+         spots_.add(spot);
+         x_ = spot.getXCenter();
+         y_ = spot.getYCenter();
+         lastFrame_ = frame;
+      }
+   }
+   
+   /**
+    * Links the spots of a single position and channel.  Not thread safe, 
+    * every thread needs its own instance.  The spatial index and the 
+    * coordinate buffers are re-used for all frames.
+    */
+   private static class TrackBuilder {
+      // maximum number of tracks for which the exact assignment is calculated
+      private static final int MAX_ASSIGNMENT_SIZE = 400;
+      
+      private final RowData rowData_;
+      private final double maxDistanceSquared_;
+      private final Mode mode_;
+      // only used in GLOBAL mode
+      private final int maxGap_;
+      private final boolean useFrames_;
+      private final SpotGrid grid_;
+      private double[] x_ = new double[64];
+      private double[] y_ = new double[64];
+      private boolean[] claimed_ = new boolean[64];
+      
+      TrackBuilder(RowData rowData, double maxDistance, Mode mode, int maxGap,
+              boolean useFrames) {
+         rowData_ = rowData;
+         maxDistanceSquared_ = maxDistance * maxDistance;
+         mode_ = mode;
+         maxGap_ = mode == Mode.GLOBAL ? Math.max(0, maxGap) : 0;
+         useFrames_ = useFrames;
+         grid_ = new SpotGrid(maxDistance);
+      }
+      
+      List<SpotData> link(int pos, int ch) {
+         List<SpotData> destList = new ArrayList<SpotData>();
+         // maintain active tracks here
+         List<Track> tracks = new ArrayList<Track>();
+         for (int s = 1; s <= rowData_.nrSlices_; s++) {
+            for (int f = 1; f <= rowData_.nrFrames_; f++) {
+               List<SpotData> spots = rowData_.get(f, s, ch, pos);
+               if (spots == null) {
+                  continue;
+               }
+               index(spots);
+               if (mode_ == Mode.GREEDY) {
+                  // frames without spots are skipped and do not end tracks
+                  extendGreedy(tracks, spots, f, destList);
+               } else {
+                  // finalize tracks that can no longer be extended
+                  Iterator<Track> it = tracks.iterator();
+                  while (it.hasNext()) {
+                     Track track = it.next();
+                     if (f - track.lastFrame_ > maxGap_ + 1) {
+                        linkSpots(track.spots_, destList, useFrames_);
+                        it.remove();
+                     }
+                  }
+                  extendGlobal(tracks, spots, f);
+               }
+               // go through spots and start a new track with any spot 
+               // that was not part of a track
+               for (int i = 0; i < spots.size(); i++) {
+                  if (!claimed_[i]) {
+                     tracks.add(new Track(spots.get(i), f));
+                  }
+               }
+            }
+            // add tracks that made it to the end to destination list
+            for (Track track : tracks) {
+               linkSpots(track.spots_, destList, useFrames_);
+            }
+            tracks.clear();
+         }
+         return destList;
+      }
+      
+      private void index(List<SpotData> spots) {
+         int n = spots.size();
+         if (x_.length < n) {
+            x_ = new double[n];
+            y_ = new double[n];
+            claimed_ = new boolean[n];
+         }
+         for (int i = 0; i < n; i++) {
+            SpotData spot = spots.get(i);
+            x_[i] = spot.getXCenter();
+            y_[i] = spot.getYCenter();
+            claimed_[i] = false;
+         }
+         grid_.build(x_, y_, n);
+      }
+      
+      /**
+       * Extends each track with the closest spot.  Tracks that can not be
+       * extended are finalized.  
+       */
+      private void extendGreedy(List<Track> tracks, List<SpotData> spots, 
+              int frame, List<SpotData> destList) {
+         Iterator<Track> it = tracks.iterator();
+         while (it.hasNext()) {
+            Track track = it.next();
+            int nearest = grid_.nearest(track.x_, track.y_);
+            if (nearest < 0) {
+               // track could not be extended, finalize it
+               linkSpots(track.spots_, destList, useFrames_);
+               it.remove();
+            } else {
+               track.add(spots.get(nearest), frame);
+               claimed_[nearest] = true;
+            }
+         }
+      }
+      
+      /**
+       * Assigns spots to tracks such that the sum of the squared distances 
+       * is minimal.  Tracks and spots are split into groups that can not
+       * interact (connected components of the track-spot pairs closer than 
+       * maxDistance) and the assignment is solved for every group.  Tracks 
+       * without a spot are kept so that they can close a gap later on.
+       */
+      private void extendGlobal(List<Track> tracks, List<SpotData> spots, 
+              int frame) {
+         final int nrTracks = tracks.size();
+         final int nrSpots = spots.size();
+         if (nrTracks == 0 || nrSpots == 0) {
+            return;
+         }
+         // candidate pairs, and union-find over tracks (0..nrTracks-1) 
+         // and spots (nrTracks..nrTracks+nrSpots-1)
+         List<int[]> pairs = new ArrayList<int[]>();
+         int[] parent = new int[nrTracks + nrSpots];
+         for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+         }
+         for (int t = 0; t < nrTracks; t++) {
+            Track track = tracks.get(t);
+            int nr = grid_.within(track.x_, track.y_);
+            for (int h = 0; h < nr; h++) {
+               int spot = grid_.hit(h);
+               pairs.add(new int[] {t, spot});
+               union(parent, t, nrTracks + spot);
+            }
+         }
+         if (pairs.isEmpty()) {
+            return;
+         }
+         
+         // group pairs per component
+         Map<Integer, List<int[]>> components = new HashMap<Integer, List<int[]>>();
+         for (int[] pair : pairs) {
+            int root = find(parent, pair[0]);
+            List<int[]> component = components.get(root);
+            if (component == null) {
+               component = new ArrayList<int[]>();
+               components.put(root, component);
+            }
+            component.add(pair);
+         }
+         
+         for (List<int[]> component : components.values()) {
+            if (component.size() == 1) {
+               int[] pair = component.get(0);
+               tracks.get(pair[0]).add(spots.get(pair[1]), frame);
+               claimed_[pair[1]] = true;
+            } else {
+               assign(tracks, spots, component, frame);
+            }
+         }
+      }
+      
+      private void assign(List<Track> tracks, List<SpotData> spots, 
+              List<int[]> component, int frame) {
+         // local numbering of the tracks and spots in this component
+         Map<Integer, Integer> rows = new HashMap<Integer, Integer>();
+         Map<Integer, Integer> cols = new HashMap<Integer, Integer>();
+         List<Integer> trackIds = new ArrayList<Integer>();
+         List<Integer> spotIds = new ArrayList<Integer>();
+         for (int[] pair : component) {
+            if (!rows.containsKey(pair[0])) {
+               rows.put(pair[0], trackIds.size());
+               trackIds.add(pair[0]);
+            }
+            if (!cols.containsKey(pair[1])) {
+               cols.put(pair[1], spotIds.size());
+               spotIds.add(pair[1]);
+            }
+         }
+         
+         if (trackIds.size() > MAX_ASSIGNMENT_SIZE) {
+            assignByDistance(tracks, spots, component, frame);
+            return;
+         }
+         
+         // every track has its own "no link" column, costing as much as 
+         // a link at the maximum distance
+         int nrRows = trackIds.size();
+         int nrCols = spotIds.size() + nrRows;
+         double forbidden = 1.0e6 * (maxDistanceSquared_ + 1.0);
+         double[][] cost = new double[nrRows][nrCols];
+         for (int r = 0; r < nrRows; r++) {
+            Arrays.fill(cost[r], forbidden);
+            cost[r][spotIds.size() + r] = maxDistanceSquared_;
+         }
+         for (int[] pair : component) {
+            Track track = tracks.get(pair[0]);
+            cost[rows.get(pair[0])][cols.get(pair[1])] =
+                    grid_.distanceSquared(pair[1], track.x_, track.y_);
+         }
+         
+         int[] assignment = LinearAssignment.solve(cost);
+         for (int r = 0; r < nrRows; r++) {
+            int c = assignment[r];
+            if (c < spotIds.size() && cost[r][c] < forbidden) {
+               int spot = spotIds.get(c);
+               tracks.get(trackIds.get(r)).add(spots.get(spot), frame);
+               claimed_[spot] = true;
+            }
+         }
+      }
+      
+      /**
+       * Fallback for very large components: links the closest pairs first
+       */
+      private void assignByDistance(final List<Track> tracks, 
+              List<SpotData> spots, List<int[]> component, int frame) {
+         final double[] distances = new double[component.size()];
+         Integer[] order = new Integer[component.size()];
+         for (int i = 0; i < component.size(); i++) {
+            int[] pair = component.get(i);
+            Track track = tracks.get(pair[0]);
+            distances[i] = grid_.distanceSquared(pair[1], track.x_, track.y_);
+            order[i] = i;
+         }
+         Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+               return Double.compare(distances[a], distances[b]);
+            }
+         });
+         Set<Integer> linkedTracks = new HashSet<Integer>();
+         for (Integer i : order) {
+            int[] pair = component.get(i);
+            if (!claimed_[pair[1]] && !linkedTracks.contains(pair[0])) {
+               tracks.get(pair[0]).add(spots.get(pair[1]), frame);
+               claimed_[pair[1]] = true;
+               linkedTracks.add(pair[0]);
+            }
+         }
+      }
+      
+      private static int find(int[] parent, int i) {
+         while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+         }
+         return i;
+      }
+      
+      private static void union(int[] parent, int a, int b) {
+         int rootA = find(parent, a);
+         int rootB = find(parent, b);
+         if (rootA != rootB) {
+            parent[rootA] = rootB;
+         }
+      }
+   }
 
    /**
     * Given a list of linked spots, create a single spot entry that will be
@@ -188,11 +501,11 @@ public class SpotLinker {
       double stdDevY = Math.sqrt(1.0 / (n-1) * sumy);    
 
       sp.setData(intensity, background, xCenter, yCenter, 0.0, width, a, theta, sigma);
-      sp.originalFrame_ = source.get(0).getFrame();
+      sp.setOriginalFrame(source.get(0).getFrame());
       if (!useFrames) {
-         sp.originalFrame_ = source.get(0).getSlice();
+         sp.setOriginalFrame(source.get(0).getSlice());
       }
-      sp.nrLinks_ = n;     
+      sp.setNrLinks(n);
       
       sp.addKeyValue("n", n);
       sp.addKeyValue("stdDev", stdDev);
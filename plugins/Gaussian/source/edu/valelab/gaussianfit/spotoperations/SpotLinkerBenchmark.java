@@ -0,0 +1,88 @@
+package edu.valelab.gaussianfit.spotoperations;
+
+import edu.valelab.gaussianfit.DataCollectionForm;
+import edu.valelab.gaussianfit.data.RowData;
+import edu.valelab.gaussianfit.data.SpotData;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures speed of the linking modes of SpotLinker on simulated diffusing
+ * spots, some of which are missed in some frames.  Every tenth frame
+ * contains no spots at all.
+ *
+ * Can be run from a script, e.g.:
+ * edu.valelab.gaussianfit.spotoperations.SpotLinkerBenchmark.run(2000, 500, 0.9);
+ */
+public class SpotLinkerBenchmark {
+   private static final double FIELD_SIZE = 50000.0;
+   private static final double STEP_SIZE = 30.0;
+   private static final double MAX_DISTANCE = 150.0;
+   private static final int EMPTY_FRAME_INTERVAL = 10;
+
+   /**
+    * Links the same simulated spots with every mode and logs the number of
+    * spots linked per second and the number of tracks found.  Ideally,
+    * the number of tracks equals the number of particles.
+    *
+    * @param nrParticles - number of simulated particles
+    * @param nrFrames - number of frames
+    * @param detectionRate - chance that a particle is found in a frame
+    * @return report
+    * @throws Exception
+    */
+   public static String run(int nrParticles, int nrFrames,
+           double detectionRate) throws Exception {
+      Random random = new Random(1);
+      double[] x = new double[nrParticles];
+      double[] y = new double[nrParticles];
+      for (int p = 0; p < nrParticles; p++) {
+         x[p] = FIELD_SIZE * random.nextDouble();
+         y[p] = FIELD_SIZE * random.nextDouble();
+      }
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int f = 1; f <= nrFrames; f++) {
+         for (int p = 0; p < nrParticles; p++) {
+            x[p] += STEP_SIZE * random.nextGaussian();
+            y[p] += STEP_SIZE * random.nextGaussian();
+            if (f % EMPTY_FRAME_INTERVAL == 0
+                    || random.nextDouble() > detectionRate) {
+               continue;
+            }
+            SpotData spot = new SpotData(null, 1, 1, f, 1, p,
+                    (int) x[p], (int) y[p]);
+            spot.setData(1000.0, 100.0, x[p], y[p], 0.0, 250.0, 1.0, 0.0, 10.0);
+            spots.add(spot);
+         }
+      }
+      RowData rowData = new RowData("benchmark", "benchmark", "",
+              (int) FIELD_SIZE, (int) FIELD_SIZE, 1.0f, 0.0f, 1, 8, 1,
+              nrFrames, 1, 1, nrParticles, spots, null, false,
+              DataCollectionForm.Coordinates.NM, false, 0.0, 0.0);
+      rowData.index();
+
+      StringBuilder report = new StringBuilder();
+      DecimalFormat df0 = new DecimalFormat("#");
+      SpotLinker.Mode[] modes = {SpotLinker.Mode.GREEDY,
+         SpotLinker.Mode.GLOBAL, SpotLinker.Mode.GLOBAL};
+      int[] maxGaps = {0, 0, 2};
+      for (int i = 0; i < modes.length; i++) {
+         // warm up
+         SpotLinker.linkAll(rowData, MAX_DISTANCE, modes[i], maxGaps[i]);
+         long start = System.nanoTime();
+         List<SpotData> tracks = SpotLinker.linkAll(rowData, MAX_DISTANCE,
+                 modes[i], maxGaps[i]);
+         double seconds = (System.nanoTime() - start) / 1E9;
+         String line = modes[i] + " (max gap " + maxGaps[i] + "): "
+                 + df0.format(spots.size() / seconds) + " spots/sec., "
+                 + tracks.size() + " tracks for " + nrParticles
+                 + " particles";
+         ij.IJ.log(line);
+         report.append(line).append("\n");
+      }
+      return report.toString();
+   }
+
+}
@@ -0,0 +1,51 @@
+package edu.valelab.gaussianfit;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocalizationProcessorTest {
+
+   private static TaggedImage makeTaggedImage(Object pix, String pixelType,
+           int width, int height) throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Width", width);
+      tags.put("Height", height);
+      tags.put("PixelType", pixelType);
+      return new TaggedImage(pix, tags);
+   }
+
+   @Test
+   public void eightBitImagesAreConvertedToSixteenBit() throws Exception {
+      byte[] pixels = new byte[4 * 3];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (byte) (250 - 20 * i);
+      }
+      ImageProcessor ip = LocalizationProcessor.makeProcessor(
+              makeTaggedImage(pixels, "GRAY8", 4, 3));
+      Assert.assertTrue(ip instanceof ShortProcessor);
+      Assert.assertEquals(4, ip.getWidth());
+      Assert.assertEquals(3, ip.getHeight());
+      short[] converted = (short[]) ip.getPixels();
+      for (int i = 0; i < pixels.length; i++) {
+         Assert.assertEquals(pixels[i] & 0xff, converted[i] & 0xffff);
+      }
+   }
+
+   @Test
+   public void sixteenBitImagesKeepTheirPixels() throws Exception {
+      short[] pixels = new short[]{0, 1000, 40000 - 65536, 65535 - 65536};
+      ImageProcessor ip = LocalizationProcessor.makeProcessor(
+              makeTaggedImage(pixels, "GRAY16", 2, 2));
+      Assert.assertSame(pixels, ip.getPixels());
+   }
+
+   @Test
+   public void otherPixelTypesAreNotSupported() throws Exception {
+      Assert.assertNull(LocalizationProcessor.makeProcessor(
+              makeTaggedImage(new float[4], "GRAY32", 2, 2)));
+   }
+}
@@ -0,0 +1,92 @@
+package edu.valelab.gaussianfit.data;
+
+import edu.valelab.gaussianfit.DataCollectionForm.Coordinates;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexedSpotFileTest {
+
+   private static RowData makeRowData(int nrSpots) {
+      List<SpotData> spots = new ArrayList<SpotData>();
+      for (int i = 0; i < nrSpots; i++) {
+         SpotData spot = new SpotData(null, 1 + i % 2, 1, 1 + i / 100, 1, i,
+                 i % 512, i % 256);
+         spot.setData(1000.0 + i, 100.0, 10.0 * i, 20.0 * i, 0.0, 250.0,
+                 1.0, 0.5, 12.5);
+         if (i % 3 == 0) {
+            spot.addKeyValue("n", i % 7);
+         }
+         if (i % 5 == 0) {
+            spot.addKeyValue("stdDev", i / 10.0);
+         }
+         spots.add(spot);
+      }
+      ArrayList<Double> timePoints = new ArrayList<Double>();
+      timePoints.add(0.0);
+      timePoints.add(1.5);
+      return new RowData("test", "title", "", 512, 256, 100.0f, 50.0f, 1, 8,
+              2, 1 + (nrSpots - 1) / 100, 1, 1, nrSpots, spots, timePoints,
+              false, Coordinates.NM, false, 0.0, 0.0);
+   }
+
+   private static void assertSpotsEqual(SpotData expected, SpotData actual) {
+      Assert.assertEquals(expected.getFrame(), actual.getFrame());
+      Assert.assertEquals(expected.getChannel(), actual.getChannel());
+      Assert.assertEquals(expected.getX(), actual.getX());
+      Assert.assertEquals(expected.getY(), actual.getY());
+      Assert.assertEquals(expected.getIntensity(), actual.getIntensity(), 0.0);
+      Assert.assertEquals(expected.getXCenter(), actual.getXCenter(), 0.0);
+      Assert.assertEquals(expected.getYCenter(), actual.getYCenter(), 0.0);
+      Assert.assertEquals(expected.getSigma(), actual.getSigma(), 0.0);
+      Assert.assertArrayEquals(expected.getKeys(), actual.getKeys());
+      for (String key : expected.getKeys()) {
+         Assert.assertEquals(expected.getValue(key), actual.getValue(key));
+      }
+   }
+
+   @Test
+   public void spotsAndKeyValuesSurviveRoundTrip() throws Exception {
+      // more than one chunk, the last one partially filled
+      RowData rowData = makeRowData(IndexedSpotFile.CHUNK_SIZE + 1000);
+      File file = File.createTempFile("spots", IndexedSpotFile.EXTENSION);
+      try {
+         IndexedSpotFile.write(rowData, file);
+         RowData read = IndexedSpotFile.read(file);
+         Assert.assertEquals(rowData.name_, read.name_);
+         Assert.assertEquals(rowData.nrFrames_, read.nrFrames_);
+         Assert.assertEquals(rowData.timePoints_, read.timePoints_);
+         Assert.assertEquals(rowData.spotList_.size(), read.spotList_.size());
+         for (int i = 0; i < rowData.spotList_.size(); i++) {
+            assertSpotsEqual(rowData.spotList_.get(i), read.spotList_.get(i));
+         }
+      } finally {
+         Assert.assertTrue(file.delete());
+      }
+   }
+
+   @Test
+   public void frameRangeKeepsKeyValues() throws Exception {
+      RowData rowData = makeRowData(5000);
+      File file = File.createTempFile("spots", IndexedSpotFile.EXTENSION);
+      try {
+         IndexedSpotFile.write(rowData, file);
+         IndexedSpotFile.Reader reader = new IndexedSpotFile.Reader(file);
+         RowData read;
+         try {
+            read = reader.read(11, 20);
+         } finally {
+            reader.close();
+         }
+         Assert.assertEquals(1000, read.spotList_.size());
+         for (int i = 0; i < read.spotList_.size(); i++) {
+            assertSpotsEqual(rowData.spotList_.get(1000 + i),
+                    read.spotList_.get(i));
+         }
+      } finally {
+         Assert.assertTrue(file.delete());
+      }
+   }
+}
@@ -0,0 +1,72 @@
+package edu.valelab.gaussianfit.data;
+
+import java.util.ConcurrentModificationException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpotStoreTest {
+
+   private static SpotStore makeStore(int nrSpots) {
+      SpotStore spots = new SpotStore();
+      for (int i = 0; i < nrSpots; i++) {
+         SpotData spot = new SpotData(null, 1, 1, 1 + i, 1, i, i, i);
+         spot.setData(1000.0 + i, 100.0, 10.0 * i, 20.0 * i, 0.0, 250.0,
+                 1.0, 0.5, 12.5);
+         spots.add(spot);
+      }
+      return spots;
+   }
+
+   @Test
+   public void viewsWriteThroughToTheStore() {
+      SpotStore spots = makeStore(3);
+      SpotData view = spots.get(1);
+      view.setXCenter(5.0);
+      view.setNrLinks(4);
+      view.setOriginalFrame(7);
+      view.addKeyValue("n", 2.0);
+      SpotData other = spots.get(1);
+      Assert.assertEquals(5.0, other.getXCenter(), 0.0);
+      Assert.assertEquals(4, other.getNrLinks());
+      Assert.assertEquals(7, other.getOriginalFrame());
+      Assert.assertEquals(2.0, other.getValue("n"), 0.0);
+      Assert.assertEquals(5.0, spots.getXCenter(1), 0.0);
+   }
+
+   @Test
+   public void addingViewsToAnotherStoreCopiesLinkCounts() {
+      SpotStore spots = makeStore(1);
+      spots.get(0).setNrLinks(3);
+      spots.get(0).setOriginalFrame(9);
+      SpotStore other = new SpotStore();
+      other.add(spots.get(0));
+      spots.get(0).setNrLinks(1);
+      Assert.assertEquals(3, other.get(0).getNrLinks());
+      Assert.assertEquals(9, other.get(0).getOriginalFrame());
+   }
+
+   @Test
+   public void viewsStayValidWhenSpotsAreAppended() {
+      SpotStore spots = makeStore(2);
+      SpotData view = spots.get(1);
+      spots.addAll(makeStore(100));
+      Assert.assertEquals(2, view.getFrame());
+      Assert.assertEquals(1001.0, view.getIntensity(), 0.0);
+   }
+
+   @Test(expected = ConcurrentModificationException.class)
+   public void viewsFailAfterRemove() {
+      SpotStore spots = makeStore(3);
+      SpotData view = spots.get(2);
+      spots.remove(0);
+      view.getXCenter();
+   }
+
+   @Test(expected = ConcurrentModificationException.class)
+   public void viewsFailAfterInsert() {
+      SpotStore spots = makeStore(3);
+      SpotData view = spots.get(0);
+      spots.add(0, new SpotData(null, 1, 1, 1, 1, 0, 0, 0));
+      view.setXCenter(1.0);
+   }
+}
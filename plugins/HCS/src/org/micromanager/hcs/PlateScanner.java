@@ -0,0 +1,227 @@
+package org.micromanager.hcs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.api.MultiStagePosition;
+import org.micromanager.api.PositionList;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Fast plate scan that bypasses the multi-dimensional acquisition engine.
+ * Sites are visited well by well in the order produced by the site
+ * generator. The z position of each site is taken from the 3-point focus
+ * plane instead of running autofocus, and the stage is sent to the next site
+ * as soon as the exposure has ended.
+ * Each well is saved as a multipage TIFF data set, with summary and image
+ * metadata, in a directory named after the well. The storage writes images
+ * on its own thread, and finishing the data set of a well is left to a
+ * background thread so that the scan does not wait for it.
+ */
+public class PlateScanner {
+   private final CMMCore core_;
+   private final AFPlane focusPlane_;
+   private final File rootDir_;
+   private volatile boolean stopRequested_ = false;
+
+   /**
+    * @param core - Micro-Manager core
+    * @param focusPlane - 3-point focus plane, or null to leave z unchanged
+    * @param rootDir - directory in which a data set per well is created
+    */
+   public PlateScanner(CMMCore core, AFPlane focusPlane, String rootDir) {
+      core_ = core;
+      focusPlane_ = focusPlane;
+      rootDir_ = new File(rootDir);
+   }
+
+   /**
+    * Stops the scan after the current site.
+    */
+   public void requestStop() {
+      stopRequested_ = true;
+   }
+
+   /**
+    * Scans all sites of the given wells.
+    * @param wells - wells to be imaged, with absolute site positions
+    * @return throughput report
+    * @throws HCSException
+    */
+   public String scan(WellPositionList[] wells) throws HCSException {
+      List<Site> sites = new ArrayList<Site>();
+      for (WellPositionList well : wells) {
+         PositionList pl = well.getSitePositions();
+         for (int i = 0; i < pl.getNumberOfPositions(); i++) {
+            MultiStagePosition mps = pl.getPosition(i);
+            double z = focusPlane_ != null
+                    ? focusPlane_.getZPos(mps.getX(), mps.getY()) : 0.0;
+            sites.add(new Site(well.getLabel(), pl.getNumberOfPositions(), i,
+                    mps.getX(), mps.getY(), z));
+         }
+      }
+      if (sites.isEmpty()) {
+         throw new HCSException("No wells selected.");
+      }
+
+      String xyStage = core_.getXYStageDevice();
+      String zStage = core_.getFocusDevice();
+      boolean useZ = focusPlane_ != null && zStage.length() > 0;
+
+      ExecutorService finisher = Executors.newSingleThreadExecutor();
+      stopRequested_ = false;
+      long start = System.currentTimeMillis();
+      int scanned = 0;
+      int wellCount = 0;
+      String lastWell = null;
+      TaggedImageStorageMultipageTiff storage = null;
+      try {
+         moveTo(xyStage, zStage, useZ, sites.get(0));
+         for (int i = 0; i < sites.size() && !stopRequested_; i++) {
+            Site site = sites.get(i);
+            core_.waitForDevice(xyStage);
+            if (useZ) {
+               core_.waitForDevice(zStage);
+            }
+            core_.snapImage();
+            // snapImage returns once the exposure is over, so the stage
+            // can travel while the image is read out and written
+            if (i + 1 < sites.size()) {
+               moveTo(xyStage, zStage, useZ, sites.get(i + 1));
+            }
+            TaggedImage image = core_.getTaggedImage();
+            if (!site.well_.equals(lastWell)) {
+               finish(finisher, storage);
+               storage = new TaggedImageStorageMultipageTiff(
+                       new File(rootDir_, site.well_).getAbsolutePath(), true,
+                       makeSummary(site), false, false, true);
+               lastWell = site.well_;
+               wellCount++;
+            }
+            tagImage(image, site, useZ, System.currentTimeMillis() - start);
+            storage.putImage(image);
+            scanned++;
+         }
+         finish(finisher, storage);
+         storage = null;
+         finisher.shutdown();
+         finisher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+         throw new HCSException(e);
+      } finally {
+         finish(finisher, storage);
+         finisher.shutdown();
+      }
+
+      return report(scanned, wellCount, System.currentTimeMillis() - start);
+   }
+
+   private void moveTo(String xyStage, String zStage, boolean useZ, Site site)
+           throws Exception {
+      core_.setXYPosition(xyStage, site.x_, site.y_);
+      if (useZ) {
+         core_.setPosition(zStage, site.z_);
+      }
+   }
+
+   /**
+    * Summary metadata of the data set of the well of the given site, with
+    * one position per site
+    */
+   private JSONObject makeSummary(Site site) throws JSONException {
+      JSONObject summary = new JSONObject();
+      summary.put("Prefix", site.well_);
+      MDUtils.setNumChannels(summary, 1);
+      summary.put("Slices", 1);
+      summary.put("Frames", 1);
+      summary.put("Positions", site.numSites_);
+      MDUtils.setWidth(summary, (int) core_.getImageWidth());
+      MDUtils.setHeight(summary, (int) core_.getImageHeight());
+      if (core_.getNumberOfComponents() > 1) {
+         MDUtils.setPixelTypeFromString(summary,
+                 core_.getBytesPerPixel() > 4 ? "RGB64" : "RGB32");
+      } else {
+         MDUtils.setPixelTypeFromByteDepth(summary,
+                 (int) core_.getBytesPerPixel());
+      }
+      summary.put("BitDepth", core_.getImageBitDepth());
+      MDUtils.setPixelSizeUm(summary, core_.getPixelSizeUm());
+      summary.put("Comment", "HCS plate scan");
+      return summary;
+   }
+
+   private void tagImage(TaggedImage image, Site site, boolean useZ,
+           long elapsedMs) throws JSONException {
+      MDUtils.setChannelIndex(image.tags, 0);
+      MDUtils.setSliceIndex(image.tags, 0);
+      MDUtils.setFrameIndex(image.tags, 0);
+      MDUtils.setPositionIndex(image.tags, site.index_);
+      MDUtils.setPositionName(image.tags, site.well_ + "-Site_" + site.index_);
+      MDUtils.setXPositionUm(image.tags, site.x_);
+      MDUtils.setYPositionUm(image.tags, site.y_);
+      if (useZ) {
+         MDUtils.setZPositionUm(image.tags, site.z_);
+      }
+      MDUtils.setElapsedTimeMs(image.tags, elapsedMs);
+   }
+
+   /**
+    * Finishes the data set of a well and closes its files on the finisher
+    * thread
+    */
+   private static void finish(ExecutorService finisher,
+           final TaggedImageStorageMultipageTiff storage) {
+      if (storage == null || finisher.isShutdown()) {
+         return;
+      }
+      finisher.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               storage.finished();
+               storage.close();
+            } catch (RuntimeException e) {
+               ReportingUtils.logError(e, "Failed to finish plate scan data set");
+            }
+         }
+      });
+   }
+
+   private String report(int sites, int wells, long elapsedMs) {
+      double seconds = Math.max(elapsedMs, 1) / 1000.0;
+      String report = "Plate scan: " + sites + " sites in " + wells + " wells, "
+              + String.format("%.1f s, %.2f sites/s, %.0f wells/h",
+                      seconds, sites / seconds, wells * 3600.0 / seconds);
+      ReportingUtils.logMessage(report);
+      return report;
+   }
+
+   private static class Site {
+      final String well_;
+      final int numSites_;
+      final int index_;
+      final double x_;
+      final double y_;
+      final double z_;
+
+      Site(String well, int numSites, int index, double x, double y, double z) {
+         well_ = well;
+         numSites_ = numSites;
+         index_ = index;
+         x_ = x;
+         y_ = y;
+         z_ = z;
+      }
+   }
+}
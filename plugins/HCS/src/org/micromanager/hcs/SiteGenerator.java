@@ -10,10 +10,12 @@ import java.util.prefs.Preferences;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import javax.swing.SpringLayout;
+import javax.swing.SwingUtilities;
 
 import org.micromanager.api.MMPlugin;
 import org.micromanager.api.MultiStagePosition;
@@ -81,12 +83,16 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
    public static final String tooltipDescription =
            "Generate position list for multi-well plates";
    private final JLabel statusLabel_;
+   static private final String SCAN_PLATE = "Scan Plate...";
+   static private final String STOP_SCAN = "Stop Scan";
    static private final String VERSION_INFO = "1.4.3";
    static private final String COPYRIGHT_NOTICE = "Copyright by UCSF, 2013-2016";
    static private final String DESCRIPTION = "Generate imaging site positions for micro-well plates and slides";
    static private final String INFO = "Not available";
    private final JCheckBox chckbxThreePt_;
    private final JCheckBox useSnake_;
+   private final JButton btnScanPlate_;
+   private PlateScanner scanner_;
    private final ButtonGroup toolButtonGroup = new ButtonGroup();
    private JRadioButton rdbtnSelectWells_;
    private JRadioButton rdbtnMoveStage_;
@@ -406,6 +412,24 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
          }
       });
       getContentPane().add(btnSetThreePt);
+
+      btnScanPlate_ = new JButton(SCAN_PLATE);
+      springLayout.putConstraint(SpringLayout.NORTH, btnScanPlate_, 6, SpringLayout.SOUTH, btnSetThreePt);
+      springLayout.putConstraint(SpringLayout.WEST, btnScanPlate_, 6, SpringLayout.EAST, platePanel_);
+      springLayout.putConstraint(SpringLayout.SOUTH, btnScanPlate_, 31, SpringLayout.SOUTH, btnSetThreePt);
+      springLayout.putConstraint(SpringLayout.EAST, btnScanPlate_, -4, SpringLayout.EAST, getContentPane());
+      btnScanPlate_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            if (scanner_ != null) {
+               scanner_.requestStop();
+               btnScanPlate_.setEnabled(false);
+            } else {
+               scanPlate();
+            }
+         }
+      });
+      getContentPane().add(btnScanPlate_);
           
       statusLabel_ = new JLabel();
       springLayout.putConstraint(SpringLayout.SOUTH, platePanel_, -6, SpringLayout.NORTH, statusLabel_);
@@ -610,6 +634,69 @@ public class SiteGenerator extends MMFrame implements ParentPlateGUI, MMPlugin {
 
    }
 
+   /**
+    * Images the selected wells with the fast plate scanner, using the
+    * 3-point focus plane (when enabled) instead of autofocus.
+    * While the scan runs the scan button stops it.
+    */
+   private void scanPlate() {
+      if (app_ == null) {
+         return;
+      }
+      if (useThreePtAF() && focusPlane_ == null) {
+         displayError("3-point AF is seleced but 3 points are not defined.");
+         return;
+      }
+      regenerate();
+      final WellPositionList[] wells = platePanel_.getSelectedWellPositions();
+      if (wells.length == 0) {
+         displayError("No wells selected.");
+         return;
+      }
+      JFileChooser chooser = new JFileChooser();
+      chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+      chooser.setDialogTitle("Directory for plate scan data");
+      if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+         return;
+      }
+      final PlateScanner scanner = new PlateScanner(app_.getMMCore(),
+              useThreePtAF() ? focusPlane_ : null,
+              chooser.getSelectedFile().getAbsolutePath());
+      scanner_ = scanner;
+      btnScanPlate_.setText(STOP_SCAN);
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            String report = null;
+            String error = null;
+            try {
+               report = scanner.scan(wells);
+            } catch (HCSException e) {
+               error = e.getMessage();
+            } finally {
+               // the scan runs on its own thread, the dialogs and labels
+               // are only touched on the EDT
+               final String status = report;
+               final String scanError = error;
+               SwingUtilities.invokeLater(new Runnable() {
+                  @Override
+                  public void run() {
+                     if (status != null) {
+                        statusLabel_.setText(status);
+                     }
+                     if (scanError != null) {
+                        displayError(scanError);
+                     }
+                     scanner_ = null;
+                     btnScanPlate_.setText(SCAN_PLATE);
+                     btnScanPlate_.setEnabled(true);
+                  }
+               });
+            }
+         }
+      }, "HCS plate scan").start();
+   }
+
    /**
     * Mark current position as one point in the 3-pt set
     */
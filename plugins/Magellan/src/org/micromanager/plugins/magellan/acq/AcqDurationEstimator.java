@@ -18,6 +18,7 @@ package org.micromanager.plugins.magellan.acq;
 
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
@@ -40,11 +41,15 @@ public class AcqDurationEstimator {
    private static final String XY_KEY = "XY_Time_Map";
    private static final String Z_KEY = "ZMove_Time_Map";
    private static final String CHANNEL_KEY = "Channel_Switch_Time_Map";
+   private static final String XY_DISTANCE_KEY = "XY_Distance_Map";
+   private static final String Z_DISTANCE_KEY = "ZMove_Distance_Map";
 
    private ExecutorService executor_;
    private Future<?> currentTask_;
    private TreeMap<Double, LinkedList<Double>> exposureMap_; // hold entries for interpolation
    private LinkedList<Double> xyMoveTimeList_, zStepMoveTimeList_, channelSwitchTimeList_;
+   //distance of each move in the lists above, NaN if unknown
+   private LinkedList<Double> xyMoveDistanceList_, zStepMoveDistanceList_;
 
    public AcqDurationEstimator() {
       executor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
@@ -59,28 +64,112 @@ public class AcqDurationEstimator {
       xyMoveTimeList_ = GlobalSettings.getObjectFromPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), XY_KEY, new LinkedList<Double>());
       zStepMoveTimeList_ = GlobalSettings.getObjectFromPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), Z_KEY, new LinkedList<Double>());
       channelSwitchTimeList_ = GlobalSettings.getObjectFromPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), CHANNEL_KEY, new LinkedList<Double>());
+      xyMoveDistanceList_ = GlobalSettings.getObjectFromPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), XY_DISTANCE_KEY, new LinkedList<Double>());
+      zStepMoveDistanceList_ = GlobalSettings.getObjectFromPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), Z_DISTANCE_KEY, new LinkedList<Double>());
+      //times stored before distances were recorded have unknown distances
+      padDistances(xyMoveTimeList_, xyMoveDistanceList_);
+      padDistances(zStepMoveTimeList_, zStepMoveDistanceList_);
+   }
 
+   private static void padDistances(LinkedList<Double> times, LinkedList<Double> distances) {
+      while (distances.size() > times.size()) {
+         distances.removeFirst();
+      }
+      while (distances.size() < times.size()) {
+         distances.addFirst(Double.NaN);
+      }
    }
 
-   public void storeChannelSwitchTime(double time) {
+   public synchronized void storeChannelSwitchTime(double time) {
       channelSwitchTimeList_.add(time);
       if (channelSwitchTimeList_.size() > MAX_DATA_POINTS) {
          channelSwitchTimeList_.removeFirst();
       }
    }
 
-   public void storeZMoveTime(double time) {
+   /**
+    * @param time duration of the move in ms
+    * @param distance distance moved in um, or NaN if not known
+    */
+   public synchronized void storeZMoveTime(double time, double distance) {
       zStepMoveTimeList_.add(time);
+      zStepMoveDistanceList_.add(distance);
       if (zStepMoveTimeList_.size() > MAX_DATA_POINTS) {
          zStepMoveTimeList_.removeFirst();
+         zStepMoveDistanceList_.removeFirst();
       }
    }
 
-   public void storeXYMoveTime(double time) {
+   /**
+    * @param time duration of the move in ms
+    * @param distance distance moved in um, or NaN if not known
+    */
+   public synchronized void storeXYMoveTime(double time, double distance) {
       xyMoveTimeList_.add(time);
+      xyMoveDistanceList_.add(distance);
       if (xyMoveTimeList_.size() > MAX_DATA_POINTS) {
          xyMoveTimeList_.removeFirst();
+         xyMoveDistanceList_.removeFirst();
+      }
+   }
+
+   /**
+    * Estimated time in ms to move the XY stage by the given distance in um, 
+    * 0 if no moves have been measured
+    */
+   public synchronized double estimateXYMoveTime(double distance) {
+      return estimateMoveTime(xyMoveTimeList_, xyMoveDistanceList_, distance);
+   }
+
+   /**
+    * Estimated time in ms to move the Z stage by the given distance in um,
+    * 0 if no moves have been measured
+    */
+   public synchronized double estimateZMoveTime(double distance) {
+      return estimateMoveTime(zStepMoveTimeList_, zStepMoveDistanceList_, distance);
+   }
+
+   /**
+    * Estimated time in ms to switch channels, 0 if no switches have been measured
+    */
+   public synchronized double estimateChannelSwitchTime() {
+      return channelSwitchTimeList_.isEmpty() ? 0 : averageList(channelSwitchTimeList_);
+   }
+
+   /**
+    * Fits a straight line through the measured times as a function of distance,
+    * falling back to the average time if there aren't enough distances to fit
+    */
+   private double estimateMoveTime(LinkedList<Double> times, LinkedList<Double> distances, double distance) {
+      if (times.isEmpty()) {
+         return 0;
+      }
+      double n = 0, sumD = 0, sumT = 0, sumDD = 0, sumDT = 0;
+      Iterator<Double> tIt = times.iterator();
+      Iterator<Double> dIt = distances.iterator();
+      while (tIt.hasNext() && dIt.hasNext()) {
+         double t = tIt.next();
+         double d = dIt.next();
+         if (Double.isNaN(d)) {
+            continue;
+         }
+         n++;
+         sumD += d;
+         sumT += t;
+         sumDD += d * d;
+         sumDT += d * t;
+      }
+      double denominator = n * sumDD - sumD * sumD;
+      if (n < 2 || denominator <= 0) {
+         return averageList(times);
+      }
+      double slope = (n * sumDT - sumD * sumT) / denominator;
+      if (slope < 0) {
+         //noise, moves don't get faster with distance
+         return averageList(times);
       }
+      double intercept = (sumT - slope * sumD) / n;
+      return Math.max(0, intercept + slope * distance);
    }
 
    public void storeImageAcquisitionTime(double exposure, double time) {
@@ -246,6 +335,8 @@ public class AcqDurationEstimator {
                GlobalSettings.putObjectInPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), XY_KEY, xyMoveTimeList_);
                GlobalSettings.putObjectInPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), Z_KEY, zStepMoveTimeList_);
                GlobalSettings.putObjectInPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), CHANNEL_KEY, channelSwitchTimeList_);
+               GlobalSettings.putObjectInPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), XY_DISTANCE_KEY, xyMoveDistanceList_);
+               GlobalSettings.putObjectInPrefs(GlobalSettings.getInstance().getGlobalPrefernces(), Z_DISTANCE_KEY, zStepMoveDistanceList_);
 
             } catch (InterruptedException ex) {
                return; //Interrupted, return with no result
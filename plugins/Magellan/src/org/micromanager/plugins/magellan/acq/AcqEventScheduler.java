@@ -0,0 +1,159 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.plugins.magellan.acq;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.micromanager.plugins.magellan.channels.ChannelSetting;
+import org.micromanager.plugins.magellan.coordinates.XYStagePosition;
+import org.micromanager.plugins.magellan.main.Magellan;
+import org.micromanager.plugins.magellan.misc.Log;
+
+/**
+ * Decides the order in which the acquisitions of a parallel group, and the
+ * positions and channels within each of their time points, are acquired, so
+ * that the XY stage travels as little as possible and channels are switched as
+ * few times as possible. Costs come from the move and switch times measured by
+ * the AcqDurationEstimator.
+ *
+ * Ordering is planned by the event generating threads ahead of the engine, so
+ * the scheduler keeps track of where the most recently planned event leaves
+ * the hardware rather than where it currently is
+ */
+public class AcqEventScheduler {
+
+   private final AcqDurationEstimator estimator_;
+   private Point2D.Double lastXY_;
+   private ChannelSetting lastChannel_;
+
+   public AcqEventScheduler(AcqDurationEstimator estimator) {
+      estimator_ = estimator;
+      try {
+         lastXY_ = Magellan.getCore().getXYStagePosition(Magellan.getCore().getXYStageDevice());
+      } catch (Exception ex) {
+         //start with the first position of the first acquisition
+         Log.log("Couldn't read XY stage position");
+      }
+   }
+
+   /**
+    * Returns the order in which to visit the positions: starting from the last
+    * planned position, always go to the position that is quickest to reach
+    *
+    * @return indices into positions
+    */
+   public synchronized int[] orderPositions(List<XYStagePosition> positions) {
+      int n = positions.size();
+      int[] order = new int[n];
+      if (n == 0) {
+         return order;
+      }
+      double[] x = new double[n];
+      double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         x[i] = positions.get(i).getCenter().x;
+         y[i] = positions.get(i).getCenter().y;
+      }
+      boolean[] visited = new boolean[n];
+      double currentX = lastXY_ == null ? x[0] : lastXY_.x;
+      double currentY = lastXY_ == null ? y[0] : lastXY_.y;
+      for (int k = 0; k < n; k++) {
+         int next = -1;
+         double nextDistanceSq = Double.MAX_VALUE;
+         for (int i = 0; i < n; i++) {
+            if (visited[i]) {
+               continue;
+            }
+            double distanceSq = (x[i] - currentX) * (x[i] - currentX) + (y[i] - currentY) * (y[i] - currentY);
+            //ties go to the earlier position, so regular grids are covered column by column
+            if (distanceSq < nextDistanceSq) {
+               next = i;
+               nextDistanceSq = distanceSq;
+            }
+         }
+         visited[next] = true;
+         order[k] = next;
+         currentX = x[next];
+         currentY = y[next];
+      }
+      lastXY_ = new Point2D.Double(currentX, currentY);
+      return order;
+   }
+
+   /**
+    * Returns the channels to acquire in the order in which to acquire them:
+    * the given order, or the reverse of it if that starts with the channel
+    * that was last planned, which saves a channel switch
+    *
+    * @param channelIndices indices into channels of the channels to acquire
+    */
+   public synchronized List<Integer> orderChannels(List<ChannelSetting> channels, List<Integer> channelIndices) {
+      List<Integer> order = new ArrayList<Integer>(channelIndices);
+      if (order.size() > 1 && !sameChannel(channels.get(order.get(0)), lastChannel_)
+              && sameChannel(channels.get(order.get(order.size() - 1)), lastChannel_)) {
+         Collections.reverse(order);
+      }
+      if (!order.isEmpty()) {
+         lastChannel_ = channels.get(order.get(order.size() - 1));
+      }
+      return order;
+   }
+
+   /**
+    * Estimated time in ms to get from the last planned event to the start of
+    * the given acquisition's next time point
+    */
+   public synchronized double estimateSwitchCost(FixedAreaAcquisition acq) {
+      double cost = 0;
+      if (lastXY_ != null && !acq.getPositions().isEmpty()) {
+         double minDistance = Double.MAX_VALUE;
+         for (XYStagePosition pos : acq.getPositions()) {
+            minDistance = Math.min(minDistance, pos.getCenter().distance(lastXY_));
+         }
+         cost += estimator_.estimateXYMoveTime(minDistance);
+      }
+      boolean channelMatches = false;
+      boolean anyChannels = false;
+      for (ChannelSetting channel : acq.getChannels()) {
+         if (channel.use_ && channel.uniqueEvent_) {
+            anyChannels = true;
+            channelMatches |= sameChannel(channel, lastChannel_);
+         }
+      }
+      if (anyChannels && !channelMatches) {
+         cost += estimator_.estimateChannelSwitchTime();
+      }
+      return cost;
+   }
+
+   /**
+    * True if switching from one channel to the other doesn't require any
+    * hardware changes
+    */
+   public static boolean sameChannel(ChannelSetting c1, ChannelSetting c2) {
+      if (c1 == null || c2 == null) {
+         return false;
+      }
+      return c1.exposure_ == c2.exposure_ && equal(c1.group_, c2.group_) && equal(c1.config_, c2.config_);
+   }
+
+   private static boolean equal(String s1, String s2) {
+      return s1 == null ? s2 == null : s1.equals(s2);
+   }
+}
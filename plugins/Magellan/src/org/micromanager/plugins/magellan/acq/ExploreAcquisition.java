@@ -19,13 +19,17 @@ package org.micromanager.plugins.magellan.acq;
 import org.micromanager.plugins.magellan.channels.ChannelSetting;
 import org.micromanager.plugins.magellan.gui.GUI;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import org.micromanager.plugins.magellan.json.JSONArray;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.micromanager.plugins.magellan.misc.Log;
@@ -39,13 +43,26 @@ import org.micromanager.plugins.magellan.imagedisplay.SubImageControls;
  */
 public class ExploreAcquisition extends Acquisition {
 
-    private static final int EXPLORE_EVENT_QUEUE_CAP = 2000; //big so you can see a lot of tiles waiting to be acquired
+    //tiles waiting to be acquired are kept as one request per tile, which only becomes events shortly before the tile
+    //is acquired, so that the closest ones to the view go first and requests can be cancelled
+    private static final int EXPLORE_EVENT_QUEUE_CAP = 8;
+    private static final int MAX_TILE_REQUESTS = 10000;
+    private static final long REQUEST_CANCEL_CHECK_INTERVAL_MS = 50;
 
     private volatile double zTop_, zBottom_;
     private volatile int minSliceIndex_ = 0, maxSliceIndex_ = 0;
     private ExecutorService eventAdderExecutor_ = Executors.newSingleThreadExecutor();
     private int imageFilterType_;
-    private ConcurrentHashMap<Integer, LinkedBlockingQueue<ExploreTileWaitingToAcquire>> queuedTileEvents_ = new ConcurrentHashMap<Integer, LinkedBlockingQueue<ExploreTileWaitingToAcquire>>();
+    //guards requests and the view
+    private final Object tileRequestLock_ = new Object();
+    //requested tiles that haven't been acquired or cancelled yet, by row and column
+    private final HashMap<Long, ExploreTileWaitingToAcquire> tileRequests_ = new HashMap<Long, ExploreTileWaitingToAcquire>();
+    //changes whenever tiles are requested or the view changes, so the tile request thread knows to reorder requests
+    private long requestGeneration_ = 0;
+    private long numTileRequests_ = 0;
+    private boolean viewKnown_ = false;
+    private long viewRow1_, viewCol1_, viewRow2_, viewCol2_;
+    private Thread tileRequestThread_;
     private double zOrigin_;
     private ArrayList<ChannelSetting> channels_;
 
@@ -63,11 +80,15 @@ public class ExploreAcquisition extends Acquisition {
         }
         imageFilterType_ = settings.filterType_;
         initialize(settings.dir_, settings.name_, settings.tileOverlap_);
+        startTileRequestThread();
     }
 
     public void clearEventQueue() {
+        synchronized (tileRequestLock_) {
+            tileRequests_.clear();
+            requestGeneration_++;
+        }
         events_.clear();
-        queuedTileEvents_.clear();
     }
 
     public void abort() {
@@ -75,6 +96,7 @@ public class ExploreAcquisition extends Acquisition {
             this.togglePaused();
         }
         eventAdderExecutor_.shutdownNow();
+        tileRequestThread_.interrupt();
         //wait for shutdown
         try {
             //wait for it to exit
@@ -85,8 +107,7 @@ public class ExploreAcquisition extends Acquisition {
             //shouldn't happen
         }
         //abort all pending events
-        events_.clear();
-        queuedTileEvents_.clear();
+        clearEventQueue();
         //signal acquisition engine to start finishigng process
         try {
             events_.put(AcquisitionEvent.createAcquisitionFinishedEvent(this));
@@ -101,17 +122,208 @@ public class ExploreAcquisition extends Acquisition {
     /**
      *
      * @param sliceIndex 0 based slice index
-     * @return
+     * @return tiles that still have to be acquired at the slice
      */
-    public LinkedBlockingQueue<ExploreTileWaitingToAcquire> getTilesWaitingToAcquireAtSlice(int sliceIndex) {
-        return queuedTileEvents_.get(sliceIndex);
+    public ArrayList<ExploreTileWaitingToAcquire> getTilesWaitingToAcquireAtSlice(int sliceIndex) {
+        ArrayList<ExploreTileWaitingToAcquire> tiles = new ArrayList<ExploreTileWaitingToAcquire>();
+        synchronized (tileRequestLock_) {
+            for (ExploreTileWaitingToAcquire tile : tileRequests_.values()) {
+                if (sliceIndex >= tile.waitingFromSliceIndex && sliceIndex <= tile.maxSliceIndex) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        return tiles;
     }
 
     //called by acq engine
     public void eventAcquired(AcquisitionEvent e) {
-        //remove from tile queue for overlay drawing purposes
-        queuedTileEvents_.get(e.sliceIndex_).remove(new ExploreTileWaitingToAcquire(e.xyPosition_.getGridRow(), e.xyPosition_.getGridCol(),
-                e.sliceIndex_, e.channelIndex_));
+        long key = tileKey(e.xyPosition_.getGridRow(), e.xyPosition_.getGridCol());
+        synchronized (tileRequestLock_) {
+            ExploreTileWaitingToAcquire tile = tileRequests_.get(key);
+            //events of a tile are acquired slice by slice, channel by channel
+            if (tile == null || !tile.started || e.channelIndex_ != tile.lastChannelIndex
+                    || e.sliceIndex_ < tile.waitingFromSliceIndex || e.sliceIndex_ > tile.maxSliceIndex) {
+                return;
+            }
+            tile.waitingFromSliceIndex = e.sliceIndex_ + 1;
+            if (tile.waitingFromSliceIndex > tile.maxSliceIndex) {
+                tileRequests_.remove(key);
+                if (tile.followUp != null) {
+                    //slices requested after events of this tile were added are acquired next
+                    tile.followUp.requestIndex = numTileRequests_++;
+                    tileRequests_.put(key, tile.followUp);
+                    requestGeneration_++;
+                    tileRequestLock_.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the display when the tiles in view change. Requested tiles closest to the center of the view are
+     * acquired first, and requests for tiles more than the size of the view away from it are cancelled. Both happen
+     * on the tile request thread
+     */
+    public void setViewedTiles(long row1, long col1, long row2, long col2) {
+        synchronized (tileRequestLock_) {
+            if (viewKnown_ && row1 == viewRow1_ && col1 == viewCol1_ && row2 == viewRow2_ && col2 == viewCol2_) {
+                return;
+            }
+            viewKnown_ = true;
+            viewRow1_ = row1;
+            viewCol1_ = col1;
+            viewRow2_ = row2;
+            viewCol2_ = col2;
+            requestGeneration_++;
+            tileRequestLock_.notifyAll();
+        }
+    }
+
+    private static long tileKey(long row, long col) {
+        return (row << 32) ^ (col & 0xFFFFFFFFL);
+    }
+
+    private boolean isChannelAcquired(int channelIndex) {
+        return channels_ == null || channels_.isEmpty()
+                || (channels_.get(channelIndex).uniqueEvent_ && channels_.get(channelIndex).use_);
+    }
+
+    /**
+     * @return index of the last channel that gets its own event, or -1 if there is none
+     */
+    private int getLastChannelIndex() {
+        for (int channelIndex = Math.max(1, channels_.size()) - 1; channelIndex >= 0; channelIndex--) {
+            if (isChannelAcquired(channelIndex)) {
+                return channelIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Must hold tileRequestLock_. Cancels requests that haven't started too far from the view, and returns the rest
+     * closest to the center of the view first. Ties keep request order
+     */
+    private ArrayList<ExploreTileWaitingToAcquire> getWaitingTileRequests() {
+        ArrayList<ExploreTileWaitingToAcquire> waiting = new ArrayList<ExploreTileWaitingToAcquire>(tileRequests_.size());
+        long rowMargin = viewRow2_ - viewRow1_ + 1;
+        long colMargin = viewCol2_ - viewCol1_ + 1;
+        Iterator<ExploreTileWaitingToAcquire> it = tileRequests_.values().iterator();
+        while (it.hasNext()) {
+            ExploreTileWaitingToAcquire tile = it.next();
+            if (tile.started) {
+                continue;
+            }
+            if (viewKnown_ && (tile.row < viewRow1_ - rowMargin || tile.row > viewRow2_ + rowMargin
+                    || tile.col < viewCol1_ - colMargin || tile.col > viewCol2_ + colMargin)) {
+                it.remove();
+            } else {
+                waiting.add(tile);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Turns the request closest to the view into acquisition events, one per slice and channel, as there is room for
+     * them in the event queue. Position metadata is only created for tiles that are actually acquired. Requests are
+     * reordered here rather than on the thread that changes the view
+     */
+    private void startTileRequestThread() {
+        tileRequestThread_ = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                ArrayList<ExploreTileWaitingToAcquire> ordered = new ArrayList<ExploreTileWaitingToAcquire>();
+                int next = 0;
+                long orderedGeneration = -1;
+                try {
+                    while (true) {
+                        TileDistanceComparator comparator = null;
+                        synchronized (tileRequestLock_) {
+                            while (requestGeneration_ == orderedGeneration && next >= ordered.size()) {
+                                tileRequestLock_.wait();
+                            }
+                            if (requestGeneration_ != orderedGeneration) {
+                                orderedGeneration = requestGeneration_;
+                                ordered = getWaitingTileRequests();
+                                next = 0;
+                                comparator = new TileDistanceComparator(viewKnown_, (viewRow1_ + viewRow2_) / 2.0, (viewCol1_ + viewCol2_) / 2.0);
+                            }
+                        }
+                        if (comparator != null) {
+                            //sorted outside the lock, so requests and view changes don't wait for it
+                            Collections.sort(ordered, comparator);
+                            continue;
+                        }
+                        ExploreTileWaitingToAcquire tile = ordered.get(next++);
+                        long key = tileKey(tile.row, tile.col);
+                        int lastChannelIndex = getLastChannelIndex();
+                        int minSliceIndex;
+                        synchronized (tileRequestLock_) {
+                            //skip requests cancelled since they were ordered
+                            if (tileRequests_.get(key) != tile || tile.started) {
+                                continue;
+                            }
+                            if (lastChannelIndex == -1) {
+                                tileRequests_.remove(key);
+                                continue;
+                            }
+                            tile.started = true;
+                            tile.lastChannelIndex = lastChannelIndex;
+                            minSliceIndex = tile.minSliceIndex;
+                        }
+                        int[] posIndices = imageStorage_.getPositionIndices(new int[]{(int) tile.row}, new int[]{(int) tile.col});
+                        if (posIndices == null) {
+                            Log.log("Problem with position metadata: couldn't add tile", true);
+                            synchronized (tileRequestLock_) {
+                                if (tileRequests_.get(key) == tile) {
+                                    tileRequests_.remove(key);
+                                }
+                            }
+                            continue;
+                        }
+                        addTileEvents(tile, key, posIndices[0], minSliceIndex);
+                    }
+                } catch (InterruptedException e) {
+                    //aborted acquisition
+                }
+            }
+        }, "Explore tile request thread");
+        tileRequestThread_.setDaemon(true);
+        tileRequestThread_.start();
+    }
+
+    /**
+     * Adds the events of every slice and channel of a tile, waiting for room in the event queue, unless the request
+     * gets cancelled in the meantime. The highest slice is read again before each slice, since requests for the same
+     * tile can still extend it
+     */
+    private void addTileEvents(ExploreTileWaitingToAcquire tile, long key, int posIndex, int minSliceIndex)
+            throws InterruptedException {
+        for (int sliceIndex = minSliceIndex;; sliceIndex++) {
+            synchronized (tileRequestLock_) {
+                if (sliceIndex > tile.maxSliceIndex) {
+                    tile.eventsAdded = true;
+                    return;
+                }
+            }
+            for (int channelIndex = 0; channelIndex <= tile.lastChannelIndex; channelIndex++) {
+                if (!isChannelAcquired(channelIndex)) {
+                    continue;
+                }
+                AcquisitionEvent event = new AcquisitionEvent(ExploreAcquisition.this, 0, channelIndex, sliceIndex,
+                        posIndex, getZCoordinate(sliceIndex), imageStorage_.getXYPosition(posIndex), null);
+                while (!events_.offer(event, REQUEST_CANCEL_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    synchronized (tileRequestLock_) {
+                        if (tileRequests_.get(key) != tile) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
     }
 
     public void acquireTileAtCurrentLocation(final SubImageControls controls) {
@@ -131,36 +343,39 @@ public class ExploreAcquisition extends Acquisition {
                 }
                 int sliceIndex = (int) Math.round((zPos - zOrigin_) / zStep_);
                 int posIndex = imageStorage_.getPositionIndexFromStageCoords(xPos, yPos);
-
-                for (int channelIndex = 0; channelIndex < Math.max(1, channels_.size()); channelIndex++) {
-                    if (channels_ != null && !channels_.isEmpty()) {
-                        if (!channels_.get(channelIndex).uniqueEvent_ || !channels_.get(channelIndex).use_) {
-                            continue;
-                        }
+                long row = imageStorage_.getXYPosition(posIndex).getGridRow();
+                long col = imageStorage_.getXYPosition(posIndex).getGridCol();
+                int lastChannelIndex = getLastChannelIndex();
+                synchronized (tileRequestLock_) {
+                    ExploreTileWaitingToAcquire requested = tileRequests_.get(tileKey(row, col));
+                    if (requested != null && sliceIndex >= requested.waitingFromSliceIndex && sliceIndex <= requested.maxSliceIndex) {
+                        return; //ignor commands for duplicates
                     }
-                    //add tile tile to list waiting to acquire for drawing purposes
-
-                    if (!queuedTileEvents_.containsKey(sliceIndex)) {
-                        queuedTileEvents_.put(sliceIndex, new LinkedBlockingQueue<ExploreTileWaitingToAcquire>());
+                    if (requested == null && lastChannelIndex != -1) {
+                        //acquired straight away rather than ordered with the other requests
+                        ExploreTileWaitingToAcquire tile = new ExploreTileWaitingToAcquire(row, col, sliceIndex, sliceIndex);
+                        tile.started = true;
+                        tile.eventsAdded = true;
+                        tile.lastChannelIndex = lastChannelIndex;
+                        tileRequests_.put(tileKey(row, col), tile);
                     }
-
-                    ExploreTileWaitingToAcquire tile = new ExploreTileWaitingToAcquire(imageStorage_.getXYPosition(posIndex).getGridRow(),
-                            imageStorage_.getXYPosition(posIndex).getGridCol(), sliceIndex, channelIndex);
-                    if (queuedTileEvents_.get(sliceIndex).contains(tile)) {
-                        continue; //ignor commands for duplicates
+                }
+                //update so taht z scroll bar appears properly
+                minSliceIndex_ = Math.min(minSliceIndex_, sliceIndex);
+                maxSliceIndex_ = Math.max(maxSliceIndex_, sliceIndex);
+                //update so that z limit sliders make sense
+                controls.setZLimitSliderValues(sliceIndex);
+                for (int channelIndex = 0; channelIndex <= lastChannelIndex; channelIndex++) {
+                    if (!isChannelAcquired(channelIndex)) {
+                        continue;
                     }
                     try {
-                        queuedTileEvents_.get(sliceIndex).put(tile);
-                        //update so taht z scroll bar appears properly
-                         minSliceIndex_ = Math.min(minSliceIndex_, sliceIndex);
-                         maxSliceIndex_ = Math.max(maxSliceIndex_, sliceIndex);
-                         //update so that z limit sliders make sense
-                        controls.setZLimitSliderValues(sliceIndex);
                         events_.put(new AcquisitionEvent(ExploreAcquisition.this, 0, channelIndex, sliceIndex, posIndex, getZCoordinate(sliceIndex),
                                 imageStorage_.getXYPosition(posIndex), null));
                     } catch (InterruptedException e) {
                         //aborted acquisition
                         Log.log("Interrupted while trying to add acquire evenet");
+                        return;
                     }
                 }
             }
@@ -172,81 +387,62 @@ public class ExploreAcquisition extends Acquisition {
 
             @Override
             public void run() {
-                //update positionList and get index
-                int[] posIndices = null;
-                try {
-                    int row1, row2, col1, col2;
-                    //order tile indices properly
-                    if (r1 > r2) {
-                        row1 = r2;
-                        row2 = r1;
-                    } else {
-                        row1 = r1;
-                        row2 = r2;
-                    }
-                    if (c1 > c2) {
-                        col1 = c2;
-                        col2 = c1;
-                    } else {
-                        col1 = c1;
-                        col2 = c2;
-                    }
-
-                    //Get position Indices from manager based on row and column
-                    //it will create new metadata as needed
-                    int[] newPositionRows = new int[(row2 - row1 + 1) * (col2 - col1 + 1)];
-                    int[] newPositionCols = new int[(row2 - row1 + 1) * (col2 - col1 + 1)];
-                    for (int r = row1; r <= row2; r++) {
-                        for (int c = col1; c <= col2; c++) {
-                            int i = (r - row1) + (1 + row2 - row1) * (c - col1);
-                            newPositionRows[i] = r;
-                            newPositionCols[i] = c;
-                        }
-                    }
-                    posIndices = imageStorage_.getPositionIndices(newPositionRows, newPositionCols);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.log("Problem with position metadata: couldn't add tile", true);
-                    return;
-                }
-
-                //create set of hardware instructions for an acquisition event
-                for (int i = 0; i < posIndices.length; i++) {
-                    //update lowest slice for the benefit of the zScrollbar in the viewer
-                    updateLowestAndHighestSlices();
-                    //Add events for each channel, slice            
-                    for (int sliceIndex = getZLimitMinSliceIndex(); sliceIndex <= getZLimitMaxSliceIndex(); sliceIndex++) {
-                        for (int channelIndex = 0; channelIndex < Math.max(1, channels_.size()); channelIndex++) {
-                            if (channels_ != null && !channels_.isEmpty()) {
-                                if (!channels_.get(channelIndex).uniqueEvent_ || !channels_.get(channelIndex).use_) {
+                //order tile indices properly
+                int row1 = Math.min(r1, r2), row2 = Math.max(r1, r2);
+                int col1 = Math.min(c1, c2), col2 = Math.max(c1, c2);
+                //update lowest slice for the benefit of the zScrollbar in the viewer
+                updateLowestAndHighestSlices();
+                int minSliceIndex = getZLimitMinSliceIndex(), maxSliceIndex = getZLimitMaxSliceIndex();
+                //only one request per tile is made here, position metadata and events are created as tiles get acquired
+                int numNotRequested = 0;
+                synchronized (tileRequestLock_) {
+                    for (int c = col1; c <= col2; c++) {
+                        for (int r = row1; r <= row2; r++) {
+                            long key = tileKey(r, c);
+                            ExploreTileWaitingToAcquire requested = tileRequests_.get(key);
+                            if (requested == null) {
+                                if (tileRequests_.size() >= MAX_TILE_REQUESTS) {
+                                    numNotRequested++;
                                     continue;
                                 }
-                            }
-                            try {
-                                //in case interupt occurs in between blocking calls of a really big loop
-                                if (Thread.interrupted()) {
-                                    throw new InterruptedException();
+                                requested = new ExploreTileWaitingToAcquire(r, c, minSliceIndex, maxSliceIndex);
+                                requested.requestIndex = numTileRequests_++;
+                                tileRequests_.put(key, requested);
+                            } else if (!requested.started) {
+                                //duplicates only add slices
+                                requested.addSlices(minSliceIndex, maxSliceIndex);
+                            } else if (minSliceIndex < requested.minSliceIndex || maxSliceIndex > requested.maxSliceIndex) {
+                                int followUpMaxSliceIndex = maxSliceIndex;
+                                if (!requested.eventsAdded) {
+                                    //events are added in increasing slice order, so higher slices can still join
+                                    requested.maxSliceIndex = Math.max(requested.maxSliceIndex, maxSliceIndex);
+                                    followUpMaxSliceIndex = requested.minSliceIndex - 1;
                                 }
-                                //add tile tile to list waiting to acquire for drawing purposes
-                                if (!queuedTileEvents_.containsKey(sliceIndex)) {
-                                    queuedTileEvents_.put(sliceIndex, new LinkedBlockingQueue<ExploreTileWaitingToAcquire>());
+                                if (minSliceIndex <= followUpMaxSliceIndex) {
+                                    //the rest are requested again once the running request is done
+                                    if (requested.followUp == null) {
+                                        requested.followUp = new ExploreTileWaitingToAcquire(r, c, minSliceIndex, followUpMaxSliceIndex);
+                                    } else {
+                                        requested.followUp.addSlices(minSliceIndex, followUpMaxSliceIndex);
+                                    }
                                 }
-
-                                ExploreTileWaitingToAcquire tile = new ExploreTileWaitingToAcquire(imageStorage_.getXYPosition(posIndices[i]).getGridRow(),
-                                        imageStorage_.getXYPosition(posIndices[i]).getGridCol(), sliceIndex, channelIndex);
-                                if (queuedTileEvents_.get(sliceIndex).contains(tile)) {
-                                    continue; //ignor commands for duplicates
-                                }
-                                queuedTileEvents_.get(sliceIndex).put(tile);
-
-                                events_.put(new AcquisitionEvent(ExploreAcquisition.this, 0, channelIndex, sliceIndex, posIndices[i], getZCoordinate(sliceIndex),
-                                        imageStorage_.getXYPosition(posIndices[i]), null));
-                            } catch (InterruptedException ex) {
-                                //aborted acqusition
-                                return;
                             }
                         }
                     }
+                    requestGeneration_++;
+                    tileRequestLock_.notifyAll();
+                }
+                if (numNotRequested > 0) {
+                    final String message = "Too many tiles waiting to be acquired, " + numNotRequested
+                            + " of the selected tiles were not requested. Select them again once more tiles have been acquired";
+                    Log.log(message, false);
+                    SwingUtilities.invokeLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            JOptionPane.showMessageDialog(null, message, "Explore", JOptionPane.WARNING_MESSAGE);
+                        }
+                    });
                 }
             }
         });
@@ -364,22 +560,76 @@ public class ExploreAcquisition extends Acquisition {
         return 1;
     }
 
-    //slice and row/col index of an acquisition event in the queue
-    public class ExploreTileWaitingToAcquire {
 
-        public long row, col, sliceIndex, channelIndex;
+    //orders tile requests by squared distance in tiles from the center of the view, then by request order
+    private static class TileDistanceComparator implements Comparator<ExploreTileWaitingToAcquire> {
 
-        public ExploreTileWaitingToAcquire(long r, long c, int z, int ch) {
+        private final boolean viewKnown_;
+        private final double centerRow_, centerCol_;
+
+        public TileDistanceComparator(boolean viewKnown, double centerRow, double centerCol) {
+            viewKnown_ = viewKnown;
+            centerRow_ = centerRow;
+            centerCol_ = centerCol;
+        }
+
+        private double distance(ExploreTileWaitingToAcquire tile) {
+            if (!viewKnown_) {
+                return 0;
+            }
+            return (tile.row - centerRow_) * (tile.row - centerRow_) + (tile.col - centerCol_) * (tile.col - centerCol_);
+        }
+
+        @Override
+        public int compare(ExploreTileWaitingToAcquire t1, ExploreTileWaitingToAcquire t2) {
+            double d1 = distance(t1), d2 = distance(t2);
+            if (d1 != d2) {
+                return d1 < d2 ? -1 : 1;
+            }
+            return t1.requestIndex < t2.requestIndex ? -1 : (t1.requestIndex == t2.requestIndex ? 0 : 1);
+        }
+    }
+
+    //row/col index and slices of a tile waiting to be acquired
+    public class ExploreTileWaitingToAcquire {
+
+        public long row, col;
+        private int minSliceIndex, maxSliceIndex;
+        //slices below this one have been acquired
+        private int waitingFromSliceIndex;
+        //order in which tiles were requested
+        private long requestIndex;
+        //set once events are being created, after which the request is no longer reordered or cancelled
+        private boolean started = false;
+        //set once events for every slice up to maxSliceIndex have been created
+        private boolean eventsAdded = false;
+        //slices requested that a started request can no longer add, acquired once it is done
+        private ExploreTileWaitingToAcquire followUp;
+        private int lastChannelIndex;
+
+        public ExploreTileWaitingToAcquire(long r, long c, int minSlice, int maxSlice) {
             row = r;
             col = c;
-            sliceIndex = z;
-            channelIndex = ch;
+            minSliceIndex = minSlice;
+            maxSliceIndex = maxSlice;
+            waitingFromSliceIndex = minSlice;
+        }
+
+        //must hold tileRequestLock_ and not be started
+        private void addSlices(int minSlice, int maxSlice) {
+            minSliceIndex = Math.min(minSliceIndex, minSlice);
+            maxSliceIndex = Math.max(maxSliceIndex, maxSlice);
+            waitingFromSliceIndex = minSliceIndex;
         }
 
         @Override
         public boolean equals(Object other) {
-            return ((ExploreTileWaitingToAcquire) other).col == col && ((ExploreTileWaitingToAcquire) other).row == row
-                    && ((ExploreTileWaitingToAcquire) other).sliceIndex == sliceIndex && ((ExploreTileWaitingToAcquire) other).channelIndex == channelIndex;
+            return ((ExploreTileWaitingToAcquire) other).col == col && ((ExploreTileWaitingToAcquire) other).row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (row * 31 + col);
         }
 
     }
@@ -37,6 +37,8 @@ import java.awt.geom.Point2D;
 import org.micromanager.plugins.magellan.json.JSONArray;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.micromanager.plugins.magellan.misc.Log;
+import org.micromanager.plugins.magellan.propsandcovariants.CovariantPairing;
+import org.micromanager.plugins.magellan.propsandcovariants.SurfaceData;
 import org.micromanager.plugins.magellan.surfacesandregions.Point3d;
 import org.micromanager.plugins.magellan.surfacesandregions.SurfaceChangedListener;
 import org.micromanager.plugins.magellan.surfacesandregions.SurfaceInterpolator;
@@ -49,9 +51,14 @@ import org.micromanager.plugins.magellan.surfacesandregions.SurfaceManager;
 public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedListener {
 
    private static final int EVENT_QUEUE_CAP = 25;
+   //number of upcoming positions whose neural net excitations are computed ahead of event creation
+   private static final int NN_PRECOMPUTE_POSITIONS = 4;
 
    final private FixedAreaAcquisitionSettings settings_;
    private List<XYStagePosition> positions_;
+   //order in which positions are visited in the current time point
+   private int[] positionOrder_;
+   private int positionOrderTimeIndex_ = -1;
    private long nextTimePointStartTime_ms_;
    private ParallelAcquisitionGroup acqGroup_;
    //barrier to wait for event generation at successive time points
@@ -228,6 +235,10 @@ public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedL
       return maxIndex + 1;
    }
 
+   public List<XYStagePosition> getPositions() {
+      return positions_;
+   }
+
    public long getNextWakeTime_ms() {
       return nextTimePointStartTime_ms_;
    }
@@ -427,20 +438,95 @@ public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedL
       });
    }
 
+   /**
+    * Start computing the neural net excitations for the slices of the next
+    * few positions in the background, so events can be created without waiting
+    * for them
+    */
+   private void precomputeNeuralNetExcitations(int orderIndex) throws InterruptedException {
+      for (CovariantPairing pairing : settings_.covariantPairings_) {
+         if (!(pairing.getIndependentCovariant() instanceof SurfaceData)
+                 || !((SurfaceData) pairing.getIndependentCovariant()).isNeuralNetControl()) {
+            continue;
+         }
+         SurfaceData surfaceData = (SurfaceData) pairing.getIndependentCovariant();
+         for (int i = orderIndex; i < Math.min(positionOrder_.length, orderIndex + NN_PRECOMPUTE_POSITIONS); i++) {
+            XYStagePosition position = positions_.get(positionOrder_[i]);
+            List<Double> zPositions = getSliceZPositions(position);
+            surfaceData.getNN(0).precomputeExcitations(position, zPositions, surfaceData.getSurface());
+            surfaceData.getNN(1).precomputeExcitations(position, zPositions, surfaceData.getSurface());
+         }
+      }
+   }
+
+   /**
+    * z positions of the slices that createEventsAtTimepoint acquires at this position
+    */
+   private List<Double> getSliceZPositions(XYStagePosition position) throws InterruptedException {
+      List<Double> zPositions = new ArrayList<Double>();
+      if (settings_.spaceMode_ == FixedAreaAcquisitionSettings.REGION_2D && settings_.collectionPlane_ != null) {
+         zPositions.add((double) settings_.collectionPlane_.getExtrapolatedValue(position.getCenter().x, position.getCenter().y));
+         return zPositions;
+      }
+      if (isImagingVolumeUndefinedAtPosition(settings_.spaceMode_, settings_, position)) {
+         return zPositions;
+      }
+      int sliceIndex = (int) Math.round((getZTopCoordinate() - zOrigin_) / zStep_);
+      while (true) {
+         double zPos = zOrigin_ + sliceIndex * zStep_;
+         if ((settings_.spaceMode_ == FixedAreaAcquisitionSettings.REGION_2D || settings_.spaceMode_ == FixedAreaAcquisitionSettings.NO_SPACE)
+                 && sliceIndex > 0) {
+            break; //2D regions only have 1 slice
+         }
+         if (isZBelowImagingVolume(settings_.spaceMode_, settings_, position, zPos, zOrigin_) || (zStageHasLimits_ && zPos > zStageUpperLimit_)) {
+            break;
+         }
+         if (!isZAboveImagingVolume(settings_.spaceMode_, settings_, position, zPos, zOrigin_) && !(zStageHasLimits_ && zPos < zStageLowerLimit_)) {
+            zPositions.add(zPos);
+         }
+         sliceIndex++;
+      }
+      return zPositions;
+   }
+
+   /**
+    * Indices of the channels that are acquired as separate events
+    */
+   private List<Integer> getUsedChannelIndices() {
+      List<Integer> indices = new ArrayList<Integer>();
+      for (int channelIndex = 0; channelIndex < settings_.channels_.size(); channelIndex++) {
+         if (settings_.channels_.get(channelIndex).uniqueEvent_ && settings_.channels_.get(channelIndex).use_) {
+            indices.add(channelIndex);
+         }
+      }
+      return indices;
+   }
+
    private void createChannelSliceEvents() {
 
    }
 
    private void createEventsAtTimepoint(int timeIndex) throws InterruptedException, Exception {
-      int positionIndex;
-      if (lastEvent_ != null && lastEvent_.timeIndex_ == timeIndex) {
+      if (positionOrderTimeIndex_ != timeIndex) {
+         //order is planned once per time point, so a continuation uses the same one
+         positionOrder_ = acqGroup_.getScheduler().orderPositions(positions_);
+         positionOrderTimeIndex_ = timeIndex;
+      }
+      int orderIndex = 0;
+      if (lastEvent_ != null && lastEvent_.timeIndex_ == timeIndex && lastEvent_.xyPosition_ != null) {
          //continuation of an exisitng time point due to a surface being changed
-         positionIndex = lastEvent_.positionIndex_;
-      } else {
-         positionIndex = 0;
+         for (int i = 0; i < positionOrder_.length; i++) {
+            if (positionOrder_[i] == lastEvent_.positionIndex_) {
+               orderIndex = i;
+               break;
+            }
+         }
       }
+      List<Integer> channelIndices = getUsedChannelIndices();
 
-      while (positionIndex < positions_.size()) {
+      while (orderIndex < positionOrder_.length) {
+         int positionIndex = positionOrder_[orderIndex];
+         precomputeNeuralNetExcitations(orderIndex);
          //add events for all slices/channels at this position
          XYStagePosition position = positions_.get(positionIndex);
          boolean tiltedPlane2D = settings_.spaceMode_ == FixedAreaAcquisitionSettings.REGION_2D && settings_.collectionPlane_ != null;
@@ -472,11 +558,7 @@ public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedL
                   continue; //position is above imaging volume or range of focus device
                }
 
-               for (int channelIndex = 0; channelIndex < settings_.channels_.size(); channelIndex++) {
-                  if (!settings_.channels_.get(channelIndex).uniqueEvent_ || !settings_.channels_.get(channelIndex).use_) {
-                     continue;
-                  }
-                  
+               for (int channelIndex : acqGroup_.getScheduler().orderChannels(channels_, channelIndices)) {
                   AcquisitionEvent event = new AcquisitionEvent(FixedAreaAcquisition.this, timeIndex, channelIndex, sliceIndex,
                           positionIndex, zPos, position, settings_.covariantPairings_);
                   if (eventGenerator_.isShutdown()) {
@@ -501,10 +583,7 @@ public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedL
             } //slice loop finish
          } else {
             //Z stacks at each channel
-            for (int channelIndex = 0; channelIndex < settings_.channels_.size(); channelIndex++) {
-               if (!settings_.channels_.get(channelIndex).uniqueEvent_ || !settings_.channels_.get(channelIndex).use_) {
-                  continue;
-               }
+            for (int channelIndex : acqGroup_.getScheduler().orderChannels(channels_, channelIndices)) {
                //Special case: 2D tilted plane
                if (tiltedPlane2D) {
                   //index all slcies as 0, even though they may nto be in the same plane
@@ -565,7 +644,7 @@ public class FixedAreaAcquisition extends Acquisition implements SurfaceChangedL
                
             } 
          }
-         positionIndex++;
+         orderIndex++;
       } //position loop finished
       if (timeIndex == (settings_.timeEnabled_ ? settings_.numTimePoints_ : 1) - 1) {
          //acquisition now finished, add event so engine can mark acquisition as finished                 
@@ -59,7 +59,10 @@ public class MagellanEngine {
     private static final int HARDWARE_ERROR_RETRIES = 6;
     private static final int DELWAY_BETWEEN_RETRIES_MS = 5;
     private static CMMCore core_;
-    private AcquisitionEvent lastEvent_ = null;
+    //hardware state left by the last event, so that moves that are already satisfied can be skipped
+    private String lastZStage_, lastXYStage_;
+    private double lastZ_, lastX_, lastY_;
+    private ChannelSetting lastChannel_;
     private ExploreAcquisition currentExploreAcq_;
     private ParallelAcquisitionGroup currentFixedAcqs_;
     private MultipleAcquisitionManager multiAcqManager_;
@@ -179,7 +182,8 @@ public class MagellanEngine {
             }
         }
 
-        currentFixedAcqs_ = new ParallelAcquisitionGroup(acqs, multiAcq ? multiAcqManager_ : null, bus_);
+        currentFixedAcqs_ = new ParallelAcquisitionGroup(acqs, multiAcq ? multiAcqManager_ : null, bus_,
+                new AcqEventScheduler(acqDurationEstiamtor_));
         runAcq(currentFixedAcqs_);
         //return to exploring once this acquisition finished
         if (currentExploreAcq_ != null && !currentExploreAcq_.isFinished()) {
@@ -225,6 +229,8 @@ public class MagellanEngine {
                 if (!(acq instanceof ExploreAcquisition)) {
                     GUI.getInstance().acquisitionRunning(true);
                 }
+                //hardware may have been changed outside of the engine since the last task
+                invalidateHardwareState();
                 while (true) {
                     try {
                         if (Thread.interrupted()) {
@@ -308,26 +314,37 @@ public class MagellanEngine {
 
     private void setAutofocusPosition(final String zName, final double pos) throws InterruptedException {
 
-        loopHardwareCommandRetries(new HardwareCommand() {
+        boolean success = loopHardwareCommandRetries(new HardwareCommand() {
             @Override
             public void run() throws Exception {
                 core_.setPosition(zName, pos);
             }
         }, "Setting autofocus position");
+        if (zName.equals(lastZStage_)) {
+            lastZ_ = pos;
+            if (!success) {
+                lastZStage_ = null;
+            }
+        }
+    }
+
+    private void invalidateHardwareState() {
+        lastZStage_ = null;
+        lastXYStage_ = null;
+        lastChannel_ = null;
     }
 
     private void updateHardware(final AcquisitionEvent event) throws InterruptedException {
-        //compare to last event to see what needs to change
-        if (lastEvent_ != null && lastEvent_.acquisition_ != event.acquisition_) {
-            lastEvent_ = null; //update all hardware if switching to a new acquisition
-        }
+        //compare to the state left by the last event to see what needs to change, which
+        //also skips moves when switching between acquisitions that share a position or channel
         //Get the hardware specific to this acquisition
         final String xyStage = event.acquisition_.getXYStageName();
         final String zStage = event.acquisition_.getZStageName();
 
         //move Z before XY 
         /////////////////////////////Z stage/////////////////////////////
-        if (lastEvent_ == null || event.sliceIndex_ != lastEvent_.sliceIndex_ || event.positionIndex_ != lastEvent_.positionIndex_ ) {
+        if (lastZStage_ == null || !lastZStage_.equals(zStage) || event.zPosition_ != lastZ_) {
+            double distance = lastZStage_ != null && lastZStage_.equals(zStage) ? Math.abs(event.zPosition_ - lastZ_) : Double.NaN;
             double startTime = System.currentTimeMillis();
             //wait for it to not be busy (is this even needed?)
             loopHardwareCommandRetries(new HardwareCommand() {
@@ -339,7 +356,7 @@ public class MagellanEngine {
                 }
             }, "waiting for Z stage to not be busy");
             //move Z stage
-            loopHardwareCommandRetries(new HardwareCommand() {
+            boolean moved = loopHardwareCommandRetries(new HardwareCommand() {
                 @Override
                 public void run() throws Exception {
                     core_.setPosition(zStage, event.zPosition_);
@@ -359,15 +376,20 @@ public class MagellanEngine {
                 }
             }, "waiting for Z stage to not be busy");
             try {
-                acqDurationEstiamtor_.storeZMoveTime(System.currentTimeMillis() - startTime);
+                acqDurationEstiamtor_.storeZMoveTime(System.currentTimeMillis() - startTime, distance);
             } catch (Exception ex) {
                 Log.log(ex);
             }
+            lastZStage_ = moved ? zStage : null;
+            lastZ_ = event.zPosition_;
         }
 
 
         /////////////////////////////XY Stage/////////////////////////////
-        if (lastEvent_ == null || event.positionIndex_ != lastEvent_.positionIndex_) {
+        final double x = event.xyPosition_.getCenter().x;
+        final double y = event.xyPosition_.getCenter().y;
+        if (lastXYStage_ == null || !lastXYStage_.equals(xyStage) || x != lastX_ || y != lastY_) {
+            double distance = lastXYStage_ != null && lastXYStage_.equals(xyStage) ? Math.hypot(x - lastX_, y - lastY_) : Double.NaN;
             double startTime = System.currentTimeMillis();
             //wait for it to not be busy (is this even needed??)
             loopHardwareCommandRetries(new HardwareCommand() {
@@ -379,10 +401,10 @@ public class MagellanEngine {
                 }
             }, "waiting for XY stage to not be busy");
             //move to new position
-            loopHardwareCommandRetries(new HardwareCommand() {
+            boolean moved = loopHardwareCommandRetries(new HardwareCommand() {
                 @Override
                 public void run() throws Exception {
-                    core_.setXYPosition(xyStage, event.xyPosition_.getCenter().x, event.xyPosition_.getCenter().y);
+                    core_.setXYPosition(xyStage, x, y);
                     //delay in demo mode to simulate movement
                     if (GlobalSettings.getInstance().getDemoMode()) {
                         Thread.sleep(DEMO_DELAY_XY);
@@ -399,20 +421,24 @@ public class MagellanEngine {
                 }
             }, "waiting for XY stage to not be busy");
             try {
-                acqDurationEstiamtor_.storeXYMoveTime(System.currentTimeMillis() - startTime);
+                acqDurationEstiamtor_.storeXYMoveTime(System.currentTimeMillis() - startTime, distance);
             } catch (Exception ex) {
                 Log.log(ex);
             }
+            lastXYStage_ = moved ? xyStage : null;
+            lastX_ = x;
+            lastY_ = y;
         }
 
         /////////////////////////////Channels/////////////////////////////
-        if (lastEvent_ == null || event.channelIndex_ != lastEvent_.channelIndex_
-                && event.acquisition_.channels_ != null && !event.acquisition_.channels_.isEmpty()) {
+        if (event.acquisition_.channels_ != null && !event.acquisition_.channels_.isEmpty()
+                && !AcqEventScheduler.sameChannel(event.acquisition_.channels_.get(event.channelIndex_), lastChannel_)) {
             double startTime = System.currentTimeMillis();
+            lastChannel_ = null;
             try {
                 final ChannelSetting setting = event.acquisition_.channels_.get(event.channelIndex_);
                 if (setting.use_ && setting.config_ != null) {
-                    loopHardwareCommandRetries(new HardwareCommand() {
+                    boolean switched = loopHardwareCommandRetries(new HardwareCommand() {
                         @Override
                         public void run() throws Exception {
                             //set exposure
@@ -422,6 +448,9 @@ public class MagellanEngine {
                             core_.waitForConfig(setting.group_, setting.config_);
                         }
                     }, "Set channel group");
+                    lastChannel_ = switched ? setting : null;
+                } else {
+                    lastChannel_ = setting; //nothing to switch
                 }
 
             } catch (Exception ex) {
@@ -448,14 +477,16 @@ public class MagellanEngine {
                 }, "settng Covariant value pair " + cp.toString());
             }
         }
-        lastEvent_ = event;
     }
 
-    private void loopHardwareCommandRetries(HardwareCommand r, String commandName) throws InterruptedException {
+    /**
+     * @return true if the command succeeded
+     */
+    private boolean loopHardwareCommandRetries(HardwareCommand r, String commandName) throws InterruptedException {
         for (int i = 0; i < HARDWARE_ERROR_RETRIES; i++) {
             try {
                 r.run();
-                return;
+                return true;
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.log(getCurrentDateAndTime() + ": Problem " + commandName + "\n Retry #" + i + " in " + DELWAY_BETWEEN_RETRIES_MS + " ms", true);
@@ -463,6 +494,7 @@ public class MagellanEngine {
             }
         }
         Log.log(commandName + "unsuccessful", true);
+        return false;
     }
 
     private String getCurrentDateAndTime() {
@@ -29,10 +29,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.micromanager.plugins.magellan.json.JSONArray;
@@ -51,7 +61,7 @@ import org.micromanager.plugins.magellan.misc.MD;
  * downsample factor without truncation
  *
  */
-public class MultiResMultipageTiffStorage {
+public class MultiResMultipageTiffStorage implements PyramidalTiffExporter.TileSource {
 
    private final double BACKGROUND_PIXEL_PERCENTILE = 0.1; // assume background pixels are at 10th percentile of histogram
    private static final String FULL_RES_SUFFIX = "Full resolution";
@@ -64,16 +74,46 @@ public class MultiResMultipageTiffStorage {
    private int fullResTileWidthIncludingOverlap_, fullResTileHeightIncludingOverlap_;
    private int tileWidth_, tileHeight_; //Indpendent of zoom level because tile sizes stay the same--which means overlap is cut off
    private PositionManager posManager_;
-   private boolean finished_;
+   private volatile boolean finished_;
    private String uniqueAcqName_;
    private int byteDepth_;
-   private TreeMap<Integer, Integer> backgroundPix_ = new TreeMap<Integer, Integer>(); //map of channel index to background pixel value
+   private ConcurrentHashMap<Integer, Integer> backgroundPix_ = new ConcurrentHashMap<Integer, Integer>(); //map of channel index to background pixel value
    private boolean estimateBackground_;
    private double pixelSizeXY_, pixelSizeZ_;
    private AffineTransform affine_;
    private BDVXMLWriter bdvXML_;
    private int currentTP_ = -1;
    private boolean rgb_;
+   //lower resolutions are built on background threads, so that writing full resolution
+   //tiles never waits for them
+   private static final int PYRAMID_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+   //putImage waits while this many tile updates are waiting to be downsampled, so that the
+   //full resolution pixels they hold can't use up the memory when the pyramid falls behind
+   private static final int MAX_PENDING_PYRAMID_UPDATES = 4 * PYRAMID_THREADS;
+   private ThreadPoolExecutor pyramidExecutor_;
+   private final ConcurrentHashMap<String, PyramidUpdate> pendingPyramidUpdates_ = new ConcurrentHashMap<String, PyramidUpdate>();
+   private final Object pyramidIdleLock_ = new Object();
+   private int pyramidUpdatesInProgress_ = 0;
+   //held for reading while adding tiles, and for writing while adding resolution levels
+   private final ReentrantReadWriteLock levelsLock_ = new ReentrantReadWriteLock();
+   private final ConcurrentHashMap<String, Object> tileLocks_ = new ConcurrentHashMap<String, Object>();
+   //recently used tiles of all resolution levels, keyed by resolution index and label, so they
+   //don't have to be read back from disk when building lower resolutions or panning the display
+   private int maxCachedTiles_ = 16;
+   private final LinkedHashMap<String, MagellanTaggedImage> tileCache_ = new LinkedHashMap<String, MagellanTaggedImage>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MagellanTaggedImage> eldest) {
+         return size() > maxCachedTiles_;
+      }
+   };
+   //tiles next to the displayed area are read ahead in the direction the view moves
+   private ThreadPoolExecutor prefetchExecutor_;
+   //last displayed view of each channel: resolution index, x, y, generation
+   private final HashMap<Integer, long[]> displayedViews_ = new HashMap<Integer, long[]>();
+   //generation of the view each pending prefetch was requested for
+   private final ConcurrentHashMap<String, Long> pendingPrefetches_ = new ConcurrentHashMap<String, Long>();
+   //pixels of empty blocks, by channel, shared by all empty blocks once the dataset is finished
+   private final ConcurrentHashMap<Integer, Object> blankBlocks_ = new ConcurrentHashMap<Integer, Object>();
    
    /**
     * Constructor to load existing storage from disk
@@ -207,6 +247,9 @@ public class MultiResMultipageTiffStorage {
       pixelSizeZ_ = MD.getZStepUm(summaryMD_);
       pixelSizeXY_ = MD.getPixelSizeUm(summaryMD_);
       affine_ = AffineUtils.stringToTransform(MD.getAffineTransformString(summaryMD_));
+      //use up to 1/16 of the memory for cached tiles
+      long tileBytes = Math.max(1L, (long) tileWidth_ * tileHeight_ * (rgb_ ? 4 : byteDepth_));
+      maxCachedTiles_ = (int) Math.max(16, Math.min(4096, Runtime.getRuntime().maxMemory() / 16 / tileBytes));
    }
    
    public int getByteDepth() {
@@ -354,23 +397,13 @@ public class MultiResMultipageTiffStorage {
    public MagellanTaggedImage loadSubvolume(int channel, int frame, int resIndex,
            int xStart, int yStart, int zStart, int width, int height, int depth) {
       JSONObject metadata = null;
-      if (byteDepth_ == 1) {
-         byte[] pix = new byte[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
-      } else {
-         short[] pix = new short[width*height*depth];
-         for (int z = zStart; z < zStart + depth; z++ ) {
-            MagellanTaggedImage image = getImageForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height);
-            metadata = image.tags;
-            System.arraycopy(image.pix, 0, pix, (z-zStart)*(width*height), width*height);
-         }
-         return new MagellanTaggedImage(pix, metadata);
+      //tiles are copied straight into the volume, one plane after the other
+      Object pix = createDisplayPixels(channel, width * height * depth);
+      for (int z = zStart; z < zStart + depth; z++) {
+         metadata = copyTilesForDisplay(channel, z, frame, resIndex, xStart, yStart, width, height,
+                 pix, (z - zStart) * width * height);
       }
+      return new MagellanTaggedImage(pix, metadata);
    }
 
    /**
@@ -391,113 +424,248 @@ public class MultiResMultipageTiffStorage {
     */
    public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y, 
            int width, int height) {
-      Object pixels;
-       if (rgb_) {
-          pixels = new byte[width * height * 4];
-       } else {
-           if (byteDepth_ == 1) {
-               pixels = new byte[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((byte[]) pixels, (byte) getBackgroundPixelValue(channel));
-               }
-           } else {
-               pixels = new short[width * height];
-               if (backgroundPix_.containsKey(channel)) {
-                   Arrays.fill((short[]) pixels, (short) getBackgroundPixelValue(channel));
-               }
-           }
-       }
-      //go line by line through one column of tiles at a time, then move to next column
+      return getImageForDisplay(channel, slice, frame, dsIndex, x, y, width, height, false);
+   }
+
+   /**
+    * Same as above, but optionally reads the tiles bordering the requested area
+    * in the background, on the side the area moved to since the previous call for
+    * this channel, so that they are in memory when the display is panned further
+    *
+    * @param prefetchNeighbours true when called for a display that is being panned
+    */
+   public MagellanTaggedImage getImageForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height, boolean prefetchNeighbours) {
+      Object pixels = createDisplayPixels(channel, width * height);
+      JSONObject topLeftMD = copyTilesForDisplay(channel, slice, frame, dsIndex, x, y, width, height, pixels, 0);
+      if (prefetchNeighbours) {
+         prefetchNeighbouringTiles(channel, slice, frame, dsIndex, x, y, width, height);
+      }
+      return new MagellanTaggedImage(pixels, topLeftMD);
+   }
+
+   /**
+    * Pixels of one block of the BigDataViewer cell grid, whose blocks are
+    * aligned to the tiles of each resolution level. Lower resolution tiles of a
+    * finished dataset are returned without copying and its empty blocks share
+    * one array, so the returned pixels must not be modified. While the dataset
+    * is being acquired tiles are copied, because the array of a tile may also
+    * be handed to the display and the pyramid threads. Tiles read here are not
+    * kept in the tile cache, since BigDataViewer caches blocks itself
+    *
+    * @param x coordinate of leftmost pixel in requested resolution
+    * @param y coordinate of topmost pixel in requested resolution
+    */
+   public Object getBlockPixels(int channel, int slice, int frame, int resIndex, long x, long y,
+           int width, int height) {
+      if (resIndex > 0 && !rgb_ && width == tileWidth_ && height == tileHeight_
+              && x % tileWidth_ == 0 && y % tileHeight_ == 0) {
+         //block is exactly one tile, which has no overlap below full resolution
+         MagellanTaggedImage tile = null;
+         levelsLock_.readLock().lock();
+         try {
+            tile = getTile(resIndex, channel, slice, frame, posManager_.getPositionIndexFromTilePosition(resIndex,
+                    tileIndexFromPixelIndex(y, false), tileIndexFromPixelIndex(x, true)), false);
+         } catch (IOException e) {
+            //at worst an empty block, which gets loaded again when the data set is reopened
+         } finally {
+            levelsLock_.readLock().unlock();
+         }
+         if (tile != null) {
+            if (finished_) {
+               return tile.pix;
+            }
+            return tile.pix instanceof byte[] ? ((byte[]) tile.pix).clone() : ((short[]) tile.pix).clone();
+         }
+         if (!finished_) {
+            return createDisplayPixels(channel, width * height);
+         }
+         Object blank = blankBlocks_.get(channel);
+         if (blank == null) {
+            blank = createDisplayPixels(channel, width * height);
+            blankBlocks_.putIfAbsent(channel, blank);
+         }
+         return blank;
+      }
+      Object pixels = createDisplayPixels(channel, width * height);
+      copyTilesForDisplay(channel, slice, frame, resIndex, x, y, width, height, pixels, 0);
+      return pixels;
+   }
+
+   private Object createDisplayPixels(int channel, int length) {
+      if (rgb_) {
+         return new byte[length * 4];
+      } else if (byteDepth_ == 1) {
+         byte[] pixels = new byte[length];
+         if (backgroundPix_.containsKey(channel)) {
+            Arrays.fill(pixels, (byte) getBackgroundPixelValue(channel));
+         }
+         return pixels;
+      } else {
+         short[] pixels = new short[length];
+         if (backgroundPix_.containsKey(channel)) {
+            Arrays.fill(pixels, (short) getBackgroundPixelValue(channel));
+         }
+         return pixels;
+      }
+   }
+
+   /**
+    * Copies the part of each tile that falls inside the requested area into
+    * pixels, starting at pixel number offset, one whole line of a tile at a time
+    *
+    * @return tags of the top left tile present, or null if there are none
+    */
+   private JSONObject copyTilesForDisplay(int channel, int slice, int frame, int dsIndex, long x, long y,
+           int width, int height, Object pixels, int offset) {
       JSONObject topLeftMD = null;
-      //first calculate how many columns and rows of tiles are relevant and the number of pixels
-      //of each tile to copy into the returned image
-      long previousCol = tileIndexFromPixelIndex(x, true) - 1; //make it one less than the first col in loop
-      LinkedList<Integer> lineWidths = new LinkedList<Integer>();
-      for (long i = x; i < x + width; i++) { //Iterate through every column of pixels in the image to be returned
-         long colIndex = tileIndexFromPixelIndex(i, true);
-         if (colIndex != previousCol) {
-            lineWidths.add(0);
-         }
-         //Increment current width
-         lineWidths.add(lineWidths.removeLast() + 1);
-         previousCol = colIndex;
-      }
-      //do the same thing for rows
-      long previousRow = tileIndexFromPixelIndex(y, false) - 1; //one less than first row in loop?
-      LinkedList<Integer> lineHeights = new LinkedList<Integer>();
-      for (long i = y; i < y + height; i++) {
-         long rowIndex = tileIndexFromPixelIndex(i, false);
-         if (rowIndex != previousRow) {
-            lineHeights.add(0);
-         }
-         //add one to pixel count of current height
-         lineHeights.add(lineHeights.removeLast() + 1);
-         previousRow = rowIndex;
-      }
-      //get starting row and column
-      long rowStart = tileIndexFromPixelIndex(y, false);
+      int multiplier = rgb_ ? 4 : 1;
+      //full resolution tiles have half of the overlap on each side, which isn't displayed
+      int tileLineLength = dsIndex == 0 ? fullResTileWidthIncludingOverlap_ : tileWidth_;
+      int tileXOffset = dsIndex == 0 ? xOverlap_ / 2 : 0;
+      int tileYOffset = dsIndex == 0 ? yOverlap_ / 2 : 0;
       long colStart = tileIndexFromPixelIndex(x, true);
-      //xOffset and y offset are the distance from the top left of the display image into which 
-      //we are copying data
-      int xOffset = 0;
-      for (long col = colStart; col < colStart + lineWidths.size(); col++) {
-         int yOffset = 0;
-         for (long row = rowStart; row < rowStart + lineHeights.size(); row++) {
-            MagellanTaggedImage tile = null;          
-            if (dsIndex == 0) {
-               tile = fullResStorage_.getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            } else {               
-               tile = lowResStorages_.get(dsIndex) == null ? null : 
-                       lowResStorages_.get(dsIndex).getImage(channel, slice, frame, posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
-            }
-            if (tile == null) {
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue; //If no data present for this tile go on to next one
-            } else if ( (tile.pix instanceof byte[] && ((byte[]) tile.pix).length == 0) ||
-                    (tile.pix instanceof short[] && ((short[]) tile.pix).length == 0))  {
-               //Somtimes an inability to read IFDs soon after they are written results in an image being read 
-               //with 0 length pixels. Can't figure out why this happens, but it is rare and will result at worst with
-               //a black flickering during acquisition
-               yOffset += lineHeights.get((int)(row - rowStart)); //increment y offset so new tiles appear in correct position
-               continue;
-            }
-            //take top left tile for metadata
-            if (topLeftMD == null) {
-               topLeftMD = tile.tags;
-            }
-            //Copy pixels into the image to be returned
-            //yOffset is how many rows from top of viewable area, y is top of image to top of area
-            for (int line = yOffset; line < lineHeights.get((int)(row - rowStart)) + yOffset; line++) {
-               int tileYPix = (int) ((y + line) % tileHeight_);
-               int tileXPix = (int) ((x + xOffset) % tileWidth_);                   
-               //make sure tile pixels are positive
-               while (tileXPix < 0) {
-                  tileXPix += tileWidth_;
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      long rowStart = tileIndexFromPixelIndex(y, false);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      levelsLock_.readLock().lock();
+      try {
+         for (long col = colStart; col <= colEnd; col++) {
+            //pixels of this column of tiles inside the requested area
+            long left = Math.max(x, col * tileWidth_);
+            long right = Math.min(x + width, (col + 1) * tileWidth_);
+            for (long row = rowStart; row <= rowEnd; row++) {
+               long top = Math.max(y, row * tileHeight_);
+               long bottom = Math.min(y + height, (row + 1) * tileHeight_);
+               MagellanTaggedImage tile;
+               try {
+                  tile = getTile(dsIndex, channel, slice, frame,
+                          posManager_.getPositionIndexFromTilePosition(dsIndex, row, col));
+               } catch (IOException e) {
+                  //will at worst result in a black flickering during acquisition
+                  continue;
                }
-               while (tileYPix < 0) {
-                  tileYPix += tileHeight_;
+               if (tile == null) {
+                  continue; //If no data present for this tile go on to next one
                }
-               try {
-                  int multiplier = rgb_ ? 4 : 1; 
-                  if (dsIndex == 0) {
-                     //account for overlaps when viewing full resolution tiles
-                     tileYPix += yOverlap_ / 2;
-                     tileXPix += xOverlap_ / 2;
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * fullResTileWidthIncludingOverlap_ + tileXPix), pixels, (xOffset + width * line)*multiplier, multiplier*lineWidths.get((int) (col - colStart)));                 
-                  } else {
-                     System.arraycopy(tile.pix, multiplier*(tileYPix * tileWidth_ + tileXPix), pixels, multiplier*(xOffset + width * line), multiplier*lineWidths.get((int)(col - colStart)));
+               //take top left tile for metadata
+               if (topLeftMD == null) {
+                  topLeftMD = tile.tags;
+               }
+               int lineLength = multiplier * (int) (right - left);
+               int tileIndex = multiplier * ((int) (top - row * tileHeight_ + tileYOffset) * tileLineLength
+                       + (int) (left - col * tileWidth_) + tileXOffset);
+               int pixelIndex = multiplier * (offset + (int) (top - y) * width + (int) (left - x));
+               for (long line = top; line < bottom; line++) {
+                  System.arraycopy(tile.pix, tileIndex, pixels, pixelIndex, lineLength);
+                  tileIndex += multiplier * tileLineLength;
+                  pixelIndex += multiplier * width;
+               }
+            }
+         }
+      } finally {
+         levelsLock_.readLock().unlock();
+      }
+      return topLeftMD;
+   }
+
+   /**
+    * Schedules reading of the row and/or column of tiles just outside the
+    * requested area, on the side(s) it moved to since the last call. Reads that
+    * are still waiting when the view moves again are dropped
+    */
+   private void prefetchNeighbouringTiles(final int channel, final int slice, final int frame,
+           final int dsIndex, long x, long y, int width, int height) {
+      long dx, dy;
+      final long generation;
+      synchronized (displayedViews_) {
+         long[] view = displayedViews_.get(channel);
+         if (view == null) {
+            view = new long[]{-1, 0, 0, 0};
+            displayedViews_.put(channel, view);
+         }
+         dx = view[0] == dsIndex ? x - view[1] : 0;
+         dy = view[0] == dsIndex ? y - view[2] : 0;
+         view[0] = dsIndex;
+         view[1] = x;
+         view[2] = y;
+         if (dx == 0 && dy == 0) {
+            return;
+         }
+         generation = ++view[3];
+      }
+      long colStart = tileIndexFromPixelIndex(x, true);
+      long colEnd = tileIndexFromPixelIndex(x + width - 1, true);
+      long rowStart = tileIndexFromPixelIndex(y, false);
+      long rowEnd = tileIndexFromPixelIndex(y + height - 1, false);
+      //the column of tiles in the direction of horizontal movement, then the row
+      //in the direction of vertical movement, including the corner when moving diagonally
+      List<long[]> tiles = new ArrayList<long[]>();
+      if (dx != 0) {
+         long col = dx > 0 ? colEnd + 1 : colStart - 1;
+         for (long row = rowStart; row <= rowEnd; row++) {
+            tiles.add(new long[]{row, col});
+         }
+      }
+      if (dy != 0) {
+         long row = dy > 0 ? rowEnd + 1 : rowStart - 1;
+         for (long col = colStart - (dx < 0 ? 1 : 0); col <= colEnd + (dx > 0 ? 1 : 0); col++) {
+            tiles.add(new long[]{row, col});
+         }
+      }
+      //don't push the displayed tiles out of the cache
+      long displayedTiles = (colEnd - colStart + 1) * (rowEnd - rowStart + 1);
+      if (2 * (displayedTiles + tiles.size()) > maxCachedTiles_) {
+         return;
+      }
+      for (long[] tile : tiles) {
+         final int positionIndex = posManager_.getPositionIndexFromTilePosition(dsIndex, tile[0], tile[1]);
+         if (positionIndex < 0) {
+            continue;
+         }
+         final String key = dsIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+         if (pendingPrefetches_.put(key, generation) != null) {
+            //already waiting, it will check the latest generation
+            continue;
+         }
+         getPrefetchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+               Long requested = pendingPrefetches_.remove(key);
+               synchronized (displayedViews_) {
+                  if (requested == null || requested != displayedViews_.get(channel)[3]) {
+                     return;
                   }
+               }
+               levelsLock_.readLock().lock();
+               try {
+                  getTile(dsIndex, channel, slice, frame, positionIndex);
                } catch (Exception e) {
-                  e.printStackTrace();
-                  Log.log("Problem copying pixels");
+                  //it will be read again when displayed
+               } finally {
+                  levelsLock_.readLock().unlock();
                }
             }
-            yOffset += lineHeights.get((int)(row - rowStart));
+         });
+      }
+   }
 
+   private ThreadPoolExecutor getPrefetchExecutor() {
+      synchronized (displayedViews_) {
+         if (prefetchExecutor_ == null) {
+            prefetchExecutor_ = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "Magellan tile prefetch thread");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+            prefetchExecutor_.allowCoreThreadTimeOut(true);
          }
-         xOffset += lineWidths.get((int)(col - colStart));
+         return prefetchExecutor_;
       }
-      return new MagellanTaggedImage(pixels, topLeftMD);
    }
    
    /**
@@ -505,13 +673,18 @@ public class MultiResMultipageTiffStorage {
     * @param resIndex 
     */
    public void initializeToLevel(int resIndex) {
-      //create a null pointer in lower res storages to signal addToLoResStorage function
-      //to continue downsampling to this level
-      for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
-         lowResStorages_.put(i, null);
+      levelsLock_.writeLock().lock();
+      try {
+         //create a null pointer in lower res storages to signal the pyramid
+         //to continue downsampling to this level
+         for (int i = lowResStorages_.keySet().size() + 1; i <= resIndex; i++) {
+            lowResStorages_.put(i, null);
+         }
+         //Make sure position nodes for lower resolutions are created if they weren't automatically
+         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+      } finally {
+         levelsLock_.writeLock().unlock();
       }
-      //Make sure position nodes for lower resolutions are created if they weren't automatically
-      posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
    }
 
    /**
@@ -523,194 +696,481 @@ public class MultiResMultipageTiffStorage {
             //nothing to downsample
             return false;
          }
-         //create a null pointer in lower res storages to signal addToLoResStorage function
-         //to continue downsampling to this level
-         lowResStorages_.put(1 + lowResStorages_.keySet().size(), null);
-         //update position manager to reflect addition of new resolution level
-         posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
-         String aLabel = fullResStorage_.imageKeys().iterator().next();
-         int[] indices = MD.getIndices(aLabel);
-         MagellanTaggedImage anImage = fullResStorage_.getImage(indices[0], indices[1], indices[2], indices[3]);         
-         addToLowResStorage(anImage, 0, indices[3]);
+         levelsLock_.writeLock().lock();
+         try {
+            //create a null pointer in lower res storages to signal the pyramid
+            //to continue downsampling to this level
+            int newResIndex = 1 + lowResStorages_.keySet().size();
+            lowResStorages_.put(newResIndex, null);
+            //update position manager to reflect addition of new resolution level
+            posManager_.updateLowerResolutionNodes(lowResStorages_.keySet().size());
+            //the new level is filled right away, so that it can be displayed
+            for (int resIndex = 1; resIndex <= newResIndex; resIndex++) {
+               if (lowResStorages_.get(resIndex) == null) {
+                  createAndFillLowResStorage(resIndex);
+               }
+            }
+         } finally {
+            levelsLock_.writeLock().unlock();
+         }
          return true;
       }
    }
-   
-   private void addToLowResStorage(MagellanTaggedImage img, int previousResIndex, int fullResPositionIndex) {
-      //Read indices
-      int channel = MD.getChannelIndex(img.tags);
-      int slice = MD.getSliceIndex(img.tags);
-      int frame = MD.getFrameIndex(img.tags);
-
-      if (estimateBackground_) {
-         readBackgroundPixelValue(channel, img); //find a background pixel value in the first image
-      }
-      Object previousLevelPix = img.pix;
-      int resolutionIndex = previousResIndex + 1;
-      
+
+   /**
+    * A tile that has changed, and needs to be downsampled into the next
+    * lower resolution level
+    */
+   private class PyramidUpdate {
+
+      final int resIndex;
+      final int channel, slice, frame;
+      //any full resolution position within the tile
+      final int fullResPositionIndex;
+      //pixels of the tile, or null to read the current pixels when the update is applied
+      final Object pix;
+      //tags used for creating new lower resolution tiles
+      final JSONObject tags;
+
+      PyramidUpdate(int resIndex, int channel, int slice, int frame, int fullResPositionIndex,
+              Object pix, JSONObject tags) {
+         this.resIndex = resIndex;
+         this.channel = channel;
+         this.slice = slice;
+         this.frame = frame;
+         this.fullResPositionIndex = fullResPositionIndex;
+         this.pix = pix;
+         this.tags = tags;
+      }
+
+      String getKey() {
+         int positionIndex = resIndex == 0 ? fullResPositionIndex
+                 : posManager_.getLowResPositionIndex(fullResPositionIndex, resIndex);
+         return resIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+      }
+   }
+
+   private ThreadPoolExecutor getPyramidExecutor() {
+      //created lazily under pyramidIdleLock_, which guards the rest of the pyramid thread bookkeeping
+      synchronized (pyramidIdleLock_) {
+         if (pyramidExecutor_ == null) {
+            //threads time out when idle, so opened data sets that are zoomed out don't keep them around
+            pyramidExecutor_ = new ThreadPoolExecutor(PYRAMID_THREADS, PYRAMID_THREADS, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "Magellan pyramid thread");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+            pyramidExecutor_.allowCoreThreadTimeOut(true);
+         }
+         return pyramidExecutor_;
+      }
+   }
+
+   /**
+    * Schedules downsampling of the given tile into the next resolution level.
+    * Updates of a tile that is already waiting to be downsampled are merged,
+    * so that a low resolution tile that receives several new tiles in quick
+    * succession is only propagated once.
+    */
+   private void queuePyramidUpdate(PyramidUpdate update) {
       //Auto downsample until max number of tiles in either direction is less than the highest dsFactor
       //or keep going until lowest user created resolution exists
-      while (lowResStorages_.containsKey(resolutionIndex) ||
-              (posManager_.getNumRows() >= Math.pow(2, resolutionIndex) || posManager_.getNumCols() >= Math.pow(2, resolutionIndex)) ) {
-
-         //See if storage level exists
-         if (!lowResStorages_.containsKey(resolutionIndex) || lowResStorages_.get(resolutionIndex) == null) {
-            createDownsampledStorage(resolutionIndex);
-            //add all tiles from existing resolution levels to this new one            
-            TaggedImageStorageMultipageTiff previousLevelStorage;
-            if (resolutionIndex == 1) {
-               previousLevelStorage = fullResStorage_;
-            } else {
-               previousLevelStorage = lowResStorages_.get(resolutionIndex - 1);
-            }            
-            Set<String> imageKeys = previousLevelStorage.imageKeys();
-            for (String key : imageKeys) {
-               String[] indices = key.split("_");
-               MagellanTaggedImage ti = previousLevelStorage.getImage(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
-                       Integer.parseInt(indices[2]), Integer.parseInt(indices[3]));
-               addToLowResStorage(ti, resolutionIndex - 1, posManager_.getFullResPositionIndex(Integer.parseInt(indices[3]), resolutionIndex - 1)); 
+      int nextResIndex = update.resIndex + 1;
+      levelsLock_.readLock().lock();
+      try {
+         if (!lowResStorages_.containsKey(nextResIndex) && posManager_.getNumRows() < Math.pow(2, nextResIndex)
+                 && posManager_.getNumCols() < Math.pow(2, nextResIndex)) {
+            return;
+         }
+      } finally {
+         levelsLock_.readLock().unlock();
+      }
+      final String key = update.getKey();
+      if (pendingPyramidUpdates_.put(key, update) != null) {
+         //already waiting, it will use the latest pixels
+         return;
+      }
+      synchronized (pyramidIdleLock_) {
+         pyramidUpdatesInProgress_++;
+      }
+      getPyramidExecutor().execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               PyramidUpdate u = pendingPyramidUpdates_.remove(key);
+               if (u != null) {
+                  applyPyramidUpdate(u);
+               }
+            } catch (Exception e) {
+               Log.log(e);
+            } finally {
+               synchronized (pyramidIdleLock_) {
+                  pyramidUpdatesInProgress_--;
+                  if (pyramidUpdatesInProgress_ < MAX_PENDING_PYRAMID_UPDATES) {
+                     pyramidIdleLock_.notifyAll();
+                  }
+               }
             }
-            return; //this will include the higher res tile intially added, so can return here and
-            //not worry about having to add it again
-         }
-         //Create pixels or get appropriate pixels to add to
-         MagellanTaggedImage existingImage = lowResStorages_.get(resolutionIndex).getImage(channel, slice, frame,
-                 posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
-         Object currentLevelPix;
-         if (existingImage == null) {
-             if (rgb_) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_ * 4];
-             } else if (byteDepth_ == 1) {
-                 currentLevelPix = new byte[tileWidth_ * tileHeight_];
-             } else {
-                 currentLevelPix = new short[tileWidth_ * tileHeight_];
-             }         
-            //fill in with background pixel value
-            if (rgb_) {
-                //whatever
-            }else if (byteDepth_ == 1) {
-               Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(channel));
-            } else {
-               Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(channel));
+         }
+      });
+   }
+
+   /**
+    * Blocks while the pyramid threads are too far behind. Must not be called
+    * with any lock held that pyramid threads need
+    */
+   private void waitForPyramidBacklog() {
+      synchronized (pyramidIdleLock_) {
+         while (pyramidUpdatesInProgress_ >= MAX_PENDING_PYRAMID_UPDATES) {
+            try {
+               pyramidIdleLock_.wait();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               return;
             }
+         }
+      }
+   }
+
+   /**
+    * Blocks until all scheduled pyramid updates have been written
+    */
+   private void waitForPyramid() {
+      synchronized (pyramidIdleLock_) {
+         while (pyramidUpdatesInProgress_ > 0) {
+            try {
+               pyramidIdleLock_.wait();
+            } catch (InterruptedException ex) {
+               Log.log("Interrupted while waiting for lower resolutions");
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+
+   private void applyPyramidUpdate(PyramidUpdate update) {
+      int resIndex = update.resIndex + 1;
+      levelsLock_.readLock().lock();
+      try {
+         if (lowResStorages_.get(resIndex) != null) {
+            downsampleToLowResStorage(update);
+            return;
+         }
+      } finally {
+         levelsLock_.readLock().unlock();
+      }
+      levelsLock_.writeLock().lock();
+      try {
+         if (lowResStorages_.get(resIndex) == null) {
+            //this includes the tile of this update
+            createAndFillLowResStorage(resIndex);
          } else {
-            currentLevelPix = existingImage.pix; 
-         }     
+            downsampleToLowResStorage(update);
+         }
+      } finally {
+         levelsLock_.writeLock().unlock();
+      }
+   }
 
-         
-         //Determine which position in 2x2 this tile sits in
-         int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
-         int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
-         //Add one if top or left so border pixels from an odd length image gets added in
-         for (int x = 0; x < tileWidth_; x += 2) { //iterate over previous res level pixels
-            for (int y = 0; y < tileHeight_; y += 2) {
-               //average a square of 4 pixels from previous level
-               //edges: if odd number of pixels in tile, round to determine which
-               //tiles pixels make it to next res level
-               
-               //these are the indices of pixels at the previous res level, which are offset
-               //when moving from res level 0 to one as we throw away the overlapped image edges
-               int pixelX, pixelY, previousLevelWidth, previousLevelHeight; 
-               if ( resolutionIndex == 1 ) {                  
-                  //add offsets to account for overlap pixels at resolution level 0
-                  pixelX = x + xOverlap_ / 2;
-                  pixelY = y + yOverlap_ /2;
-                  previousLevelWidth = fullResTileWidthIncludingOverlap_;
-                  previousLevelHeight = fullResTileHeightIncludingOverlap_;
-               } else {
-                  pixelX = x;
-                  pixelY = y;
-                  previousLevelWidth = tileWidth_;
-                  previousLevelHeight = tileHeight_;
+   /**
+    * Creates a resolution level and adds all tiles from the previous level to it.
+    * Must be called with the write lock of levelsLock_ held
+    */
+   private void createAndFillLowResStorage(int resIndex) {
+      createDownsampledStorage(resIndex);
+      TaggedImageStorageMultipageTiff previousLevelStorage = resIndex == 1 ? fullResStorage_
+              : lowResStorages_.get(resIndex - 1);
+      if (lowResStorages_.get(resIndex) == null || previousLevelStorage == null) {
+         return;
+      }
+      ArrayList<String> imageKeys;
+      synchronized (previousLevelStorage) {
+         imageKeys = new ArrayList<String>(previousLevelStorage.imageKeys());
+      }
+      for (String key : imageKeys) {
+         int[] indices = MD.getIndices(key);
+         MagellanTaggedImage ti;
+         synchronized (previousLevelStorage) {
+            ti = previousLevelStorage.getImage(indices[0], indices[1], indices[2], indices[3]);
+         }
+         if (ti == null) {
+            continue;
+         }
+         downsampleToLowResStorage(new PyramidUpdate(resIndex - 1, indices[0], indices[1], indices[2],
+                 posManager_.getFullResPositionIndex(indices[3], resIndex - 1), ti.pix, ti.tags));
+      }
+   }
 
-               }
-                int rgbMultiplier_ = rgb_ ? 4 : 1;
-                for (int compIndex = 0; compIndex < (rgb_ ? 3 : 1); compIndex++) {
-                    int count = 1; //count is number of pixels (out of 4) used to create a pixel at this level
-                    //always take top left pixel, maybe take others depending on whether at image edge
-                    int sum = 0;
-                    if (byteDepth_ == 1 || rgb_) {
-                        sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xff;
-                    } else {
-                        sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX)*rgbMultiplier_ + compIndex] & 0xffff;
-                    }
-
-                    //pixel index can be different from index in tile at resolution level 0 if there is nonzero overlap
-                    if (x < previousLevelWidth - 1 && y < previousLevelHeight - 1) { //if not bottom right corner, add three more pix
-                        count += 3;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff)
-                                    + (((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff);
-                        } else {
-                            sum += (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff)
-                                    + (((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff);
-                        }
-                    } else if (x < previousLevelWidth - 1) { //if not right edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[(pixelY * previousLevelWidth + pixelX + 1)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else if (y < previousLevelHeight - 1) { // if not bottom edge, add one more pix
-                        count++;
-                        if (byteDepth_ == 1 || rgb_) {
-                            sum += ((byte[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xff;
-                        } else {
-                            sum += ((short[]) previousLevelPix)[((pixelY + 1) * previousLevelWidth + pixelX)*rgbMultiplier_+compIndex] & 0xffff;
-                        }
-                    } else {
-                        //it is the bottom right corner, no more pix to add
-                    }
-                    //add averaged pixel into appropriate quadrant of current res level
-                    //if full res tile has an odd number of pix, the last one gets chopped off
-                    //to make it fit into tile containers
-                    try {
-                        int index = (((y + yPos * tileHeight_) / 2) * tileWidth_ + (x + xPos * tileWidth_) / 2)*rgbMultiplier_+compIndex;
-                        if (byteDepth_ == 1 || rgb_) {
-                            ((byte[]) currentLevelPix)[index] = (byte) Math.round(sum / count);
-                        } else {
-                            ((short[]) currentLevelPix)[index] = (short) Math.round(sum / count);
-                        }
-                    } catch (Exception e) {
-                        Log.log("Couldn't copy pixels to lower resolution");
-                        e.printStackTrace();
-                        return;
-                    }
-
-                }
+   private Object getTileLock(String key) {
+      Object lock = tileLocks_.get(key);
+      if (lock == null) {
+         Object newLock = new Object();
+         lock = tileLocks_.putIfAbsent(key, newLock);
+         if (lock == null) {
+            lock = newLock;
+         }
+      }
+      return lock;
+   }
+
+   /**
+    * Returns a tile of the given resolution level, from memory if possible,
+    * or null if the tile does not exist (yet). Must be called with a lock of
+    * levelsLock_ held
+    */
+   private MagellanTaggedImage getTile(int resIndex, int channel, int slice, int frame, int positionIndex)
+           throws IOException {
+      return getTile(resIndex, channel, slice, frame, positionIndex, true);
+   }
+
+   /**
+    * @param cache false to not add a tile read from disk to the tile cache
+    */
+   private MagellanTaggedImage getTile(int resIndex, int channel, int slice, int frame, int positionIndex,
+           boolean cache) throws IOException {
+      if (positionIndex < 0) {
+         return null;
+      }
+      String key = resIndex + "_" + MD.generateLabel(channel, slice, frame, positionIndex);
+      synchronized (tileCache_) {
+         MagellanTaggedImage tile = tileCache_.get(key);
+         if (tile != null) {
+            return tile;
+         }
+      }
+      TaggedImageStorageMultipageTiff storage = resIndex == 0 ? fullResStorage_ : lowResStorages_.get(resIndex);
+      if (storage == null) {
+         return null;
+      }
+      MagellanTaggedImage tile;
+      if (finished_) {
+         //nothing is written anymore, so tiles can be read in parallel
+         tile = storage.getImage(channel, slice, frame, positionIndex);
+      } else {
+         synchronized (storage) {
+            tile = storage.getImage(channel, slice, frame, positionIndex);
+         }
+      }
+      if (tile == null) {
+         return null;
+      }
+      int length = tile.pix instanceof byte[] ? ((byte[]) tile.pix).length : ((short[]) tile.pix).length;
+      int expectedLength = (rgb_ ? 4 : 1) * (resIndex == 0
+              ? fullResTileWidthIncludingOverlap_ * fullResTileHeightIncludingOverlap_ : tileWidth_ * tileHeight_);
+      if (length != expectedLength) {
+         //Somtimes an inability to read IFDs soon after they are written results in an image being read
+         //with 0 length pixels
+         throw new IOException("Couldn't read tile");
+      }
+      if (cache) {
+         synchronized (tileCache_) {
+            tileCache_.put(key, tile);
+         }
+      }
+      return tile;
+   }
+
+   /**
+    * Downsamples the tile of the update into its quadrant of the tile at the
+    * next resolution level, and schedules propagation to the level below that.
+    * Must be called with a lock of levelsLock_ held
+    */
+   private void downsampleToLowResStorage(PyramidUpdate update) {
+      int resolutionIndex = update.resIndex + 1;
+      int fullResPositionIndex = update.fullResPositionIndex;
+      TaggedImageStorageMultipageTiff storage = lowResStorages_.get(resolutionIndex);
+      int lowResPositionIndex = posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex);
+      String label = MD.generateLabel(update.channel, update.slice, update.frame, lowResPositionIndex);
+      try {
+         Object previousLevelPix = update.pix;
+         if (previousLevelPix == null) {
+            MagellanTaggedImage previousLevelTile = getTile(update.resIndex, update.channel, update.slice,
+                    update.frame, posManager_.getLowResPositionIndex(fullResPositionIndex, update.resIndex));
+            if (previousLevelTile == null) {
+               return;
             }
+            previousLevelPix = previousLevelTile.pix;
          }
-         
-         //store this tile in the storage class correspondign to this resolution
-         try {
-            if (existingImage == null) {     //Image doesn't yet exist at this level, so add it
+         synchronized (getTileLock(resolutionIndex + "_" + label)) {
+            //Create pixels or get appropriate pixels to add to
+            MagellanTaggedImage currentLevelTile = getTile(resolutionIndex, update.channel, update.slice,
+                    update.frame, lowResPositionIndex);
+            boolean newTile = currentLevelTile == null;
+            Object currentLevelPix;
+            if (!newTile) {
+               //the cached pixels may be in use by readers of this tile, so they are never changed in place
+               currentLevelPix = currentLevelTile.pix instanceof byte[] ? ((byte[]) currentLevelTile.pix).clone()
+                       : ((short[]) currentLevelTile.pix).clone();
+            } else {
+               if (rgb_) {
+                  currentLevelPix = new byte[tileWidth_ * tileHeight_ * 4];
+               } else if (byteDepth_ == 1) {
+                  currentLevelPix = new byte[tileWidth_ * tileHeight_];
+                  Arrays.fill((byte[]) currentLevelPix, (byte) getBackgroundPixelValue(update.channel));
+               } else {
+                  currentLevelPix = new short[tileWidth_ * tileHeight_];
+                  Arrays.fill((short[]) currentLevelPix, (short) getBackgroundPixelValue(update.channel));
+               }
+            }
+
+            //Determine which position in 2x2 this tile sits in
+            int xPos = (int) Math.abs((posManager_.getGridCol(fullResPositionIndex, resolutionIndex - 1) % 2));
+            int yPos = (int) Math.abs((posManager_.getGridRow(fullResPositionIndex, resolutionIndex - 1) % 2));
+            if (resolutionIndex == 1) {
+               //add offsets to account for overlap pixels at resolution level 0
+               downsample(previousLevelPix, fullResTileWidthIncludingOverlap_, fullResTileHeightIncludingOverlap_,
+                       xOverlap_ / 2, yOverlap_ / 2, currentLevelPix, xPos, yPos);
+            } else {
+               downsample(previousLevelPix, tileWidth_, tileHeight_, 0, 0, currentLevelPix, xPos, yPos);
+            }
+
+            //store this tile in the storage class correspondign to this resolution
+            if (newTile) {     //Image doesn't yet exist at this level, so add it
                //create a copy of tags so tags from a different res level arent inadverntanly modified
                // while waiting for being written to disk
-               JSONObject tags = new JSONObject(img.tags.toString());
+               JSONObject tags = new JSONObject(update.tags.toString());
                //modify tags to reflect image size, and correct position index
                MD.setWidth(tags, tileWidth_);
                MD.setHeight(tags, tileHeight_);
                long gridRow = posManager_.getGridRow(fullResPositionIndex, resolutionIndex);
                long gridCol = posManager_.getGridCol(fullResPositionIndex, resolutionIndex);
                MD.setPositionName(tags, "Grid_" + gridRow + "_" + gridCol);
-               MD.setPositionIndex(tags, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));  
-               lowResStorages_.get(resolutionIndex).putImage(new MagellanTaggedImage(currentLevelPix, tags));
+               MD.setPositionIndex(tags, lowResPositionIndex);
+               synchronized (storage) {
+                  storage.putImage(new MagellanTaggedImage(currentLevelPix, tags));
+               }
+               synchronized (tileCache_) {
+                  tileCache_.put(resolutionIndex + "_" + label, new MagellanTaggedImage(currentLevelPix, tags));
+               }
             } else {
                //Image already exists, only overwrite pixels to include new tiles
-               lowResStorages_.get(resolutionIndex).overwritePixels(currentLevelPix,
-                       channel, slice, frame, posManager_.getLowResPositionIndex(fullResPositionIndex, resolutionIndex));
+               synchronized (storage) {
+                  storage.overwritePixels(currentLevelPix, update.channel, update.slice, update.frame,
+                          lowResPositionIndex);
+               }
+               synchronized (tileCache_) {
+                  tileCache_.put(resolutionIndex + "_" + label, new MagellanTaggedImage(currentLevelPix,
+                          currentLevelTile.tags));
+               }
             }
-         } catch (Exception e) {
-            e.printStackTrace();
-            Log.log("Couldnt modify tags for lower resolution level");
          }
+      } catch (Exception e) {
+         e.printStackTrace();
+         Log.log("Couldn't add tile to lower resolution level");
+         return;
+      }
+      //go on to next level of downsampling
+      queuePyramidUpdate(new PyramidUpdate(resolutionIndex, update.channel, update.slice, update.frame,
+              fullResPositionIndex, null, update.tags));
+   }
+
+   /**
+    * Averages 2x2 squares of pixels of the previous resolution level into one
+    * quadrant of a tile. At the right and bottom edges of the previous level
+    * only the available pixels are averaged. If the tile has an odd number of
+    * pixels, the last one gets chopped off to make it fit into tile containers
+    *
+    * @param src pixels of the previous level
+    * @param srcWidth width of the previous level, including overlap
+    * @param srcHeight height of the previous level, including overlap
+    * @param xOffset x of the first pixel to use in the previous level
+    * @param yOffset y of the first pixel to use in the previous level
+    * @param dst pixels of the current level
+    * @param xPos 0 for the left, 1 for the right quadrant
+    * @param yPos 0 for the top, 1 for the bottom quadrant
+    */
+   private void downsample(Object src, int srcWidth, int srcHeight, int xOffset, int yOffset,
+           Object dst, int xPos, int yPos) {
+      //the right and bottom edges of the previous level, beyond which there is
+      //no second pixel to average with
+      int pairedWidth = Math.min(tileWidth_, srcWidth - 1);
+      for (int y = 0; y < tileHeight_; y += 2) {
+         int srcIndex = (y + yOffset) * srcWidth + xOffset;
+         int dstIndex = (yPos * (tileHeight_ / 2) + y / 2) * tileWidth_ + xPos * (tileWidth_ / 2);
+         boolean pairedRows = y < srcHeight - 1;
+         if (rgb_) {
+            downsampleRGB((byte[]) src, srcIndex, srcWidth, pairedRows, pairedWidth, (byte[]) dst, dstIndex);
+         } else if (byteDepth_ == 1) {
+            downsample8((byte[]) src, srcIndex, srcWidth, pairedRows, pairedWidth, (byte[]) dst, dstIndex);
+         } else {
+            downsample16((short[]) src, srcIndex, srcWidth, pairedRows, pairedWidth, (short[]) dst, dstIndex);
+         }
+      }
+   }
+
+   private void downsample8(byte[] src, int s0, int srcWidth, boolean pairedRows, int pairedWidth,
+           byte[] dst, int d) {
+      int s1 = s0 + srcWidth;
+      int x = 0;
+      if (pairedRows) {
+         for (; x < pairedWidth; x += 2, d++) {
+            dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s0 + x + 1] & 0xff)
+                    + (src[s1 + x] & 0xff) + (src[s1 + x + 1] & 0xff)) >> 2);
+         }
+         for (; x < tileWidth_; x += 2, d++) {
+            dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s1 + x] & 0xff)) >> 1);
+         }
+      } else {
+         for (; x < pairedWidth; x += 2, d++) {
+            dst[d] = (byte) (((src[s0 + x] & 0xff) + (src[s0 + x + 1] & 0xff)) >> 1);
+         }
+         for (; x < tileWidth_; x += 2, d++) {
+            dst[d] = src[s0 + x];
+         }
+      }
+   }
 
-         //go on to next level of downsampling
-         previousLevelPix = currentLevelPix;
-         resolutionIndex++;
+   private void downsample16(short[] src, int s0, int srcWidth, boolean pairedRows, int pairedWidth,
+           short[] dst, int d) {
+      int s1 = s0 + srcWidth;
+      int x = 0;
+      if (pairedRows) {
+         for (; x < pairedWidth; x += 2, d++) {
+            dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s0 + x + 1] & 0xffff)
+                    + (src[s1 + x] & 0xffff) + (src[s1 + x + 1] & 0xffff)) >> 2);
+         }
+         for (; x < tileWidth_; x += 2, d++) {
+            dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s1 + x] & 0xffff)) >> 1);
+         }
+      } else {
+         for (; x < pairedWidth; x += 2, d++) {
+            dst[d] = (short) (((src[s0 + x] & 0xffff) + (src[s0 + x + 1] & 0xffff)) >> 1);
+         }
+         for (; x < tileWidth_; x += 2, d++) {
+            dst[d] = src[s0 + x];
+         }
+      }
+   }
+
+   /**
+    * RGB32 pixels: the three color components are averaged, alpha is left alone
+    */
+   private void downsampleRGB(byte[] src, int s0, int srcWidth, boolean pairedRows, int pairedWidth,
+           byte[] dst, int d) {
+      int s1 = s0 + srcWidth;
+      for (int x = 0; x < tileWidth_; x += 2, d++) {
+         boolean pairedColumns = x < pairedWidth;
+         for (int c = 0; c < 3; c++) {
+            int sum = src[4 * (s0 + x) + c] & 0xff;
+            int shift = 0;
+            if (pairedColumns) {
+               sum += src[4 * (s0 + x + 1) + c] & 0xff;
+               shift++;
+            }
+            if (pairedRows) {
+               sum += src[4 * (s1 + x) + c] & 0xff;
+               if (pairedColumns) {
+                  sum += src[4 * (s1 + x + 1) + c] & 0xff;
+               }
+               shift++;
+            }
+            dst[4 * d + c] = (byte) (sum >> shift);
+         }
       }
    }
 
@@ -735,11 +1195,21 @@ public class MultiResMultipageTiffStorage {
    }
 
    public void putImage(MagellanTaggedImage MagellanTaggedImage)  {
+      int channel = MD.getChannelIndex(MagellanTaggedImage.tags);
       try {
          synchronized (this) {            
             //write to full res storage as normal (i.e. with overlap pixels present)
-            fullResStorage_.putImage(MagellanTaggedImage);
-            addToLowResStorage(MagellanTaggedImage, 0, MD.getPositionIndex(MagellanTaggedImage.tags));
+            synchronized (fullResStorage_) {
+               fullResStorage_.putImage(MagellanTaggedImage);
+            }
+            synchronized (tileCache_) {
+               tileCache_.put("0_" + MD.generateLabel(channel, MD.getSliceIndex(MagellanTaggedImage.tags),
+                       MD.getFrameIndex(MagellanTaggedImage.tags), MD.getPositionIndex(MagellanTaggedImage.tags)),
+                       MagellanTaggedImage);
+            }
+            if (estimateBackground_) {
+               readBackgroundPixelValue(channel, MagellanTaggedImage); //find a background pixel value in the first image
+            }
             if (currentTP_ < MD.getFrameIndex(MagellanTaggedImage.tags)) {
                bdvXML_.addTP();
                currentTP_ = MD.getFrameIndex(MagellanTaggedImage.tags);
@@ -747,7 +1217,13 @@ public class MultiResMultipageTiffStorage {
          }
       } catch (IOException ex) {
          Log.log(ex.toString());
+         return;
       } 
+      //lower resolutions are updated in the background
+      waitForPyramidBacklog();
+      queuePyramidUpdate(new PyramidUpdate(0, channel, MD.getSliceIndex(MagellanTaggedImage.tags),
+              MD.getFrameIndex(MagellanTaggedImage.tags), MD.getPositionIndex(MagellanTaggedImage.tags),
+              MagellanTaggedImage.pix, MagellanTaggedImage.tags));
    }
    
    public MagellanTaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex, int resLevel) {
@@ -767,11 +1243,20 @@ public class MultiResMultipageTiffStorage {
       return getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
    }
 
+   /**
+    * @return copy of the labels of the full resolution images, which can be
+    * read while images are still being added
+    */
+   @Override
    public Set<String> imageKeys() {
-      return fullResStorage_.imageKeys();
+      synchronized (fullResStorage_) {
+         return new HashSet<String>(fullResStorage_.imageKeys());
+      }
    }
 
    public void finished() {
+      //all tiles need to be in the lower resolutions before these are finished
+      waitForPyramid();
       try {
          if (bdvXML_ != null) { //if its not an oened dataset
             bdvXML_.close();
@@ -827,6 +1312,9 @@ public class MultiResMultipageTiffStorage {
             for (TaggedImageStorageMultipageTiff s : lowResStorages_.values()) {
                s.close();
             }
+            synchronized (tileCache_) {
+               tileCache_.clear();
+            }
          } 
       },"closing thread").start();
    }
@@ -391,9 +391,9 @@ public class MultipageTiffReader {
             return new MagellanTaggedImage(pixelBuffer.array(), md);
          } else {
             short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
-            }
+            //reading moved the position to the end, view has the byte order of the buffer
+            pixelBuffer.rewind();
+            pixelBuffer.asShortBuffer().get(pix);
             return new MagellanTaggedImage(pix, md);
          }
       }
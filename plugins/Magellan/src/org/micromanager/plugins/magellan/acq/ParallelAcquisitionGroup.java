@@ -18,7 +18,11 @@ package org.micromanager.plugins.magellan.acq;
 
 import com.google.common.eventbus.EventBus;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -33,6 +37,9 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
     private MultipleAcquisitionManager multiAcqManager_;
     protected List<FixedAreaAcquisition> acqs_;
     private volatile int activeIndex_;
+    private final AcqEventScheduler scheduler_;
+    //acquisitions that have had their turn in the current round, so every one gets a turn before any gets a second
+    private final Set<FixedAreaAcquisition> acquiredThisRound_ = new HashSet<FixedAreaAcquisition>();
     private LinkedBlockingQueue<AcquisitionEvent> pendingFinishingEvents_ = new LinkedBlockingQueue<AcquisitionEvent>();
     private ExecutorService parallelGroupExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
         @Override
@@ -45,8 +52,9 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
      * constructor for a single acquisition (nothing actually in parallel)
      */
     public ParallelAcquisitionGroup(final List<FixedAreaAcquisitionSettings> settingsList,
-            MultipleAcquisitionManager acqManager, EventBus bus) {
+            MultipleAcquisitionManager acqManager, EventBus bus, AcqEventScheduler scheduler) {
         multiAcqManager_ = acqManager;
+        scheduler_ = scheduler;
         acqs_ = new ArrayList<FixedAreaAcquisition>();
         //create all
         for (int i = 0; i < settingsList.size(); i++) {
@@ -59,6 +67,7 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
         }
         try {
             //start first
+            acquiredThisRound_.add(acqs_.get(0));
             acqs_.get(0).signalReadyForNextTP();
         } catch (Exception ex) {
             Log.log(ex);
@@ -69,6 +78,10 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
         //in the case that an individual acqusiition is aborted, it will call acqAborted so parallel group knows to move on
     }
     
+    public AcqEventScheduler getScheduler() {
+        return scheduler_;
+    }
+
     public void signalAcqSettingsChange() {
        for (FixedAreaAcquisition acq : acqs_) {
           acq.acqSettingsUpdated();
@@ -132,18 +145,17 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
             @Override
             public void run() {
                 int currentIndex = acqs_.indexOf(acq);
-                int nextIndex = (currentIndex + 1) % acqs_.size();
                 //skip over finished acquisitions when determining which to run next
-                for (int i = nextIndex; i < nextIndex + acqs_.size(); i++) {
-                    int index = i % acqs_.size();
-                    if (!acqs_.get(index).isFinished()) {
+                for (FixedAreaAcquisition next : orderCandidates(acq)) {
+                    if (!next.isFinished()) {
                         try {
-                            acqs_.get(index).signalReadyForNextTP();
+                            next.signalReadyForNextTP();
                         } catch (Exception ex) {
                             //This can happen in rare case when acqusition has been aborted since calling finishedTimePoint
                             continue;
                         }
-                        activeIndex_ = index;
+                        acquiredThisRound_.add(next);
+                        activeIndex_ = acqs_.indexOf(next);
                         //add a dummy event to previous acqusiiton queue to get acq engine out of blocking on getNextEvent
                         acqs_.get(currentIndex).events_.add(AcquisitionEvent.createReQuerieEventQueueEvent());
                         return;
@@ -163,6 +175,61 @@ public class ParallelAcquisitionGroup implements AcquisitionEventSource {
 
     }
 
+    /**
+     * Unfinished acquisitions in the order in which they should be tried next:
+     * ones that haven't had their turn in this round, those that can start
+     * right away first, cheapest switch from the current hardware state first,
+     * followed by the rest in order of when they can start
+     */
+    private List<FixedAreaAcquisition> orderCandidates(FixedAreaAcquisition current) {
+        List<FixedAreaAcquisition> candidates = new ArrayList<FixedAreaAcquisition>();
+        for (FixedAreaAcquisition a : acqs_) {
+            if (!a.isFinished() && !acquiredThisRound_.contains(a)) {
+                candidates.add(a);
+            }
+        }
+        if (candidates.isEmpty()) {
+            //start a new round, with the one that just ran last unless it's the only one left
+            acquiredThisRound_.clear();
+            for (FixedAreaAcquisition a : acqs_) {
+                if (!a.isFinished() && a != current) {
+                    candidates.add(a);
+                }
+            }
+            if (candidates.isEmpty() && !current.isFinished()) {
+                candidates.add(current);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final List<FixedAreaAcquisition> ready = new ArrayList<FixedAreaAcquisition>();
+        final List<Double> costs = new ArrayList<Double>();
+        List<FixedAreaAcquisition> waiting = new ArrayList<FixedAreaAcquisition>();
+        for (FixedAreaAcquisition a : candidates) {
+            if (a.getNextWakeTime_ms() <= now) {
+                ready.add(a);
+                costs.add(scheduler_.estimateSwitchCost(a));
+            } else {
+                waiting.add(a);
+            }
+        }
+        List<FixedAreaAcquisition> ordered = new ArrayList<FixedAreaAcquisition>(ready);
+        Collections.sort(ordered, new Comparator<FixedAreaAcquisition>() {
+            @Override
+            public int compare(FixedAreaAcquisition a1, FixedAreaAcquisition a2) {
+                return Double.compare(costs.get(ready.indexOf(a1)), costs.get(ready.indexOf(a2)));
+            }
+        });
+        Collections.sort(waiting, new Comparator<FixedAreaAcquisition>() {
+            @Override
+            public int compare(FixedAreaAcquisition a1, FixedAreaAcquisition a2) {
+                return a1.getNextWakeTime_ms() < a2.getNextWakeTime_ms() ? -1
+                        : (a1.getNextWakeTime_ms() == a2.getNextWakeTime_ms() ? 0 : 1);
+            }
+        });
+        ordered.addAll(waiting);
+        return ordered;
+    }
+
     public boolean isFinished() {
         return acqs_.get(activeIndex_).isFinished();
     }
@@ -0,0 +1,547 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.plugins.magellan.acq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import org.micromanager.plugins.magellan.json.JSONException;
+import org.micromanager.plugins.magellan.json.JSONObject;
+import org.micromanager.plugins.magellan.misc.Log;
+import org.micromanager.plugins.magellan.misc.MD;
+
+/**
+ * Exports the stitched images of a Magellan dataset to a single tiled,
+ * pyramidal BigTIFF without loading whole images into memory. The dataset is
+ * read one tile at a time at the chosen resolution level. The resolution levels
+ * already stored below that one become the pyramid, so nothing is downsampled
+ * again.
+ *
+ * Every channel, slice and frame is one top level image, in XYCZT order. Its
+ * lower resolutions are stored as SubIFDs. The ImageDescription of the first
+ * image is a JSON object with the dimensions and the summary metadata of the
+ * dataset, not OME-XML. Tiles are read and deflate compressed in parallel. Only a bounded
+ * number of encoded tiles wait to be written, so memory use doesn't depend on
+ * the size of the dataset. Identical blank tiles, which make up most of sparse
+ * explore datasets, are written once and shared
+ *
+ * A saved dataset can be exported from a script, e.g.:
+ * org.micromanager.plugins.magellan.acq.PyramidalTiffExporter.export("C:/data/Explore_1", "C:/data/Explore_1.tif", 0);
+ */
+public class PyramidalTiffExporter {
+
+   private static final int DEFAULT_TILE_SIZE = 256;
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   //encoded tiles waiting to be written
+   private static final int MAX_PENDING_TILES = 4 * NUM_THREADS;
+   private static final ExecutorService encodingExecutor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Pyramidal TIFF export thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   //tags
+   private static final int NEW_SUBFILE_TYPE = 254;
+   private static final int WIDTH = 256;
+   private static final int HEIGHT = 257;
+   private static final int BITS_PER_SAMPLE = 258;
+   private static final int COMPRESSION = 259;
+   private static final int PHOTOMETRIC_INTERPRETATION = 262;
+   private static final int IMAGE_DESCRIPTION = 270;
+   private static final int SAMPLES_PER_PIXEL = 277;
+   private static final int PLANAR_CONFIGURATION = 284;
+   private static final int PREDICTOR = 317;
+   private static final int TILE_WIDTH = 322;
+   private static final int TILE_LENGTH = 323;
+   private static final int TILE_OFFSETS = 324;
+   private static final int TILE_BYTE_COUNTS = 325;
+   private static final int SUB_IFDS = 330;
+   //field types
+   private static final int ASCII = 2;
+   private static final int SHORT = 3;
+   private static final int LONG = 4;
+   private static final int LONG8 = 16;
+   private static final int IFD8 = 18;
+
+   private static final int DEFLATE_COMPRESSION = 8;
+   private static final int HORIZONTAL_DIFFERENCING = 2;
+   private static final int REDUCED_RESOLUTION = 1;
+
+   private final TileSource storage_;
+   private final int baseResIndex_;
+   private final int tileWidth_, tileHeight_;
+   private final boolean rgb_;
+   private final int samplesPerPixel_, bytesPerSample_;
+   private FileChannel fileChannel_;
+   private long filePosition_;
+   //where the offset of the next top level IFD goes
+   private long nextIFDOffsetLocation_;
+   //where the offset of the IFD after the last one written goes
+   private long lastIFDNextOffsetLocation_;
+
+   /**
+    * @param resIndex resolution level of the top level images, 0 for full
+    * resolution
+    */
+   public PyramidalTiffExporter(MultiResMultipageTiffStorage storage, int resIndex) {
+      this((TileSource) storage, resIndex);
+   }
+
+   PyramidalTiffExporter(TileSource storage, int resIndex) {
+      storage_ = storage;
+      baseResIndex_ = resIndex;
+      //TIFF tiles are a multiple of 16 pixels. If the dataset's are, tiles of
+      //aligned lower resolution levels are read without copying
+      tileWidth_ = storage.getTileWidth() % 16 == 0 ? storage.getTileWidth() : DEFAULT_TILE_SIZE;
+      tileHeight_ = storage.getTileHeight() % 16 == 0 ? storage.getTileHeight() : DEFAULT_TILE_SIZE;
+      rgb_ = storage.isRGB();
+      samplesPerPixel_ = rgb_ ? 3 : 1;
+      bytesPerSample_ = rgb_ ? 1 : storage.getByteDepth();
+   }
+
+   /**
+    * Opens a dataset saved on disk, exports it and closes it again
+    *
+    * @param datasetDir top level saving directory of the dataset
+    * @param file BigTIFF to write
+    * @param resIndex resolution level of the top level images, 0 for full
+    * resolution
+    */
+   public static void export(String datasetDir, String file, int resIndex) throws IOException, InterruptedException {
+      MultiResMultipageTiffStorage storage = new MultiResMultipageTiffStorage(datasetDir);
+      try {
+         new PyramidalTiffExporter(storage, resIndex).export(new File(file));
+      } finally {
+         storage.close();
+      }
+   }
+
+   public void export(File file) throws IOException, InterruptedException {
+      int numResLevels = storage_.getNumResLevels();
+      if (baseResIndex_ >= numResLevels) {
+         throw new IllegalArgumentException("Dataset has no resolution level " + baseResIndex_);
+      }
+      //the images written so far, since the dimensions of the storage are
+      //only known for datasets opened from disk
+      int numChannels = 0, numFrames = 0;
+      int minSlice = Integer.MAX_VALUE, maxSlice = Integer.MIN_VALUE;
+      for (String key : storage_.imageKeys()) {
+         int[] indices = MD.getIndices(key);
+         numChannels = Math.max(numChannels, indices[0] + 1);
+         minSlice = Math.min(minSlice, indices[1]);
+         maxSlice = Math.max(maxSlice, indices[1]);
+         numFrames = Math.max(numFrames, indices[2] + 1);
+      }
+      if (numChannels == 0) {
+         throw new IllegalArgumentException("Dataset has no images");
+      }
+      int numSlices = maxSlice - minSlice + 1;
+      Log.log("Exporting " + storage_.getUniqueAcqName() + " to " + file.getAbsolutePath(), false);
+      RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+      try {
+         raFile.setLength(0);
+         fileChannel_ = raFile.getChannel();
+         filePosition_ = 0;
+         writeHeader();
+         String description = createDescription(numChannels, numSlices, numFrames, numResLevels - baseResIndex_);
+         for (int frame = 0; frame < numFrames; frame++) {
+            for (int slice = minSlice; slice < minSlice + numSlices; slice++) {
+               for (int channel = 0; channel < numChannels; channel++) {
+                  writeImage(channel, slice, frame, numResLevels, description);
+                  //only the first image has a description
+                  description = null;
+               }
+            }
+         }
+      } finally {
+         fileChannel_ = null;
+         raFile.close();
+      }
+      Log.log("Finished exporting " + storage_.getUniqueAcqName(), false);
+   }
+
+   private String createDescription(int numChannels, int numSlices, int numFrames, int numLevels) {
+      try {
+         JSONObject description = new JSONObject();
+         description.put("DimensionOrder", "XYCZT");
+         description.put("Channels", numChannels);
+         description.put("Slices", numSlices);
+         description.put("Frames", numFrames);
+         description.put("ResolutionLevels", numLevels);
+         description.put("SummaryMetadata", storage_.getSummaryMetadata());
+         return description.toString();
+      } catch (JSONException ex) {
+         Log.log("Couldn't create description of exported images");
+         return null;
+      }
+   }
+
+   private void writeHeader() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      header.put((byte) 'I').put((byte) 'I');
+      //BigTIFF version, offset size
+      header.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+      nextIFDOffsetLocation_ = header.position();
+      header.putLong(0);
+      write(header);
+   }
+
+   /**
+    * Writes the tiles of every resolution level of one image, then the IFDs of
+    * the lower resolutions and then the IFD of the image itself
+    */
+   private void writeImage(int channel, int slice, int frame, int numResLevels, String description)
+           throws IOException, InterruptedException {
+      long[] subIFDs = new long[numResLevels - baseResIndex_ - 1];
+      List<long[][]> levelTiles = new ArrayList<long[][]>();
+      for (int resIndex = baseResIndex_; resIndex < numResLevels; resIndex++) {
+         levelTiles.add(writeTiles(channel, slice, frame, resIndex));
+      }
+      for (int i = 0; i < subIFDs.length; i++) {
+         long[][] tiles = levelTiles.get(i + 1);
+         subIFDs[i] = writeIFD(baseResIndex_ + i + 1, tiles[0], tiles[1], null, null);
+      }
+      long[][] tiles = levelTiles.get(0);
+      long ifdOffset = writeIFD(baseResIndex_, tiles[0], tiles[1], subIFDs, description);
+      //link from the previous top level IFD
+      ByteBuffer offset = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      offset.putLong(ifdOffset);
+      offset.rewind();
+      while (offset.hasRemaining()) {
+         fileChannel_.write(offset, nextIFDOffsetLocation_ + offset.position());
+      }
+      nextIFDOffsetLocation_ = lastIFDNextOffsetLocation_;
+   }
+
+   /**
+    * Pixel bounds of a resolution level: the bounding box of all tile
+    * positions, scaled down from full resolution
+    *
+    * @return x, y, width and height
+    */
+   private long[] getLevelBounds(int resIndex) {
+      long xMin = storage_.getMinCol() * storage_.getTileWidth();
+      long yMin = storage_.getMinRow() * storage_.getTileHeight();
+      long xMax = xMin + storage_.getNumCols() * storage_.getTileWidth();
+      long yMax = yMin + storage_.getNumRows() * storage_.getTileHeight();
+      //floor and ceiling of division by 2^resIndex
+      long x = xMin >> resIndex;
+      long y = yMin >> resIndex;
+      long width = Math.max(1, -((-xMax) >> resIndex) - x);
+      long height = Math.max(1, -((-yMax) >> resIndex) - y);
+      return new long[]{x, y, width, height};
+   }
+
+   /**
+    * Reads, encodes and writes all tiles of one resolution level of an image,
+    * in row major order
+    *
+    * @return offsets and byte counts of the tiles
+    */
+   private long[][] writeTiles(final int channel, final int slice, final int frame, final int resIndex)
+           throws IOException, InterruptedException {
+      long[] bounds = getLevelBounds(resIndex);
+      final long xStart = bounds[0], yStart = bounds[1];
+      final int tilesAcross = (int) ((bounds[2] + tileWidth_ - 1) / tileWidth_);
+      int tilesDown = (int) ((bounds[3] + tileHeight_ - 1) / tileHeight_);
+      int numTiles = tilesAcross * tilesDown;
+      long[] offsets = new long[numTiles];
+      long[] byteCounts = new long[numTiles];
+      //index of the first tile written with each uniform pixel value
+      HashMap<Long, Integer> uniformTiles = new HashMap<Long, Integer>();
+      LinkedList<Future<EncodedTile>> pending = new LinkedList<Future<EncodedTile>>();
+      int nextTile = 0;
+      try {
+         for (int tileIndex = 0; tileIndex < numTiles; tileIndex++) {
+            while (nextTile < numTiles && pending.size() < MAX_PENDING_TILES) {
+               final long x = xStart + (long) (nextTile % tilesAcross) * tileWidth_;
+               final long y = yStart + (long) (nextTile / tilesAcross) * tileHeight_;
+               pending.add(encodingExecutor_.submit(new Callable<EncodedTile>() {
+                  @Override
+                  public EncodedTile call() {
+                     return encodeTile(storage_.getBlockPixels(channel, slice, frame, resIndex, x, y, tileWidth_, tileHeight_));
+                  }
+               }));
+               nextTile++;
+            }
+            EncodedTile tile;
+            try {
+               tile = pending.removeFirst().get();
+            } catch (ExecutionException ex) {
+               throw new IOException("Couldn't encode tile", ex.getCause());
+            }
+            Integer sameTile = tile.uniform_ ? uniformTiles.get(tile.uniformValue_) : null;
+            if (sameTile != null) {
+               offsets[tileIndex] = offsets[sameTile];
+               byteCounts[tileIndex] = byteCounts[sameTile];
+            } else {
+               offsets[tileIndex] = filePosition_;
+               byteCounts[tileIndex] = tile.data_.length;
+               write(ByteBuffer.wrap(tile.data_));
+               if (tile.uniform_) {
+                  uniformTiles.put(tile.uniformValue_, tileIndex);
+               }
+            }
+         }
+      } finally {
+         for (Future<EncodedTile> f : pending) {
+            f.cancel(true);
+         }
+      }
+      return new long[][]{offsets, byteCounts};
+   }
+
+   /**
+    * Converts pixels to little endian samples with horizontal differencing and
+    * deflate compresses them
+    */
+   private EncodedTile encodeTile(Object pixels) {
+      int bytesPerPixel = samplesPerPixel_ * bytesPerSample_;
+      byte[] raw = new byte[tileWidth_ * tileHeight_ * bytesPerPixel];
+      if (rgb_) {
+         //pixels are RGBA, TIFF stores RGB
+         byte[] pix = (byte[]) pixels;
+         for (int i = 0; i < tileWidth_ * tileHeight_; i++) {
+            raw[3 * i] = pix[4 * i];
+            raw[3 * i + 1] = pix[4 * i + 1];
+            raw[3 * i + 2] = pix[4 * i + 2];
+         }
+      } else if (bytesPerSample_ == 1) {
+         System.arraycopy((byte[]) pixels, 0, raw, 0, raw.length);
+      } else {
+         short[] pix = (short[]) pixels;
+         for (int i = 0; i < pix.length; i++) {
+            raw[2 * i] = (byte) pix[i];
+            raw[2 * i + 1] = (byte) (pix[i] >> 8);
+         }
+      }
+      boolean uniform = true;
+      for (int i = bytesPerPixel; i < raw.length && uniform; i++) {
+         uniform = raw[i] == raw[i % bytesPerPixel];
+      }
+      long uniformValue = 0;
+      for (int i = 0; i < bytesPerPixel; i++) {
+         uniformValue |= (raw[i] & 0xffL) << (8 * i);
+      }
+      //difference of each sample with the same sample of the pixel to its left,
+      //going backwards so the left pixel is still unchanged
+      int rowLength = tileWidth_ * bytesPerPixel;
+      for (int row = 0; row < tileHeight_; row++) {
+         int rowStart = row * rowLength;
+         if (bytesPerSample_ == 1) {
+            for (int i = rowStart + rowLength - 1; i >= rowStart + samplesPerPixel_; i--) {
+               raw[i] -= raw[i - samplesPerPixel_];
+            }
+         } else {
+            for (int i = rowStart + rowLength - 2; i >= rowStart + 2; i -= 2) {
+               int value = ((raw[i] & 0xff) | ((raw[i + 1] & 0xff) << 8)) - ((raw[i - 2] & 0xff) | ((raw[i - 1] & 0xff) << 8));
+               raw[i] = (byte) value;
+               raw[i + 1] = (byte) (value >> 8);
+            }
+         }
+      }
+      Deflater deflater = new Deflater();
+      try {
+         deflater.setInput(raw);
+         deflater.finish();
+         ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+         byte[] buffer = new byte[65536];
+         while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+         }
+         return new EncodedTile(compressed.toByteArray(), uniform, uniformValue);
+      } finally {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Writes the values that don't fit in their entries, and then the IFD
+    *
+    * @param subIFDs offsets of the IFDs of lower resolutions, or null for a
+    * lower resolution
+    * @return offset of the IFD
+    */
+   private long writeIFD(int resIndex, long[] tileOffsets, long[] tileByteCounts, long[] subIFDs,
+           String description) throws IOException {
+      long[] bounds = getLevelBounds(resIndex);
+      List<IFDEntry> entries = new ArrayList<IFDEntry>();
+      entries.add(new IFDEntry(NEW_SUBFILE_TYPE, LONG, 1, subIFDs == null ? REDUCED_RESOLUTION : 0));
+      entries.add(new IFDEntry(WIDTH, LONG, 1, bounds[2]));
+      entries.add(new IFDEntry(HEIGHT, LONG, 1, bounds[3]));
+      long bitsPerSample = 8 * bytesPerSample_;
+      //RGB has 3 shorts, which still fit in the entry
+      entries.add(new IFDEntry(BITS_PER_SAMPLE, SHORT, samplesPerPixel_,
+              rgb_ ? bitsPerSample | (bitsPerSample << 16) | (bitsPerSample << 32) : bitsPerSample));
+      entries.add(new IFDEntry(COMPRESSION, SHORT, 1, DEFLATE_COMPRESSION));
+      entries.add(new IFDEntry(PHOTOMETRIC_INTERPRETATION, SHORT, 1, rgb_ ? 2 : 1));
+      if (description != null) {
+         byte[] chars = (description + "\0").getBytes("UTF-8");
+         entries.add(new IFDEntry(IMAGE_DESCRIPTION, ASCII, chars.length, writeArray(ByteBuffer.wrap(chars))));
+      }
+      entries.add(new IFDEntry(SAMPLES_PER_PIXEL, SHORT, 1, samplesPerPixel_));
+      entries.add(new IFDEntry(PLANAR_CONFIGURATION, SHORT, 1, 1));
+      entries.add(new IFDEntry(PREDICTOR, SHORT, 1, HORIZONTAL_DIFFERENCING));
+      entries.add(new IFDEntry(TILE_WIDTH, LONG, 1, tileWidth_));
+      entries.add(new IFDEntry(TILE_LENGTH, LONG, 1, tileHeight_));
+      entries.add(longArrayEntry(TILE_OFFSETS, LONG8, tileOffsets));
+      entries.add(longArrayEntry(TILE_BYTE_COUNTS, LONG8, tileByteCounts));
+      if (subIFDs != null && subIFDs.length > 0) {
+         entries.add(longArrayEntry(SUB_IFDS, IFD8, subIFDs));
+      }
+      Collections.sort(entries);
+
+      align();
+      long ifdOffset = filePosition_;
+      ByteBuffer ifd = ByteBuffer.allocate(8 + 20 * entries.size() + 8).order(ByteOrder.LITTLE_ENDIAN);
+      ifd.putLong(entries.size());
+      for (IFDEntry entry : entries) {
+         ifd.putShort((short) entry.tag_).putShort((short) entry.type_).putLong(entry.count_).putLong(entry.value_);
+      }
+      //no next IFD yet
+      lastIFDNextOffsetLocation_ = ifdOffset + ifd.position();
+      ifd.putLong(0);
+      write(ifd);
+      return ifdOffset;
+   }
+
+   /**
+    * @return an entry holding values, or pointing to them if there are more
+    * than one
+    */
+   private IFDEntry longArrayEntry(int tag, int type, long[] values) throws IOException {
+      if (values.length == 1) {
+         return new IFDEntry(tag, type, 1, values[0]);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.asLongBuffer().put(values);
+      return new IFDEntry(tag, type, values.length, writeArray(buffer));
+   }
+
+   private long writeArray(ByteBuffer buffer) throws IOException {
+      align();
+      long offset = filePosition_;
+      write(buffer);
+      return offset;
+   }
+
+   /**
+    * IFDs and the values they point to start on a word boundary
+    */
+   private void align() throws IOException {
+      if (filePosition_ % 8 != 0) {
+         write(ByteBuffer.allocate((int) (8 - filePosition_ % 8)));
+      }
+   }
+
+   private void write(ByteBuffer buffer) throws IOException {
+      buffer.rewind();
+      while (buffer.hasRemaining()) {
+         filePosition_ += fileChannel_.write(buffer, filePosition_);
+      }
+   }
+
+   /**
+    * What the exporter reads from a dataset
+    */
+   interface TileSource {
+
+      int getNumResLevels();
+
+      int getTileWidth();
+
+      int getTileHeight();
+
+      boolean isRGB();
+
+      int getByteDepth();
+
+      long getMinRow();
+
+      long getMinCol();
+
+      long getNumRows();
+
+      long getNumCols();
+
+      /**
+       * @return labels of the full resolution images written so far
+       */
+      Set<String> imageKeys();
+
+      String getUniqueAcqName();
+
+      JSONObject getSummaryMetadata();
+
+      Object getBlockPixels(int channel, int slice, int frame, int resIndex, long x, long y, int width, int height);
+   }
+
+   private static class IFDEntry implements Comparable<IFDEntry> {
+
+      final int tag_, type_;
+      final long count_;
+      //value itself if it fits in 8 bytes, otherwise its offset
+      final long value_;
+
+      IFDEntry(int tag, int type, long count, long value) {
+         tag_ = tag;
+         type_ = type;
+         count_ = count;
+         value_ = value;
+      }
+
+      @Override
+      public int compareTo(IFDEntry o) {
+         return tag_ - o.tag_;
+      }
+   }
+
+   private static class EncodedTile {
+
+      final byte[] data_;
+      //all pixels the same
+      final boolean uniform_;
+      final long uniformValue_;
+
+      EncodedTile(byte[] data, boolean uniform, long uniformValue) {
+         data_ = data;
+         uniform_ = uniform;
+         uniformValue_ = uniformValue;
+      }
+   }
+}
@@ -209,6 +209,12 @@ public final class TaggedImageStorageMultipageTiff   {
     * of this class (e.g. Navigator plugin)
     */
    public void overwritePixels(Object pix, int channel, int slice, int frame, int position) throws IOException {
+      String label = MD.generateLabel(channel, slice, frame, position);
+      MagellanTaggedImage pending = writePendingImages_.get(label);
+      if (pending != null) {
+         //so that getImage returns the new pixels until the image has been written
+         writePendingImages_.replace(label, pending, new MagellanTaggedImage(pix, pending.tags));
+      }
       //asumes only one position
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
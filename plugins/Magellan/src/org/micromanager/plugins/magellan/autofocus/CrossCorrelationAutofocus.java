@@ -19,9 +19,6 @@ package org.micromanager.plugins.magellan.autofocus;
 
 import org.micromanager.plugins.magellan.acq.FixedAreaAcquisition;
 import org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
-import ij.ImagePlus;
-import ij.ImageStack;
-import ij3d.image3d.FHTImage3D;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
@@ -67,6 +64,11 @@ public class CrossCorrelationAutofocus {
    private int downsampledWidth_;
    private int downsampledHeight_;
    private ExecutorService afExecutor_;
+   //only used on the autofocus executor thread
+   //spectrum of the stack of the previous time point, so each time point is transformed once
+   private FFTCrossCorrelator correlator_;
+   private int referenceTimeIndex_ = -1;
+   private int referenceMinSlice_;
            
    
    public CrossCorrelationAutofocus(final FixedAreaAcquisition acq, int channelIndex, double maxDisplacement , double initialPosition) {
@@ -118,6 +120,7 @@ public class CrossCorrelationAutofocus {
    
    public void close() {
        afExecutor_.shutdownNow();
+       correlator_ = null;
    }
    
    /**
@@ -156,14 +159,15 @@ public class CrossCorrelationAutofocus {
             Log.log("Drift compensation DS Width: " + downsampledWidth_, false);
             Log.log("Drift compensation DS Height: " + downsampledHeight_, false);
         } else {
-            ImageStack lastTPStack = createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
-            ImageStack currentTPStack = createAFStack(acq_, timeIndex, channelIndex_, downsampledWidth_, downsampledHeight_, downsampleIndex_);
+            int minSlice = acq_.getMinSliceIndex();
+            float[][] currentTPStack = createAFStack(acq_, timeIndex, channelIndex_, downsampledWidth_, downsampledHeight_,
+                    downsampleIndex_, minSlice, acq_.getNumSlices());
             //run autofocus
             //image drift is the difference between this TP and the previous one
             //but does not represent the acutal drift because these 2 TPs will likely have different 
             //positions for the AF compensation Z device
             //drifteCorrection = move for the AF drive to bring current TP to position of previous TP
-            double driftCorrection = -calcFocusDrift(acq_.getName(), lastTPStack, currentTPStack, acq_.getZStep());
+            double driftCorrection = -calcFocusDrift(acq_.getName(), timeIndex, minSlice, currentTPStack, acq_.getZStep());
             Log.log(acq_.getName() + " Drift compensation: correction = " + driftCorrection, true);
             //now add in a factor accounting for the previous AF
             //i.e. how far the reference image is from the desired position
@@ -187,10 +191,10 @@ public class CrossCorrelationAutofocus {
 
     * @return
     */
-   private static ImageStack createAFStack(FixedAreaAcquisition acq, int timeIndex, int channelIndex, int width, int height, int dsIndex) {
-      ImageStack stack = new ImageStack(width, height);
-      //get background pixel value
-      for (int slice = acq.getMinSliceIndex(); slice < acq.getMinSliceIndex() + acq.getNumSlices(); slice++) {
+   private static float[][] createAFStack(FixedAreaAcquisition acq, int timeIndex, int channelIndex, int width, int height, int dsIndex,
+           int minSlice, int numSlices) {
+      float[][] stack = new float[numSlices][];
+      for (int slice = minSlice; slice < minSlice + numSlices; slice++) {
          //add as int
          float[] pix32;
          if (Magellan.getCore().getBytesPerPixel() == 1) {
@@ -206,31 +210,49 @@ public class CrossCorrelationAutofocus {
                pix32[i] = pix[i] & 0xffff;
             }
          }
-         stack.addSlice(null, pix32);
+         stack[slice - minSlice] = pix32;
       }
       return stack;
    }
 
    /**
+    * Cross correlates the stack of the current time point with that of the
+    * previous one, whose spectrum is reused from the last call when possible
     *
-    * @param original
-   * @param current
-   * @param pixelSizeZ
-   * @return double representing the focus position of current relative to original (i.e. 4 means
-   * that current is focused 4 um deeper than current)
-   */
-   private double calcFocusDrift(String acqName, final ImageStack tp0Stack, final ImageStack currentTPStack, double pixelSizeZ) throws Exception {    
+    * @param timeIndex
+    * @param minSlice first slice of currentTPStack
+    * @param currentTPStack
+    * @param pixelSizeZ
+    * @return double representing the focus position of current relative to the previous time point (i.e. 4 means
+    * that current is focused 4 um deeper than the previous time point)
+    */
+   private double calcFocusDrift(String acqName, final int timeIndex, final int minSlice, final float[][] currentTPStack,
+           double pixelSizeZ) throws Exception {    
       Log.log( acqName + " Autofocus: cross correlating", true);    
       //do actual autofocusing on a seperate thread so a bug in it won't crash everything
-      Future<ImageStack> f = afExecutor_.submit(new Callable<ImageStack>() {
+      Future<double[]> f = afExecutor_.submit(new Callable<double[]>() {
           @Override
-          public ImageStack call() throws Exception {
-              return FHTImage3D.crossCorrelation(tp0Stack, currentTPStack);
+          public double[] call() throws Exception {
+              FFTCrossCorrelator correlator = correlator_;
+              //a failed or timed out correlation leaves no reference behind
+              correlator_ = null;
+              if (correlator == null || referenceTimeIndex_ != timeIndex - 1 || referenceMinSlice_ != minSlice
+                      || correlator.getDepth() != currentTPStack.length) {
+                  correlator = new FFTCrossCorrelator(downsampledWidth_, downsampledHeight_, currentTPStack.length);
+                  correlator.setReference(createAFStack(acq_, timeIndex - 1, channelIndex_, downsampledWidth_, downsampledHeight_,
+                          downsampleIndex_, minSlice, currentTPStack.length));
+              }
+              double[] ccIntensity = correlator.correlate(currentTPStack);
+              correlator_ = correlator;
+              referenceTimeIndex_ = timeIndex;
+              referenceMinSlice_ = minSlice;
+              return ccIntensity;
           }
       });
-      ImageStack xCorrStack;
+      //maximum cross correlation intensity at each z slice
+      double[] ccIntensity;
        try {
-           xCorrStack = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
+           ccIntensity = f.get(AF_TIMEOUT_MIN, TimeUnit.MINUTES);
        } catch (InterruptedException ex) {
            Log.log("autofocus aborted");
            throw new Exception();
@@ -244,13 +266,9 @@ public class CrossCorrelationAutofocus {
        }
       
       Log.log( acqName + " Autofocus: finished cross correlating..calculating drift", true);      
-      ImagePlus xCorr = new ImagePlus("XCorr", xCorrStack);      
-      //find the maximum cross correlation intensity at each z slice
-      double[] ccIntensity = new double[xCorr.getNSlices()], interpolatedCCMax = new double[xCorr.getNSlices()];
-      for (int i = 1; i <= ccIntensity.length; i++) {
-         xCorr.setSlice(i);      
-         ccIntensity[i - 1] = findMaxPixelVal((float[]) xCorr.getProcessor().getPixels(), xCorr.getWidth(), xCorr.getHeight());
-         interpolatedCCMax[i - 1] = i - 1;
+      double[] interpolatedCCMax = new double[ccIntensity.length];
+      for (int i = 0; i < ccIntensity.length; i++) {
+         interpolatedCCMax[i] = i;
       }
 
       //find maximum value of interpolated spline function
@@ -270,23 +288,9 @@ public class CrossCorrelationAutofocus {
       //get maximum value of xCorr in slice index units
       double ccMaxSliceIndex = sliceIndexInterpolationPoints[maxIndex];
       //convert to um
-      double drift_um = (ccMaxSliceIndex - (((double) xCorr.getNSlices()) / 2.0)) * pixelSizeZ;
-      xCorr.close();
+      double drift_um = (ccMaxSliceIndex - (((double) ccIntensity.length) / 2.0)) * pixelSizeZ;
       
       return drift_um;
    }
    
-   private static float findMaxPixelVal(float[] pix, int width, int height) {
-      //only use central square for calulating max, because weird large values can occur on the edges of the xCorr
-      float max = 0;
-      for (int i = 0; i < width*height; i++) {
-         if (i / width < height / 4 || i / width > 3*height / 4 ||
-                 i % width  < width / 4 || i % width > 3*width/4) {
-            continue; // use only central square of pixels
-         }
-         max = Math.max(max, pix[i]);
-      }
-      return max;
-   }
-   
 }
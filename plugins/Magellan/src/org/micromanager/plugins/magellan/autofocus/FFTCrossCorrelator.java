@@ -0,0 +1,355 @@
+///////////////////////////////////////////////////////////////////////////////
+// AUTHOR:       Henry Pinkard, henry.pinkard@gmail.com
+//
+// COPYRIGHT:    University of California, San Francisco, 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+
+package org.micromanager.plugins.magellan.autofocus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 3D cross correlation of z stacks against a reference stack using FFTs.
+ * Every stack is padded to powers of 2 in each dimension. The spectrum of the
+ * reference is kept, and each correlated stack becomes the reference for the
+ * next one, so each stack is transformed only once. Slices, rows and columns
+ * are transformed in parallel.
+ *
+ * Only half of the reference spectrum is kept, since the other half follows
+ * from it for real data
+ */
+public class FFTCrossCorrelator {
+
+   private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService executor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Autofocus correlation thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   private final int width_, height_, depth_;
+   //padded sizes
+   private final int nx_, ny_, nz_;
+   //reference spectrum for x frequencies 0 to nx_ / 2
+   private final int halfNx_;
+   private float[] refRe_, refIm_;
+
+   public FFTCrossCorrelator(int width, int height, int depth) {
+      width_ = width;
+      height_ = height;
+      depth_ = depth;
+      nx_ = paddedSize(width);
+      ny_ = paddedSize(height);
+      nz_ = paddedSize(depth);
+      halfNx_ = nx_ / 2 + 1;
+   }
+
+   public int getDepth() {
+      return depth_;
+   }
+
+   /**
+    * @return number of z shifts in the result of correlate
+    */
+   public int getCorrelationDepth() {
+      return nz_;
+   }
+
+   public boolean hasReference() {
+      return refRe_ != null;
+   }
+
+   /**
+    * @param stack slices of width * height pixels
+    */
+   public void setReference(float[][] stack) throws InterruptedException {
+      float[][] spectrum = transform(stack);
+      keepAsReference(spectrum[0], spectrum[1]);
+   }
+
+   /**
+    * Cross correlates stack with the reference, and then makes stack the
+    * reference. The correlation at a shift s is the sum over all voxels v of
+    * reference(v + s) * stack(v), so a feature at slice z of stack and slice
+    * z + s of the reference gives a peak at the z shift s
+    *
+    * @param stack slices of width * height pixels
+    * @return for every z shift, the maximum correlation over the xy shifts of
+    * less than a quarter of the padded image size. No z shift is at index
+    * getCorrelationDepth() / 2
+    */
+   public double[] correlate(float[][] stack) throws InterruptedException {
+      float[][] spectrum = transform(stack);
+      final float[] re = spectrum[0];
+      final float[] im = spectrum[1];
+      //keep a copy of this spectrum, since re and im are overwritten with the cross power spectrum
+      final float[] nextRefRe = new float[halfNx_ * ny_ * nz_];
+      final float[] nextRefIm = new float[halfNx_ * ny_ * nz_];
+      processInParallel(nz_, new BlockTask() {
+         @Override
+         public void run(int start, int end, double[] lineRe, double[] lineIm) {
+            for (int z = start; z < end; z++) {
+               for (int y = 0; y < ny_; y++) {
+                  int row = nx_ * (y + ny_ * z);
+                  int halfRow = halfNx_ * (y + ny_ * z);
+                  System.arraycopy(re, row, nextRefRe, halfRow, halfNx_);
+                  System.arraycopy(im, row, nextRefIm, halfRow, halfNx_);
+               }
+            }
+         }
+      });
+      //reference times the complex conjugate of stack
+      processInParallel(nz_, new BlockTask() {
+         @Override
+         public void run(int start, int end, double[] lineRe, double[] lineIm) {
+            for (int z = start; z < end; z++) {
+               for (int y = 0; y < ny_; y++) {
+                  for (int x = 0; x < nx_; x++) {
+                     float a, b;
+                     if (x < halfNx_) {
+                        int refIndex = x + halfNx_ * (y + ny_ * z);
+                        a = refRe_[refIndex];
+                        b = refIm_[refIndex];
+                     } else {
+                        //conjugate of the opposite frequency
+                        int refIndex = (nx_ - x) + halfNx_ * ((ny_ - y) % ny_ + ny_ * ((nz_ - z) % nz_));
+                        a = refRe_[refIndex];
+                        b = -refIm_[refIndex];
+                     }
+                     int index = x + nx_ * (y + ny_ * z);
+                     float c = re[index];
+                     float d = im[index];
+                     re[index] = a * c + b * d;
+                     im[index] = b * c - a * d;
+                  }
+               }
+            }
+         }
+      });
+      transform3D(re, im, true);
+      final double[] maxima = new double[nz_];
+      processInParallel(nz_, new BlockTask() {
+         @Override
+         public void run(int start, int end, double[] lineRe, double[] lineIm) {
+            for (int shiftIndex = start; shiftIndex < end; shiftIndex++) {
+               maxima[shiftIndex] = centralMax(re, (shiftIndex + nz_ / 2) % nz_);
+            }
+         }
+      });
+      refRe_ = nextRefRe;
+      refIm_ = nextRefIm;
+      return maxima;
+   }
+
+   /**
+    * Max over the central square of the slice after swapping quadrants, i.e.
+    * over small xy shifts, because weird large values can occur on the edges
+    */
+   private float centralMax(float[] corr, int z) {
+      float max = 0;
+      for (int j = ny_ / 4; j <= 3 * ny_ / 4; j++) {
+         int y = (j + ny_ / 2) % ny_;
+         for (int i = nx_ / 4; i <= 3 * nx_ / 4; i++) {
+            int x = (i + nx_ / 2) % nx_;
+            max = Math.max(max, corr[x + nx_ * (y + ny_ * z)]);
+         }
+      }
+      return max;
+   }
+
+   private void keepAsReference(float[] re, float[] im) {
+      refRe_ = new float[halfNx_ * ny_ * nz_];
+      refIm_ = new float[halfNx_ * ny_ * nz_];
+      for (int yz = 0; yz < ny_ * nz_; yz++) {
+         System.arraycopy(re, yz * nx_, refRe_, yz * halfNx_, halfNx_);
+         System.arraycopy(im, yz * nx_, refIm_, yz * halfNx_, halfNx_);
+      }
+   }
+
+   /**
+    * @return real and imaginary parts of the spectrum of the zero padded stack
+    */
+   private float[][] transform(float[][] stack) throws InterruptedException {
+      if (stack.length != depth_) {
+         throw new IllegalArgumentException("Stack has " + stack.length + " slices instead of " + depth_);
+      }
+      float[] re = new float[nx_ * ny_ * nz_];
+      float[] im = new float[nx_ * ny_ * nz_];
+      for (int z = 0; z < depth_; z++) {
+         for (int y = 0; y < height_; y++) {
+            System.arraycopy(stack[z], y * width_, re, nx_ * (y + ny_ * z), width_);
+         }
+      }
+      transform3D(re, im, false);
+      return new float[][]{re, im};
+   }
+
+   /**
+    * In place 3D FFT: x and y for each slice in parallel, then z for each row
+    * in parallel. The inverse is not scaled
+    */
+   private void transform3D(final float[] re, final float[] im, final boolean inverse) throws InterruptedException {
+      final double[][] xTwiddles = twiddles(nx_), yTwiddles = twiddles(ny_), zTwiddles = twiddles(nz_);
+      processInParallel(nz_, new BlockTask() {
+         @Override
+         public void run(int start, int end, double[] lineRe, double[] lineIm) {
+            for (int z = start; z < end; z++) {
+               for (int y = 0; y < ny_; y++) {
+                  transformLine(re, im, nx_ * (y + ny_ * z), 1, nx_, lineRe, lineIm, xTwiddles, inverse);
+               }
+               for (int x = 0; x < nx_; x++) {
+                  transformLine(re, im, x + nx_ * ny_ * z, nx_, ny_, lineRe, lineIm, yTwiddles, inverse);
+               }
+            }
+         }
+      });
+      if (nz_ == 1) {
+         return;
+      }
+      processInParallel(ny_, new BlockTask() {
+         @Override
+         public void run(int start, int end, double[] lineRe, double[] lineIm) {
+            for (int y = start; y < end; y++) {
+               for (int x = 0; x < nx_; x++) {
+                  transformLine(re, im, x + nx_ * y, nx_ * ny_, nz_, lineRe, lineIm, zTwiddles, inverse);
+               }
+            }
+         }
+      });
+   }
+
+   private static void transformLine(float[] re, float[] im, int start, int stride, int n,
+           double[] lineRe, double[] lineIm, double[][] twiddles, boolean inverse) {
+      if (n == 1) {
+         return;
+      }
+      for (int i = 0; i < n; i++) {
+         lineRe[i] = re[start + i * stride];
+         lineIm[i] = im[start + i * stride];
+      }
+      fft(lineRe, lineIm, n, twiddles, inverse);
+      for (int i = 0; i < n; i++) {
+         re[start + i * stride] = (float) lineRe[i];
+         im[start + i * stride] = (float) lineIm[i];
+      }
+   }
+
+   /**
+    * Iterative radix 2 FFT of the first n values, n a power of 2
+    */
+   private static void fft(double[] re, double[] im, int n, double[][] twiddles, boolean inverse) {
+      //bit reversal permutation
+      for (int i = 1, j = 0; i < n; i++) {
+         int bit = n >> 1;
+         for (; (j & bit) != 0; bit >>= 1) {
+            j ^= bit;
+         }
+         j ^= bit;
+         if (i < j) {
+            double t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+         }
+      }
+      double[] cos = twiddles[0], sin = twiddles[1];
+      for (int length = 2; length <= n; length <<= 1) {
+         int half = length / 2;
+         int step = n / length;
+         for (int i = 0; i < n; i += length) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos[k * step];
+               double wi = inverse ? sin[k * step] : -sin[k * step];
+               int a = i + k, b = a + half;
+               double tr = re[b] * wr - im[b] * wi;
+               double ti = re[b] * wi + im[b] * wr;
+               re[b] = re[a] - tr;
+               im[b] = im[a] - ti;
+               re[a] += tr;
+               im[a] += ti;
+            }
+         }
+      }
+   }
+
+   private static double[][] twiddles(int n) {
+      double[] cos = new double[Math.max(1, n / 2)];
+      double[] sin = new double[Math.max(1, n / 2)];
+      for (int k = 0; k < n / 2; k++) {
+         cos[k] = Math.cos(2 * Math.PI * k / n);
+         sin[k] = Math.sin(2 * Math.PI * k / n);
+      }
+      return new double[][]{cos, sin};
+   }
+
+   private static int paddedSize(int size) {
+      int padded = 1;
+      while (padded < size) {
+         padded <<= 1;
+      }
+      return padded;
+   }
+
+   /**
+    * Split [0, n) into one block per thread, run task on each and wait for
+    * all of them
+    */
+   private void processInParallel(int n, final BlockTask task) throws InterruptedException {
+      final int lineLength = Math.max(nx_, Math.max(ny_, nz_));
+      int numBlocks = Math.min(NUM_THREADS, n);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int block = 0; block < numBlocks; block++) {
+         final int start = block * n / numBlocks;
+         final int end = (block + 1) * n / numBlocks;
+         futures.add(executor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               task.run(start, end, new double[lineLength], new double[lineLength]);
+            }
+         }));
+      }
+      try {
+         for (Future<?> f : futures) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         for (Future<?> f : futures) {
+            f.cancel(true);
+         }
+         throw ex;
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   private interface BlockTask {
+
+      /**
+       * @param lineRe scratch space for one line along any dimension
+       * @param lineIm scratch space for one line along any dimension
+       */
+      void run(int start, int end, double[] lineRe, double[] lineIm);
+   }
+}
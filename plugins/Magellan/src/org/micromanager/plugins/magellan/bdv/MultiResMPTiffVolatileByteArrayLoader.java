@@ -17,7 +17,6 @@
 
 package org.micromanager.plugins.magellan.bdv;
 
-import org.micromanager.plugins.magellan.acq.MagellanTaggedImage;
 import org.micromanager.plugins.magellan.acq.MultiResMultipageTiffStorage;
 import bdv.img.cache.CacheArrayLoader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
@@ -59,8 +58,10 @@ public class MultiResMPTiffVolatileByteArrayLoader implements CacheArrayLoader<V
       //You do not need to be able to load arbitrary blocks here. Just the ones that you will use from the images returned by your ImgLoader.
       //So this is the only "shape" of block that your CacheArrayLoader needs to be able to load (plus they will be aligned at multiples of tileWidth, tileHeight, 1).
       //c, z, f, ds, x, y, w, h
-      MagellanTaggedImage img = tiffStorage_.getImageForDisplay(setup, (int)min[2], timepoint, level, min[0], min[1], dimensions[0], dimensions[1]);
-      return new VolatileByteArray((byte[])img.pix, true);
+      //blocks line up with tiles, so these are mostly the tiles' own pixels rather than a stitched copy,
+      //and can be read by all fetcher threads at once
+      Object pix = tiffStorage_.getBlockPixels(setup, (int) min[2], timepoint, level, min[0], min[1], dimensions[0], dimensions[1]);
+      return new VolatileByteArray((byte[]) pix, true);
    }
 
    @Override
@@ -22,21 +22,26 @@ package org.micromanager.plugins.magellan.bidc;
  */
 public class FrameAverageWrapper extends FrameIntegrationMethod {
 
+   //sum of each pixel over the frames added so far
+   private final int[] sums_;
    
    public FrameAverageWrapper(int offset, int doubleWidth, int numFrames) {
       super(doubleWidth, offset, numFrames);
+      sums_ = new int[width_ * height_];
+   }
+
+   @Override
+   protected void addFrameRows(int frameIndex, byte[] buffer, int[] unwarpedIndices, int rowStart, int rowEnd) {
+      for (int i = rowStart * width_; i < rowEnd * width_; i++) {
+         sums_[i] += buffer[unwarpedIndices[i]] & 0xff;
+      }
    }
 
    @Override
    public byte[] constructImage() {
-      //sort all lists and construct final image
       byte[] averagedPixels = new byte[width_ * height_];
       for (int i = 0; i < averagedPixels.length; i++) {
-         int sum = 0;
-         for (int f = 0; f < numFrames_; f++) {
-            sum += rawBuffers_.get(f).getUnwarpedImageValue(i % width_, i / width_);
-         }
-         averagedPixels[i] = (byte) (sum / numFrames_);
+         averagedPixels[i] = (byte) (sums_[i] / numFrames_);
       }
       return averagedPixels;
    }
@@ -18,36 +18,104 @@
 package org.micromanager.plugins.magellan.bidc;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Integrates the raw frames of one image. Each frame is folded into the
+ * result as it is added, so raw buffers don't need to be kept, and the rows of
+ * the image are processed in parallel
  *
  * @author Henry
  */
 public abstract class FrameIntegrationMethod {
 
    public static final int FRAME_AVERAGE = 0, RANK_FILTER = 1, FRAME_SUMMATION = 2;
+   private static final int NUM_ROW_THREADS = Runtime.getRuntime().availableProcessors();
+   //shared by all images being constructed, separate from the image construction threads that wait on it
+   private static final ExecutorService rowExecutor_ = Executors.newFixedThreadPool(NUM_ROW_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Frame integration row thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
    protected int width_, height_;
-   protected ArrayList<RawBufferWrapper> rawBuffers_;
    protected int doubleWidth_, numFrames_;
    private int offset_;
+   private int framesAdded_ = 0;
 
    
    public FrameIntegrationMethod(int doubleWidth, int offset, int numFrames) {
       offset_ = offset;
       numFrames_ = numFrames;
       doubleWidth_ = doubleWidth;
-      rawBuffers_ = new ArrayList<RawBufferWrapper>();
       width_ = RawBufferWrapper.getWidth();
       height_ = RawBufferWrapper.getHeight();
    }
 
    
    /**
-    * Add a single 
+    * Add a single raw frame, which is integrated right away
     * @param buffer 
     */
-   public void addBuffer(byte[] buffer) {
-      rawBuffers_.add(new RawBufferWrapper(buffer, offset_, doubleWidth_));
+   public void addBuffer(final byte[] buffer) {
+      final int[] unwarpedIndices = RawBufferWrapper.getUnwarpedIndices(offset_, buffer.length, height_);
+      final int frameIndex = framesAdded_;
+      framesAdded_++;
+      processRows(new RowTask() {
+         @Override
+         public void run(int rowStart, int rowEnd) {
+            addFrameRows(frameIndex, buffer, unwarpedIndices, rowStart, rowEnd);
+         }
+      });
+   }
+
+   /**
+    * Integrate rows [rowStart, rowEnd) of a frame
+    *
+    * @param unwarpedIndices index into buffer of each pixel of the constructed image
+    */
+   protected abstract void addFrameRows(int frameIndex, byte[] buffer, int[] unwarpedIndices, int rowStart, int rowEnd);
+
+   /**
+    * Run task on blocks of rows covering the whole image in parallel, and
+    * return once all are done
+    */
+   protected void processRows(RowTask task) {
+      int numBlocks = Math.min(NUM_ROW_THREADS, height_);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int block = 0; block < numBlocks - 1; block++) {
+         final RowTask blockTask = task;
+         final int rowStart = block * height_ / numBlocks;
+         final int rowEnd = (block + 1) * height_ / numBlocks;
+         futures.add(rowExecutor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               blockTask.run(rowStart, rowEnd);
+            }
+         }));
+      }
+      //last block on this thread
+      task.run((numBlocks - 1) * height_ / numBlocks, height_);
+      try {
+         for (Future<?> f : futures) {
+            f.get();
+         }
+      } catch (InterruptedException ex) {
+         for (Future<?> f : futures) {
+            f.cancel(true);
+         }
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while integrating frames");
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
    }
 
    public int getConstructedImageWidth() {
@@ -59,4 +127,9 @@ public abstract class FrameIntegrationMethod {
    }
 
    public abstract Object constructImage();
+
+   protected interface RowTask {
+
+      void run(int rowStart, int rowEnd);
+   }
 }
@@ -23,19 +23,26 @@ package org.micromanager.plugins.magellan.bidc;
  */
 public class FrameSummationWrapper extends FrameIntegrationMethod {
     
+   //sum of each pixel over the frames added so far
+   private final int[] sums_;
+
    public FrameSummationWrapper(int offset, int doubleWidth, int numFrames) {
       super(doubleWidth, offset, numFrames);
+      sums_ = new int[width_ * height_];
+   }
+
+   @Override
+   protected void addFrameRows(int frameIndex, byte[] buffer, int[] unwarpedIndices, int rowStart, int rowEnd) {
+      for (int i = rowStart * width_; i < rowEnd * width_; i++) {
+         sums_[i] += buffer[unwarpedIndices[i]] & 0xff;
+      }
    }
 
    @Override
    public Object constructImage() {
-      //sort all lists and construct final image
       short[] summedPixels = new short[width_ * height_];
       for (int i = 0; i < summedPixels.length; i++) {
-         int sum = 0;
-         for (int f = 0; f < numFrames_; f++) {
-            summedPixels[i] += rawBuffers_.get(f).getUnwarpedImageValue(i % width_, i / width_);
-         }
+         summedPixels[i] = (short) sums_[i];
       }
       return summedPixels;
    }
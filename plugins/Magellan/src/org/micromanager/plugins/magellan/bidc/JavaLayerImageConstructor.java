@@ -22,7 +22,6 @@ import org.micromanager.plugins.magellan.acq.MagellanTaggedImage;
 import org.micromanager.plugins.magellan.demo.DemoModeImageData;
 import ij.IJ;
 import java.awt.geom.Point2D;
-import java.util.LinkedList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -120,21 +119,19 @@ public class JavaLayerImageConstructor {
 
          //get frames of all channels
          for (int c = 0; c < core_.getNumberOfCameraChannels(); c++) {
-            final LinkedList<ImageAndInfo> imageList = new LinkedList<ImageAndInfo>();
-            for (int framesBack = numFrames - 1; framesBack >= 0; framesBack--) {
-               //channel 0 is farthest back
-               int backIndex = framesBack * numCamChannels + (numCamChannels - 1 - c);
-               MagellanTaggedImage img = convertTaggedImage(core_.getNBeforeLastTaggedImage(backIndex));
-               imageList.add(new ImageAndInfo(img, event, numCamChannels, c, currentTime, numFrames, numFrames - 1 - framesBack));
-            }
+            //frames are handed to the construction thread as they are read, so it integrates each while the next is read
+            final LinkedBlockingQueue<Object> frames = new LinkedBlockingQueue<Object>();
+            //channel 0 is farthest back, first frame carries the metadata
+            MagellanTaggedImage firstImg = convertTaggedImage(core_.getNBeforeLastTaggedImage(
+                    (numFrames - 1) * numCamChannels + (numCamChannels - 1 - c)));
+            frames.add(firstImg.pix);
+            final ImageAndInfo firstIAI = new ImageAndInfo(firstImg, event, numCamChannels, c, currentTime, numFrames, 0);
 
             numImagesConstructing_.incrementAndGet();
             imageConstructionExecutor_.submit(new Runnable() {
                @Override
                 public void run() {         
                     try {
-                        ImageAndInfo firstIAI = imageList.getFirst();
-
                         //Create appropriate image construction class
                         final FrameIntegrationMethod integrator;
                         if (firstIAI.event_.acquisition_.getFilterType() == FrameIntegrationMethod.FRAME_AVERAGE) {
@@ -147,9 +144,13 @@ public class JavaLayerImageConstructor {
                             integrator = new FrameSummationWrapper(GlobalSettings.getInstance().getChannelOffset(firstIAI.camChannelIndex_),
                                     MD.getWidth(firstIAI.img_.tags), firstIAI.numFrames_);
                         }
-                        //add frames to integrator
+                        //add frames to integrator as they arrive
                         for (int i = 0; i < firstIAI.numFrames_; i++) {
-                            integrator.addBuffer((byte[]) imageList.removeFirst().img_.pix);
+                            byte[] frame = (byte[]) frames.take();
+                            if (frame.length == 0) {
+                               throw new Exception("Couldn't read all frames of image");
+                            }
+                            integrator.addBuffer(frame);
                         }
                         //add metadata 
                         MD.setWidth(firstIAI.img_.tags, integrator.getConstructedImageWidth());
@@ -168,6 +169,18 @@ public class JavaLayerImageConstructor {
                   numImagesConstructing_.decrementAndGet();
                }
             });
+
+            try {
+               for (int framesBack = numFrames - 2; framesBack >= 0; framesBack--) {
+                  //only the pixels of the remaining frames are needed
+                  int backIndex = framesBack * numCamChannels + (numCamChannels - 1 - c);
+                  frames.add(core_.getNBeforeLastTaggedImage(backIndex).pix);
+               }
+            } catch (Exception e) {
+               //let construction thread give up on this image
+               frames.add(new byte[0]);
+               throw e;
+            }
          }
       } else if (GlobalSettings.getInstance().getDemoMode()) {
          //add demo image
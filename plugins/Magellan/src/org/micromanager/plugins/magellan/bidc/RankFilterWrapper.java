@@ -5,7 +5,6 @@
  */
 package org.micromanager.plugins.magellan.bidc;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -13,75 +12,52 @@ import java.util.Arrays;
  */
 public class RankFilterWrapper extends FrameIntegrationMethod{
 
-   //first index: pixel index, second index: 9*numFrames values to be sorted
+   //values to be sorted, 9*numFrames for every pixel index one after the other:
+   //the 3x3 neighbourhood of the pixel in every frame
    //has to be short to get rid of signed byte for sorting
-   private short[][] pixelValues_;
+   private final short[] pixelValues_;
+   private final int valuesPerPixel_;
    private double rank_; 
 
    public RankFilterWrapper(int offset, int doubleWidth, int numFrames, double rank) {
       super(doubleWidth, offset, numFrames);
-      pixelValues_ = new short[width_ * height_][numFrames_ * 9];
+      valuesPerPixel_ = numFrames_ * 9;
+      pixelValues_ = new short[width_ * height_ * valuesPerPixel_];
       rank_ = rank;
    }
 
+   @Override
+   protected void addFrameRows(int frameIndex, byte[] buffer, int[] unwarpedIndices, int rowStart, int rowEnd) {
+      for (int y = rowStart; y < rowEnd; y++) {
+         for (int x = 0; x < width_; x++) {
+            int valueIndex = (x + y * width_) * valuesPerPixel_ + frameIndex * 9;
+            //neighbours are in the same order as they used to be added, edge pixels are repeated outside the image
+            for (int dy = 1; dy >= -1; dy--) {
+               int neighbourY = Math.max(0, Math.min(height_ - 1, y + dy));
+               for (int dx = 1; dx >= -1; dx--) {
+                  int neighbourX = Math.max(0, Math.min(width_ - 1, x + dx));
+                  pixelValues_[valueIndex++] = (short) (buffer[unwarpedIndices[neighbourX + neighbourY * width_]] & 0xff);
+               }
+            }
+         }
+      }
+   }
 
     @Override
    public byte[] constructImage() {
-      //iterate through every pixel location in final image
-      for (int x = -1; x < width_ + 1; x++) {
-         for (int y = -1; y < height_ + 1; y++) {
-            for (int frame = 0; frame < numFrames_; frame++) {
-               //get value of pixel or value of relevant edge
-               short val = rawBuffers_.get(frame).getUnwarpedImageValue(Math.max(0, Math.min(width_ - 1, x)), Math.max(0, Math.min(height_ - 1, y)));
-               //add to all 9 positions at the appropriate index            
-               addValToRelevantArrays(frame, val, x, y);
+      //sort the values of every pixel and construct final image
+      final byte[] filteredPix = new byte[width_ * height_];
+      final int rankIndex = (int)((numFrames_*9 -1) *rank_);
+      processRows(new RowTask() {
+         @Override
+         public void run(int rowStart, int rowEnd) {
+            for (int i = rowStart * width_; i < rowEnd * width_; i++) {
+               Arrays.sort(pixelValues_, i * valuesPerPixel_, (i + 1) * valuesPerPixel_);
+               filteredPix[i] = (byte) pixelValues_[i * valuesPerPixel_ + rankIndex];
             }
          }
-      }
-      //sort all lists and construct final image
-      byte[] filteredPix = new byte[width_ * height_];
-      for (int i = 0; i < filteredPix.length; i++ ) {
-         Arrays.sort(pixelValues_[i]);
-         filteredPix[i] = (byte) pixelValues_[i][(int)((numFrames_*9 -1) *rank_)];
-      }
+      });
       return filteredPix;
    }
-   
-   private void addValToRelevantArrays(int frameIndex, short val, int x, int y) {
-      if (y > 0) {
-         if (x > 0) {
-            pixelValues_[x - 1 + (y - 1) * width_][frameIndex*9 + 0] = val;
-         }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + (y - 1) * width_][frameIndex*9 + 1] = val;
-         }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + (y - 1) * width_][frameIndex*9 + 2] = val;
-         }
-      }
-      if (y >= 0 && y < height_) {
-         if (x > 0) {
-            pixelValues_[x - 1 + y * width_][frameIndex*9 + 3] = val;
-         }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + y * width_][frameIndex*9 + 4] = val;
-         }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + y * width_][frameIndex*9 + 5] = val;
-         }
-      }
-      if (y < height_ - 1) {
-         if (x > 0) {
-            pixelValues_[x - 1 + (y + 1) * width_][frameIndex*9 + 6] = val;
-         }
-         if (x >= 0 && x < width_) {
-            pixelValues_[x + (y + 1) * width_][frameIndex*9 + 7] = val;
-         }
-         if (x < width_ - 1) {
-            pixelValues_[x + 1 + (y + 1) * width_][frameIndex*9 + 8] = val;
-         }
-      }
-   }
-
   
 }
@@ -7,6 +7,7 @@ package org.micromanager.plugins.magellan.bidc;
 
 import ij.ImagePlus;
 import ij.ImageStack;
+import java.util.concurrent.ConcurrentHashMap;
 import org.micromanager.plugins.magellan.main.Magellan;
 
 /**
@@ -31,6 +32,8 @@ public class RawBufferWrapper {
    private int offset_;
    private static int unwarpedWidth_;
    private static boolean unwarp_ = true; //for debugging
+   //tables from getUnwarpedIndices, by offset, buffer length and image height
+   private static final ConcurrentHashMap<String, int[]> unwarpedIndexTables_ = new ConcurrentHashMap<String, int[]>();
    
    public RawBufferWrapper(byte[] buffer, int offset, int doubleWidth) {
       if (warpedIndicesFromUnwarped_ == null) {
@@ -50,6 +53,33 @@ public class RawBufferWrapper {
     }
    
      public short getUnwarpedImageValue(int x, int y) {
+        return (short) (buffer_[getBufferIndex(x, y, offset_, buffer_.length)] & 0xff);
+    }
+
+   /**
+    * Table of the index into a raw buffer of each pixel of the unwarped image,
+    * so that integrating frames doesn't need to compute it for every pixel of 
+    * every frame
+    * 
+    * @return buffer index of pixel x + y * width
+    */
+   public static int[] getUnwarpedIndices(int offset, int bufferLength, int height) {
+      String key = offset + "_" + bufferLength + "_" + height;
+      int[] indices = unwarpedIndexTables_.get(key);
+      if (indices == null) {
+         int width = getWidth();
+         indices = new int[width * height];
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               indices[x + y * width] = getBufferIndex(x, y, offset, bufferLength);
+            }
+         }
+         unwarpedIndexTables_.put(key, indices);
+      }
+      return indices;
+   }
+
+   private static int getBufferIndex(int x, int y, int offset, int bufferLength) {
        //this gives you the single wide index in an interlaced image
 //       unwarp_ = true;
     
@@ -60,11 +90,10 @@ public class RawBufferWrapper {
            warpedX = x;
        }    
          //apply offset to wrap indices arounfd
-         int flatIndex = (y % 2 == 1 ? (PIXELS_PER_LINE - warpedX + offset_ % 2) : warpedX) + (y/2)*PIXELS_PER_LINE;
+         int flatIndex = (y % 2 == 1 ? (PIXELS_PER_LINE - warpedX + offset % 2) : warpedX) + (y/2)*PIXELS_PER_LINE;
          //wrap around using offset
-         flatIndex = Math.max(0,Math.min(flatIndex + offset_/2, buffer_.length - 1));    
-        return (short) (buffer_[flatIndex] & 0xff);
-    }
+         return Math.max(0,Math.min(flatIndex + offset/2, bufferLength - 1));    
+   }
    
 
    public static int getWidth() {
@@ -36,7 +36,6 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import javax.swing.SwingUtilities;
 import org.micromanager.plugins.magellan.misc.Log;
@@ -246,7 +245,7 @@ public class DisplayOverlayer {
                   try {
                      if (acq_ instanceof ExploreAcquisition) {
                         //always draw tiles waiting to be acquired
-                        LinkedBlockingQueue<ExploreAcquisition.ExploreTileWaitingToAcquire> tiles =
+                        ArrayList<ExploreAcquisition.ExploreTileWaitingToAcquire> tiles =
                                 ((ExploreAcquisition) acq_).getTilesWaitingToAcquireAtSlice(display_.getVisibleSliceIndex()
                                 + ((ExploreAcquisition) acq_).getMinSliceIndex());
                         if (tiles != null) {
@@ -90,6 +90,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
          xMax_ = 0;
          yMin_ = 0;
          yMax_ = 0; 
+         updateExploreViewTiles();
       }
    }
 
@@ -133,6 +134,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
          xMax_ = 0;
          yMin_ = 0;
          yMax_ = 0; 
+         updateExploreViewTiles();
       }
    }
    
@@ -220,6 +222,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
       //explore acquisition must have some area you've already explored in view
       if (acquisition_ instanceof ExploreAcquisition) {
          moveViewToVisibleArea();
+         updateExploreViewTiles();
       }
 
 
@@ -304,9 +307,20 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
          //only accept pan if it keeps some portion of explored area in view
          //explore acquisition must have some area you've already explored in view
          moveViewToVisibleArea();
+         updateExploreViewTiles();
       }
    }
 
+   /**
+    * Let the explore acquisition know which tiles are in view, so that it
+    * acquires the tiles waiting closest to the view first
+    */
+   private void updateExploreViewTiles() {
+      Point topLeft = getTileIndicesFromDisplayedPixel(0, 0);
+      Point bottomRight = getTileIndicesFromDisplayedPixel(displayImageWidth_ - 1, displayImageHeight_ - 1);
+      ((ExploreAcquisition) acquisition_).setViewedTiles(topLeft.y, topLeft.x, bottomRight.y, bottomRight.x);
+   }
+
    /**
     * return the absolute pixel coordinate of the image at full resolution
     *
@@ -409,7 +423,7 @@ public class ZoomableVirtualStack extends AcquisitionVirtualStack {
       }
 
       return multiResStorage_.getImageForDisplay(channel, slice, frame, resolutionIndex_,
-              xView_, yView_, displayImageWidth_, displayImageHeight_);
+              xView_, yView_, displayImageWidth_, displayImageHeight_, true);
    }
    
 }
@@ -35,6 +35,8 @@ public class Log {
       Magellan.getCore().logMessage(message);
      } catch (NoClassDefFoundError e) {
         //running outside of MM, ignore
+     } catch (NullPointerException e) {
+        //MM classes present but not started, e.g. in tests, ignore
      }
        if (show) {
           IJ.log(message);
@@ -9,19 +9,26 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.rmi.activation.ActivationSystem;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
-import org.apache.commons.math.linear.Array2DRowRealMatrix;
-import org.apache.commons.math.linear.MatrixUtils;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.micromanager.plugins.magellan.acq.AcquisitionEvent;
 import org.micromanager.plugins.magellan.bidc.JavaLayerImageConstructor;
 import org.micromanager.plugins.magellan.coordinates.AffineUtils;
 import org.micromanager.plugins.magellan.coordinates.XYStagePosition;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.micromanager.plugins.magellan.misc.Log;
+import org.micromanager.plugins.magellan.surfacesandregions.SingleResolutionInterpolation;
 import org.micromanager.plugins.magellan.surfacesandregions.SurfaceInterpolator;
 
 
@@ -37,14 +44,48 @@ public class LaserPredNet {
    private static final int N_HIDDENS = 200;
    private static final int N_INPUTS = 15;
 
-     
+   //number of (position, z) predictions kept, well above the slices of the positions computed ahead
+   private static final int MAX_CACHED_PREDICTIONS = 20000;
+   //unit vectors along which distances to the surface are measured
+   private static final double[] DIRECTION_X = new double[N_THETA_ANGLES];
+   private static final double[] DIRECTION_Y = new double[N_THETA_ANGLES];
+   private static final double[] DIRECTION_Z = new double[N_THETA_ANGLES];
 
-   Array2DRowRealMatrix W1_, B1_, W2_, B2_;
+   static {
+      double dTheta = Math.PI * 2.0 / (double) N_THETA_ANGLES;
+      for (int i = 0; i < N_THETA_ANGLES; i++) {
+         double theta = i * dTheta;
+         DIRECTION_X[i] = -(Math.cos(theta) * Math.sin(PHI));
+         DIRECTION_Y[i] = -(Math.sin(theta) * Math.sin(PHI));
+         DIRECTION_Z[i] = -Math.cos(PHI);
+      }
+   }
+
+   //predictions for upcoming positions are computed on these, ahead of the acquisition
+   private static final ExecutorService predictionExecutor_ = Executors.newFixedThreadPool(
+           Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Laser prediction thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   private double[][] w1_, b1_, w2_, b2_;
    private double[] distanceMeans_, distanceSDs_;
    private double[][] testValues_;
    private double[] testValuesOutput_;
    private double brightness_;
    private double[] binedges_;
+   //excitations by position and z, valid for cachedInterpolation_ only
+   private final LinkedHashMap<String, Prediction> predictionCache_ = new LinkedHashMap<String, Prediction>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Prediction> eldest) {
+         return size() > MAX_CACHED_PREDICTIONS;
+      }
+   };
+   private SingleResolutionInterpolation cachedInterpolation_;
    
    public LaserPredNet(String filename, double brightness) throws FileNotFoundException {
       readModel(filename);
@@ -58,53 +99,127 @@ public class LaserPredNet {
       brightness_ = brightness;
    }
 
-    public byte[] getExcitations(XYStagePosition xyPos, double zPos, SurfaceInterpolator surf) throws InterruptedException {
-      Point2D.Double[] corners = xyPos.getFullTileCorners();
+   /**
+    * Excitations for one slice of a position, from the predictions computed
+    * ahead by precomputeExcitations if there are any
+    */
+   public byte[] getExcitations(XYStagePosition xyPos, double zPos, SurfaceInterpolator surf) throws InterruptedException {
+      SingleResolutionInterpolation interp = surf.waitForCurentInterpolation();
+      Prediction prediction;
+      synchronized (predictionCache_) {
+         prediction = getCachedPrediction(interp, xyPos, zPos);
+      }
+      if (prediction != null) {
+         try {
+            return prediction.batch_.get()[prediction.index_];
+         } catch (ExecutionException ex) {
+            Log.log("Couldn't precompute excitations");
+            Log.log(ex);
+         }
+      }
+      return predict(interp, xyPos, new double[]{zPos})[0];
+   }
+
+   /**
+    * Start computing the excitations for the given slices of a position in the
+    * background, as one batch, so that getExcitations doesn't need to wait for them
+    */
+   public void precomputeExcitations(final XYStagePosition xyPos, List<Double> zPositions, SurfaceInterpolator surf) throws InterruptedException {
+      final SingleResolutionInterpolation interp = surf.waitForCurentInterpolation();
+      synchronized (predictionCache_) {
+         final List<Double> toCompute = new ArrayList<Double>();
+         for (double z : zPositions) {
+            if (getCachedPrediction(interp, xyPos, z) == null && !toCompute.contains(z)) {
+               toCompute.add(z);
+            }
+         }
+         if (toCompute.isEmpty()) {
+            return;
+         }
+         Future<byte[][]> batch = predictionExecutor_.submit(new Callable<byte[][]>() {
+            @Override
+            public byte[][] call() throws Exception {
+               double[] zs = new double[toCompute.size()];
+               for (int i = 0; i < zs.length; i++) {
+                  zs[i] = toCompute.get(i);
+               }
+               return predict(interp, xyPos, zs);
+            }
+         });
+         for (int i = 0; i < toCompute.size(); i++) {
+            predictionCache_.put(getCacheKey(xyPos, toCompute.get(i)), new Prediction(batch, i));
+         }
+      }
+   }
+
+   private Prediction getCachedPrediction(SingleResolutionInterpolation interp, XYStagePosition xyPos, double zPos) {
+      if (interp != cachedInterpolation_) {
+         //surface has changed
+         predictionCache_.clear();
+         cachedInterpolation_ = interp;
+      }
+      return predictionCache_.get(getCacheKey(xyPos, zPos));
+   }
+
+   private static String getCacheKey(XYStagePosition xyPos, double zPos) {
+      return xyPos.getCenter().x + "_" + xyPos.getCenter().y + "_" + zPos;
+   }
+
+   /**
+    * Run the network on the design matrices of all slices of a position at once
+    * 
+    * @return excitations for each of zPositions
+    */
+   private byte[][] predict(SingleResolutionInterpolation interp, XYStagePosition xyPos, double[] zPositions) {
+      int nFOVPoints = FOV_LASER_MODULATION_RESOLUTION * FOV_LASER_MODULATION_RESOLUTION;
       int pixelDim = JavaLayerImageConstructor.getInstance().getImageHeight();      
       AffineTransform posTransform = AffineUtils.getAffineTransform(getCurrentPixelSizeConfig(), xyPos.getCenter().x, xyPos.getCenter().y);
+      //stage coordinates of points in FOV are the same for every slice
+      double[] stageX = new double[nFOVPoints];
+      double[] stageY = new double[nFOVPoints];
+      for (int r = 0; r < nFOVPoints; r++) {
+         //calculate position for this point in FOV
+         int xPosPix = (int) (((r % FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5) * pixelDim);
+         int yPosPix = (int) (((r / FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5) * pixelDim);               
+         Point2D.Double stageCoordPos =  new Point2D.Double();
+         posTransform.transform(new Point2D.Double(xPosPix, yPosPix), stageCoordPos);
+         stageX[r] = stageCoordPos.x;
+         stageY[r] = stageCoordPos.y;
+      }
       
-      double[][] designMat = new double[FOV_LASER_MODULATION_RESOLUTION*FOV_LASER_MODULATION_RESOLUTION][N_HIST_BINS+3];
+      double[][] designMat = new double[zPositions.length * nFOVPoints][N_HIST_BINS+3];
 //      designMatrix = [designMatrix tilePosition brightness];
-       for (int r = 0; r < designMat.length; r++) {
-          //calculate position for this point in FOV
-          int xPosPix = (int) (((r % FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5) * pixelDim);
-          int yPosPix = (int) (((r / FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5) * pixelDim);               
-          Point2D.Double stageCoordPos =  new Point2D.Double();
-          posTransform.transform(new Point2D.Double(xPosPix, yPosPix), stageCoordPos);
-          //calculate histogram
-          double[] hist = new double[N_HIST_BINS];
-          for (int thetaIndex = 0; thetaIndex < N_THETA_ANGLES; thetaIndex++) {
-             double dist = getSampledDistancesToSurface(thetaIndex, stageCoordPos.x, stageCoordPos.y, zPos, surf);
-             //add count to hist
-             for (int binIndex = 0; binIndex < N_HIST_BINS; binIndex++) {
-                if (dist < binedges_[binIndex + 1]) {
-                   hist[binIndex]++;
-                   break;
-                }
-             }
-          }
-          //standardize histogram
-          for (int i= 0; i < hist.length; i++) {
-             hist[i] = (hist[i] - distanceMeans_[i]) / distanceSDs_[i];
-          }
-          
-         for (int c = 0; c < designMat[0].length; c++) {
-            if (c < N_HIST_BINS) {
-               //add in normalized distance histogram
-               designMat[r][c] = hist[c];            
-            } else if (c < N_HIST_BINS + 1) { // x position                        
-               double xPos = (r % FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1);
-               designMat[r][c] = xPos - 0.5;
-            } else if (c < N_HIST_BINS + 2) { // y position                            
-               double yPos = (r / FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1);
-               designMat[r][c] = yPos - 0.5;
-            } else {
-               designMat[r][c] = brightness_;
+      for (int zIndex = 0; zIndex < zPositions.length; zIndex++) {
+         for (int r = 0; r < nFOVPoints; r++) {
+            double[] row = designMat[zIndex * nFOVPoints + r];
+            //calculate histogram
+            for (int thetaIndex = 0; thetaIndex < N_THETA_ANGLES; thetaIndex++) {
+               double dist = getSampledDistanceToSurface(thetaIndex, stageX[r], stageY[r], zPositions[zIndex], interp);
+               //add count to hist
+               for (int binIndex = 0; binIndex < N_HIST_BINS; binIndex++) {
+                  if (dist < binedges_[binIndex + 1]) {
+                     row[binIndex]++;
+                     break;
+                  }
+               }
             }
+            //standardize histogram
+            for (int i = 0; i < N_HIST_BINS; i++) {
+               row[i] = (row[i] - distanceMeans_[i]) / distanceSDs_[i];
+            }
+            // x position, y position
+            row[N_HIST_BINS] = (r % FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5;
+            row[N_HIST_BINS + 1] = (r / FOV_LASER_MODULATION_RESOLUTION) / (double) (FOV_LASER_MODULATION_RESOLUTION-1) - 0.5;
+            row[N_HIST_BINS + 2] = brightness_;
          }
-       }
-       //use NN to predict       
-       return forwardPass(designMat);
+      }
+      //use NN to predict       
+      byte[] powers = forwardPass(designMat);
+      byte[][] excitations = new byte[zPositions.length][];
+      for (int zIndex = 0; zIndex < zPositions.length; zIndex++) {
+         excitations[zIndex] = Arrays.copyOfRange(powers, zIndex * nFOVPoints, (zIndex + 1) * nFOVPoints);
+      }
+      return excitations;
    }
    
    
@@ -112,31 +227,34 @@ public class LaserPredNet {
       return brightness_;
    }
    
+   /**
+    * Predict the power for every row of x, a row at a time so the hidden layer
+    * is never held for the whole batch
+    */
  private byte[] forwardPass(double[][] x) {
-     double[] ones = new double[x.length];
-     Arrays.fill(ones, 1.0);
-     Array2DRowRealMatrix onesMat = new Array2DRowRealMatrix(ones);
       //assume x is properly normalized
-      new Array2DRowRealMatrix(x[0]);
-      Array2DRowRealMatrix xMat = (Array2DRowRealMatrix) MatrixUtils.createRealMatrix(x);
-      Array2DRowRealMatrix h = xMat.multiply(W1_).add(onesMat.multiply(B1_));
-      relu(h);
-      Array2DRowRealMatrix z = (Array2DRowRealMatrix) h.multiply(W2_.transpose()).add(onesMat.multiply(B2_));
-      byte[] powers = new byte[z.getRowDimension()*z.getColumnDimension()];
-      for (int i = 0; i < powers.length; i++) {
-         powers[i] = (byte) Math.max(0, Math.min(255, z.getEntry(i, 0)));
-      }
-      return powers;  
-   }
-   
-  private static void relu(Array2DRowRealMatrix activations) {      
-      for (int r = 0; r < activations.getRowDimension(); r++) {
-         for (int c = 0; c < activations.getColumnDimension(); c++) {
-            if (activations.getEntry(r, c) < 0) {
-               activations.setEntry(r, c, 0.0);
+      byte[] powers = new byte[x.length];
+      double[] h = new double[N_HIDDENS];
+      for (int r = 0; r < x.length; r++) {
+         double[] row = x[r];
+         Arrays.fill(h, 0);
+         for (int k = 0; k < N_INPUTS; k++) {
+            double xk = row[k];
+            double[] w1k = w1_[k];
+            for (int j = 0; j < N_HIDDENS; j++) {
+               h[j] += xk * w1k[j];
             }
          }
+         double z = 0;
+         for (int j = 0; j < N_HIDDENS; j++) {
+            //relu
+            double activation = Math.max(0.0, h[j] + b1_[0][j]);
+            z += activation * w2_[0][j];
+         }
+         z += b2_[0][0];
+         powers[r] = (byte) Math.max(0, Math.min(255, z));
       }
+      return powers;  
    }
   
    private void readModel(String filename) throws FileNotFoundException {
@@ -203,11 +321,10 @@ public class LaserPredNet {
          testValuesOutput_[i] = Double.parseDouble(s.nextLine());
       }
       
-      //convert model to Apache commons matrices
-      W1_ = (Array2DRowRealMatrix) MatrixUtils.createRealMatrix(w1);
-      B1_ = (Array2DRowRealMatrix) MatrixUtils.createRealMatrix(b1);
-      W2_ = (Array2DRowRealMatrix) MatrixUtils.createRealMatrix(w2);
-      B2_ = (Array2DRowRealMatrix) MatrixUtils.createRealMatrix(b2);    
+      w1_ = w1;
+      b1_ = b1;
+      w2_ = w2;
+      b2_ = b2;    
       
                    
       //Run tests
@@ -223,48 +340,47 @@ public class LaserPredNet {
     *
     * @return return distance to surface interpolation based on x y and z points
     */
-   private static double getSampledDistancesToSurface(int angleIndex, double x, double y, double z, SurfaceInterpolator surface) throws InterruptedException {
-      double dTheta = Math.PI * 2.0 / (double) N_THETA_ANGLES;
-      Vector3D initialPoint = new Vector3D(x, y, z);
-      double[] distances = new double[N_THETA_ANGLES];
-      double theta = angleIndex * dTheta;
-      //calculate unit vector in theta phi direction
-      Vector3D directionUnitVec = new Vector3D(Math.cos(theta) * Math.sin(PHI), Math.sin(theta) * Math.sin(PHI), Math.cos(PHI)).scalarMultiply(-1);
+   private static double getSampledDistanceToSurface(int angleIndex, double x, double y, double z, SingleResolutionInterpolation interp) {
+      double dx = DIRECTION_X[angleIndex], dy = DIRECTION_Y[angleIndex], dz = DIRECTION_Z[angleIndex];
       //binary search 
-      double initialDist = SEARCH_START_DIST;
+      double maxDistance = SEARCH_START_DIST;
       //start with a point outside and then binary line search for the distance
-      while (isWithinSurace(surface, initialPoint.add(directionUnitVec.scalarMultiply(initialDist)))) {
-         initialDist *= 2;
+      while (isWithinSurace(interp, x + dx * maxDistance, y + dy * maxDistance, z + dz * maxDistance)) {
+         maxDistance *= 2;
+      }
+      double minDistance = 0;
+      double halfDistance = (minDistance + maxDistance) / 2;
+      //narrow the distance to a sufficiently small interval
+      while (maxDistance - minDistance >= SEARCH_TOLERANCE) {
+         //check if point is above surface in 
+         if (isWithinSurace(interp, x + dx * halfDistance, y + dy * halfDistance, z + dz * halfDistance)) {
+            minDistance = halfDistance;
+         } else {
+            maxDistance = halfDistance;
+         }
+         halfDistance = (minDistance + maxDistance) / 2;
       }
-      return binarySearch(initialPoint, directionUnitVec, 0, initialDist, surface);
+      return halfDistance;
    }
    
-   private static boolean isWithinSurace(SurfaceInterpolator surface, Vector3D point) throws InterruptedException {
-     boolean defined = surface.waitForCurentInterpolation().isInterpDefined(point.getX(), point.getY());
-     if (!defined) {
+   private static boolean isWithinSurace(SingleResolutionInterpolation interp, double x, double y, double z) {
+     if (!interp.isInterpDefined(x, y)) {
         return false;
      }
-     float interpVal = surface.waitForCurentInterpolation().getInterpolatedValue(point.getX(), point.getY());
-     return point.getZ() > interpVal;
+     return z > interp.getInterpolatedValue(x, y);
    }
    
-   private static double binarySearch(Vector3D initialPoint, Vector3D direction, double minDistance, double maxDistance, SurfaceInterpolator surf) throws InterruptedException {      
-      double halfDistance = (minDistance + maxDistance) / 2;
-      //if the distance has been narrowed to a sufficiently small interval, return
-      if (maxDistance - minDistance < SEARCH_TOLERANCE) {
-         return halfDistance;
-      }
-      //check if point is above surface in 
-      Vector3D searchPoint = initialPoint.add(direction.scalarMultiply(halfDistance));
-      boolean withinSurface = isWithinSurace(surf, searchPoint);
-      if (!withinSurface) {
-         return binarySearch(initialPoint, direction, minDistance, halfDistance, surf);
-      } else {
-         return binarySearch(initialPoint, direction, halfDistance, maxDistance, surf);
+   private static class Prediction {
+
+      final Future<byte[][]> batch_;
+      final int index_;
+
+      Prediction(Future<byte[][]> batch, int index) {
+         batch_ = batch;
+         index_ = index;
       }
    }
    
-   
     private static String getCurrentPixelSizeConfig() {   
       try {
          return Magellan.getCore().getCurrentPixelSizeConfig();
@@ -19,17 +19,24 @@ package org.micromanager.plugins.magellan.surfacesandregions;
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
 import delaunay_triangulation.Triangle_dt;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.micromanager.plugins.magellan.main.Magellan;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.partitioning.Region;
 import java.util.Iterator;
 import java.util.List;
 
@@ -41,6 +48,23 @@ import java.util.List;
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
+   //relative tolerance of barycentric coordinates, so points on shared edges are found in either triangle
+   private static final double BARYCENTRIC_TOLERANCE = 1e-9;
+   private static final int NUM_ROW_THREADS = Runtime.getRuntime().availableProcessors();
+   //rows of the interpolation grid are calculated in parallel on these
+   private static final ExecutorService rowExecutor_ = Executors.newFixedThreadPool(NUM_ROW_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Interpolation row thread");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   
+   //triangulation is kept between interpolations, so that adding a point only inserts that point
+   //only accessed from the interpolation calculation thread
+   private Delaunay_Triangulation dTri_;
+   private final Set<Point3d> triangulatedPoints_ = Collections.newSetFromMap(new IdentityHashMap<Point3d, Boolean>());
 
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
@@ -50,11 +74,8 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
       double pixSize = Magellan.getCore().getPixelSizeUm();
       //provide interpolator with current list of data points
-      Point_dt triangulationPoints[] = new Point_dt[points.size()];
-      for (int i = 0; i < points.size(); i++) {
-         triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
-      }
-      Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      updateTriangulation(points);
+      final TriangleMesh mesh = new TriangleMesh(dTri_);
 
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_) / pixSize);
       //Start with at least 20 interp points and go smaller and smaller until every pixel interped?
@@ -69,38 +90,41 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       while (pixelsPerInterpPoint >= MIN_PIXELS_PER_INTERP_POINT) {
          int numInterpPointsX = (int) (((boundXMax_ - boundXMin_) / pixSize) / pixelsPerInterpPoint);
          int numInterpPointsY = (int) (((boundYMax_ - boundYMin_) / pixSize) / pixelsPerInterpPoint);
-         double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
-         double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
-
-         float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
-         float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
-         boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
-               }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal)) == Region.Location.INSIDE;
-               if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
-                  //intersetion of vertical line at these x+y values with plane gives point in plane
-                  Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(), new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
-               } else {
-                  interpDefined[yInd][xInd] = false;
+         final double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
+         final double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
+         final double xMin = boundXMin_, yMin = boundYMin_;
+
+         final float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
+         final float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
+         final boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
+         //each task does every nth row, so that they all get a similar share of the convex hull
+         List<Future<?>> rowTasks = new ArrayList<Future<?>>();
+         for (int t = 0; t < NUM_ROW_THREADS; t++) {
+            final int firstRow = t;
+            rowTasks.add(rowExecutor_.submit(new Runnable() {
+               @Override
+               public void run() {
+                  for (int yInd = firstRow; yInd < interpVals.length; yInd += NUM_ROW_THREADS) {
+                     if (Thread.currentThread().isInterrupted()) {
+                        return;
+                     }
+                     mesh.interpolateRow(xMin, dx, yMin + dy * yInd, interpVals[yInd], interpNormals[yInd],
+                             interpDefined[yInd]);
+                  }
                }
+            }));
+         }
+         try {
+            for (Future<?> f : rowTasks) {
+               f.get();
             }
+         } catch (InterruptedException e) {
+            for (Future<?> f : rowTasks) {
+               f.cancel(true);
+            }
+            throw e;
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
          }
          if (Thread.interrupted()) {
             throw new InterruptedException();
@@ -116,6 +140,190 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       }
    }
 
+   /**
+    * Inserts points that were added since the last interpolation into the
+    * triangulation, or triangulates from scratch if any were removed
+    */
+   private void updateTriangulation(LinkedList<Point3d> points) throws InterruptedException {
+      Set<Point3d> current = Collections.newSetFromMap(new IdentityHashMap<Point3d, Boolean>());
+      current.addAll(points);
+      if (dTri_ == null || !current.containsAll(triangulatedPoints_)) {
+         dTri_ = new Delaunay_Triangulation();
+         triangulatedPoints_.clear();
+      }
+      for (Point3d p : points) {
+         if (triangulatedPoints_.contains(p)) {
+            continue;
+         }
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         dTri_.insertPoint(new Point_dt(p.x, p.y, p.z));
+         triangulatedPoints_.add(p);
+      }
+   }
+
+   /**
+    * Triangles of a triangulation in flat arrays, with a grid of buckets to
+    * find the triangle containing a point. Z values and normals are calculated
+    * from barycentric coordinates, without creating objects for each point, so
+    * that rows can be interpolated in parallel
+    */
+   private static class TriangleMesh {
+
+      //per triangle: vertex coordinates (x1,y1,z1,x2,y2,z2,x3,y3,z3)
+      private final double[] vertices_;
+      //per triangle: 1 / determinant of the barycentric coordinate system
+      private final double[] inverseDet_;
+      //angle of the surface normal to vertical, in degrees
+      private final float[] normalAngles_;
+      private final int numTriangles_;
+      private final double minX_, minY_, bucketWidth_, bucketHeight_;
+      private final int numBucketsX_, numBucketsY_;
+      private final int[][] buckets_;
+
+      TriangleMesh(Delaunay_Triangulation dTri) {
+         ArrayList<Triangle_dt> triangles = new ArrayList<Triangle_dt>();
+         Iterator<Triangle_dt> it = dTri.trianglesIterator();
+         while (it.hasNext()) {
+            Triangle_dt tri = it.next();
+            if (!tri.isHalfplane()) {
+               triangles.add(tri);
+            }
+         }
+         vertices_ = new double[9 * triangles.size()];
+         inverseDet_ = new double[triangles.size()];
+         normalAngles_ = new float[triangles.size()];
+         double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+         double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+         int n = 0;
+         for (Triangle_dt tri : triangles) {
+            Point_dt[] corners = {tri.p1(), tri.p2(), tri.p3()};
+            double x1 = corners[0].x(), y1 = corners[0].y(), z1 = corners[0].z();
+            double x2 = corners[1].x(), y2 = corners[1].y(), z2 = corners[1].z();
+            double x3 = corners[2].x(), y3 = corners[2].y(), z3 = corners[2].z();
+            double det = (y2 - y3) * (x1 - x3) + (x3 - x2) * (y1 - y3);
+            double scale = Math.max(Math.abs(x1 - x3) + Math.abs(y1 - y3), Math.abs(x2 - x3) + Math.abs(y2 - y3));
+            if (Math.abs(det) <= 1e-12 * scale * scale) {
+               //no area in XY, so no point can be interpolated from it
+               continue;
+            }
+            for (int i = 0; i < 3; i++) {
+               vertices_[9 * n + 3 * i] = corners[i].x();
+               vertices_[9 * n + 3 * i + 1] = corners[i].y();
+               vertices_[9 * n + 3 * i + 2] = corners[i].z();
+               minX = Math.min(minX, corners[i].x());
+               minY = Math.min(minY, corners[i].y());
+               maxX = Math.max(maxX, corners[i].x());
+               maxY = Math.max(maxY, corners[i].y());
+            }
+            inverseDet_[n] = 1.0 / det;
+            //normal of the plane through the 3 vertices, (v2 - v1) x (v3 - v1)
+            double nx = (y2 - y1) * (z3 - z1) - (z2 - z1) * (y3 - y1);
+            double ny = (z2 - z1) * (x3 - x1) - (x2 - x1) * (z3 - z1);
+            double nz = (x2 - x1) * (y3 - y1) - (y2 - y1) * (x3 - x1);
+            normalAngles_[n] = (float) (Math.acos(nz / Math.sqrt(nx * nx + ny * ny + nz * nz)) / Math.PI * 180.0);
+            n++;
+         }
+         numTriangles_ = n;
+         //roughly one triangle per bucket
+         int bucketsPerSide = Math.max(1, (int) Math.ceil(Math.sqrt(n)));
+         numBucketsX_ = bucketsPerSide;
+         numBucketsY_ = bucketsPerSide;
+         minX_ = minX;
+         minY_ = minY;
+         bucketWidth_ = n == 0 ? 1 : Math.max((maxX - minX) / bucketsPerSide, Double.MIN_VALUE);
+         bucketHeight_ = n == 0 ? 1 : Math.max((maxY - minY) / bucketsPerSide, Double.MIN_VALUE);
+         //range of buckets overlapped by the bounding box of each triangle
+         int[] bucketRanges = new int[4 * numTriangles_];
+         int[] counts = new int[numBucketsX_ * numBucketsY_];
+         for (int t = 0; t < numTriangles_; t++) {
+            int v = 9 * t;
+            bucketRanges[4 * t] = bucketX(Math.min(vertices_[v], Math.min(vertices_[v + 3], vertices_[v + 6])));
+            bucketRanges[4 * t + 1] = bucketX(Math.max(vertices_[v], Math.max(vertices_[v + 3], vertices_[v + 6])));
+            bucketRanges[4 * t + 2] = bucketY(Math.min(vertices_[v + 1], Math.min(vertices_[v + 4], vertices_[v + 7])));
+            bucketRanges[4 * t + 3] = bucketY(Math.max(vertices_[v + 1], Math.max(vertices_[v + 4], vertices_[v + 7])));
+            for (int by = bucketRanges[4 * t + 2]; by <= bucketRanges[4 * t + 3]; by++) {
+               for (int bx = bucketRanges[4 * t]; bx <= bucketRanges[4 * t + 1]; bx++) {
+                  counts[by * numBucketsX_ + bx]++;
+               }
+            }
+         }
+         buckets_ = new int[counts.length][];
+         for (int b = 0; b < counts.length; b++) {
+            buckets_[b] = new int[counts[b]];
+            counts[b] = 0;
+         }
+         for (int t = 0; t < numTriangles_; t++) {
+            for (int by = bucketRanges[4 * t + 2]; by <= bucketRanges[4 * t + 3]; by++) {
+               for (int bx = bucketRanges[4 * t]; bx <= bucketRanges[4 * t + 1]; bx++) {
+                  int b = by * numBucketsX_ + bx;
+                  buckets_[b][counts[b]++] = t;
+               }
+            }
+         }
+      }
+
+      private int bucketX(double x) {
+         return Math.max(0, Math.min(numBucketsX_ - 1, (int) ((x - minX_) / bucketWidth_)));
+      }
+
+      private int bucketY(double y) {
+         return Math.max(0, Math.min(numBucketsY_ - 1, (int) ((y - minY_) / bucketHeight_)));
+      }
+
+      /**
+       * Interpolates one row of the grid. Points outside of the triangulation
+       * (i.e. outside the convex hull) are left undefined
+       */
+      void interpolateRow(double xMin, double dx, double y, float[] vals, float[] normals, boolean[] defined) {
+         int lastTriangle = -1;
+         for (int xInd = 0; xInd < vals.length; xInd++) {
+            double x = xMin + dx * xInd;
+            //neighbouring points are usually in the same triangle
+            int t = lastTriangle;
+            if (t == -1 || !interpolate(t, x, y, vals, xInd)) {
+               t = -1;
+               if (x >= minX_ && y >= minY_) {
+                  int[] bucket = buckets_[bucketY(y) * numBucketsX_ + bucketX(x)];
+                  for (int candidate : bucket) {
+                     if (candidate != lastTriangle && interpolate(candidate, x, y, vals, xInd)) {
+                        t = candidate;
+                        break;
+                     }
+                  }
+               }
+            }
+            if (t == -1) {
+               defined[xInd] = false;
+            } else {
+               normals[xInd] = normalAngles_[t];
+               defined[xInd] = true;
+               lastTriangle = t;
+            }
+         }
+      }
+
+      /**
+       * @return true, after storing the z value of point, if triangle t contains it
+       */
+      private boolean interpolate(int t, double x, double y, float[] vals, int index) {
+         int v = 9 * t;
+         double x3 = vertices_[v + 6], y3 = vertices_[v + 7];
+         double l1 = ((vertices_[v + 4] - y3) * (x - x3) + (x3 - vertices_[v + 3]) * (y - y3)) * inverseDet_[t];
+         if (l1 < -BARYCENTRIC_TOLERANCE) {
+            return false;
+         }
+         double l2 = ((y3 - vertices_[v + 1]) * (x - x3) + (vertices_[v] - x3) * (y - y3)) * inverseDet_[t];
+         double l3 = 1 - l1 - l2;
+         if (l2 < -BARYCENTRIC_TOLERANCE || l3 < -BARYCENTRIC_TOLERANCE) {
+            return false;
+         }
+         vals[index] = (float) (l1 * vertices_[v + 2] + l2 * vertices_[v + 5] + l3 * vertices_[v + 8]);
+         return true;
+      }
+   }
+
    @Override
    public float getExtrapolatedValue(double x, double y) {
       //duplicate points for thread safety
@@ -0,0 +1,271 @@
+package org.micromanager.plugins.magellan.acq;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Inflater;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.plugins.magellan.json.JSONObject;
+import org.micromanager.plugins.magellan.misc.MD;
+
+public class PyramidalTiffExporterTest {
+
+   private static final int TILE_SIZE = 32;
+   private static final int NUM_CHANNELS = 2;
+   private static final int MIN_SLICE = -1;
+   private static final int NUM_SLICES = 2;
+   private static final int NUM_RES_LEVELS = 3;
+   //full resolution is 3 tiles across and 2 down, starting at row -1
+   private static final long MIN_ROW = -1, MIN_COL = 0, NUM_ROWS = 2, NUM_COLS = 3;
+
+   /**
+    * 16 bit dataset whose pixels are a function of their position, blank in
+    * the last column of tiles at full resolution
+    */
+   private static class FakeSource implements PyramidalTiffExporter.TileSource {
+
+      @Override
+      public int getNumResLevels() {
+         return NUM_RES_LEVELS;
+      }
+
+      @Override
+      public int getTileWidth() {
+         return TILE_SIZE;
+      }
+
+      @Override
+      public int getTileHeight() {
+         return TILE_SIZE;
+      }
+
+      @Override
+      public boolean isRGB() {
+         return false;
+      }
+
+      @Override
+      public int getByteDepth() {
+         return 2;
+      }
+
+      @Override
+      public long getMinRow() {
+         return MIN_ROW;
+      }
+
+      @Override
+      public long getMinCol() {
+         return MIN_COL;
+      }
+
+      @Override
+      public long getNumRows() {
+         return NUM_ROWS;
+      }
+
+      @Override
+      public long getNumCols() {
+         return NUM_COLS;
+      }
+
+      @Override
+      public Set<String> imageKeys() {
+         Set<String> keys = new HashSet<String>();
+         for (int c = 0; c < NUM_CHANNELS; c++) {
+            for (int s = MIN_SLICE; s < MIN_SLICE + NUM_SLICES; s++) {
+               keys.add(MD.generateLabel(c, s, 0, 0));
+            }
+         }
+         return keys;
+      }
+
+      @Override
+      public String getUniqueAcqName() {
+         return "test";
+      }
+
+      @Override
+      public JSONObject getSummaryMetadata() {
+         return new JSONObject();
+      }
+
+      @Override
+      public Object getBlockPixels(int channel, int slice, int frame, int resIndex, long x, long y,
+              int width, int height) {
+         short[] pixels = new short[width * height];
+         if (resIndex == 0 && x >= 2 * TILE_SIZE) {
+            return pixels;
+         }
+         for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+               pixels[j * width + i] = (short) (1000 * channel + 100 * slice + 10 * resIndex
+                       + 7 * (x + i) + 300 * (y + j));
+            }
+         }
+         return pixels;
+      }
+   }
+
+   private static class IFD {
+
+      final HashMap<Integer, long[]> entries_ = new HashMap<Integer, long[]>();
+      long next_;
+
+      long get(int tag) {
+         Assert.assertTrue("missing tag " + tag, entries_.containsKey(tag));
+         return entries_.get(tag)[2];
+      }
+   }
+
+   private static IFD readIFD(ByteBuffer file, long offset) {
+      Assert.assertEquals("IFDs start on a word boundary", 0, offset % 8);
+      file.position((int) offset);
+      IFD ifd = new IFD();
+      long count = file.getLong();
+      for (int i = 0; i < count; i++) {
+         int tag = file.getShort() & 0xffff;
+         int type = file.getShort() & 0xffff;
+         long n = file.getLong();
+         long value = file.getLong();
+         ifd.entries_.put(tag, new long[]{type, n, value});
+      }
+      ifd.next_ = file.getLong();
+      return ifd;
+   }
+
+   private static long[] readLongs(ByteBuffer file, IFD ifd, int tag) {
+      long[] entry = ifd.entries_.get(tag);
+      long[] values = new long[(int) entry[1]];
+      if (values.length == 1) {
+         values[0] = entry[2];
+      } else {
+         file.position((int) entry[2]);
+         for (int i = 0; i < values.length; i++) {
+            values[i] = file.getLong();
+         }
+      }
+      return values;
+   }
+
+   private static short[] decodeTile(ByteBuffer file, long offset, long byteCount) throws Exception {
+      byte[] compressed = new byte[(int) byteCount];
+      file.position((int) offset);
+      file.get(compressed);
+      Inflater inflater = new Inflater();
+      inflater.setInput(compressed);
+      byte[] raw = new byte[TILE_SIZE * TILE_SIZE * 2];
+      Assert.assertEquals(raw.length, inflater.inflate(raw));
+      Assert.assertTrue(inflater.finished());
+      inflater.end();
+      short[] pixels = new short[TILE_SIZE * TILE_SIZE];
+      for (int j = 0; j < TILE_SIZE; j++) {
+         int previous = 0;
+         for (int i = 0; i < TILE_SIZE; i++) {
+            int index = j * TILE_SIZE + i;
+            previous += (raw[2 * index] & 0xff) | ((raw[2 * index + 1] & 0xff) << 8);
+            pixels[index] = (short) previous;
+         }
+      }
+      return pixels;
+   }
+
+   /**
+    * Checks the dimensions and the pixels of every tile of one resolution
+    * level of an image
+    *
+    * @return tile offsets
+    */
+   private static long[] checkLevel(ByteBuffer file, IFD ifd, FakeSource source, int channel, int slice,
+           int resIndex) throws Exception {
+      Assert.assertEquals(resIndex == 0 ? 0 : 1, ifd.get(254));
+      long x = (MIN_COL * TILE_SIZE) >> resIndex;
+      long y = (MIN_ROW * TILE_SIZE) >> resIndex;
+      long width = (NUM_COLS * TILE_SIZE) >> resIndex;
+      long height = (NUM_ROWS * TILE_SIZE) >> resIndex;
+      Assert.assertEquals(width, ifd.get(256));
+      Assert.assertEquals(height, ifd.get(257));
+      Assert.assertEquals(16, ifd.get(258));
+      Assert.assertEquals(8, ifd.get(259));
+      Assert.assertEquals(2, ifd.get(317));
+      Assert.assertEquals(TILE_SIZE, ifd.get(322));
+      Assert.assertEquals(TILE_SIZE, ifd.get(323));
+      int tilesAcross = (int) ((width + TILE_SIZE - 1) / TILE_SIZE);
+      int tilesDown = (int) ((height + TILE_SIZE - 1) / TILE_SIZE);
+      long[] offsets = readLongs(file, ifd, 324);
+      long[] byteCounts = readLongs(file, ifd, 325);
+      Assert.assertEquals(tilesAcross * tilesDown, offsets.length);
+      Assert.assertEquals(offsets.length, byteCounts.length);
+      for (int t = 0; t < offsets.length; t++) {
+         short[] expected = (short[]) source.getBlockPixels(channel, slice, 0, resIndex,
+                 x + (t % tilesAcross) * TILE_SIZE, y + (t / tilesAcross) * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+         Assert.assertArrayEquals(expected, decodeTile(file, offsets[t], byteCounts[t]));
+      }
+      return offsets;
+   }
+
+   @Test
+   public void pyramidLayoutAndPixelsSurviveRoundTrip() throws Exception {
+      FakeSource source = new FakeSource();
+      File file = File.createTempFile("pyramid", ".tif");
+      try {
+         new PyramidalTiffExporter(source, 0).export(file);
+         RandomAccessFile raFile = new RandomAccessFile(file, "r");
+         ByteBuffer buffer = ByteBuffer.allocate((int) raFile.length()).order(ByteOrder.LITTLE_ENDIAN);
+         try {
+            raFile.getChannel().read(buffer, 0);
+         } finally {
+            raFile.close();
+         }
+         buffer.position(0);
+         Assert.assertEquals('I', buffer.get());
+         Assert.assertEquals('I', buffer.get());
+         Assert.assertEquals(43, buffer.getShort());
+         Assert.assertEquals(8, buffer.getShort());
+         Assert.assertEquals(0, buffer.getShort());
+         long firstIFDOffset = buffer.getLong();
+         long ifdOffset = firstIFDOffset;
+
+         //one top level image per channel and slice, channels first
+         int numImages = 0;
+         while (ifdOffset != 0) {
+            IFD ifd = readIFD(buffer, ifdOffset);
+            int channel = numImages % NUM_CHANNELS;
+            int slice = MIN_SLICE + numImages / NUM_CHANNELS;
+            Assert.assertEquals(numImages == 0, ifd.entries_.containsKey(270));
+            long[] offsets = checkLevel(buffer, ifd, source, channel, slice, 0);
+            //the two blank tiles in the last column are written once
+            Assert.assertEquals(offsets[2], offsets[5]);
+
+            long[] subIFDs = readLongs(buffer, ifd, 330);
+            Assert.assertEquals(NUM_RES_LEVELS - 1, subIFDs.length);
+            for (int i = 0; i < subIFDs.length; i++) {
+               IFD subIFD = readIFD(buffer, subIFDs[i]);
+               Assert.assertFalse(subIFD.entries_.containsKey(330));
+               checkLevel(buffer, subIFD, source, channel, slice, i + 1);
+            }
+            ifdOffset = ifd.next_;
+            numImages++;
+         }
+         Assert.assertEquals(NUM_CHANNELS * NUM_SLICES, numImages);
+
+         IFD first = readIFD(buffer, firstIFDOffset);
+         long[] description = first.entries_.get(270);
+         byte[] chars = new byte[(int) description[1] - 1];
+         buffer.position((int) description[2]);
+         buffer.get(chars);
+         JSONObject json = new JSONObject(new String(chars, "UTF-8"));
+         Assert.assertEquals(NUM_CHANNELS, json.getInt("Channels"));
+         Assert.assertEquals(NUM_SLICES, json.getInt("Slices"));
+         Assert.assertEquals(1, json.getInt("Frames"));
+         Assert.assertEquals(NUM_RES_LEVELS, json.getInt("ResolutionLevels"));
+      } finally {
+         Assert.assertTrue(file.delete());
+      }
+   }
+}